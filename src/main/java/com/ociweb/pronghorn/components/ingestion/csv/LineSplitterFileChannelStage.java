@@ -21,6 +21,8 @@ public class LineSplitterFileChannelStage extends LineSplitterByteBufferStage {
 		
 		this.fileChannel = fileChannel;
 		this.showProgress = true;
+		
+		GraphManager.addNota(graphManager, GraphManager.BLOCKING, GraphManager.BLOCKING, this);
 	}
 	
 	@Override
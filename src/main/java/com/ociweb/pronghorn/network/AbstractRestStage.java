@@ -1,6 +1,8 @@
 package com.ociweb.pronghorn.network;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,6 +55,24 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
     protected static final byte[] CONTENT_TYPE = "Content-Type: ".getBytes();
     protected static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes();
     
+    protected static final byte[] CONTENT_ENCODING_GZIP = "Content-Encoding: gzip\r\nVary: Accept-Encoding\r\n".getBytes();
+    protected static final byte[] VARY_ACCEPT_ENCODING = "Vary: Accept-Encoding\r\n".getBytes();
+    
+    private static final byte[] ETAG_OPEN = "ETag: \"".getBytes();
+    private static final byte[] ETAG_CLOSE = "\"\r\n".getBytes();
+    private static final int MAX_TEMPLATE_ETAG = 64;
+    private static final int MAX_TEMPLATE_LENGTH_DIGITS = 20;
+    private static final int MAX_TEMPLATE_ENCODING = 64;
+    
+    private static final int[] TEMPLATE_STATUS = {200, 404, 400, 500};
+    
+    //Pre-rendered headers by revision, status and content type. Each holds every line which never changes followed
+    //by the Date line, patched only when the HTTPDateClock moves to a new second, and Content-Length: so only the
+    //digits, ETag and Connection line are written per response before the whole header goes out in one copy.
+    private byte[][] headerTemplates;
+    private byte[][] headerTemplateDates;  //date line last copied into each template
+    private int[]    headerTemplateLengths;//bytes of each template which are fixed
+    
     
     protected AbstractRestStage(GraphManager graphManager, Pipe[] inputs, Pipe[] outputs, HTTPSpecification<T,R,V,H> httpSpec) {
         super(graphManager,inputs,outputs);
@@ -82,6 +102,17 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
     protected int publishHeaderMessage(int originalRequestContext, int sequence, int thisRequestContext, int status,                                     
                                         Pipe<ServerResponseSchema> localOutput, int channelIdHigh, int channelIdLow,
                                         HTTPSpecification<T,R,V, H> httpSpec, int revision, int contentType, byte[] localSizeAsBytes, byte[] localETagBytes) {
+        return publishHeaderMessage(originalRequestContext, sequence, thisRequestContext, status, localOutput, channelIdHigh, channelIdLow,
+                                    httpSpec, revision, contentType, localSizeAsBytes, localETagBytes, null);
+    }
+    
+    /**
+     * @param localEncodingLines Content-Encoding and or Vary lines with their \r\n, null when there are none
+     */
+    protected int publishHeaderMessage(int originalRequestContext, int sequence, int thisRequestContext, int status,                                     
+                                        Pipe<ServerResponseSchema> localOutput, int channelIdHigh, int channelIdLow,
+                                        HTTPSpecification<T,R,V, H> httpSpec, int revision, int contentType, byte[] localSizeAsBytes, byte[] localETagBytes,
+                                        byte[] localEncodingLines) {
         
         int headerSize = Pipe.addMsgIdx(localOutput, ServerResponseSchema.MSG_TOCHANNEL_100); //channel, sequence, context, payload 
         
@@ -91,7 +122,7 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
         
         DataOutputBlobWriter<ServerResponseSchema> writer = Pipe.outputStream(localOutput);
         writer.openField();
-        writeHeader(httpSpec.revisions[revision].getBytes(), status, originalRequestContext, localETagBytes,  httpSpec.contentTypes[contentType].getBytes(), localSizeAsBytes, writer);
+        writeHeader(revision, status, contentType, originalRequestContext, localETagBytes, localSizeAsBytes, localEncodingLines, writer);
         int bytesLength = writer.closeLowLevelField();
         
         Pipe.addIntValue( thisRequestContext , localOutput); //empty request context, set the full value last. 
@@ -116,10 +147,10 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
         
         DataOutputBlobWriter<ServerResponseSchema> writer = Pipe.outputStream(localOutput);        
         writer.openField();
-        writeHeader(httpSpec.revisions[revision].getBytes(), status, requestContext, null, contentType<0 ? null :httpSpec.contentTypes[contentType].getBytes(), ZERO, writer);
+        writeHeader(revision, status, contentType, requestContext, null, ZERO, writer);
         writer.closeLowLevelField();          
 
-        Pipe.addIntValue(requestContext , localOutput); //empty request context, set the full value last.                        
+        Pipe.addIntValue(~ServerCoordinator.ACCEPT_ENCODING_MASK & requestContext , localOutput); //there is no body so nothing may be compressed
         
         Pipe.confirmLowLevelWrite(localOutput, headerSize);
         Pipe.publishWrites(localOutput);
@@ -128,8 +159,114 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
     }
     
     
-    //TODO: build better constants for these values needed.
+    /**
+     * Writes the header from its pre-rendered template with one copy, the template is built on first use.
+     * 
+     * @param contentType -1 when there is no Content-Type
+     */
+    protected void writeHeader(int revision, int status, int contentType, int requestContext, byte[] etagBytes, byte[] lenAsBytes, DataOutputBlobWriter<ServerResponseSchema> writer) {
+        writeHeader(revision, status, contentType, requestContext, etagBytes, lenAsBytes, null, writer);
+    }
+    
+    /**
+     * @param encodingLines Content-Encoding and or Vary lines with their \r\n, null when there are none
+     */
+    protected void writeHeader(int revision, int status, int contentType, int requestContext, byte[] etagBytes, byte[] lenAsBytes, byte[] encodingLines, DataOutputBlobWriter<ServerResponseSchema> writer) {
+        if (null==lenAsBytes || lenAsBytes.length>MAX_TEMPLATE_LENGTH_DIGITS || (null!=etagBytes && etagBytes.length>MAX_TEMPLATE_ETAG)
+            || (null!=encodingLines && encodingLines.length>MAX_TEMPLATE_ENCODING)) {
+            writeHeader(httpSpec.revisions[revision].getBytes(), status, requestContext, etagBytes, contentType<0 ? null : httpSpec.contentTypes[contentType].getBytes(), lenAsBytes, encodingLines, writer);
+            return;
+        }
+        
+        int key = templateKey(revision, status, contentType);
+        byte[] template = headerTemplates[key];
+        if (null==template) {
+            template = buildTemplate(key, revision, status, contentType);
+        }
+        
+        int p = headerTemplateLengths[key];
+        byte[] dateLine = HTTPDateClock.dateLine(System.currentTimeMillis());
+        if (dateLine != headerTemplateDates[key]) {
+            System.arraycopy(dateLine, 0, template, p - HTTPDateClock.DATE_LINE_LENGTH - CONTENT_LENGTH.length, HTTPDateClock.DATE_LINE_LENGTH);
+            headerTemplateDates[key] = dateLine;
+        }
+        
+        p = put(template, p, lenAsBytes);
+        p = put(template, p, RETURN_NEWLINE);
+        if (null!=etagBytes) {
+            p = put(template, p, ETAG_OPEN);
+            p = put(template, p, etagBytes);
+            p = put(template, p, ETAG_CLOSE);
+        }
+        if (null!=encodingLines) {
+            p = put(template, p, encodingLines);
+        }
+        p = put(template, p, CONNECTION[1&(requestContext>>ServerCoordinator.CLOSE_CONNECTION_SHIFT)]);
+        p = put(template, p, RETURN_NEWLINE);
+        
+        writer.write(template, 0, p);
+    }
+    
+    private static int put(byte[] target, int p, byte[] source) {
+        System.arraycopy(source, 0, target, p, source.length);
+        return p+source.length;
+    }
+    
+    private int templateKey(int revision, int status, int contentType) {
+        if (null==headerTemplates) {
+            int count = httpSpec.revisions.length*TEMPLATE_STATUS.length*(httpSpec.contentTypes.length+1);
+            headerTemplates = new byte[count][];
+            headerTemplateDates = new byte[count][];
+            headerTemplateLengths = new int[count];
+        }
+        int statusIdx = TEMPLATE_STATUS.length;
+        while (--statusIdx>=0 && status!=TEMPLATE_STATUS[statusIdx]) {
+        }
+        if (statusIdx<0) {
+            throw new UnsupportedOperationException("Unknwown status "+status);
+        }
+        return ((revision*TEMPLATE_STATUS.length)+statusIdx)*(httpSpec.contentTypes.length+1) + contentType+1;
+    }
+    
+    private byte[] buildTemplate(int key, int revision, int status, int contentType) {
+        //the fixed lines are rendered the same way as every other header so the bytes never differ
+        ByteArrayOutputStream fixed = new ByteArrayOutputStream();
+        try {
+            fixed.write(httpSpec.revisions[revision].getBytes());
+            fixed.write(200==status ? OK_200 : 404==status ? Not_Found_404 : 400==status ? X_400 : X_500);
+            fixed.write(SERVER);
+            fixed.write(CACHE_CONTROL_NO_CACHE);
+            fixed.write(PRAGMA_NO_CACHE);
+            fixed.write(EXPIRES_ZERO);
+            if (contentType>=0) {
+                fixed.write(CONTENT_TYPE);
+                fixed.write(httpSpec.contentTypes[contentType].getBytes());
+                fixed.write(RETURN_NEWLINE);
+            }
+            fixed.write(new byte[HTTPDateClock.DATE_LINE_LENGTH]); //patched on use
+            fixed.write(CONTENT_LENGTH);
+        } catch (IOException e) {
+            throw new RuntimeException(e); //never thrown for an in memory stream
+        }
+        int fixedLength = fixed.size();
+        
+        int variableLength = MAX_TEMPLATE_LENGTH_DIGITS + RETURN_NEWLINE.length
+                           + ETAG_OPEN.length + MAX_TEMPLATE_ETAG + ETAG_CLOSE.length + MAX_TEMPLATE_ENCODING
+                           + Math.max(CONNECTION[0].length, CONNECTION[1].length) + RETURN_NEWLINE.length;
+        byte[] template = Arrays.copyOf(fixed.toByteArray(), fixedLength+variableLength);
+        
+        headerTemplateLengths[key] = fixedLength;
+        return headerTemplates[key] = template;
+    }
+    
+    /**
+     * Writes every line of the header one at a time, only used when a value will not fit in a pre-rendered template.
+     */
     public void writeHeader(byte[] revisionBytes, int status, int requestContext, byte[] etagBytes, byte[] typeBytes, byte[] lenAsBytes, DataOutputBlobWriter<ServerResponseSchema> writer) {
+        writeHeader(revisionBytes, status, requestContext, etagBytes, typeBytes, lenAsBytes, null, writer);
+    }
+    
+    public void writeHeader(byte[] revisionBytes, int status, int requestContext, byte[] etagBytes, byte[] typeBytes, byte[] lenAsBytes, byte[] encodingLines, DataOutputBlobWriter<ServerResponseSchema> writer) {
              
             //line one
             writer.write(revisionBytes);
@@ -150,12 +287,6 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
             //line two
             writer.write(SERVER);
             
-//            if (null!=etagBytes) {
-//                writer.write(ETAG);
-//                writer.write(etagBytes); //ETag: "3f80f-1b6-3e1cb03b"
-//                writer.write('\n');
-//            }          
-            
             writer.write(CACHE_CONTROL_NO_CACHE);
             writer.write(PRAGMA_NO_CACHE);
             writer.write(EXPIRES_ZERO);
@@ -176,6 +307,18 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
                 writer.write(RETURN_NEWLINE);
             }
             
+            if (null!=etagBytes) {
+                writer.write(ETAG_OPEN);
+                writer.write(etagBytes); //ETag: "3f80f-1b6-3e1cb03b"
+                writer.write(ETAG_CLOSE);
+            }
+            
+            if (null!=encodingLines) {
+                writer.write(encodingLines);
+            }
+            
+            writer.write(HTTPDateClock.dateLine(System.currentTimeMillis()));
+            
             //line five            
             int closeIdx = 1&(requestContext>>ServerCoordinator.CLOSE_CONNECTION_SHIFT);
             writer.write(CONNECTION[closeIdx]);
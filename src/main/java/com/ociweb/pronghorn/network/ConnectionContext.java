@@ -3,9 +3,11 @@ package com.ociweb.pronghorn.network;
 public class ConnectionContext {
 
     private long channelId;
+    private int pipeIdx; //pipe this connection is read into, -1 until the reader picks one
     
     public ConnectionContext() {
         this.channelId = (long) -1;
+        this.pipeIdx = -1;
     }
 
 	public long getChannelId() {
@@ -14,6 +16,15 @@ public class ConnectionContext {
 
 	public void setChannelId(long channelId) {
 		this.channelId = channelId;
+		this.pipeIdx = -1;
 	}    
+
+	public int getPipeIdx() {
+		return pipeIdx;
+	}
+
+	public void setPipeIdx(int pipeIdx) {
+		this.pipeIdx = pipeIdx;
+	}
     
 }
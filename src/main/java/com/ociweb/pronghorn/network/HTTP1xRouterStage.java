@@ -39,6 +39,7 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
     private TrieParser urlMap;
     private TrieParser headerMap;
     private TrieParser revisionMap;
+    private TrieParser chunkMap;
         
     private TrieParserReader trieReader;
     
@@ -49,22 +50,25 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
     private       boolean[]                   isOpen;
         
     
-    private final Pipe<HTTPRequestSchema>[] outputs;
+    private final Pipe<HTTPRequestSchema>[][] outputs; //by route, every pipe of a route goes to an equal app instance
+    private int[]                             nextOutput;  //by route, round robin so pipelined requests run in parallel
 
     private final int[]                     messageIds;
-    private DataOutputBlobWriter<HTTPRequestSchema>[] blobWriter;
+    private DataOutputBlobWriter<HTTPRequestSchema>[][] blobWriter;
     private long[] requestHeaderMask;
     private byte[][] headerOffsets;
     private int[][] headerBlankBases;
     
     private static int MAX_HEADER = 1<<15;
     
-    private final CharSequence[] paths;
+    private final HTTPRouteTable routeTable;
     
-    private int sequenceNo = 0;
+    //next sequence number by channel slot, the WrapSupervisorStage puts the responses back in this order.
+    //these are never reset so a reused slot continues where the last connection left off, as the supervisor does.
+    private final int channelBitsMask;
+    private int[] sequenceNos;
     
     //TODO: need error if two strings are added to the same place?? or not
-    //TODO: all the parts to the same message will share the same sequence no
 
     //NOTE: TODO: BBB for values mis-routed here we need a target stage to uprage connection and set the port
     
@@ -73,6 +77,32 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
     private int headerIdUpgrade    = HTTPHeaderKeyDefaults.UPGRADE.ordinal();
     private int headerIdConnection = HTTPHeaderKeyDefaults.CONNECTION.ordinal();
     private int headerIdContentLength = HTTPHeaderKeyDefaults.CONTENT_LENGTH.ordinal();
+    private int headerIdTransferEncoding = HTTPHeaderKeyDefaults.TRANSFER_ENCODING.ordinal();
+    private int headerIdAcceptEncoding = HTTPHeaderKeyDefaults.ACCEPT_ENCODING.ordinal();
+    private final StringBuilder acceptEncoding = new StringBuilder(); //reused for every request
+    
+    //request bodies are streamed to the same app pipe as their request in HTTPRequestSchema.MSG_REQUESTBODY_400 fragments
+    //as the bytes arrive, so no body is ever held whole. State is by channel slot because other channels may use the input between parts.
+    //The owning channel is kept with the state, a slot reused by a new connection or a disconnect ends whatever body was left unfinished.
+    private static final byte BODY_NONE       = 0;
+    private static final byte BODY_LENGTH     = 1; //Content-Length
+    private static final byte BODY_CHUNK_HEAD = 2; //Transfer-Encoding: chunked
+    private static final byte BODY_CHUNK_DATA = 3;
+    private static final byte BODY_CHUNK_END  = 4; //\r\n after the data of each chunk
+    private static final byte BODY_TRAILER    = 5; //after the last zero length chunk
+    
+    private static final long CHUNKED = -1;
+    private static final int  MAX_CHUNK_HEAD = 1<<10;
+    private static final int  CHUNK_SIZE = 1;
+    private static final int  CHUNK_SIZE_WITH_EXTENSION = 2;
+    
+    private long   requestBodyLength; //found by parseHeaderFields, CHUNKED or byte count
+    private byte[] bodyState;         //by slot
+    private long[] bodyRemaining;     //by slot, bytes left in the body or the current chunk
+    private int[]  bodyTarget;        //by slot, route in the high 16 bits and output in the low
+    private long[] bodyChannel;       //by slot, the connection the body state belongs to
+    private ServerCoordinator coordinator; //when set each body part moves the request deadline of its connection and unroutable requests close theirs
+    private int groupIdx;
     
     private final int END_OF_HEADER_ID;
     private final int UNKNOWN_HEADER_ID;
@@ -90,12 +120,63 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
        return new HTTP1xRouterStage<HTTPContentTypeDefaults ,HTTPHeaderKeyDefaults, HTTPRevisionDefaults, HTTPVerbDefaults>(gm,input,outputs, paths, headers, messageIds,
                                    HTTPSpecification.defaultSpec()  ); 
     }
-
-   
+    
+    /**
+     * @param outputs by route, requests for a route are spread over all its pipes so pipelined requests are worked in parallel
+     * @param channelBits must match the ServerCoordinator, each channel slot has its own sequence of requests
+     */
+    public static HTTP1xRouterStage newInstance(GraphManager gm, Pool<Pipe<NetPayloadSchema>> input, Pipe<HTTPRequestSchema>[][] outputs,
+                                              CharSequence[] paths, long[] headers, int[] messageIds, int channelBits) {
+        
+       return new HTTP1xRouterStage<HTTPContentTypeDefaults ,HTTPHeaderKeyDefaults, HTTPRevisionDefaults, HTTPVerbDefaults>(gm,input,outputs, paths, headers, messageIds,
+                                   HTTPSpecification.defaultSpec(), channelBits); 
+    }
+    
+    /**
+     * @param routes templates and verbs registered for each route, headers and messageIds are by the same route ids
+     */
+    public static HTTP1xRouterStage newInstance(GraphManager gm, Pool<Pipe<NetPayloadSchema>> input, Pipe<HTTPRequestSchema>[][] outputs,
+                                              HTTPRouteTable routes, long[] headers, int[] messageIds, int channelBits) {
+        
+       return new HTTP1xRouterStage<HTTPContentTypeDefaults ,HTTPHeaderKeyDefaults, HTTPRevisionDefaults, HTTPVerbDefaults>(gm,input,outputs, routes, headers, messageIds,
+                                   HTTPSpecification.defaultSpec(), channelBits); 
+    }
+    
+    /**
+     * Body parts are reported to the coordinator as they arrive so the ServerConnectionTimeoutStage does not close an upload
+     * which is still sending. Must be called before startup.
+     */
+    public static void reportBodyActivity(HTTP1xRouterStage<?,?,?,?> that, ServerCoordinator coordinator, int groupIdx) {
+        that.coordinator = coordinator;
+        that.groupIdx = groupIdx;
+    }
+    
     public HTTP1xRouterStage(GraphManager gm, Pool<Pipe<NetPayloadSchema>> input, Pipe<HTTPRequestSchema>[] outputs, 
                            CharSequence[] paths, long[] headers, int[] messageIds, 
                            HTTPSpecification<T,R,V,H> httpSpec) {
-        super(gm,input.members(),outputs);
+        this(gm, input, singlePipeRoutes(outputs), paths, headers, messageIds, httpSpec, ServerCoordinator.DEFAULT_CONNECTION_BITS);
+    }
+    
+    private static Pipe<HTTPRequestSchema>[][] singlePipeRoutes(Pipe<HTTPRequestSchema>[] outputs) {
+        Pipe<HTTPRequestSchema>[][] routes = new Pipe[outputs.length][];
+        int r = outputs.length;
+        while (--r>=0) {
+            routes[r] = new Pipe[] {outputs[r]};
+        }
+        return routes;
+    }
+
+
+    public HTTP1xRouterStage(GraphManager gm, Pool<Pipe<NetPayloadSchema>> input, Pipe<HTTPRequestSchema>[][] outputs, 
+                           CharSequence[] paths, long[] headers, int[] messageIds, 
+                           HTTPSpecification<T,R,V,H> httpSpec, int channelBits) {
+        this(gm, input, outputs, HTTPRouteTable.anyVerb(paths, httpSpec.verbs.length), headers, messageIds, httpSpec, channelBits);
+    }
+   
+    public HTTP1xRouterStage(GraphManager gm, Pool<Pipe<NetPayloadSchema>> input, Pipe<HTTPRequestSchema>[][] outputs, 
+                           HTTPRouteTable routeTable, long[] headers, int[] messageIds, 
+                           HTTPSpecification<T,R,V,H> httpSpec, int channelBits) {
+        super(gm,input.members(),join((Pipe[][])outputs));
         this.inputs = input.members();
                 
         this.outputs = outputs;
@@ -104,7 +185,8 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
         
         this.httpSpec = httpSpec;
         
-        this.paths = paths;
+        this.routeTable = routeTable;
+        this.channelBitsMask = (1<<channelBits)-1;
         
         END_OF_HEADER_ID  = httpSpec.headerCount+2;//for the empty header found at the bottom of the header
         UNKNOWN_HEADER_ID = httpSpec.headerCount+1;
@@ -126,6 +208,13 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
         isOpen = new boolean[inputs.length];
         Arrays.fill(isOpen, true);
         
+        sequenceNos = new int[channelBitsMask+1];
+        bodyState = new byte[channelBitsMask+1];
+        bodyRemaining = new long[channelBitsMask+1];
+        bodyTarget = new int[channelBitsMask+1];
+        bodyChannel = new long[channelBitsMask+1];
+        nextOutput = new int[outputs.length];
+        
         final int sizeOfVarField = 2;
         
         int h = requestHeaderMask.length;
@@ -155,18 +244,26 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
         ////
         ///
         
-        urlMap = new TrieParser(1024,true);  //TODO: build size needed for these URLs dynamically 
-        headerMap = new TrieParser(1024,true);//true skips deep checks we have an unknown value that gets picked for unexpected headers
+        urlMap = HTTPRouteTable.buildTrie(routeTable);  //values are path ids, the route also depends on the verb
+        headerMap = new TrieParser(headerTrieSize(),true);//true skips deep checks we have an unknown value that gets picked for unexpected headers
         
         verbMap = new TrieParser(256,false);//does deep check
         revisionMap = new TrieParser(256,true); //avoid deep check
         
+        chunkMap = new TrieParser(128,false);
+        chunkMap.setUTF8Value("%U\r\n", CHUNK_SIZE); //hex parser of U% does not require leading 0x
+        chunkMap.setUTF8Value("%U;%b\r\n", CHUNK_SIZE_WITH_EXTENSION);
+        
         trieReader = new TrieParserReader(16);//max fields we support capturing.
         
-        int w = outputs.length;
-        blobWriter = new DataOutputBlobWriter[w];
-        while (--w>=0) {
-            blobWriter[w] = new DataOutputBlobWriter<HTTPRequestSchema>(outputs[w]);
+        int r = outputs.length;
+        blobWriter = new DataOutputBlobWriter[r][];
+        while (--r>=0) {
+            int w = outputs[r].length;
+            blobWriter[r] = new DataOutputBlobWriter[w];
+            while (--w>=0) {
+                blobWriter[r][w] = new DataOutputBlobWriter<HTTPRequestSchema>(outputs[r][w]);
+            }
         }
         
         int x; 
@@ -218,23 +315,8 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
         }
         totalShortestRequest += localShortest; //add shortest verb
         
-        //load all the routes
-        x = paths.length;
-        localShortest = Integer.MAX_VALUE;
-        while (--x>=0) {
-
-            int b;
-            int value = x;
-            if (' '==paths[x].charAt(paths[x].length()-1)) {
-                b=urlMap.setUTF8Value(paths[x], value);
-            } else {
-                b=urlMap.setUTF8Value(paths[x], " ",value);
-            }
-            if (b<localShortest) {
-                localShortest = b;
-            } 
-        }
-        totalShortestRequest += localShortest; 
+        //routes were loaded when the url trie was built
+        totalShortestRequest += HTTPRouteTable.shortestTemplate(routeTable); 
         
         if (totalShortestRequest<=0) {
             totalShortestRequest = 1;
@@ -314,7 +396,9 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
           // logger.info("total input length "+toParseLength);
             
 
-            if (toParseLength>=totalShortestRequest && route(trieReader, channel, idx)) {
+            //body parts may be shorter than any request
+            boolean isBody = hasBody((int)(channelBitsMask & channel), channel);
+            if ((toParseLength>=totalShortestRequest || isBody) && route(trieReader, channel, idx)) {
                 consumed = (int)(toParseLength - TrieParserReader.parseHasContentLength(trieReader));           
                 Pipe.releasePendingAsReadLock(selectedInput, consumed);
                 p = Pipe.blobMask(selectedInput) & (p + consumed);
@@ -339,6 +423,11 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
 
 private boolean route(TrieParserReader trieReader, long channel, int idx) {    
     
+    final int slot = (int)(channelBitsMask & channel);
+    if (hasBody(slot, channel)) {
+        return streamBody(trieReader, channel, slot);
+    }
+    
 	// TrieParserReader.debugAsUTF8(trieReader, System.out,3000, false);
 	
 	
@@ -348,97 +437,279 @@ private boolean route(TrieParserReader trieReader, long channel, int idx) {
     
     
     if (verbId<0) {
-        if (TrieParserReader.parseHasContentLength(trieReader)<=0) { //TODO: how long until we timeout and abandon this partial data??
+        if (TrieParserReader.parseHasContentLength(trieReader)<=0) { //partial data waits for more, if it never completes the ServerConnectionTimeoutStage sends a disconnect which drops it
             //not error, must wait for more content and try again.
             return false;
         } else {
-            
-            //TODO: send error
-            
+            return rejectRequest(trieReader, channel);
         }
         
     }
     
   //  TrieParserReader.debugAsUTF8(trieReader, System.out,3000, false);
-    final int routeId = (int)TrieParserReader.parseNext(trieReader, urlMap);     //  GET /hello/x?x=3 HTTP/1.1 
-    if (routeId<0) {
+    final int pathId = (int)TrieParserReader.parseNext(trieReader, urlMap);     //  GET /hello/x?x=3 HTTP/1.1 
+    if (pathId<0) {
         if (TrieParserReader.parseHasContentLength(trieReader)<=0) {
             //not error, must wait for more content and try again.
             return false;            
         } else {
-            
-            //TODO: send error
-            
+            return rejectRequest(trieReader, channel);
         }
     }
+    
+    final int routeId = HTTPRouteTable.route(routeTable, verbId, pathId);
+    if (routeId<0) {
+        //no route takes this verb and path, holding it would stall every connection read into this pipe
+        return rejectRequest(trieReader, channel);
+    }
  
-    Pipe<HTTPRequestSchema> staticRequestPipe = outputs[routeId];
+    //any pipe of this route with room will do, the responses are put back in order by sequence number
+    int outputIdx = selectOutput(routeId);
+    if (outputIdx<0) {
+        //no room try again later
+        return false;
+    }
+    Pipe<HTTPRequestSchema> staticRequestPipe = outputs[routeId][outputIdx];
 
     Pipe.markHead(staticRequestPipe);//holds in case we need to abandon our writes
     
-    if (Pipe.hasRoomForWrite(staticRequestPipe) ) {
-        
-        final int size =  Pipe.addMsgIdx(staticRequestPipe, messageIds[routeId]);        // Write 1   1                         
-        Pipe.addLongValue(channel, staticRequestPipe); // Channel                        // Write 2   3        
-        
-        System.out.println("wrote ever increasing squence from router of "+sequenceNo);//TODO: should this be per connection instead!!
-        
-        Pipe.addIntValue(sequenceNo++, staticRequestPipe); //sequence                    // Write 1   4
-        Pipe.addIntValue(verbId, staticRequestPipe);   // Verb                           // Write 1   5
-        
-        
-        try {
-        	//System.out.print("captured data:");
-			TrieParserReader.writeCapturedValuesToAppendable(trieReader,System.out);
-			//System.out.println();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-        
-        writeURLParamsToField(trieReader, blobWriter[routeId]);                          //write 2   7
-       
-        int httpRevisionId = (int)TrieParserReader.parseNext(trieReader, revisionMap);  //  GET /hello/x?x=3 HTTP/1.1 
-        
-        if (httpRevisionId<0) { 
-            if (TrieParserReader.parseHasContentLength(trieReader)<=0) {
-                //ROLL BACK THE WRITE
-                Pipe.resetHead(staticRequestPipe);
-                //not error, must wait for more content and try again.
-                return false;            
-            } else {
-                 
-                
-                
-                //TODO: send error
-                
-            }  
+    final int size =  Pipe.addMsgIdx(staticRequestPipe, messageIds[routeId]);        // Write 1   1                         
+    Pipe.addLongValue(channel, staticRequestPipe); // Channel                        // Write 2   3        
+    Pipe.addIntValue(sequenceNos[slot], staticRequestPipe); //sequence               // Write 1   4
+    Pipe.addIntValue(verbId, staticRequestPipe);   // Verb                           // Write 1   5
+    
+    writeURLParamsToField(trieReader, blobWriter[routeId][outputIdx]);               //write 2   7
+   
+    int httpRevisionId = (int)TrieParserReader.parseNext(trieReader, revisionMap);  //  GET /hello/x?x=3 HTTP/1.1 
+    
+    if (httpRevisionId<0) { 
+        if (TrieParserReader.parseHasContentLength(trieReader)<=0) {
+            //ROLL BACK THE WRITE
+            Pipe.resetHead(staticRequestPipe);
+            //not error, must wait for more content and try again.
+            return false;            
+        } else {
+            Pipe.resetHead(staticRequestPipe);
+            return rejectRequest(trieReader, channel);
+        }  
 
-        }
-        
-        Pipe.addIntValue(httpRevisionId, staticRequestPipe); // Revision Id          // Write 1   8
+    }
+    
+    Pipe.addIntValue(httpRevisionId, staticRequestPipe); // Revision Id          // Write 1   8
 
-        int requestContext = parseHeaderFields(routeId, staticRequestPipe, httpRevisionId, false);  // Write 2   10 //if header is presen
-        if (ServerCoordinator.INCOMPLETE_RESPONSE_MASK == requestContext) {   
-            //try again later, not complete.
-            Pipe.resetHead(staticRequestPipe);
-            return false;
-        }        
-        Pipe.addIntValue(requestContext, staticRequestPipe); // request context     // Write 1   11
-        
-        int consumed = Pipe.publishWrites(staticRequestPipe);                        // Write 1   12
-        assert(consumed>=0);        
-        Pipe.confirmLowLevelWrite(staticRequestPipe, size);
-        
-    } else {
-        //no room try again later
+    int requestContext = parseHeaderFields(routeId, staticRequestPipe, httpRevisionId, false);  // Write 2   10 //if header is presen
+    if (ServerCoordinator.INCOMPLETE_RESPONSE_MASK == requestContext) {   
+        //try again later, not complete.
+        Pipe.resetHead(staticRequestPipe);
         return false;
+    }        
+    Pipe.addIntValue(requestContext, staticRequestPipe); // request context     // Write 1   11
+    
+    int consumed = Pipe.publishWrites(staticRequestPipe);                        // Write 1   12
+    assert(consumed>=0);        
+    Pipe.confirmLowLevelWrite(staticRequestPipe, size);
+    
+    //only counted once the request is complete, a partial one will be parsed again with the same number
+    sequenceNos[slot]++;
+    nextOutput[routeId] = outputIdx+1;
+    
+    if (0 != requestBodyLength) {
+        //the body parts follow on this same pipe so they stay behind their request
+        bodyTarget[slot] = (routeId<<16) | outputIdx;
+        bodyChannel[slot] = channel;
+        if (CHUNKED == requestBodyLength) {
+            bodyState[slot] = BODY_CHUNK_HEAD;
+        } else {
+            bodyState[slot] = BODY_LENGTH;
+            bodyRemaining[slot] = requestBodyLength;
+        }
     }
     
    return true;
 }
 
 
+private boolean streamBody(TrieParserReader trieReader, long channel, int slot) {
+    final int routeId = bodyTarget[slot]>>>16;
+    final int outputIdx = 0xFFFF & bodyTarget[slot];
+    Pipe<HTTPRequestSchema> pipe = outputs[routeId][outputIdx];
+    if (!Pipe.hasRoomForWrite(pipe)) {
+        return false;
+    }
+    DataOutputBlobWriter<HTTPRequestSchema> writer = blobWriter[routeId][outputIdx];
+    
+    switch (bodyState[slot]) {
+        case BODY_CHUNK_HEAD:
+            int chunkId = (int)TrieParserReader.parseNext(trieReader, chunkMap);
+            if (chunkId<0) {
+                if (TrieParserReader.parseHasContentLength(trieReader)>MAX_CHUNK_HEAD) {
+                    return abandonBody(trieReader, channel, slot, pipe, writer);
+                }
+                return false; //not enough data yet to parse try again later
+            }
+            long chunkLength = TrieParserReader.capturedLongField(trieReader, 0);
+            if (0 == chunkLength) {
+                bodyState[slot] = BODY_TRAILER;
+            } else {
+                bodyState[slot] = BODY_CHUNK_DATA;
+                bodyRemaining[slot] = chunkLength;
+            }
+            return true;
+        case BODY_CHUNK_END:
+            if (TrieParserReader.parseHasContentLength(trieReader)<2) {
+                return false;
+            }
+            TrieParserReader.parseSkip(trieReader, 2); //skip \r\n which appears on the end of every chunk
+            bodyState[slot] = BODY_CHUNK_HEAD;
+            return true;
+        case BODY_TRAILER:
+            int headerId = (int)TrieParserReader.parseNext(trieReader, headerMap);
+            if (headerId<0) {
+                if (TrieParserReader.parseHasContentLength(trieReader)>MAX_HEADER) {
+                    return abandonBody(trieReader, channel, slot, pipe, writer);
+                }
+                return false;
+            }
+            if (END_OF_HEADER_ID == headerId) {
+                writeBodyPart(trieReader, channel, slot, pipe, writer, 0, ServerCoordinator.END_RESPONSE_MASK);
+                bodyState[slot] = BODY_NONE;
+            } //trailing headers are not passed on
+            return true;
+        default: //BODY_LENGTH or BODY_CHUNK_DATA
+            long remaining = bodyRemaining[slot];
+            int length = (int)Math.min(Math.min(remaining, TrieParserReader.parseHasContentLength(trieReader)), pipe.maxAvgVarLen);
+            if (length<=0) {
+                return false;
+            }
+            remaining -= length;
+            bodyRemaining[slot] = remaining;
+            if (0 != remaining) {
+                writeBodyPart(trieReader, channel, slot, pipe, writer, length, 0);
+            } else if (BODY_LENGTH == bodyState[slot]) {
+                writeBodyPart(trieReader, channel, slot, pipe, writer, length, ServerCoordinator.END_RESPONSE_MASK);
+                bodyState[slot] = BODY_NONE;
+            } else {
+                writeBodyPart(trieReader, channel, slot, pipe, writer, length, 0);
+                bodyState[slot] = BODY_CHUNK_END;
+            }
+            return true;
+    }
+}
+
+private boolean hasBody(int slot, long channel) {
+    if (BODY_NONE == bodyState[slot]) {
+        return false;
+    }
+    if (channel == bodyChannel[slot]) {
+        return true;
+    }
+    //the slot now holds a newer connection, the old one went away in the middle of its body
+    endBody(slot);
+    return false;
+}
+
+//tells the app the body will never be finished, if there is no room the state is dropped anyway since the connection is gone
+private void endBody(int slot) {
+    final int routeId = bodyTarget[slot]>>>16;
+    final int outputIdx = 0xFFFF & bodyTarget[slot];
+    Pipe<HTTPRequestSchema> pipe = outputs[routeId][outputIdx];
+    if (Pipe.hasRoomForWrite(pipe)) {
+        writeBodyPart(trieReader, bodyChannel[slot], slot, pipe, blobWriter[routeId][outputIdx], 0, ServerCoordinator.END_RESPONSE_MASK | ServerCoordinator.CLOSE_CONNECTION_MASK);
+    } else {
+        logger.warn("no room to end the body of closed channel {}", bodyChannel[slot]);
+    }
+    bodyState[slot] = BODY_NONE;
+}
+
+/**
+ * Drops the partial request held for this channel on any input along with its body state so
+ * nothing of a closed connection is ever parsed as part of the connection which reuses its slot.
+ */
+private void dropChannel(long channel) {
+    int i = inputs.length;
+    while (--i>=0) {
+        if (channel == inputChannels[i] && null != inputs[i]) {
+            Pipe.releasePendingAsReadLock(inputs[i], inputLengths[i]);
+            inputChannels[i] = -1;
+            inputLengths[i] = 0;
+        }
+    }
+    int slot = (int)(channelBitsMask & channel);
+    if (BODY_NONE != bodyState[slot] && channel == bodyChannel[slot]) {
+        endBody(slot);
+    }
+}
+
+//this stage can not answer the request itself, so the rest of what the connection sent is dropped and it is closed.
+//it must not be left on the input, every other connection read into the same pipe would wait behind it.
+private boolean rejectRequest(TrieParserReader trieReader, long channel) {
+    logger.warn("no route for request from channel {}, closing connection", channel);
+    TrieParserReader.parseSkip(trieReader, (int)TrieParserReader.parseHasContentLength(trieReader));
+    if (null != coordinator) {
+        ServerConnection connection = ServerCoordinator.getSocketChannelHolder(coordinator, groupIdx).get(channel);
+        if (null != connection) {
+            connection.close();
+        }
+    }
+    return true;
+}
+
+//the client has sent a chunk we can not parse so what is buffered is dropped and the app is told the body is broken
+private boolean abandonBody(TrieParserReader trieReader, long channel, int slot, Pipe<HTTPRequestSchema> pipe, DataOutputBlobWriter<HTTPRequestSchema> writer) {
+    logger.warn("bad request body from channel {}, dropping {} bytes", channel, TrieParserReader.parseHasContentLength(trieReader));
+    TrieParserReader.parseSkip(trieReader, (int)TrieParserReader.parseHasContentLength(trieReader));
+    writeBodyPart(trieReader, channel, slot, pipe, writer, 0, ServerCoordinator.END_RESPONSE_MASK | ServerCoordinator.CLOSE_CONNECTION_MASK);
+    bodyState[slot] = BODY_NONE;
+    return true;
+}
+
+private void writeBodyPart(TrieParserReader trieReader, long channel, int slot, Pipe<HTTPRequestSchema> pipe, DataOutputBlobWriter<HTTPRequestSchema> writer, int length, int requestContext) {
+    final int size = Pipe.addMsgIdx(pipe, HTTPRequestSchema.MSG_REQUESTBODY_400);
+    Pipe.addLongValue(channel, pipe);
+    Pipe.addIntValue(sequenceNos[slot]-1, pipe); //same number as the request it belongs to
+    DataOutputBlobWriter.openField(writer);
+    if (length>0) {
+        TrieParserReader.parseCopy(trieReader, length, writer);
+    }
+    DataOutputBlobWriter.closeLowLevelField(writer);
+    Pipe.addIntValue(requestContext, pipe);
+    Pipe.confirmLowLevelWrite(pipe, size);
+    Pipe.publishWrites(pipe);
+    if (null != coordinator) {
+        ServerCoordinator.bodyActivity(coordinator, groupIdx, channel, System.nanoTime());
+    }
+}
+
+
+//two tails for every supported header plus the end and unknown header patterns
+private int headerTrieSize() {
+    int bytes = 0;
+    H[] shr = httpSpec.supportedHTTPHeaders.getEnumConstants();
+    int x = shr.length;
+    while (--x >= 0) {
+        bytes += (shr[x].getKey().length()<<1) + 3; //keys are ASCII
+    }
+    return HTTPRouteTable.trieSize(bytes+20, (shr.length<<1)+4);
+}
+
+
+private int selectOutput(int routeId) {
+    Pipe<HTTPRequestSchema>[] routePipes = outputs[routeId];
+    int i = routePipes.length;
+    int idx = nextOutput[routeId];
+    while (--i>=0) {
+        if (idx >= routePipes.length) {
+            idx = 0;
+        }
+        if (Pipe.hasRoomForWrite(routePipes[idx])) {
+            return idx;
+        }
+        idx++;
+    }
+    return -1;
+}
+
+
 private void writeURLParamsToField(TrieParserReader trieReader, DataOutputBlobWriter<HTTPRequestSchema> writer) {
 
     DataOutputBlobWriter.openField(writer);
@@ -468,6 +739,16 @@ private int accumulateRunningBytes(int idx, Pipe<NetPayloadSchema> selectedInput
            )            
           ) {
         
+        if (NetPayloadSchema.MSG_DISCONNECT_203 == Pipe.peekInt(selectedInput)) {
+            //held bytes are released before this fragment so the read lock can be released normally
+            dropChannel(Pipe.peekLong(selectedInput, 1));
+            messageIdx = Pipe.takeMsgIdx(selectedInput);
+            Pipe.takeLong(selectedInput);
+            Pipe.confirmLowLevelRead(selectedInput, Pipe.sizeOf(selectedInput, messageIdx));
+            Pipe.releaseReadLock(selectedInput);
+            continue;
+        }
+        
         int guessLen = Pipe.peekInt(selectedInput,4);
         
         
@@ -569,6 +850,7 @@ private boolean hasNoActiveChannel(int idx) {
         long headerMask = requestHeaderMask[routeId];
         
         int requestContext = keepAliveOrNotContext(revisionId);
+        requestBodyLength = 0;
                       
         
         //this call moves the workspace head to after this new block but returns the postion at its front.
@@ -624,12 +906,18 @@ private boolean hasNoActiveChannel(int idx) {
             	
             	logger.warn("upgrade reqeust deteced but not yet implemented.");
             } else if (headerIdContentLength == headerId) {
-            	
-            	logger.warn("post or payload not yet implemented, content length detected");
-            	
-              
+                if (CHUNKED != requestBodyLength) { //chunked wins when both are sent
+                    requestBodyLength = TrieParserReader.capturedLongField(trieReader, 0);
+                }
+            } else if (headerIdTransferEncoding == headerId) {
+                requestBodyLength = CHUNKED;
             } else if (headerIdConnection == headerId) {
                 requestContext = applyKeepAliveOrCloseToContext(requestContext);                
+            } else if (headerIdAcceptEncoding == headerId) {
+                //passed back with the response so the HTTPResponseCompressionStage knows what the client takes
+                acceptEncoding.setLength(0);
+                TrieParserReader.capturedFieldBytesAsUTF8(trieReader, 0, acceptEncoding);
+                requestContext |= HTTPResponseCompressionStage.acceptEncodingContext(acceptEncoding);
             }
             
 
@@ -40,6 +40,8 @@ public class HTTPClientRequestStage extends PronghornStage {
 		this.output = output;
 		this.ccm = ccm;
 		
+		//opening a connection waits on finishConnect
+		GraphManager.addNota(graphManager, GraphManager.BLOCKING, GraphManager.BLOCKING, this);
 	}
 	
 	
@@ -0,0 +1,77 @@
+package com.ociweb.pronghorn.network;
+
+/**
+ * Date header shared by every stage which writes responses, formatted at most once a second no matter how many
+ * responses are sent. Each new second gets a new array so a stage only has to compare the reference it last copied
+ * to know if its own copy is out of date, no locks are needed and a stale read only costs one extra copy.
+ */
+public class HTTPDateClock {
+
+    public static final int DATE_LINE_LENGTH = 37; //Date: Mon, 23 May 2005 22:38:34 GMT\r\n
+
+    private static final byte[] DAYS = "SunMonTueWedThuFriSat".getBytes();
+    private static final byte[] MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec".getBytes();
+
+    private static volatile byte[] dateLine = format(0);
+    private static volatile long dateSecond = 0;
+
+    /**
+     * @return the Date header line with its \r\n for this time, the same array until the second changes
+     */
+    public static byte[] dateLine(long nowMS) {
+        long second = nowMS/1000;
+        if (second != dateSecond) {
+            dateLine = format(second); //threads which race here all build the same bytes
+            dateSecond = second;
+        }
+        return dateLine;
+    }
+
+    //epochSecond is never before 1970 so plain division is enough
+    static byte[] format(long epochSecond) {
+        long days = epochSecond/86400L;
+        int secondOfDay = (int)(epochSecond - days*86400L);
+
+        //civil date from days since 1970-01-01, proleptic Gregorian
+        long z = days + 719468;
+        long era = z/146097L;
+        int doe = (int)(z - era*146097);
+        int yoe = (doe - doe/1460 + doe/36524 - doe/146096) / 365;
+        int doy = doe - (365*yoe + yoe/4 - yoe/100);
+        int mp = (5*doy + 2)/153;
+        int day = doy - (153*mp + 2)/5 + 1;
+        int month = mp<10 ? mp+3 : mp-9;
+        long year = yoe + era*400 + (month<=2 ? 1 : 0);
+
+        int weekDay = (int)((days+4)%7); //1970-01-01 was a Thursday
+
+        byte[] line = new byte[DATE_LINE_LENGTH];
+        int p = 0;
+        line[p++]='D'; line[p++]='a'; line[p++]='t'; line[p++]='e'; line[p++]=':'; line[p++]=' ';
+        System.arraycopy(DAYS, weekDay*3, line, p, 3);
+        p += 3;
+        line[p++]=','; line[p++]=' ';
+        p = twoDigits(line, p, day);
+        line[p++]=' ';
+        System.arraycopy(MONTHS, (month-1)*3, line, p, 3);
+        p += 3;
+        line[p++]=' ';
+        p = twoDigits(line, p, (int)(year/100));
+        p = twoDigits(line, p, (int)(year%100));
+        line[p++]=' ';
+        p = twoDigits(line, p, secondOfDay/3600);
+        line[p++]=':';
+        p = twoDigits(line, p, (secondOfDay/60)%60);
+        line[p++]=':';
+        p = twoDigits(line, p, secondOfDay%60);
+        line[p++]=' '; line[p++]='G'; line[p++]='M'; line[p++]='T'; line[p++]='\r'; line[p++]='\n';
+        return line;
+    }
+
+    private static int twoDigits(byte[] target, int p, int value) {
+        target[p++] = (byte)('0'+value/10);
+        target[p++] = (byte)('0'+value%10);
+        return p;
+    }
+
+}
@@ -3,13 +3,16 @@ package com.ociweb.pronghorn.network;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -62,6 +65,22 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
     
     private ServiceObjectHolder<FileChannel> channelHolder;
     
+    private final SendFileRegistry sendFiles; //null unless the socket writer may send files itself
+    private int[] sendFileIds;                //by pathId, -1 when the body must go through the pipe
+    
+    private ResponseCache responseCache;      //rendered responses of small files, served without reading the file
+    private long[] fileVersions;              //by pathId, changes when the file is replaced so cached responses stop matching
+    private long[] fileModified;              //by pathId
+    private long nextReplaceCheckNS;
+    private int activeCacheKey = -1;          //response being sent from the cache, -1 when none
+    private int[] cacheDateOffsets;           //by cache key, where the Date line starts in the held header, -1 if it has none
+    private byte[][] cacheDates;              //by cache key, HTTPDateClock line last copied into the held header
+    private int activeCacheOffset;
+    
+    private long mappedBytesBudget;           //zero when large files are read instead of mapped
+    private MappedFileCache mappedFiles;
+    private MappedByteBuffer activeMapped;    //mapping of the file being sent, null when it is read
+    
     private FileChannel activeFileChannel = null;
 
     private int         activeChannelHigh;
@@ -85,6 +104,9 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
     private byte[][] fileSizeAsBytes;
     private byte[][] etagBytes;
     private int[] type;  //type,  
+    private int[] gzipPathIds; //by pathId, the .gz file found next to it which is sent to clients that accept gzip, 0 when none
+    
+    private static final String GZIP_EXTENSION = ".gz";
     
     //move to external utility
     private IntHashTable fileExtensionTable;
@@ -96,6 +118,14 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
     private static final int OPEN_FILECHANNEL_SIZE = 1<<OPEN_FILECHANNEL_BITS;
     private static final int OPEN_FILECHANNEL_MASK = OPEN_FILECHANNEL_SIZE-1;
 
+    //smaller files are cheaper to copy and can be served again from the output pipe
+    static final int SENDFILE_MIN_BYTES = 32*1024;
+    
+    private static final long RESPONSE_CACHE_BYTES = 16*1024*1024;
+    private static final int RESPONSE_CACHE_ENTRY_BYTES = 64*1024;
+    private static final long REPLACE_CHECK_NS = 1_000_000_000L;
+    private static final long MAPPED_MIN_BYTES = RESPONSE_CACHE_ENTRY_BYTES;
+
     private final static int VERB_GET = 0;
     private final static int VERB_HEAD = 1;
         
@@ -103,13 +133,28 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
         return new HTTPModuleFileReadStage(graphManager, input, output, httpSpec, rootPath);
     }
     
+    public static HTTPModuleFileReadStage<?, ?, ?, ?> newInstance(GraphManager graphManager, Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output, HTTPSpecification<?, ?, ?, ?> httpSpec, String rootPath, SendFileRegistry sendFiles) {
+        return new HTTPModuleFileReadStage(graphManager, input, output, httpSpec, rootPath, sendFiles);
+    }
+    
     public HTTPModuleFileReadStage(GraphManager graphManager, Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output, 
                                    HTTPSpecification<T,R,V,H> httpSpec,
                                    String rootPath) {
+        this(graphManager, input, output, httpSpec, rootPath, null);
+    }
+    
+    /**
+     * @param sendFiles when not null large file bodies are not copied into the output pipe, a MSG_TOCHANNELFILE_300
+     *                  is sent instead and the socket writer uses transferTo. Must be null for TLS connections.
+     */
+    public HTTPModuleFileReadStage(GraphManager graphManager, Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output, 
+                                   HTTPSpecification<T,R,V,H> httpSpec,
+                                   String rootPath, SendFileRegistry sendFiles) {
         
         super(graphManager, input, output, httpSpec);
         this.input = input;
         this.output = output;
+        this.sendFiles = sendFiles;
         this.fileSystem = FileSystems.getDefault();
         this.folderRoot = rootPath;
                 
@@ -120,6 +165,14 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
         
             
     }
+    /**
+     * Map large files into memory, up to this many bytes in total, so their bodies are copied from the mapping with no reads
+     * or reopening. Must be called before startup, most useful when the socket writer can not send the files itself.
+     */
+    public static void setMappedBytesBudget(HTTPModuleFileReadStage<?,?,?,?> that, long maxMappedBytes) {
+        that.mappedBytesBudget = maxMappedBytes;
+    }
+    
     //TODO: use PipeHashTable to pull back values that are on the outgoing pipe for use again.
     
     //TODO: parse ahead to determine if we have the same request in a row, then prefix the send with the additional channel IDs
@@ -134,11 +187,15 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
 
     
 //  
+//  The lines which never or rarely change are pre-rendered once per revision, status and type by AbstractRestStage
+//  and the Date comes from the HTTPDateClock once a second, see writeHeader.
+//
 //  HTTP/1.1 200 OK                                    rarely changes
 //  Date: Mon, 23 May 2005 22:38:34 GMT                always changes  
 //  Server: Apache/1.3.3.7 (Unix) (Red-Hat/Linux)      never changes
 //  Last-Modified: Wed, 08 Jan 2003 23:11:55 GMT       ?? 
 //  ETag: "3f80f-1b6-3e1cb03b"                         ??
+//  Content-Encoding: gzip                             only when name.gz is sent in place of name
 //  Content-Type: text/html; charset=UTF-8
 //  Content-Length: 138
 //  Accept-Ranges: bytes
@@ -206,6 +263,18 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
         this.fileSizeAsBytes = new byte[maxFileCount][];
         this.etagBytes = new byte[maxFileCount][];
         this.type = new int[maxFileCount];
+        this.gzipPathIds = new int[maxFileCount];
+        this.sendFileIds = new int[maxFileCount];
+        Arrays.fill(sendFileIds, -1);
+        this.fileVersions = new long[maxFileCount];
+        this.fileModified = new long[maxFileCount];
+        if (mappedBytesBudget>0) {
+            this.mappedFiles = new MappedFileCache(maxFileCount, MAPPED_MIN_BYTES, mappedBytesBudget);
+        }
+        int cacheKeys = maxFileCount*httpSpec.revisions.length*4;
+        this.responseCache = new ResponseCache(cacheKeys, RESPONSE_CACHE_BYTES, RESPONSE_CACHE_ENTRY_BYTES);
+        this.cacheDateOffsets = new int[cacheKeys];
+        this.cacheDates = new byte[cacheKeys][];
         //can get a boost from true but how will we know when an upgrade is complete and not get the old pages or bad data??
         //TODO: switch this boolean on the fly when we do releases.
         this.pathCache = new TrieParser(maxTotalPathLength, 2, false, true); //TODO: A, add error support for running out of room in trie
@@ -226,6 +295,7 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
         int rootSize = folderRoot.endsWith("/") || folderRoot.endsWith("\\") ? folderRoot.length() : folderRoot.length()+1;
         
         collectAllKnownFiles(rootFileDirectory, rootSize);
+        linkPrecompressedFiles();
         activeFileChannel = null;//NOTE: above method sets activeFileChannel and it must be cleared before run starts.
   
     }
@@ -249,6 +319,26 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
     }
     
     
+    //each name.gz found is sent in place of name, only when it is smaller, so it is never compressed as it goes out
+    private void linkPrecompressedFiles() {
+        int linked = 0;
+        int gzipPathId = pathCount+1;
+        while (--gzipPathId > 0) {
+            String name = paths[gzipPathId].toString();
+            if (name.endsWith(GZIP_EXTENSION)) {
+                Path plain = fileSystem.getPath(name.substring(0, name.length()-GZIP_EXTENSION.length()));
+                int pathId = pathCount+1;
+                while (--pathId > 0) {
+                    if (plain.equals(paths[pathId]) && fileSizes[gzipPathId]<fileSizes[pathId]) {
+                        gzipPathIds[pathId] = gzipPathId;
+                        linked++;
+                    }
+                }
+            }
+        }
+        logger.info("found {} precompressed files", linked);
+    }
+    
     private int setupUnseenFile(TrieParser trie, String pathString, int rootSize) {
         
                 int newPathId;
@@ -295,6 +385,7 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
    
         try {
             
+            writeCachedWhileRoom(activeChannelHigh, activeChannelLow, activeSequenceId, output);
             writeBodiesWhileRoom(activeChannelHigh, activeChannelLow, activeSequenceId, output, activeFileChannel, activePathId);
 
         } catch (IOException ioex) {
@@ -303,12 +394,14 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
           
    //     System.out.println((null==activeFileChannel) + " &&  "+Pipe.hasContentToRead(input)+ " && "+ Pipe.hasRoomForWrite(output));
         
-        while (null==activeFileChannel && Pipe.hasContentToRead(input) && Pipe.hasRoomForWrite(output)) {
+        while (null==activeFileChannel && activeCacheKey<0 && Pipe.hasContentToRead(input) && Pipe.hasRoomForWrite(output)) {
             
             int msgIdx = Pipe.takeMsgIdx(input); 
             if (msgIdx == HTTPRequestSchema.MSG_FILEREQUEST_200) {
                 activeReadMessageSize = Pipe.sizeOf(input, msgIdx);
                 beginReadingNextRequest();                    
+            } else if (msgIdx == HTTPRequestSchema.MSG_REQUESTBODY_400) {
+                skipRequestBody(msgIdx); //static files are never sent a body so there is nothing to do with it
             } else {
                 if (-1 != msgIdx) {
                     throw new UnsupportedOperationException("Unexpected message "+msgIdx);
@@ -319,18 +412,134 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
                 return; 
             }
         }            
-        if (null == activeFileChannel) {
+        if (null == activeFileChannel && activeCacheKey<0) {
             //only done when nothing is open.
             checkForHotReplace();
         }
     }
 
+    private void skipRequestBody(int msgIdx) {
+        Pipe.takeLong(input);               //channel
+        Pipe.takeInt(input);                //sequence
+        Pipe.takeRingByteMetaData(input);   //payload
+        Pipe.takeRingByteLen(input);
+        Pipe.takeInt(input);                //request context
+        Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+        Pipe.releaseReadLock(input);
+    }
+
     private void checkForHotReplace() {
-        //TODO: before return check for file drop of files to be replaced atomically
-        
         //TODO: while the change over is in place only use strict checks of the trie.
+        long now = System.nanoTime();
+        if (now-nextReplaceCheckNS < 0) {
+            return;
+        }
+        nextReplaceCheckNS = now+REPLACE_CHECK_NS;
         
+        int pathId = pathCount+1;
+        while (--pathId > 0) {
+            if (null!=paths[pathId]) {
+                try {
+                    long modified = lastModified(paths[pathId]);
+                    if (modified != fileModified[pathId]) {
+                        replaceFile(pathId, modified);
+                    }
+                } catch (IOException e) {
+                    logger.warn("unable to check file {} for replacement", paths[pathId], e);
+                }
+            }
+        }
+    }
+    
+    private void replaceFile(int pathId, long modified) throws IOException {
+        logger.info("file replaced {}", paths[pathId]);
+        fileModified[pathId] = modified;
+        if (null!=mappedFiles) {
+            MappedFileCache.unmap(mappedFiles, pathId);
+        }
+        findAgainFileChannel(pathId);
+        activeFileChannel = null;
+        
+        StringBuilder builder = new StringBuilder();
+        etagBytes[pathId] = Appendables.appendHexDigits(builder, fcId[pathId]).toString().getBytes();
+        builder.setLength(0);
+        fileSizeAsBytes[pathId] = Appendables.appendValue(builder, fileSizes[pathId]).toString().getBytes();
         
+        //new ETag so every response cached for the old file is stale
+        fileVersions[pathId]++;
+        
+        if (null!=sendFiles && fileSizes[pathId]>=SENDFILE_MIN_BYTES) {
+            if (sendFileIds[pathId]>=0) {
+                //same id so the registry does not fill up with old versions
+                closeSendFile(sendFiles.replace(sendFileIds[pathId], provider.newFileChannel(paths[pathId], readOptions)));
+            } else {
+                sendFileIds[pathId] = registerSendFile(paths[pathId]);
+            }
+        } else {
+            if (sendFileIds[pathId]>=0) {
+                closeSendFile(sendFiles.get(sendFileIds[pathId]));
+            }
+            sendFileIds[pathId] = -1;
+        }
+    }
+    
+    private int registerSendFile(Path path) throws IOException {
+        FileChannel channel = provider.newFileChannel(path, readOptions);
+        int id = sendFiles.register(channel);
+        if (id<0) {
+            channel.close(); //registry is full, this file is sent through the pipe
+        }
+        return id;
+    }
+    
+    /**
+     * A writer still sending the old version fails and closes its connection, that response no longer matches the file.
+     */
+    private void closeSendFile(FileChannel channel) {
+        if (null!=channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("unable to close replaced file channel", e);
+            }
+        }
+    }
+    
+    private long lastModified(Path path) throws IOException {
+        return provider.readAttributes(path, BasicFileAttributes.class).lastModifiedTime().toMillis();
+    }
+    
+    //the header only differs by revision, the close connection bit and if the .gz is sent in place of another file
+    private int cacheKey(int pathId, int revision, int requestContext, boolean inPlace) {
+        return (((((pathId*httpSpec.revisions.length)+revision)<<1) | (inPlace ? 1 : 0))<<1) | (1&(requestContext>>ServerCoordinator.CLOSE_CONNECTION_SHIFT));
+    }
+    
+    //cached responses stay valid until the file is replaced, their Date line is brought up to date on use
+    private long cacheVersion(int pathId) {
+        return fileVersions[pathId];
+    }
+    
+    private void refreshCachedDate(int cacheKey) {
+        byte[] dateLine = HTTPDateClock.dateLine(System.currentTimeMillis());
+        if (cacheDateOffsets[cacheKey]>=0 && dateLine != cacheDates[cacheKey]) {
+            ResponseCache.patch(responseCache, cacheKey, cacheDateOffsets[cacheKey], dateLine);
+            cacheDates[cacheKey] = dateLine;
+        }
+    }
+    
+    /**
+     * @return offset of the Date line within the header at position in the ring, -1 if there is none
+     */
+    static int dateLineOffset(byte[] blob, int position, int length, int mask) {
+        int last = length-HTTPDateClock.DATE_LINE_LENGTH;
+        for(int i = 2; i<=last; i++) {
+            if ('D'==blob[mask&(position+i)] && '\n'==blob[mask&(position+i-1)] && '\r'==blob[mask&(position+i-2)]
+                && 'a'==blob[mask&(position+i+1)] && 't'==blob[mask&(position+i+2)] && 'e'==blob[mask&(position+i+3)]
+                && ':'==blob[mask&(position+i+4)]) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     private void beginReadingNextRequest() {
@@ -380,8 +589,21 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
         //	throw new UnsupportedOperationException("File not found: "+ Appendables.appendUTF8(new StringBuilder(), bytesBackingArray, bytesPosition, bytesLength, bytesMask).toString());
         } else {
 	        
-	        activePathId = pathId;
-	        //This value is ONLY sent on the last message that makes up this response, all others get a zero.
+	        //the precompressed file is sent when the client takes it, the plain one says it may differ by encoding
+	        int bodyPathId = pathId;
+	        byte[] encodingLines = null;
+	        if (gzipPathIds[pathId]>0) {
+	            if (0 != (ServerCoordinator.ACCEPT_GZIP_MASK & context)) {
+	                bodyPathId = gzipPathIds[pathId];
+	                activateFileChannel(bodyPathId);
+	                encodingLines = CONTENT_ENCODING_GZIP;
+	            } else {
+	                encodingLines = VARY_ACCEPT_ENCODING;
+	            }
+	        }
+	        
+	        activePathId = bodyPathId;
+	        //This value is ONLY sent on the last message that makes up this response, all others get only the accept encoding bits.
 	        activeRequestContext = context | ServerCoordinator.END_RESPONSE_MASK; 
 	
 	        assert(Pipe.peekInt(input) == bytesLength) : "bytes consumed "+Pipe.peekInt(input)+" must match file path length "+bytesLength+" peek at idx; "+ Pipe.getWorkingTailPosition(input);
@@ -390,7 +612,7 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
 	        //ready to read the file from fileChannel and use type in type[pathId]
 	        //////////////////////////
 	        if (pathId>=0) {
-	            beginSendingFile(httpRevision, activeRequestContext, pathId, verb, activeSequenceId);
+	            beginSendingFile(httpRevision, activeRequestContext, bodyPathId, type[pathId], encodingLines, verb, activeSequenceId);
 	        } else {
 	            publishErrorHeader(httpRevision, activeRequestContext, 0, activeSequenceId, null);
 	        }
@@ -411,11 +633,7 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
                                                          bytesLength, bytesMask, -1 );      
         
         if (pathId >= 0) {
-            if (null!=(activeFileChannel = channelHolder.getValid(fcId[pathId]))) {
-            } else {
-                System.out.println("not found must lookup again ");
-                findAgainFileChannel(pathId);
-            }
+            activateFileChannel(pathId);
             return pathId;
         } else {
             //////////////////
@@ -427,6 +645,15 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
         
     }
 
+    private void activateFileChannel(int pathId) {
+        if ((null!=mappedFiles && null!=(activeFileChannel = MappedFileCache.channel(mappedFiles, pathId))) ||
+            null!=(activeFileChannel = channelHolder.getValid(fcId[pathId]))) {
+        } else {
+            System.out.println("not found must lookup again ");
+            findAgainFileChannel(pathId);
+        }
+    }
+
     private void findAgainFileChannel(int pathId) {
         ///////////////
         //we lost our file channel and need to request a new one.
@@ -477,6 +704,11 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
             etagBytes[pathId] = Appendables.appendHexDigits(builder, fcId[pathId]).toString().getBytes();
                         
             fileSizes[pathId] = activeFileChannel.size();   
+            fileModified[pathId] = lastModified(path);
+            if (null!=sendFiles && fileSizes[pathId]>=SENDFILE_MIN_BYTES) {
+                //own channel which is never evicted from channelHolder while the writer may still be sending from it
+                sendFileIds[pathId] = registerSendFile(path);
+            }
             builder.setLength(0);
             fileSizeAsBytes[pathId] = Appendables.appendValue(builder, fileSizes[pathId]).toString().getBytes(); //TODO: there is a better way to do this
                     
@@ -489,15 +721,49 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
     }
  
     
-    private void beginSendingFile(int httpRevision, int requestContext, int pathId, int verb, int sequence) {
+    /**
+     * @param pathId file with the body
+     * @param contentType of the file requested, not the .gz sent in its place
+     */
+    private void beginSendingFile(int httpRevision, int requestContext, int pathId, int contentType, byte[] encodingLines, int verb, int sequence) {
         try {                                               
+            final int cacheKey = cacheKey(pathId, httpRevision, requestContext, CONTENT_ENCODING_GZIP==encodingLines);
+            final long cacheVersion = cacheVersion(pathId);
+            if (VERB_GET==verb && ResponseCache.lookup(responseCache, cacheKey, cacheVersion)) {
+                //headers and body are already rendered, the file is not touched
+                refreshCachedDate(cacheKey);
+                activeFileChannel = null;
+                activeCacheKey = cacheKey;
+                activeCacheOffset = 0;
+                activePayloadSizeRemaining = ResponseCache.length(responseCache, cacheKey);
+                PipeHashTable.setLowerBounds(outputHash, 1 + Pipe.getBlobWorkingHeadPosition(output) - output.sizeOfBlobRing );
+                writeCachedWhileRoom(activeChannelHigh, activeChannelLow, sequence, output);
+                return;
+            }
+            
             //reposition to beginning of the file to be loaded and sent.
             activePayloadSizeRemaining = fileSizes[pathId];
             int status = 200;
-                        
-            totalBytes += publishHeaderMessage(requestContext, sequence, VERB_GET==verb ? 0 : requestContext, 
+            
+            int headerPosition = Pipe.getBlobWorkingHeadPosition(output);
+            //the HEAD header ends the response, with no body it must not be picked up for compression
+            int headerLength = publishHeaderMessage(requestContext, sequence, VERB_GET==verb ? ServerCoordinator.ACCEPT_ENCODING_MASK&requestContext : ~ServerCoordinator.ACCEPT_ENCODING_MASK&requestContext, 
             		                           status, output, activeChannelHigh, activeChannelLow,  
-                                               httpSpec, httpRevision, type[pathId], fileSizeAsBytes[pathId],  etagBytes[pathId]); 
+                                               httpSpec, httpRevision, contentType, fileSizeAsBytes[pathId],  etagBytes[pathId], encodingLines); 
+            totalBytes += headerLength;
+            
+            //small files sent through the pipe are captured as they go out so the next request is served from the cache
+            if (VERB_GET==verb && sendFileIds[pathId]<0 && fileSizes[pathId]<RESPONSE_CACHE_ENTRY_BYTES
+                && ResponseCache.begin(responseCache, cacheKey, cacheVersion, headerLength+(int)fileSizes[pathId])) {
+                ResponseCache.append(responseCache, Pipe.blob(output), headerPosition, headerLength, Pipe.blobMask(output));
+                cacheDateOffsets[cacheKey] = dateLineOffset(Pipe.blob(output), headerPosition, headerLength, Pipe.blobMask(output));
+                cacheDates[cacheKey] = null; //patched on the first hit
+            }
+            
+            activeMapped = null;
+            if (VERB_GET==verb && null!=mappedFiles && sendFileIds[pathId]<0) {
+                activeMapped = MappedFileCache.map(mappedFiles, pathId, paths[pathId], fileSizes[pathId]);
+            }
             
                         
             PipeHashTable.setLowerBounds(outputHash, 1 + Pipe.getBlobWorkingHeadPosition(output) - output.sizeOfBlobRing );
@@ -555,6 +821,9 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
         Pipe.releaseReadLock(input);
         
         activeFileChannel = null;
+        activeMapped = null;
+        activeCacheKey = -1;
+        ResponseCache.abort(responseCache);
     }
     
     private void publishBodiesMessage(int verb, int sequence, int pathId) throws IOException {
@@ -576,6 +845,15 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
     
     private void writeBodiesWhileRoom(int channelHigh, int channelLow, int sequence, Pipe<ServerResponseSchema> localOutput, FileChannel localFileChannel, int pathId) throws IOException {
        if (null != localFileChannel) {
+         if (sendFileIds[pathId]>=0) {
+             if (Pipe.hasRoomForWrite(localOutput)) {
+                 publishSendFile(channelHigh, channelLow, sequence, localOutput, sendFileIds[pathId]);
+                 Pipe.confirmLowLevelRead(input, activeReadMessageSize);
+                 totalBytes += Pipe.releaseReadLock(input);
+                 activeFileChannel = null;
+             }
+             return;
+         }
          long localPos = activePosition;
        //  logger.info("write body {} {}",Pipe.hasRoomForWrite(localOutput), localOutput);
          
@@ -603,10 +881,16 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
                 publishBodyPart(channelHigh, channelLow, sequence, localOutput, len);   
                 localPos += len;
             } else {
-            	assert(localFileChannel.position() == localPos) : "independent file position check does not match";
-            	//must read from file system
                 long len;
-                if ((len=localFileChannel.read(Pipe.wrappedWritingBuffers(headBlobPosInPipe, localOutput))) >= 0) {
+                if (null!=activeMapped) {
+                	//copy from the mapping, no read call
+                	len = MappedFileCache.copy(activeMapped, localPos, Pipe.wrappedWritingBuffers(headBlobPosInPipe, localOutput));
+                } else {
+                	assert(localFileChannel.position() == localPos) : "independent file position check does not match";
+                	//must read from file system
+                	len = localFileChannel.read(Pipe.wrappedWritingBuffers(headBlobPosInPipe, localOutput));
+                }
+                if (len >= 0) {
                     
                 	//Not yet complete 
                 	//logger.info("FileReadStage wrote out {} total file size {} curpos {} ",len,localFileChannel.size(),localFileChannel.position());
@@ -621,6 +905,8 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
                     Pipe.confirmLowLevelRead(input, activeReadMessageSize);
                     totalBytes += Pipe.releaseReadLock(input);//returns count of bytes used by this fragment                 
                     activeFileChannel = null;
+                    activeMapped = null;
+                    ResponseCache.finish(responseCache);
                     //now store the location of this new data.
                     Pipe.unstoreBlobWorkingHeadPosition(localOutput);
                     PipeHashTable.replaceItem(outputHash, fcId[pathId], positionOfFileDataBegin() );
@@ -633,6 +919,8 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
                 Pipe.confirmLowLevelRead(input, activeReadMessageSize);
                 totalBytes += Pipe.releaseReadLock(input);//returns count of bytes used by this fragment                 
                 activeFileChannel = null;
+                activeMapped = null;
+                ResponseCache.finish(responseCache);
          
                 //now store the location of this new data so we can use it as the cache later                
                 PipeHashTable.replaceItem(outputHash, fcId[pathId], positionOfFileDataBegin());
@@ -647,6 +935,39 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
     }
 
 
+    private void writeCachedWhileRoom(int channelHigh, int channelLow, int sequence, Pipe<ServerResponseSchema> localOutput) {
+        while (activeCacheKey>=0 && Pipe.hasRoomForWrite(localOutput)) {
+            
+            final int headBlobPosInPipe = Pipe.storeBlobWorkingHeadPosition(localOutput);
+            int len = ResponseCache.read(responseCache, activeCacheKey, activeCacheOffset, localOutput.maxAvgVarLen, 
+                                         Pipe.wrappedWritingBuffers(headBlobPosInPipe, localOutput));
+            activeCacheOffset += len;
+            publishBodyPart(channelHigh, channelLow, sequence, localOutput, len);
+            
+            if (activePayloadSizeRemaining<=0) {
+                Pipe.confirmLowLevelRead(input, activeReadMessageSize);
+                totalBytes += Pipe.releaseReadLock(input);
+                activeCacheKey = -1;
+            }
+        }
+    }
+
+    private void publishSendFile(int channelHigh, int channelLow, int sequence, Pipe<ServerResponseSchema> localOutput, int sendFileId) {
+        
+        int size = Pipe.addMsgIdx(localOutput, ServerResponseSchema.MSG_TOCHANNELFILE_300);
+        Pipe.addIntValue(channelHigh, localOutput);
+        Pipe.addIntValue(channelLow, localOutput);
+        Pipe.addIntValue(sequence, localOutput);
+        Pipe.addIntValue(sendFileId, localOutput);
+        Pipe.addLongValue(0, localOutput);
+        Pipe.addLongValue(activePayloadSizeRemaining, localOutput);
+        Pipe.addIntValue(activeRequestContext, localOutput);
+        Pipe.confirmLowLevelWrite(localOutput, size);
+        Pipe.publishWrites(localOutput);
+        
+        activePayloadSizeRemaining = 0;
+    }
+
     private void publishBodyPart(int channelHigh, int channelLow, int sequence, Pipe<ServerResponseSchema> localOutput, int len) {
 
                         
@@ -662,10 +983,11 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
         //logger.info("publish body part from {} for len of {} ", originalBlobPosition, len);
    
         Pipe.moveBlobPointerAndRecordPosAndLength(originalBlobPosition, len, localOutput);
+        ResponseCache.append(responseCache, Pipe.blob(localOutput), originalBlobPosition, len, Pipe.blobMask(localOutput));
 
         //NOTE: this field is last so we can return failure and close connection.
         if (  (activePayloadSizeRemaining -= len) > 0) {
-            Pipe.addIntValue(0, localOutput); //empty request context, set the full value on the last call.
+            Pipe.addIntValue(ServerCoordinator.ACCEPT_ENCODING_MASK&activeRequestContext, localOutput); //only what the client accepts, set the full value on the last call.
         } else {
             Pipe.addIntValue(activeRequestContext, localOutput);  
         }
@@ -679,6 +1001,11 @@ public class HTTPModuleFileReadStage<   T extends Enum<T> & HTTPContentType,
     @Override
     public void shutdown() {
         System.out.println("total bytes out "+totalBytes);
+        if (null!=mappedFiles) {
+            MappedFileCache.close(mappedFiles);
+        }
+        logger.info("response cache hits {} misses {} evictions {} bytes held {}", ResponseCache.hits(responseCache), ResponseCache.misses(responseCache), 
+                    ResponseCache.evictions(responseCache), ResponseCache.usedBytes(responseCache));
     }
 
 }
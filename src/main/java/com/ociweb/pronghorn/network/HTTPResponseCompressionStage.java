@@ -0,0 +1,604 @@
+package com.ociweb.pronghorn.network;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Compresses responses on their way from the apps to the WrapSupervisorStage for clients which sent an Accept-Encoding
+ * of gzip or deflate, found by the HTTP1xRouterStage and passed back by the app in the context of every fragment.
+ *
+ * Only HTTP/1.1 responses with a compressible Content-Type, a Content-Length from MIN_COMPRESS_BYTES up to the size
+ * which could be sent as a file and no encoding of their own are compressed. Their Content-Length is replaced with
+ * Transfer-Encoding: chunked so each fragment is compressed and sent as it arrives, no response is ever held whole.
+ * Larger static files are best stored precompressed next to the original, see HTTPModuleFileReadStage.
+ *
+ * Each input has its own output and the fragments of one response are never mixed with another on a pipe, so all the
+ * state is by pipe. The Deflaters are made on first use and reset for each response, never made again.
+ */
+public class HTTPResponseCompressionStage extends PronghornStage {
+
+    private static final Logger logger = LoggerFactory.getLogger(HTTPResponseCompressionStage.class);
+
+    public static final int MIN_COMPRESS_BYTES = 256; //smaller bodies barely shrink and the chunk framing eats the saving
+    public static final int MAX_COMPRESS_BYTES = HTTPModuleFileReadStage.SENDFILE_MIN_BYTES-1; //larger may arrive as a file body
+
+    public static final int NONE    = 0;
+    public static final int GZIP    = 1;
+    public static final int DEFLATE = 2;
+
+    //state by pipe
+    private static final byte AT_HEADER = 0; //next fragment starts a response
+    private static final byte PASS      = 1; //copied as is until the end of the response
+    private static final byte COMPRESS  = 2;
+
+    private static final byte[] HTTP_1_1          = "HTTP/1.1 ".getBytes();
+    private static final byte[] CONTENT_TYPE      = "Content-Type:".getBytes();
+    private static final byte[] CONTENT_LENGTH    = "Content-Length:".getBytes();
+    private static final byte[] CONTENT_ENCODING  = "Content-Encoding:".getBytes();
+    private static final byte[] TRANSFER_ENCODING = "Transfer-Encoding:".getBytes();
+
+    private static final byte[][] CODING_LINES = new byte[][] {
+        null,
+        "Content-Encoding: gzip\r\nTransfer-Encoding: chunked\r\nVary: Accept-Encoding\r\n".getBytes(),
+        "Content-Encoding: deflate\r\nTransfer-Encoding: chunked\r\nVary: Accept-Encoding\r\n".getBytes()
+    };
+
+    private static final String[] COMPRESSIBLE_TYPES = new String[] {
+        "text/", "application/json", "application/javascript", "application/x-javascript",
+        "application/xml", "application/xhtml+xml", "application/rss+xml", "image/svg+xml"
+    };
+
+    private static final byte[] GZIP_HEADER = new byte[] {0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff}; //deflate, no name or time, unknown OS
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+    private static final int CHUNK_HEAD = 6;    //up to 4 hex digits and \r\n, chunks are never over 0xFFFF
+    private static final int DATA_AT = CHUNK_HEAD + GZIP_HEADER.length;
+
+    private final Pipe<ServerResponseSchema>[] inputs;
+    private final Pipe<ServerResponseSchema>[] outputs;
+    private final int level;
+
+    private byte[]      state;       //by pipe
+    private int[]       coding;      //by pipe
+    private Deflater[][] deflaters;  //by pipe then coding
+    private CRC32[]     crcs;        //by pipe, gzip only
+    private byte[][]    pending;     //by pipe, the fragment being compressed so its pipe can be released
+    private boolean[]   headerDue;   //by pipe, the gzip header goes in front of the first chunk
+    private boolean[]   finishing;   //by pipe
+    private long[]      channel;     //by pipe
+    private int[]       sequence;    //by pipe
+    private int[]       endContext;  //by pipe
+    private boolean[]   closed;      //by pipe
+    private int         openInputs;
+
+    private byte[]      work;        //rewritten headers and chunks
+    private int         maxChunk;
+
+    private long        compressedCount;
+    private long        bytesIn;
+    private long        bytesOut;
+
+    public HTTPResponseCompressionStage(GraphManager graphManager, Pipe<ServerResponseSchema>[] inputs, Pipe<ServerResponseSchema>[] outputs) {
+        this(graphManager, inputs, outputs, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param inputs responses from the apps
+     * @param outputs one for each input, to the WrapSupervisorStage
+     * @param level Deflater level used for every response
+     */
+    public HTTPResponseCompressionStage(GraphManager graphManager, Pipe<ServerResponseSchema>[] inputs, Pipe<ServerResponseSchema>[] outputs, int level) {
+        super(graphManager, inputs, outputs);
+        this.inputs = inputs;
+        this.outputs = outputs;
+        this.level = level;
+
+        if (inputs.length != outputs.length) {
+            throw new UnsupportedOperationException("Each input pipe must have one output pipe");
+        }
+        if (minVarLength(outputs) < maxVarLength(inputs)) {
+            throw new UnsupportedOperationException("All output pipes must support variable length fields equal to or larger than all input pipes");
+        }
+    }
+
+    @Override
+    public void startup() {
+        int count = inputs.length;
+        state = new byte[count];
+        coding = new int[count];
+        deflaters = new Deflater[count][3];
+        crcs = new CRC32[count];
+        pending = new byte[count][];
+        headerDue = new boolean[count];
+        finishing = new boolean[count];
+        channel = new long[count];
+        sequence = new int[count];
+        endContext = new int[count];
+        closed = new boolean[count];
+        openInputs = count;
+
+        int i = count;
+        while (--i>=0) {
+            pending[i] = new byte[inputs[i].maxAvgVarLen];
+        }
+        work = new byte[minVarLength(outputs)];
+        maxChunk = Math.min(0xFFFF, work.length - DATA_AT - 2);
+    }
+
+    @Override
+    public void shutdown() {
+        int i = deflaters.length;
+        while (--i>=0) {
+            int c = deflaters[i].length;
+            while (--c>=0) {
+                if (null!=deflaters[i][c]) {
+                    deflaters[i][c].end(); //native memory is not left for the collector
+                }
+            }
+        }
+        if (compressedCount>0) {
+            logger.info("compressed {} responses from {} to {} bytes", compressedCount, bytesIn, bytesOut);
+        }
+    }
+
+    @Override
+    public void run() {
+        int i = inputs.length;
+        while (--i>=0) {
+            if (!closed[i]) {
+                process(i);
+            }
+        }
+    }
+
+    private void process(int i) {
+        Pipe<ServerResponseSchema> input = inputs[i];
+        Pipe<ServerResponseSchema> output = outputs[i];
+
+        if (COMPRESS==state[i] && !deflateWhileRoom(i)) {
+            return;
+        }
+
+        while (Pipe.hasContentToRead(input) && Pipe.hasRoomForWrite(output)) {
+
+            int msgIdx = Pipe.takeMsgIdx(input);
+            if (msgIdx<0) {
+                Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
+                Pipe.releaseReadLock(input);
+                Pipe.publishEOF(output);
+                closed[i] = true;
+                if (--openInputs==0) {
+                    requestShutdown();
+                }
+                return;
+            }
+
+            long channelId = Pipe.takeLong(input);
+            int sequenceNo = Pipe.takeInt(input);
+
+            if (ServerResponseSchema.MSG_TOCHANNEL_100 == msgIdx) {
+                int meta = Pipe.takeRingByteMetaData(input);
+                int len = Pipe.takeRingByteLen(input);
+                int position = Pipe.bytePosition(meta, input, len);
+                int requestContext = Pipe.takeInt(input);
+
+                if (PASS==state[i] || (AT_HEADER==state[i] && NONE==codingFor(requestContext))) {
+                    publish(output, channelId, sequenceNo, Pipe.blob(input), position, len, Pipe.blobMask(input), requestContext);
+                    state[i] = 0!=(ServerCoordinator.END_RESPONSE_MASK & requestContext) ? AT_HEADER : PASS;
+                } else {
+                    Pipe.copyBytesFromToRing(Pipe.blob(input), position, Pipe.blobMask(input), pending[i], 0, Integer.MAX_VALUE, len);
+                    if (AT_HEADER==state[i]) {
+                        beginResponse(i, output, channelId, sequenceNo, len, requestContext);
+                    } else {
+                        compress(i, 0, len, requestContext);
+                    }
+                }
+
+                Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+                Pipe.releaseReadLock(input);
+
+            } else if (ServerResponseSchema.MSG_TOCHANNELFILE_300 == msgIdx) {
+                if (COMPRESS==state[i]) {
+                    throw new UnsupportedOperationException("File bodies can not be compressed, only responses below "+MAX_COMPRESS_BYTES+" bytes are");
+                }
+                int fileId = Pipe.takeInt(input);
+                long position = Pipe.takeLong(input);
+                long length = Pipe.takeLong(input);
+                int requestContext = Pipe.takeInt(input);
+
+                int size = Pipe.addMsgIdx(output, ServerResponseSchema.MSG_TOCHANNELFILE_300);
+                Pipe.addLongValue(channelId, output);
+                Pipe.addIntValue(sequenceNo, output);
+                Pipe.addIntValue(fileId, output);
+                Pipe.addLongValue(position, output);
+                Pipe.addLongValue(length, output);
+                Pipe.addIntValue(~ServerCoordinator.ACCEPT_ENCODING_MASK & requestContext, output);
+                Pipe.confirmLowLevelWrite(output, size);
+                Pipe.publishWrites(output);
+                state[i] = 0!=(ServerCoordinator.END_RESPONSE_MASK & requestContext) ? AT_HEADER : PASS;
+
+                Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+                Pipe.releaseReadLock(input);
+
+            } else if (ServerResponseSchema.MSG_TOSUBSCRIPTION_200 == msgIdx) {
+                //one payload for many connections, not all of them accept compression so it always goes as it is
+                int meta = Pipe.takeRingByteMetaData(input);
+                int len = Pipe.takeRingByteLen(input);
+                int position = Pipe.bytePosition(meta, input, len);
+                int requestContext = Pipe.takeInt(input);
+                publish(output, msgIdx, channelId, sequenceNo, Pipe.blob(input), position, len, Pipe.blobMask(input), requestContext);
+
+                Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+                Pipe.releaseReadLock(input);
+
+            } else {
+                throw new UnsupportedOperationException("Unexpected message "+msgIdx);
+            }
+
+            if (COMPRESS==state[i] && !deflateWhileRoom(i)) {
+                return; //the rest of this fragment is still in the Deflater
+            }
+        }
+    }
+
+    //the fragment is in pending, its header is rewritten if this response is worth compressing
+    private void beginResponse(int i, Pipe<ServerResponseSchema> output, long channelId, int sequenceNo, int len, int requestContext) {
+        int selected = codingFor(requestContext);
+        int headerLength = headerLength(pending[i], len);
+        //a response which ends with its header, such as the answer to HEAD, has no body to chunk
+        boolean isBodiless = headerLength==len && 0!=(ServerCoordinator.END_RESPONSE_MASK & requestContext);
+        int newLength = headerLength<0 || isBodiless ? -1 : compressedHeader(pending[i], headerLength, selected, work);
+        if (newLength<0) {
+            publish(output, channelId, sequenceNo, pending[i], 0, len, Integer.MAX_VALUE, requestContext);
+            state[i] = 0!=(ServerCoordinator.END_RESPONSE_MASK & requestContext) ? AT_HEADER : PASS;
+            return;
+        }
+        publish(output, channelId, sequenceNo, work, 0, newLength, Integer.MAX_VALUE, 0);
+
+        Deflater deflater = deflaters[i][selected];
+        if (null==deflater) {
+            deflater = deflaters[i][selected] = new Deflater(level, GZIP==selected); //gzip is raw deflate with our own header and trailer
+        } else {
+            deflater.reset();
+        }
+        if (GZIP==selected) {
+            if (null==crcs[i]) {
+                crcs[i] = new CRC32();
+            } else {
+                crcs[i].reset();
+            }
+        }
+        state[i] = COMPRESS;
+        coding[i] = selected;
+        channel[i] = channelId;
+        sequence[i] = sequenceNo;
+        headerDue[i] = GZIP==selected;
+        finishing[i] = false;
+        compressedCount++;
+
+        compress(i, headerLength, len-headerLength, requestContext);
+    }
+
+    private void compress(int i, int offset, int len, int requestContext) {
+        Deflater deflater = deflaters[i][coding[i]];
+        if (len>0) {
+            if (GZIP==coding[i]) {
+                crcs[i].update(pending[i], offset, len);
+            }
+            deflater.setInput(pending[i], offset, len);
+        }
+        if (0!=(ServerCoordinator.END_RESPONSE_MASK & requestContext)) {
+            deflater.finish();
+            finishing[i] = true;
+            endContext[i] = requestContext;
+        }
+    }
+
+    /**
+     * Sends chunks until the Deflater needs more input, or the response is done.
+     *
+     * @return false when the output is full and the Deflater still holds some of this fragment
+     */
+    private boolean deflateWhileRoom(int i) {
+        Pipe<ServerResponseSchema> output = outputs[i];
+        Deflater deflater = deflaters[i][coding[i]];
+        while (true) {
+            if (!finishing[i]) {
+                if (deflater.needsInput()) {
+                    return true;
+                }
+            } else if (deflater.finished()) {
+                if (!Pipe.hasRoomForWrite(output)) {
+                    return false;
+                }
+                publishLastChunk(i, deflater);
+                state[i] = AT_HEADER;
+                return true;
+            }
+            if (!Pipe.hasRoomForWrite(output)) {
+                return false;
+            }
+            int len = deflater.deflate(work, DATA_AT, maxChunk - (headerDue[i] ? GZIP_HEADER.length : 0), Deflater.NO_FLUSH);
+            if (len>0) {
+                publishChunk(i, len);
+            }
+        }
+    }
+
+    //deflated bytes are already in work at DATA_AT, the framing is written around them
+    private void publishChunk(int i, int len) {
+        int start = DATA_AT;
+        if (headerDue[i]) {
+            start -= GZIP_HEADER.length;
+            System.arraycopy(GZIP_HEADER, 0, work, start, GZIP_HEADER.length);
+            headerDue[i] = false;
+        }
+        int end = DATA_AT+len;
+        int size = end-start;
+        work[--start] = '\n';
+        work[--start] = '\r';
+        do {
+            work[--start] = HEX[size&0xF];
+        } while ((size >>>= 4)!=0);
+        work[end++] = '\r';
+        work[end++] = '\n';
+        publish(outputs[i], channel[i], sequence[i], work, start, end-start, Integer.MAX_VALUE, 0);
+    }
+
+    private void publishLastChunk(int i, Deflater deflater) {
+        int p = 0;
+        if (GZIP==coding[i]) {
+            work[p++] = '8';
+            work[p++] = '\r';
+            work[p++] = '\n';
+            p = putIntLE(work, p, (int)crcs[i].getValue());
+            p = putIntLE(work, p, (int)deflater.getBytesRead()); //size mod 2^32
+            work[p++] = '\r';
+            work[p++] = '\n';
+        }
+        System.arraycopy(LAST_CHUNK, 0, work, p, LAST_CHUNK.length);
+        p += LAST_CHUNK.length;
+        publish(outputs[i], channel[i], sequence[i], work, 0, p, Integer.MAX_VALUE, endContext[i]);
+
+        bytesIn += deflater.getBytesRead();
+        bytesOut += deflater.getBytesWritten();
+    }
+
+    private static int putIntLE(byte[] target, int p, int value) {
+        target[p++] = (byte)value;
+        target[p++] = (byte)(value>>8);
+        target[p++] = (byte)(value>>16);
+        target[p++] = (byte)(value>>24);
+        return p;
+    }
+
+    private static void publish(Pipe<ServerResponseSchema> output, long channelId, int sequenceNo, byte[] backing, int position, int length, int mask, int requestContext) {
+        publish(output, ServerResponseSchema.MSG_TOCHANNEL_100, channelId, sequenceNo, backing, position, length, mask, requestContext);
+    }
+
+    private static void publish(Pipe<ServerResponseSchema> output, int msgIdx, long channelId, int sequenceNo, byte[] backing, int position, int length, int mask, int requestContext) {
+        int size = Pipe.addMsgIdx(output, msgIdx);
+        Pipe.addLongValue(channelId, output);
+        Pipe.addIntValue(sequenceNo, output);
+        Pipe.addByteArrayWithMask(output, mask, length, backing, position);
+        Pipe.addIntValue(~ServerCoordinator.ACCEPT_ENCODING_MASK & requestContext, output);
+        Pipe.confirmLowLevelWrite(output, size);
+        Pipe.publishWrites(output);
+    }
+
+    /**
+     * @return coding to use for a request with this context, gzip when both are accepted
+     */
+    public static int codingFor(int requestContext) {
+        if (0!=(ServerCoordinator.ACCEPT_GZIP_MASK & requestContext)) {
+            return GZIP;
+        }
+        if (0!=(ServerCoordinator.ACCEPT_DEFLATE_MASK & requestContext)) {
+            return DEFLATE;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return request context bits for the codings of this Accept-Encoding value the client has not refused with q=0
+     */
+    public static int acceptEncodingContext(CharSequence value) {
+        int accepted = 0;
+        int refused = 0;
+        int any = 0;
+        int len = value.length();
+        int start = 0;
+        while (start<len) {
+            int end = indexOf(value, ',', start, len);
+            int nameEnd = indexOf(value, ';', start, end);
+
+            boolean isAny = isName(value, start, nameEnd, "*");
+            int bits = 0;
+            if (isName(value, start, nameEnd, "gzip") || isName(value, start, nameEnd, "x-gzip")) {
+                bits = ServerCoordinator.ACCEPT_GZIP_MASK;
+            } else if (isName(value, start, nameEnd, "deflate")) {
+                bits = ServerCoordinator.ACCEPT_DEFLATE_MASK;
+            }
+            if (isZeroQuality(value, nameEnd, end)) {
+                refused |= bits;
+                any = isAny ? 0 : any;
+            } else {
+                accepted |= bits;
+                any = isAny ? ServerCoordinator.ACCEPT_ENCODING_MASK : any;
+            }
+            start = end+1;
+        }
+        return (accepted | any) & ~refused;
+    }
+
+    private static int indexOf(CharSequence value, char c, int from, int limit) {
+        while (from<limit && c!=value.charAt(from)) {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean isName(CharSequence value, int start, int end, String name) {
+        while (start<end && ' '==value.charAt(start)) {
+            start++;
+        }
+        while (end>start && ' '==value.charAt(end-1)) {
+            end--;
+        }
+        if (end-start != name.length()) {
+            return false;
+        }
+        int i = name.length();
+        while (--i>=0) {
+            if (Character.toLowerCase(value.charAt(start+i)) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //parameters are from ; to end, q=0 q=0. and q=0.000 all refuse the coding
+    private static boolean isZeroQuality(CharSequence value, int start, int end) {
+        int q = start;
+        while (q+1<end && !(('q'==value.charAt(q) || 'Q'==value.charAt(q)) && '='==value.charAt(q+1))) {
+            q++;
+        }
+        q += 2;
+        if (q>=end || '0'!=value.charAt(q)) {
+            return false;
+        }
+        q++;
+        if (q<end && '.'==value.charAt(q)) {
+            q++;
+        }
+        while (q<end && '0'==value.charAt(q)) {
+            q++;
+        }
+        return q==end || ' '==value.charAt(q) || ';'==value.charAt(q);
+    }
+
+    /**
+     * @return bytes up to and including the blank line which ends the header or -1 if it is not all in this fragment
+     */
+    public static int headerLength(byte[] source, int len) {
+        int lineStart = 0;
+        int i = 0;
+        while (i<len) {
+            if ('\n'==source[i]) {
+                int lineLength = i-lineStart;
+                if (0==lineLength || (1==lineLength && '\r'==source[lineStart])) {
+                    return i+1;
+                }
+                lineStart = i+1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Copies the header without its Content-Length and adds the coding lines before the blank line which ends it.
+     *
+     * @return bytes of the new header written to target or -1 when this response is to be sent as it is
+     */
+    public static int compressedHeader(byte[] source, int headerLength, int coding, byte[] target) {
+        if (NONE==coding || !hasName(source, 0, headerLength, HTTP_1_1)) {
+            return -1; //older clients may not take chunks
+        }
+        boolean compressible = false;
+        long contentLength = -1;
+        int p = 0;
+        int lineStart = 0;
+        while (lineStart<headerLength) {
+            int lineEnd = lineStart;
+            while ('\n'!=source[lineEnd]) {
+                lineEnd++;
+            }
+            int valueEnd = lineEnd>lineStart && '\r'==source[lineEnd-1] ? lineEnd-1 : lineEnd;
+            int lineLength = lineEnd+1-lineStart;
+
+            if (valueEnd==lineStart) {
+                byte[] lines = CODING_LINES[coding];
+                if (!compressible || contentLength<MIN_COMPRESS_BYTES || contentLength>MAX_COMPRESS_BYTES || p+lines.length+lineLength>target.length) {
+                    return -1;
+                }
+                System.arraycopy(lines, 0, target, p, lines.length);
+                p += lines.length;
+                System.arraycopy(source, lineStart, target, p, lineLength);
+                return p+lineLength;
+            }
+
+            if (hasName(source, lineStart, valueEnd, CONTENT_LENGTH)) {
+                contentLength = parseLength(source, lineStart+CONTENT_LENGTH.length, valueEnd);
+            } else {
+                if (hasName(source, lineStart, valueEnd, CONTENT_ENCODING) || hasName(source, lineStart, valueEnd, TRANSFER_ENCODING)) {
+                    return -1; //already encoded, maybe precompressed
+                }
+                if (hasName(source, lineStart, valueEnd, CONTENT_TYPE)) {
+                    compressible = isCompressible(source, lineStart+CONTENT_TYPE.length, valueEnd);
+                }
+                if (p+lineLength>target.length) {
+                    return -1;
+                }
+                System.arraycopy(source, lineStart, target, p, lineLength);
+                p += lineLength;
+            }
+            lineStart = lineEnd+1;
+        }
+        return -1;
+    }
+
+    private static boolean hasName(byte[] source, int start, int end, byte[] name) {
+        if (end-start < name.length) {
+            return false;
+        }
+        int i = name.length;
+        while (--i>=0) {
+            if (Character.toLowerCase(source[start+i]) != Character.toLowerCase(name[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseLength(byte[] source, int start, int end) {
+        while (start<end && ' '==source[start]) {
+            start++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (start<end && source[start]>='0' && source[start]<='9' && digits<19) {
+            value = (value*10) + (source[start++]-'0');
+            digits++;
+        }
+        return 0==digits ? -1 : value;
+    }
+
+    private static boolean isCompressible(byte[] source, int start, int end) {
+        while (start<end && ' '==source[start]) {
+            start++;
+        }
+        int t = COMPRESSIBLE_TYPES.length;
+        while (--t>=0) {
+            String type = COMPRESSIBLE_TYPES[t];
+            if (end-start >= type.length()) {
+                int i = type.length();
+                while (--i>=0 && Character.toLowerCase(source[start+i])==type.charAt(i)) {
+                }
+                if (i<0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.ociweb.pronghorn.network;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.util.TrieParser;
+
+/**
+ * Routes for the HTTP1xRouterStage, registered by URL template and verb then compiled into a single TrieParser.
+ *
+ * Each distinct template gets a path id which is the value found by the trie, the route is then picked from a small
+ * table by verb and path id so one parse of the URL is all that is ever needed. Templates may capture values with
+ * %u (unsigned), %i (signed) and %b (bytes), these are written into the request for the app in the order found.
+ *
+ * The trie is sized from the templates, each byte takes one entry and each template at most TRIE_ENTRIES_PER_VALUE
+ * more for its branch, run header and end, so hundreds of routes never outgrow it and a few never waste it.
+ */
+public class HTTPRouteTable {
+
+    private static final Logger logger = LoggerFactory.getLogger(HTTPRouteTable.class);
+
+    public static final int ANY_VERB  = -1;
+    public static final int UNMATCHED = -1;
+
+    private static final int TRIE_ENTRIES_PER_VALUE = 16;
+
+    private final int verbCount;
+
+    private CharSequence[] templates = new CharSequence[16]; //by path id
+    private byte[][] captureTypes = new byte[16][];          //by path id
+    private int[][] routes;                                  //by verb then path id
+    private int pathCount;
+
+    private int trieSize = TRIE_ENTRIES_PER_VALUE;
+    private int maxDepth;
+    private int shortestTemplate = Integer.MAX_VALUE;
+
+    public HTTPRouteTable(int verbCount) {
+        this.verbCount = verbCount;
+        this.routes = new int[verbCount][];
+        int v = verbCount;
+        while (--v>=0) {
+            routes[v] = new int[templates.length];
+            Arrays.fill(routes[v], UNMATCHED);
+        }
+    }
+
+    /**
+     * Table where route i is paths[i] for every verb, as the router was configured before routes could be registered.
+     */
+    public static HTTPRouteTable anyVerb(CharSequence[] paths, int verbCount) {
+        HTTPRouteTable table = new HTTPRouteTable(verbCount);
+        int i = paths.length;
+        while (--i>=0) {
+            addRoute(table, ANY_VERB, paths[i], i);
+        }
+        return table;
+    }
+
+    /**
+     * A verb specific route always replaces an ANY_VERB route for the same template, no matter the order they are added.
+     *
+     * @param verbId ordinal of the HTTPVerb or ANY_VERB
+     * @param template URL pattern, a tail of ' ' is added unless it already ends with one
+     * @param routeId index of the app pipes which take these requests
+     * @return path id of this template
+     */
+    public static int addRoute(HTTPRouteTable that, int verbId, CharSequence template, int routeId) {
+        if (routeId<0 || routeId>0xFFFF) {
+            throw new UnsupportedOperationException("Route ids must be from 0 to 65535");
+        }
+        int pathId = pathId(that, template);
+        if (ANY_VERB == verbId) {
+            int v = that.verbCount;
+            while (--v>=0) {
+                if (UNMATCHED == that.routes[v][pathId]) {
+                    that.routes[v][pathId] = routeId;
+                }
+            }
+        } else {
+            that.routes[verbId][pathId] = routeId;
+        }
+        return pathId;
+    }
+
+    private static int pathId(HTTPRouteTable that, CharSequence template) {
+        String key = template.toString();
+        int p = that.pathCount;
+        while (--p>=0) {
+            if (key.equals(that.templates[p].toString())) {
+                return p;
+            }
+        }
+
+        byte[] types = captureTypes(template);
+        if (that.pathCount == that.templates.length) {
+            int newLength = that.templates.length<<1;
+            that.templates = Arrays.copyOf(that.templates, newLength);
+            that.captureTypes = Arrays.copyOf(that.captureTypes, newLength);
+            int v = that.verbCount;
+            while (--v>=0) {
+                int oldLength = that.routes[v].length;
+                that.routes[v] = Arrays.copyOf(that.routes[v], newLength);
+                Arrays.fill(that.routes[v], oldLength, newLength, UNMATCHED);
+            }
+        }
+        int pathId = that.pathCount++;
+        that.templates[pathId] = template;
+        that.captureTypes[pathId] = types;
+
+        int bytes = key.getBytes(StandardCharsets.UTF_8).length + 1; //with the tail
+        that.trieSize += bytes + TRIE_ENTRIES_PER_VALUE;
+        that.maxDepth = Math.max(that.maxDepth, bytes);
+        return pathId;
+    }
+
+    private static byte[] captureTypes(CharSequence template) {
+        int count = 0;
+        byte[] types = new byte[template.length()>>1];
+        for(int i = 0; i<template.length(); i++) {
+            if ('%' == template.charAt(i)) {
+                char type = i+1<template.length() ? template.charAt(i+1) : ' ';
+                if ('u'!=type && 'i'!=type && 'b'!=type) {
+                    throw new UnsupportedOperationException("Route template "+template+" may only capture %u, %i or %b");
+                }
+                types[count++] = (byte)type;
+                i++;
+            }
+        }
+        return Arrays.copyOf(types, count);
+    }
+
+    /**
+     * @return the trie to parse URLs with, its values are path ids
+     */
+    public static TrieParser buildTrie(HTTPRouteTable that) {
+        TrieParser trie = new TrieParser(that.trieSize, true);
+        int shortest = Integer.MAX_VALUE;
+        int p = that.pathCount;
+        while (--p>=0) {
+            CharSequence template = that.templates[p];
+            int b;
+            if (' '==template.charAt(template.length()-1)) {
+                b = trie.setUTF8Value(template, p);
+            } else {
+                b = trie.setUTF8Value(template, " ", p);
+            }
+            shortest = Math.min(shortest, b);
+        }
+        that.shortestTemplate = shortest;
+        logger.info("compiled {} route templates into a trie of {} entries, lookups visit at most {} bytes", that.pathCount, that.trieSize, that.maxDepth);
+        return trie;
+    }
+
+    /**
+     * @return route id for this verb and path id or UNMATCHED if the path was not found or does not take this verb
+     */
+    public static int route(HTTPRouteTable that, int verbId, int pathId) {
+        if (verbId<0 || pathId<0) {
+            return UNMATCHED;
+        }
+        return that.routes[verbId][pathId];
+    }
+
+    /**
+     * @return types in the order they are captured by this path, each of 'u', 'i' or 'b'
+     */
+    public static byte[] captureTypes(HTTPRouteTable that, int pathId) {
+        return that.captureTypes[pathId];
+    }
+
+    public static int pathCount(HTTPRouteTable that) {
+        return that.pathCount;
+    }
+
+    /**
+     * @return entries the trie is built with
+     */
+    public static int trieSize(HTTPRouteTable that) {
+        return that.trieSize;
+    }
+
+    /**
+     * @return most bytes of URL any lookup must visit, the length of the longest template
+     */
+    public static int maxDepth(HTTPRouteTable that) {
+        return that.maxDepth;
+    }
+
+    /**
+     * @return bytes in the shortest template, only known once the trie is built
+     */
+    public static int shortestTemplate(HTTPRouteTable that) {
+        return that.shortestTemplate;
+    }
+
+    /**
+     * @return entries needed for a trie holding values of these total bytes, for the other tries of the router
+     */
+    public static int trieSize(int totalBytes, int values) {
+        return totalBytes + (values+1)*TRIE_ENTRIES_PER_VALUE;
+    }
+
+}
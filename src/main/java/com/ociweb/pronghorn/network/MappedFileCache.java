@@ -0,0 +1,175 @@
+package com.ociweb.pronghorn.network;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read only memory mappings of large files, so their bodies are copied straight from the page cache into the
+ * output pipe with no read calls. Each file is mapped once, with its channel kept open so it never has to be found
+ * again, until the mapped bytes would go over the budget and the least recently used files are unmapped.
+ *
+ * Not thread safe, belongs to the stage which copies from it. Mappings are released as soon as they are dropped
+ * where the JVM allows it, otherwise when they are collected.
+ */
+public class MappedFileCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedFileCache.class);
+
+    private final long maxMappedBytes;
+    private final long minFileBytes;
+
+    private final MappedByteBuffer[] maps;   //by id
+    private final FileChannel[] channels;    //by id
+    private final long[] lastUsed;           //by id
+    private long useCount;
+    private long mappedBytes;
+
+    /**
+     * @param maxIds ids are from 0 up to this
+     * @param minFileBytes smaller files are not worth a mapping
+     * @param maxMappedBytes budget for all mappings together
+     */
+    public MappedFileCache(int maxIds, long minFileBytes, long maxMappedBytes) {
+        this.maxMappedBytes = maxMappedBytes;
+        this.minFileBytes = minFileBytes;
+        this.maps = new MappedByteBuffer[maxIds];
+        this.channels = new FileChannel[maxIds];
+        this.lastUsed = new long[maxIds];
+    }
+
+    public static boolean isMappable(MappedFileCache that, long size) {
+        return size>=that.minFileBytes && size<=that.maxMappedBytes && size<=Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return channel kept open for this mapped file or null if it is not mapped
+     */
+    public static FileChannel channel(MappedFileCache that, int id) {
+        return that.channels[id];
+    }
+
+    /**
+     * Mapping of this file, created if needed with its own channel so nothing else can close it.
+     *
+     * @return the mapping or null if the file can not be mapped, it must then be read as usual
+     */
+    public static MappedByteBuffer map(MappedFileCache that, int id, Path path, long size) {
+        MappedByteBuffer map = that.maps[id];
+        if (null == map) {
+            if (!isMappable(that, size)) {
+                return null;
+            }
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+                while (that.mappedBytes+size > that.maxMappedBytes) {
+                    unmap(that, leastRecentlyUsed(that));
+                }
+                map = that.maps[id] = channel.map(MapMode.READ_ONLY, 0, size);
+                that.channels[id] = channel;
+                that.mappedBytes += size;
+            } catch (IOException e) {
+                logger.warn("unable to map file {}, it will be read instead", path, e);
+                if (null != channel) {
+                    try {
+                        channel.close();
+                    } catch (IOException ce) {
+                        //ignore, we are not using it
+                    }
+                }
+                return null;
+            }
+        }
+        that.lastUsed[id] = ++that.useCount;
+        return map;
+    }
+
+    /**
+     * Copy from position into the targets until they are full or the file ends.
+     *
+     * @return count of bytes copied or -1 if position is at the end of the file
+     */
+    public static int copy(MappedByteBuffer map, long position, ByteBuffer[] targets) {
+        if (position >= map.limit()) {
+            return -1;
+        }
+        ByteBuffer source = map.duplicate();
+        source.position((int)position);
+        int total = 0;
+        for(int i = 0; i<targets.length && source.hasRemaining(); i++) {
+            ByteBuffer target = targets[i];
+            int len = Math.min(target.remaining(), source.remaining());
+            source.limit(source.position()+len);
+            target.put(source);
+            source.limit(map.limit());
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * Drop the mapping and close the channel, must not be called while a copy from this mapping is still needed.
+     */
+    public static void unmap(MappedFileCache that, int id) {
+        MappedByteBuffer map = that.maps[id];
+        if (null != map) {
+            that.maps[id] = null;
+            that.mappedBytes -= map.capacity();
+            release(map);
+            try {
+                that.channels[id].close();
+            } catch (IOException e) {
+                //ignore, we are done with it
+            }
+            that.channels[id] = null;
+        }
+    }
+
+    public static void close(MappedFileCache that) {
+        int i = that.maps.length;
+        while (--i >= 0) {
+            unmap(that, i);
+        }
+    }
+
+    public static long mappedBytes(MappedFileCache that) {
+        return that.mappedBytes;
+    }
+
+    private static int leastRecentlyUsed(MappedFileCache that) {
+        int oldest = -1;
+        long oldestUse = Long.MAX_VALUE;
+        int i = that.maps.length;
+        while (--i >= 0) {
+            if (null!=that.maps[i] && that.lastUsed[i]<oldestUse) {
+                oldestUse = that.lastUsed[i];
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    //only the JDK can unmap, found by reflection so we still run where it is not allowed and wait for the collector instead
+    private static void release(MappedByteBuffer map) {
+        try {
+            Method cleanerMethod = map.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(map);
+            if (null != cleaner) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Throwable t) {
+            //left for the collector
+        }
+    }
+
+}
@@ -1,5 +1,7 @@
 package com.ociweb.pronghorn.network;
 
+import java.util.Arrays;
+
 import com.ociweb.pronghorn.network.config.HTTPSpecification;
 import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
 import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
@@ -15,11 +17,12 @@ import com.ociweb.pronghorn.pipe.RawDataSchema;
 import com.ociweb.pronghorn.pipe.util.hash.IntHashTable;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 import com.ociweb.pronghorn.stage.test.ConsoleJSONDumpStage;
-import com.ociweb.pronghorn.stage.test.PipeCleanerStage;
 import com.ociweb.pronghorn.util.Pool;
 
 public class NetGraphBuilder {
 
+	private static final int READER_POOL_SIZE = 4; //pipes each group's reader spreads its connections over
+	private static final int ACCEPTORS = 2; //ServerNewConnectionStages taking new connections in parallel
 	
 	public static void buildHTTPClientGraph(GraphManager gm, int outputsCount, int maxPartialResponses,
 			ClientConnectionManager ccm, IntHashTable listenerPipeLookup,
@@ -75,6 +78,13 @@ public class NetGraphBuilder {
 
 	//TODO: build all the application
 	public static long newApp(GraphManager graphManager, Pipe<HTTPRequestSchema> fromRequest, Pipe<ServerResponseSchema>  toSend, int appId) {
+		return newApp(graphManager, fromRequest, toSend, appId, null);
+	}
+	
+	/**
+	 * @param sendFiles when not null large files are sent by the socket writer with transferTo, only for plain connections
+	 */
+	public static long newApp(GraphManager graphManager, Pipe<HTTPRequestSchema> fromRequest, Pipe<ServerResponseSchema>  toSend, int appId, SendFileRegistry sendFiles) {
 	    
 	    //TODO: build apps to connect these
 	    //Static file load
@@ -83,11 +93,70 @@ public class NetGraphBuilder {
 	    
 	    
 	    //We only support a single component now, the static file loader
-	    HTTPModuleFileReadStage.newInstance(graphManager, fromRequest, toSend, HTTPSpecification.defaultSpec(), "/home/nate/elmForm");
+	    HTTPModuleFileReadStage<?, ?, ?, ?> fileStage = HTTPModuleFileReadStage.newInstance(graphManager, fromRequest, toSend, HTTPSpecification.defaultSpec(), "/home/nate/elmForm", sendFiles);
+	    if (null==sendFiles) {
+	    	//bodies must pass through the pipe so map the large files instead of reading them
+	    	HTTPModuleFileReadStage.setMappedBytesBudget(fileStage, 256L*1024*1024);
+	    }
 	    
 	    return 0;
 	}
 
+	//each connection is read into one of these so a full pipe only holds up the connections on it
+	private static Pipe<NetPayloadSchema>[] newReaderPipes(int count, PipeConfig<NetPayloadSchema> config) {
+		Pipe<NetPayloadSchema>[] readerPipes = new Pipe[count];
+		int i = count;
+		while (--i >= 0) {
+			readerPipes[i] = new Pipe<NetPayloadSchema>(config);
+		}
+		return readerPipes;
+	}
+	
+	private static Pipe<NetPayloadSchema>[] newDisconnectPipes(int groups) {
+		PipeConfig<NetPayloadSchema> disconnectConfig = new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 64);
+		Pipe<NetPayloadSchema>[] disconnectPipes = new Pipe[groups];
+		int g = groups;
+		while (--g >= 0) {
+			disconnectPipes[g] = new Pipe<NetPayloadSchema>(disconnectConfig);
+		}
+		return disconnectPipes;
+	}
+	
+	//each acceptor binds its own server channel when the OS supports port reuse, else they share one
+	private static Pipe<ServerConnectionSchema>[] newAcceptors(GraphManager graphManager, ServerCoordinator coordinator, int count, PipeConfig<ServerConnectionSchema> config) {
+		Pipe<ServerConnectionSchema>[] newConnections = new Pipe[count];
+		int a = count;
+		while (--a >= 0) {
+			newConnections[a] = new Pipe<ServerConnectionSchema>(config);
+			ServerNewConnectionStage newConStage = new ServerNewConnectionStage(graphManager, coordinator, newConnections[a]);
+			GraphManager.addNota(graphManager, GraphManager.SELECT_IDLE, GraphManager.SELECT_IDLE, newConStage); //waits in select() for new connections when idle
+		}
+		return newConnections;
+	}
+	
+	//the writer and the router of each group also take the disconnects sent by the ServerConnectionTimeoutStage
+	private static Pipe[] withDisconnects(Pipe[] writerPipe, Pipe<NetPayloadSchema> disconnectPipe) {
+		Pipe[] inputs = Arrays.copyOf(writerPipe, writerPipe.length+1);
+		inputs[writerPipe.length] = disconnectPipe;
+		return inputs;
+	}
+
+	//transferTo writes the file bytes straight to the socket, past any encryption, so TLS connections never use it
+	private static SendFileRegistry sendFiles(ServerCoordinator coordinator) {
+		return ServerCoordinator.isTLS(coordinator) ? null : ServerCoordinator.getSendFileRegistry(coordinator);
+	}
+
+	//responses are compressed for clients which accept it before the supervisor puts them in order
+	private static Pipe<ServerResponseSchema>[] compressResponses(GraphManager graphManager, Pipe<ServerResponseSchema>[] fromApps, PipeConfig<ServerResponseSchema> config) {
+		Pipe<ServerResponseSchema>[] compressed = new Pipe[fromApps.length];
+		int i = fromApps.length;
+		while (--i >= 0) {
+			compressed[i] = new Pipe<ServerResponseSchema>(config);
+		}
+		new HTTPResponseCompressionStage(graphManager, fromApps, compressed);
+		return compressed;
+	}
+
 	public static GraphManager buildHTTPServerGraph(GraphManager graphManager, int groups, int apps) {
 	        
 	    	
@@ -99,11 +168,10 @@ public class NetGraphBuilder {
 	        
 	        ServerCoordinator coordinator = new ServerCoordinator(groups, 8081); 
 	        
-	        Pipe<ServerConnectionSchema> newConnectionsPipe = new Pipe<ServerConnectionSchema>(newConnectionsConfig);
-	
-	        
-	        ServerNewConnectionStage newConStage = new ServerNewConnectionStage(graphManager, coordinator, newConnectionsPipe);
-	        PipeCleanerStage<ServerConnectionSchema> dump = new PipeCleanerStage<>(graphManager, newConnectionsPipe);
+	        Pipe<ServerConnectionSchema>[] newConnectionsPipes = newAcceptors(graphManager, coordinator, ACCEPTORS, newConnectionsConfig);
+	        Pipe<NetPayloadSchema>[] disconnectPipes = newDisconnectPipes(groups);
+	        Pipe<NetPayloadSchema>[] routerDisconnectPipes = newDisconnectPipes(groups);
+	        ServerConnectionTimeoutStage timeoutStage = new ServerConnectionTimeoutStage(graphManager, newConnectionsPipes, disconnectPipes, routerDisconnectPipes, coordinator);
 	        // ConsoleJSONDumpStage dump = new ConsoleJSONDumpStage(graphManager,newConnectionsPipe); //TODO: leave until we resolve the initial hang.
 	        
 	                
@@ -112,35 +180,40 @@ public class NetGraphBuilder {
 	        int g = groups;
 	        while (--g >= 0) {//create each connection group            
 	            
-	            Pipe<ServerResponseSchema>[] fromApps = new Pipe[apps];
-	            Pipe<HTTPRequestSchema>[] toApps = new Pipe[apps];
-	            
-	            long[] headers = new long[apps];
-	            int[] msgIds = new int[apps];
-	            
-	            int a = apps;
-	            while (--a>=0) { //create every app for this connection group
-	                fromApps[a] = new Pipe<ServerResponseSchema>(outgoingDataConfig);
-	                toApps[a] =  new Pipe<HTTPRequestSchema>(httpRequestPipeConfig);
-	                headers[a] = newApp(graphManager, toApps[a], fromApps[a], a);
-	                msgIds[a] =  HTTPRequestSchema.MSG_FILEREQUEST_200;//TODO: add others as needed
-	            }
-	            
 	            CharSequence[] paths = new CharSequence[] {
 	            											"/WebSocket/connect",
 	            											"/%b"};
 	            
+	            //each route has apps instances so pipelined requests are worked in parallel, the supervisor restores the order
+	            Pipe<ServerResponseSchema>[] fromApps = new Pipe[paths.length*apps];
+	            Pipe<HTTPRequestSchema>[][] toApps = new Pipe[paths.length][apps];
+	            
+	            long[] headers = new long[paths.length];
+	            int[] msgIds = new int[paths.length];
+	            
+	            int r = paths.length;
+	            while (--r>=0) {
+	            	int a = apps;
+	            	while (--a>=0) { //create every app for this connection group
+	            		int appId = r*apps+a;
+	            		fromApps[appId] = new Pipe<ServerResponseSchema>(outgoingDataConfig);
+	            		toApps[r][a] =  new Pipe<HTTPRequestSchema>(httpRequestPipeConfig);
+	            		headers[r] = newApp(graphManager, toApps[r][a], fromApps[appId], appId, sendFiles(coordinator));
+	            	}
+	            	msgIds[r] =  HTTPRequestSchema.MSG_FILEREQUEST_200;//TODO: add others as needed
+	            }
+	            
 	            
 	            
 	            
-	            Pipe<NetPayloadSchema> staticRequestPipe = new Pipe<NetPayloadSchema>(incomingDataConfig);
-	            incomingGroup[g] = new Pipe[] {staticRequestPipe};
+	            incomingGroup[g] = newReaderPipes(READER_POOL_SIZE, incomingDataConfig);
 	            
-	            Pool<Pipe<NetPayloadSchema>> pool = new Pool<Pipe<NetPayloadSchema>>(incomingGroup[g]);
+	            Pool<Pipe<NetPayloadSchema>> pool = new Pool<Pipe<NetPayloadSchema>>(withDisconnects(incomingGroup[g], routerDisconnectPipes[g]));
 	            
             
 	            //reads from the socket connection
-	            ServerConnectionReaderStage readerStage = new ServerConnectionReaderStage(graphManager, incomingGroup[g], coordinator, g); //TODO: must take pool 
+	            ServerConnectionReaderStage readerStage = new ServerConnectionReaderStage(graphManager, incomingGroup[g], coordinator, g, READER_POOL_SIZE);
+	            GraphManager.addNota(graphManager, GraphManager.SELECT_IDLE, GraphManager.SELECT_IDLE, readerStage); //waits in select() for socket data when idle
 	            
 	            
 	            int w = 3;//writers
@@ -148,11 +221,12 @@ public class NetGraphBuilder {
 	            while (--w>=0) {	            	
 	            	writerPipe[w] = new Pipe<NetPayloadSchema>(socketWriteDataConfig);
 	            }
-	            WrapSupervisorStage wrapSuper = new WrapSupervisorStage(graphManager, fromApps, writerPipe, coordinator);//ensure order
-	            ServerSocketWriterStage writerStage = new ServerSocketWriterStage(graphManager, writerPipe, coordinator, g); //pump bytes out
+	            WrapSupervisorStage wrapSuper = new WrapSupervisorStage(graphManager, compressResponses(graphManager, fromApps, outgoingDataConfig), writerPipe, coordinator);//ensure order
+	            ServerSocketWriterStage writerStage = new ServerSocketWriterStage(graphManager, withDisconnects(writerPipe, disconnectPipes[g]), coordinator, g); //pump bytes out, not SELECT_IDLE since no selector watches for a partial write to drain
 
 	            
-	            HTTP1xRouterStage.newInstance(graphManager, pool, toApps, paths, headers, msgIds);        
+	            HTTP1xRouterStage router = HTTP1xRouterStage.newInstance(graphManager, pool, toApps, paths, headers, msgIds, coordinator.channelBits);        
+	            HTTP1xRouterStage.reportBodyActivity(router, coordinator, g);
 	            
 	             
 	        }
@@ -175,14 +249,14 @@ public class NetGraphBuilder {
         PipeConfig<NetPayloadSchema> socketWriteDataConfig = new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 10, 4000);
         
         ServerCoordinator coordinator = new ServerCoordinator(groups, 8081); 
+        ServerCoordinator.setTLS(coordinator, true);
         
-        Pipe<ServerConnectionSchema> newConnectionsPipe = new Pipe<ServerConnectionSchema>(newConnectionsConfig);
-
-        
-        ServerNewConnectionStage newConStage = new ServerNewConnectionStage(graphManager, coordinator, newConnectionsPipe);
+        Pipe<ServerConnectionSchema>[] newConnectionsPipes = newAcceptors(graphManager, coordinator, ACCEPTORS, newConnectionsConfig);
         
         
-        PipeCleanerStage<ServerConnectionSchema> dump = new PipeCleanerStage<>(graphManager, newConnectionsPipe); //IS this important data?
+        Pipe<NetPayloadSchema>[] disconnectPipes = newDisconnectPipes(groups);
+        Pipe<NetPayloadSchema>[] routerDisconnectPipes = newDisconnectPipes(groups);
+        ServerConnectionTimeoutStage timeoutStage = new ServerConnectionTimeoutStage(graphManager, newConnectionsPipes, disconnectPipes, routerDisconnectPipes, coordinator);
 
                 
         Pipe[][] incomingGroup = new Pipe[groups][];
@@ -190,34 +264,38 @@ public class NetGraphBuilder {
         int g = groups;
         while (--g >= 0) {//create each connection group            
             
-            Pipe<ServerResponseSchema>[] fromApps = new Pipe[apps];
-            Pipe<HTTPRequestSchema>[] toApps = new Pipe[apps];
-            
-            long[] headers = new long[apps];
-            int[] msgIds = new int[apps];
-            
-            int a = apps;
-            while (--a>=0) { //create every app for this connection group
-                fromApps[a] = new Pipe<ServerResponseSchema>(outgoingDataConfig);
-                toApps[a] =  new Pipe<HTTPRequestSchema>(httpRequestPipeConfig);
-                headers[a] = newApp(graphManager, toApps[a], fromApps[a], a);
-                msgIds[a] =  HTTPRequestSchema.MSG_FILEREQUEST_200;//TODO: add others as needed
-            }
-            
             CharSequence[] paths = new CharSequence[] {
             											"/WebSocket/connect",
             											"/%b"};
             
+            Pipe<ServerResponseSchema>[] fromApps = new Pipe[paths.length*apps];
+            Pipe<HTTPRequestSchema>[][] toApps = new Pipe[paths.length][apps];
+            
+            long[] headers = new long[paths.length];
+            int[] msgIds = new int[paths.length];
+            
+            int r = paths.length;
+            while (--r>=0) {
+            	int a = apps;
+            	while (--a>=0) { //create every app for this connection group
+            		int appId = r*apps+a;
+            		fromApps[appId] = new Pipe<ServerResponseSchema>(outgoingDataConfig);
+            		toApps[r][a] =  new Pipe<HTTPRequestSchema>(httpRequestPipeConfig);
+            		headers[r] = newApp(graphManager, toApps[r][a], fromApps[appId], appId, sendFiles(coordinator));
+            	}
+            	msgIds[r] =  HTTPRequestSchema.MSG_FILEREQUEST_200;//TODO: add others as needed
+            }
+            
             
             
-            Pipe<NetPayloadSchema> staticRequestPipe = new Pipe<NetPayloadSchema>(incomingDataConfig);
-            incomingGroup[g] = new Pipe[] {staticRequestPipe};
+            incomingGroup[g] = newReaderPipes(READER_POOL_SIZE, incomingDataConfig);
             
-            Pool<Pipe<NetPayloadSchema>> pool = new Pool<Pipe<NetPayloadSchema>>(incomingGroup[g]);
+            Pool<Pipe<NetPayloadSchema>> pool = new Pool<Pipe<NetPayloadSchema>>(withDisconnects(incomingGroup[g], routerDisconnectPipes[g]));
             
             
             //reads from the socket connection
-            ServerConnectionReaderStage readerStage = new ServerConnectionReaderStage(graphManager, incomingGroup[g], coordinator, g); //TODO: must take pool 
+            ServerConnectionReaderStage readerStage = new ServerConnectionReaderStage(graphManager, incomingGroup[g], coordinator, g, READER_POOL_SIZE);
+            GraphManager.addNota(graphManager, GraphManager.SELECT_IDLE, GraphManager.SELECT_IDLE, readerStage); //waits in select() for socket data when idle
             
 //            ClientConnectionManager ccm; //ServerCoordinator coordinator
 //			Pipe<NetPayloadSchema>[] encryptedIn; //pool in
@@ -227,7 +305,8 @@ public class NetGraphBuilder {
             
             
             
-            HTTP1xRouterStage.newInstance(graphManager, pool, toApps, paths, headers, msgIds);        
+            HTTP1xRouterStage router = HTTP1xRouterStage.newInstance(graphManager, pool, toApps, paths, headers, msgIds, coordinator.channelBits);        
+            HTTP1xRouterStage.reportBodyActivity(router, coordinator, g);
          
             
             int w = 3;//writers
@@ -235,13 +314,13 @@ public class NetGraphBuilder {
             while (--w>=0) {	            	
             	writerPipe[w] = new Pipe<NetPayloadSchema>(socketWriteDataConfig);
             }
-            WrapSupervisorStage wrapSuper = new WrapSupervisorStage(graphManager, fromApps, writerPipe, coordinator);//ensure order
+            WrapSupervisorStage wrapSuper = new WrapSupervisorStage(graphManager, compressResponses(graphManager, fromApps, outgoingDataConfig), writerPipe, coordinator);//ensure order
             
             
             //TODO: wrapping will go between these two
             
             
-            ServerSocketWriterStage writerStage = new ServerSocketWriterStage(graphManager, writerPipe, coordinator, g); //pump bytes out
+            ServerSocketWriterStage writerStage = new ServerSocketWriterStage(graphManager, withDisconnects(writerPipe, disconnectPipes[g]), coordinator, g); //pump bytes out, not SELECT_IDLE since no selector watches for a partial write to drain
 
             
                                        
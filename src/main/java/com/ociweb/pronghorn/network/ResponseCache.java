@@ -0,0 +1,214 @@
+package com.ociweb.pronghorn.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap cache of fully rendered responses, headers and body, so hot files are served without touching the file system.
+ *
+ * Entries are keyed by a small int, eg the path id from the file stage combined with what varies in the header, and
+ * carry a version so a replaced file simply stops matching. Each key keeps its own direct buffer which is reused
+ * when the next response fits, so once warm nothing is allocated. When the total bytes held would go over the limit
+ * entries are evicted by CLOCK, those read since the hand last passed get a second chance.
+ *
+ * An entry is filled while the response is written out for the first time, begin(), append() for each part then
+ * finish(). Bytes which change on every send, like the Date line, are updated in place with patch(). Not thread
+ * safe, each cache belongs to the stage which fills and reads it.
+ */
+public class ResponseCache {
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+
+    private final ByteBuffer[] data;   //by key, null when nothing is held
+    private final int[] length;        //by key
+    private final long[] version;      //by key
+    private final boolean[] valid;     //by key
+    private final boolean[] referenced;//by key, set on each hit and cleared by the hand
+
+    private long usedBytes;            //capacity of every buffer held
+    private int hand;
+    private int fillKey = -1;          //entry being filled, -1 when none
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxKeys keys are from 0 up to this
+     * @param maxBytes limit for all the entries together
+     * @param maxEntryBytes larger responses are never cached
+     */
+    public ResponseCache(int maxKeys, long maxBytes, int maxEntryBytes) {
+        if (maxEntryBytes>maxBytes) {
+            throw new UnsupportedOperationException("Max entry size must not be larger than the whole cache");
+        }
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.data = new ByteBuffer[maxKeys];
+        this.length = new int[maxKeys];
+        this.version = new long[maxKeys];
+        this.valid = new boolean[maxKeys];
+        this.referenced = new boolean[maxKeys];
+    }
+
+    /**
+     * @return true if this key holds the response for this version, counted as a hit or miss
+     */
+    public static boolean lookup(ResponseCache that, int key, long version) {
+        if (that.valid[key] && version == that.version[key]) {
+            that.referenced[key] = true;
+            that.hits++;
+            return true;
+        }
+        that.misses++;
+        return false;
+    }
+
+    public static int length(ResponseCache that, int key) {
+        return that.length[key];
+    }
+
+    /**
+     * Copy from offset into the targets until they are full or the response ends.
+     *
+     * @return count of bytes copied
+     */
+    public static int read(ResponseCache that, int key, int offset, int maxLength, ByteBuffer[] targets) {
+        ByteBuffer source = that.data[key].duplicate();
+        source.limit(Math.min(that.length[key], offset+maxLength));
+        source.position(offset);
+        int total = 0;
+        for(int i = 0; i<targets.length && source.hasRemaining(); i++) {
+            ByteBuffer target = targets[i];
+            int len = Math.min(target.remaining(), source.remaining());
+            int limit = source.limit();
+            source.limit(source.position()+len);
+            target.put(source);
+            source.limit(limit);
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * Start filling this key with a response of totalLength bytes, any older response held by the key is dropped.
+     *
+     * @return false if the response is too large or room could not be made, nothing will be cached
+     */
+    public static boolean begin(ResponseCache that, int key, long version, int totalLength) {
+        that.fillKey = -1;
+        if (totalLength>that.maxEntryBytes) {
+            return false;
+        }
+        that.valid[key] = false;
+        ByteBuffer buffer = that.data[key];
+        if (null==buffer || buffer.capacity()<totalLength) {
+            release(that, key);
+            if (!makeRoom(that, totalLength)) {
+                return false;
+            }
+            buffer = that.data[key] = ByteBuffer.allocateDirect(totalLength);
+            that.usedBytes += totalLength;
+        }
+        buffer.clear();
+        buffer.limit(totalLength);
+        that.version[key] = version;
+        that.fillKey = key;
+        return true;
+    }
+
+    /**
+     * Add the next part of the response being filled, does nothing if begin() did not accept it.
+     */
+    public static void append(ResponseCache that, byte[] source, int position, int length, int mask) {
+        if (that.fillKey<0) {
+            return;
+        }
+        ByteBuffer buffer = that.data[that.fillKey];
+        if (length>buffer.remaining()) {
+            abort(that); //response is not what was expected
+            return;
+        }
+        int start = mask&position;
+        int firstLen = Math.min(length, mask+1-start);
+        buffer.put(source, start, firstLen);
+        buffer.put(source, 0, length-firstLen);
+    }
+
+    /**
+     * Complete the response being filled, it is only used if every byte promised to begin() was given.
+     */
+    public static void finish(ResponseCache that) {
+        int key = that.fillKey;
+        if (key>=0) {
+            ByteBuffer buffer = that.data[key];
+            if (!buffer.hasRemaining()) {
+                that.length[key] = buffer.limit();
+                that.valid[key] = true;
+                that.referenced[key] = false;
+            }
+            that.fillKey = -1;
+        }
+    }
+
+    /**
+     * Overwrite part of a held response, eg the Date line of the header, the length does not change.
+     */
+    public static void patch(ResponseCache that, int key, int offset, byte[] source) {
+        ByteBuffer target = that.data[key].duplicate();
+        target.clear();
+        target.position(offset);
+        target.put(source);
+    }
+
+    public static void abort(ResponseCache that) {
+        that.fillKey = -1;
+    }
+
+    public static void invalidate(ResponseCache that, int key) {
+        that.valid[key] = false;
+    }
+
+    private static boolean makeRoom(ResponseCache that, int needed) {
+        int steps = that.data.length<<1; //every entry may need one pass to clear its reference
+        while (that.usedBytes+needed > that.maxBytes && --steps>=0) {
+            int key = that.hand;
+            that.hand = (key+1) % that.data.length;
+            if (null!=that.data[key] && key!=that.fillKey) {
+                if (that.valid[key] && that.referenced[key]) {
+                    that.referenced[key] = false;
+                } else {
+                    release(that, key);
+                    that.evictions++;
+                }
+            }
+        }
+        return that.usedBytes+needed <= that.maxBytes;
+    }
+
+    private static void release(ResponseCache that, int key) {
+        ByteBuffer buffer = that.data[key];
+        if (null!=buffer) {
+            that.usedBytes -= buffer.capacity();
+            that.data[key] = null;
+            that.valid[key] = false;
+        }
+    }
+
+    public static long hits(ResponseCache that) {
+        return that.hits;
+    }
+
+    public static long misses(ResponseCache that) {
+        return that.misses;
+    }
+
+    public static long evictions(ResponseCache that) {
+        return that.evictions;
+    }
+
+    public static long usedBytes(ResponseCache that) {
+        return that.usedBytes;
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.ociweb.pronghorn.network;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * File channels which the socket writer may send from directly with FileChannel.transferTo, so file bodies
+ * never pass through a pipe. Only the id travels on the pipe in ServerResponseSchema.MSG_TOCHANNELFILE_300.
+ *
+ * Channels are registered once by the file stage and stay open until close(), transferTo is positional so
+ * one channel can be sent to many sockets at once from different threads. A file which is replaced on disk
+ * keeps its id, so ids are only used up by new files and the registry never fills with stale channels.
+ */
+public class SendFileRegistry {
+
+    public static final int DEFAULT_MAX_FILES = 1024;
+
+    private final AtomicReferenceArray<FileChannel> channels;
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile boolean isClosed;
+
+    public SendFileRegistry() {
+        this(DEFAULT_MAX_FILES);
+    }
+
+    public SendFileRegistry(int maxFiles) {
+        this.channels = new AtomicReferenceArray<FileChannel>(maxFiles);
+    }
+
+    /**
+     * @return id for this channel or -1 if the registry is full, the caller must then send the file through the pipe
+     */
+    public int register(FileChannel channel) {
+        if (isClosed) {
+            return -1;
+        }
+        int id = count.getAndIncrement();
+        if (id >= channels.length()) {
+            count.decrementAndGet();
+            return -1;
+        }
+        channels.set(id, channel);
+        return id;
+    }
+
+    /**
+     * Swap in the channel of a file which changed on disk, the id sent on any later message finds the new one.
+     * @return the previous channel for this id
+     */
+    public FileChannel replace(int id, FileChannel channel) {
+        return channels.getAndSet(id, channel);
+    }
+
+    public FileChannel get(int id) {
+        return channels.get(id);
+    }
+
+    public void close() {
+        isClosed = true;
+        int i = Math.min(count.get(), channels.length());
+        while (--i >= 0) {
+            FileChannel channel = channels.getAndSet(i, null);
+            if (null != channel) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    //ignore, we are shutting down
+                }
+            }
+        }
+    }
+
+}
@@ -16,8 +16,9 @@ import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.SelectorIdleStrategy;
 import com.ociweb.pronghorn.util.Appendables;
-import com.ociweb.pronghorn.util.ServiceObjectHolder;
+import com.ociweb.pronghorn.util.PagedServiceObjectHolder;
 
 public class ServerConnectionReaderStage extends PronghornStage {
     
@@ -27,6 +28,9 @@ public class ServerConnectionReaderStage extends PronghornStage {
 
     private final ServerCoordinator coordinator;
     private final int pipeIdx;
+    private final int poolSize; //output pipes shared by all connections which have not been upgraded
+    private final GraphManager graphManager;
+    private final int disconnectSize;
     
     private Selector selector;
 
@@ -35,16 +39,32 @@ public class ServerConnectionReaderStage extends PronghornStage {
 
     
     private int pendingSelections = 0;
+    private boolean skippedFull = false;//some ready connections were left for the next pass because their pipe was full
     
 
-    private ServiceObjectHolder<ServerConnection> holder;
+    private PagedServiceObjectHolder<ServerConnection> holder;
     
     
     public ServerConnectionReaderStage(GraphManager graphManager, Pipe<NetPayloadSchema>[] output, ServerCoordinator coordinator, int pipeIdx) {
+        this(graphManager, output, coordinator, pipeIdx, 1);
+    }
+    
+    /**
+     * Connections are spread over the first poolSize output pipes. Each connection stays on its pipe until that
+     * pipe has been fully consumed so its data is always read in order, only then may it move to a less busy one.
+     * Upgraded connections go to the output pipe at their upgrade route index as before.
+     */
+    public ServerConnectionReaderStage(GraphManager graphManager, Pipe<NetPayloadSchema>[] output, ServerCoordinator coordinator, int pipeIdx, int poolSize) {
         super(graphManager, NONE, output);
         this.coordinator = coordinator;
         this.pipeIdx = pipeIdx;
         this.output = output;
+        if (poolSize<1 || poolSize>output.length) {
+            throw new UnsupportedOperationException("Pool size must be from 1 to "+output.length);
+        }
+        this.poolSize = poolSize;
+        this.graphManager = graphManager;
+        this.disconnectSize = Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_DISCONNECT_203);
     }
 
     @Override
@@ -54,6 +74,7 @@ public class ServerConnectionReaderStage extends PronghornStage {
                 
         try {
             coordinator.registerSelector(pipeIdx, selector = Selector.open());
+            SelectorIdleStrategy.register(graphManager, this, selector);
         } catch (IOException e) {
            throw new RuntimeException(e);
         }
@@ -63,6 +84,9 @@ public class ServerConnectionReaderStage extends PronghornStage {
     
     @Override
     public void shutdown() {
+        if (null!=selector) {
+            SelectorIdleStrategy.unregister(graphManager, this, selector);
+        }
         System.out.println("finsihed reading");
     }
 
@@ -78,6 +102,8 @@ public class ServerConnectionReaderStage extends PronghornStage {
         	
         	//logger.debug("found new data to read on "+pipeIdx);
             
+        	skippedFull = false;
+        	long now = System.nanoTime();
             Iterator<SelectionKey>  keyIterator = selector.selectedKeys().iterator();   
             
             while (keyIterator.hasNext()) {                
@@ -92,21 +118,24 @@ public class ServerConnectionReaderStage extends PronghornStage {
                 
                 
                 //get the context object so we know what the channel identifier is
-                channelId = ((ConnectionContext)selection.attachment()).getChannelId();
+                ConnectionContext context = (ConnectionContext)selection.attachment();
+                channelId = context.getChannelId();
                 
-                targetPipe = output[ServerCoordinator.getTargetUpgradePipeIdx(coordinator, pipeIdx, channelId)];                
-                //TODO: note above that every channel gets a pipe, this should be changed so we have a small fixed number of pipes.
-                  
-                
-                if (!Pipe.hasRoomForWrite(targetPipe)) {
-                	break;
+                int targetIdx = selectPipe(context);
+                if (targetIdx<0) {
+                	//leave it selected for the next pass, other connections may still have room
+                	skippedFull = true;
+                	continue;
                 }
+                targetPipe = output[targetIdx];
                 
                 keyIterator.remove();
                 pendingSelections--;
+                ServerCoordinator.readActivity(coordinator, pipeIdx, channelId, now);
                 
                 if (!pumpByteChannelIntoPipe(socketChannel, channelId, targetPipe)) {//consumes from channel until it has no more or pipe has no more room
                 	//end of stream
+                	publishDisconnect(targetIdx);
                 	try {
 						socketChannel.close();
 						selection.cancel();
@@ -119,17 +148,58 @@ public class ServerConnectionReaderStage extends PronghornStage {
         }
     }
 
+    /**
+     * @return index of the output pipe for this connection or -1 if that pipe has no room
+     */
+    private int selectPipe(ConnectionContext context) {
+    	
+    	int route = ServerCoordinator.getTargetUpgradePipeIdx(coordinator, pipeIdx, channelId);
+    	if (route>0) {
+    		//upgraded connections have their own pipe
+    		return Pipe.hasRoomForWrite(output[route]) ? route : -1;
+    	}
+    	
+    	int current = context.getPipeIdx();
+    	if (current>=0 && (Pipe.contentRemaining(output[current])>0 || 1==poolSize)) {
+    		//may still have data for this connection, must stay to keep it in order
+    		return Pipe.hasRoomForWrite(output[current]) ? current : -1;
+    	}
+    	
+    	//free to move, start from the home pipe for this channel and take the least busy one with room
+    	int home = (int)((channelId & Long.MAX_VALUE) % poolSize);
+    	int best = -1;
+    	long bestContent = Long.MAX_VALUE;
+    	for(int i=0; i<poolSize; i++) {
+    		int idx = home+i < poolSize ? home+i : home+i-poolSize;
+    		Pipe<NetPayloadSchema> pipe = output[idx];
+    		long content = Pipe.contentRemaining(pipe);
+    		if (content<bestContent && Pipe.hasRoomForWrite(pipe)) {
+    			best = idx;
+    			bestContent = content;
+    			if (0==content) {
+    				break;//nothing can be less busy
+    			}
+    		}
+    	}
+    	if (best>=0) {
+    		context.setPipeIdx(best);
+    	}
+    	return best;
+    }
+
     private boolean hasNewDataToRead() {
     	
-    	if (pendingSelections>0) {
+    	if (pendingSelections>0 && !skippedFull) {
     		return true;
     	}
     	
         try {        	        	
         	/////////////
         	//CAUTION - select now clears pevious count and only returns the additional I/O opeation counts which have become avail since the last time SelectNow was called
+        	//          so the count is taken from the selected set which also holds the keys skipped on the last pass
         	////////////        	
-            return (pendingSelections=selector.selectNow()) > 0;
+        	selector.selectNow();
+            return (pendingSelections=selector.selectedKeys().size()) > 0;
         } catch (IOException e) {
             logger.error("unexpected shutdown, Selector for this group of connections has crashed with ",e);
             int i = output.length;
@@ -194,6 +264,24 @@ public class ServerConnectionReaderStage extends PronghornStage {
         return true;//stopped because there was no room in the pipe
     }
 
+    /**
+     * Follows the last data of a closed connection so the router can drop anything it holds for it.
+     * Upgraded connections are left alone, their pipes go to other consumers.
+     */
+    private void publishDisconnect(int targetIdx) {
+    	if (targetIdx<poolSize && ServerCoordinator.getTargetUpgradePipeIdx(coordinator, pipeIdx, channelId)<=0) {
+    		if (Pipe.hasRoomForWrite(targetPipe, disconnectSize)) {
+    			int size = Pipe.addMsgIdx(targetPipe, NetPayloadSchema.MSG_DISCONNECT_203);
+    			Pipe.addLongValue(channelId, targetPipe);
+    			Pipe.confirmLowLevelWrite(targetPipe, size);
+    			Pipe.publishWrites(targetPipe);
+    		} else {
+    			//the router still notices when the slot is used by the next connection
+    			logger.trace("no room to publish disconnect of {}", channelId);
+    		}
+    	}
+    }
+
     private void recordErrorAndClose(ReadableByteChannel sourceChannel, IOException e) {
         //logger.error("unable to read",e);
           //may have been closed while reading so stop
@@ -0,0 +1,201 @@
+package com.ociweb.pronghorn.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.network.schema.ServerConnectionSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.TimerWheel;
+import com.ociweb.pronghorn.util.PagedServiceObjectHolder;
+
+/**
+ * Closes server connections which have gone idle or which keep sending a request that never completes (slow-loris).
+ *
+ * Every accepted connection arrives on the new connections pipe of its acceptor, there may be several, and is put on
+ * a timer wheel keyed by group and slot.
+ * The reader and writer stages only record the time of each read and write in the ServerCoordinator, nothing is
+ * moved on the wheel for that. When a connection comes due its recorded activity is checked, if there was more it
+ * is put back on the wheel for its new deadline otherwise MSG_DISCONNECT_203 is sent to the writer of its group
+ * which closes it and to the router of its group which drops any partial request it holds for it. Connections are
+ * checked at least once every request timeout so a request started after the last check is not left until the idle
+ * deadline. The wheel and its arrays are sized once so this does not allocate while running.
+ */
+public class ServerConnectionTimeoutStage extends PronghornStage {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerConnectionTimeoutStage.class);
+
+    public static final long DEFAULT_IDLE_NS    = 60_000_000_000L;
+    public static final long DEFAULT_REQUEST_NS = 20_000_000_000L;
+
+    private static final long TICK_NS = 1L<<26; //about 67ms, timeouts are in seconds so this is plenty
+    private static final int SLOT_BITS = 8;
+
+    private final Pipe<ServerConnectionSchema>[] newConnections; //one for each ServerNewConnectionStage
+    private final Pipe<NetPayloadSchema>[] disconnects; //by group, each is an input of that group's writer
+    private final Pipe<NetPayloadSchema>[] routerDisconnects; //by group, each is an input of that group's router
+    private final ServerCoordinator coordinator;
+    private final long idleNS;
+    private final long requestNS;
+    private final int disconnectSize;
+
+    private TimerWheel wheel;
+    private long[] channelIds;  //by wheel id
+    private int[] expired;
+    private PagedServiceObjectHolder<ServerConnection>[] holders; //by group, looked up once the group has a connection
+    private long closedCount;
+    private int endedAcceptors;
+
+    public ServerConnectionTimeoutStage(GraphManager graphManager, Pipe<ServerConnectionSchema> newConnections, Pipe<NetPayloadSchema>[] disconnects, 
+                                        Pipe<NetPayloadSchema>[] routerDisconnects, ServerCoordinator coordinator) {
+        this(graphManager, new Pipe[]{newConnections}, disconnects, routerDisconnects, coordinator, DEFAULT_IDLE_NS, DEFAULT_REQUEST_NS);
+    }
+    
+    public ServerConnectionTimeoutStage(GraphManager graphManager, Pipe<ServerConnectionSchema>[] newConnections, Pipe<NetPayloadSchema>[] disconnects, 
+                                        Pipe<NetPayloadSchema>[] routerDisconnects, ServerCoordinator coordinator) {
+        this(graphManager, newConnections, disconnects, routerDisconnects, coordinator, DEFAULT_IDLE_NS, DEFAULT_REQUEST_NS);
+    }
+
+    public ServerConnectionTimeoutStage(GraphManager graphManager, Pipe<ServerConnectionSchema> newConnections, Pipe<NetPayloadSchema>[] disconnects,
+                                        Pipe<NetPayloadSchema>[] routerDisconnects, ServerCoordinator coordinator, long idleNS, long requestNS) {
+        this(graphManager, new Pipe[]{newConnections}, disconnects, routerDisconnects, coordinator, idleNS, requestNS);
+    }
+
+    /**
+     * @param idleNS close connections with no reads or writes for this long
+     * @param requestNS close connections which have been sending for this long without any response
+     */
+    public ServerConnectionTimeoutStage(GraphManager graphManager, Pipe<ServerConnectionSchema>[] newConnections, Pipe<NetPayloadSchema>[] disconnects,
+                                        Pipe<NetPayloadSchema>[] routerDisconnects, ServerCoordinator coordinator, long idleNS, long requestNS) {
+        super(graphManager, newConnections, join(disconnects, routerDisconnects));
+        if (disconnects.length != ServerCoordinator.groups(coordinator) || routerDisconnects.length != disconnects.length) {
+            throw new UnsupportedOperationException("Must have one writer and one router disconnect pipe for each of the "+ServerCoordinator.groups(coordinator)+" socket groups");
+        }
+        this.newConnections = newConnections;
+        this.disconnects = disconnects;
+        this.routerDisconnects = routerDisconnects;
+        this.coordinator = coordinator;
+        this.idleNS = idleNS;
+        this.requestNS = requestNS;
+        this.disconnectSize = Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_DISCONNECT_203);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void startup() {
+        int capacity = disconnects.length<<coordinator.channelBits;
+        wheel = new TimerWheel(capacity, TICK_NS, SLOT_BITS, System.nanoTime());
+        channelIds = new long[capacity];
+        expired = new int[capacity];
+        holders = new PagedServiceObjectHolder[disconnects.length];
+    }
+
+    @Override
+    public void run() {
+        run(this, System.nanoTime());
+    }
+
+    @Override
+    public void shutdown() {
+        //the router only stops once all its inputs have ended
+        int g = routerDisconnects.length;
+        while (--g>=0) {
+            Pipe.publishEOF(routerDisconnects[g]);
+        }
+    }
+
+    /**
+     * Takes the new connections and closes those which are due at nowNS.
+     */
+    public static void run(ServerConnectionTimeoutStage that, long nowNS) {
+
+        int a = that.newConnections.length;
+        while (--a>=0) {
+            if (!takeNewConnections(that, that.newConnections[a], nowNS)) {
+                if (++that.endedAcceptors == that.newConnections.length) {
+                    that.requestShutdown(); //every acceptor has stopped
+                    return;
+                }
+            }
+        }
+
+        int count = TimerWheel.expire(that.wheel, nowNS, that.expired);
+        while (--count>=0) {
+            that.checkConnection(that.expired[count], nowNS);
+        }
+    }
+
+    //false once this acceptor has sent its EOF
+    private static boolean takeNewConnections(ServerConnectionTimeoutStage that, Pipe<ServerConnectionSchema> newConnections, long nowNS) {
+        while (Pipe.hasContentToRead(newConnections)) {
+            int msgIdx = Pipe.takeMsgIdx(newConnections);
+            if (msgIdx<0) {
+                Pipe.confirmLowLevelRead(newConnections, Pipe.EOF_SIZE);
+                Pipe.releaseReadLock(newConnections);
+                return false;
+            }
+            int group = (int)Pipe.takeLong(newConnections);
+            long channelId = Pipe.takeLong(newConnections);
+            Pipe.confirmLowLevelRead(newConnections, Pipe.sizeOf(newConnections, msgIdx));
+            Pipe.releaseReadLock(newConnections);
+
+            int id = that.wheelId(group, channelId);
+            that.channelIds[id] = channelId;
+            that.schedule(id, ServerCoordinator.timeoutNS(that.coordinator, group, channelId, that.idleNS, that.requestNS), nowNS);
+        }
+        return true;
+    }
+
+    //a request may start any time after this check so look again no later than one request timeout from now
+    private void schedule(int id, long dueNS, long nowNS) {
+        long latest = nowNS+requestNS;
+        TimerWheel.schedule(wheel, id, dueNS-latest < 0 ? dueNS : latest);
+    }
+
+    private void checkConnection(int id, long now) {
+        int group = id>>coordinator.channelBits;
+        long channelId = channelIds[id];
+
+        if (null==holders[group]) {
+            holders[group] = ServerCoordinator.getSocketChannelHolder(coordinator, group);
+        }
+        if (null==holders[group].getValid(channelId)) {
+            return; //already closed or the slot now holds a newer connection which was scheduled on its own
+        }
+
+        long due = ServerCoordinator.timeoutNS(coordinator, group, channelId, idleNS, requestNS);
+        if (due-now > 0) {
+            schedule(id, due, now); //there was activity since it was scheduled
+            return;
+        }
+
+        Pipe<NetPayloadSchema> pipe = disconnects[group];
+        Pipe<NetPayloadSchema> routerPipe = routerDisconnects[group];
+        if (Pipe.hasRoomForWrite(pipe, disconnectSize) && Pipe.hasRoomForWrite(routerPipe, disconnectSize)) {
+            publishDisconnect(pipe, channelId);
+            publishDisconnect(routerPipe, channelId);
+            closedCount++;
+            logger.trace("closing inactive connection {} of group {}", channelId, group);
+        } else {
+            TimerWheel.schedule(wheel, id, now+TICK_NS); //writer or router is behind, try again on the next tick
+        }
+    }
+
+    private static void publishDisconnect(Pipe<NetPayloadSchema> pipe, long channelId) {
+        int size = Pipe.addMsgIdx(pipe, NetPayloadSchema.MSG_DISCONNECT_203);
+        Pipe.addLongValue(channelId, pipe);
+        Pipe.confirmLowLevelWrite(pipe, size);
+        Pipe.publishWrites(pipe);
+    }
+
+    private int wheelId(int group, long channelId) {
+        return (group<<coordinator.channelBits) | (int)(coordinator.channelBitsMask & channelId);
+    }
+
+    public static long closedCount(ServerConnectionTimeoutStage that) {
+        return that.closedCount;
+    }
+
+}
@@ -2,32 +2,60 @@ package com.ociweb.pronghorn.network;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.util.MemberHolder;
-import com.ociweb.pronghorn.util.ServiceObjectHolder;
+import com.ociweb.pronghorn.util.MemberHolderVisitor;
+import com.ociweb.pronghorn.util.PagedServiceObjectHolder;
 import com.ociweb.pronghorn.util.ServiceObjectValidator;
 
 public class ServerCoordinator extends SSLConnectionHolder {
 
-    //TODO: replace to hold ServerConnection
-	private final ServiceObjectHolder<ServerConnection>[] socketHolder;
+	private final PagedServiceObjectHolder<ServerConnection>[] socketHolder;
     
     private final Selector[]                           selectors;
     private final MemberHolder[]                       subscriptions;
     private final int[][]                              upgradePipeLookup;
     private final ConnectionContext[][]                connectionContext; //NOTE: ObjectArrays would work very well here!!
+    
+    //activity by group then slot, plain stores so each read and write only costs one array write
+    private final long[][]                             lastReadNS;      //set by the reader stage
+    private final long[][]                             requestStartNS;  //first read after the last write, set by the reader stage and moved by the router as body bytes arrive
+    private final long[][]                             lastWriteNS;     //set by the writer stage
             
-    public final int                                  channelBits;
+    public final int                                  channelBits;     //max open connections per group, tables start smaller and grow
     public final int                                  channelBitsSize;
     public final int                                  channelBitsMask;
+    
+    public final static int DEFAULT_CONNECTION_BITS = 12;
+    public final static int SUBSCRIPTION_LISTS = 100; //per group, ids of the lists a broadcast may name
+    private final static int INITIAL_CONNECTION_BITS = 10;
 
     private final int port;
     private final InetSocketAddress                    address;
+    private GroupAssignment                            groupAssignment = LEAST_CONNECTIONS;
+    private boolean                                    isTLS;            //connections are only given an SSLEngine when set
+    private final SendFileRegistry                     sendFiles = new SendFileRegistry(); //files the writers send with transferTo
+    private final AtomicInteger                        runningWriters = new AtomicInteger(); //last one to stop shuts the coordinator down
+    private ServerSocketChannel                        sharedServer; //guarded by this, only used without port reuse
+    private int                                        sharedServerUsers; //guarded by this, acceptors still using sharedServer
+    
+    //Java 9+, found by reflection so we still run on older versions which share one server channel instead
+    private static final SocketOption<Boolean>         SO_REUSEPORT = findReusePort();
 
+    public final static int ACCEPT_DEFLATE_SHIFT         = 26;//set by the router when the client takes compressed responses
+    public final static int ACCEPT_GZIP_SHIFT            = 27;
     public final static int INCOMPLETE_RESPONSE_SHIFT    = 28;
     public final static int END_RESPONSE_SHIFT           = 29;//for multi message send this high bit marks the end
     public final static int CLOSE_CONNECTION_SHIFT       = 30;
@@ -38,22 +66,46 @@ public class ServerCoordinator extends SSLConnectionHolder {
 	public final static int END_RESPONSE_MASK            = 1<<END_RESPONSE_SHIFT;
 	public final static int CLOSE_CONNECTION_MASK        = 1<<CLOSE_CONNECTION_SHIFT;
 	public final static int UPGRADE_MASK                 = 1<<UPGRADE_CONNECTION_SHIFT;
+	public final static int ACCEPT_DEFLATE_MASK          = 1<<ACCEPT_DEFLATE_SHIFT;
+	public final static int ACCEPT_GZIP_MASK             = 1<<ACCEPT_GZIP_SHIFT;
+	public final static int ACCEPT_ENCODING_MASK         = ACCEPT_GZIP_MASK | ACCEPT_DEFLATE_MASK;
 
 
     
     public ServerCoordinator(int socketGroups, int port) {
-        this.socketHolder      = new ServiceObjectHolder[socketGroups];    
+        this(socketGroups, "127.0.0.1", port);
+    }
+    
+    public ServerCoordinator(int socketGroups, String bindHost, int port) {
+        this(socketGroups, bindHost, port, DEFAULT_CONNECTION_BITS);
+    }
+    
+    /**
+     * @param maxConnectionBits max open connections per socket group as a power of two, memory is only used as the connections arrive
+     */
+    public ServerCoordinator(int socketGroups, String bindHost, int port, int maxConnectionBits) {
+        if (maxConnectionBits>20) {
+            throw new UnsupportedOperationException("Connection bits must be 20 or less, the upgrade pipe lookup is sized by it.");
+        }
+        this.socketHolder      = new PagedServiceObjectHolder[socketGroups];    
         this.selectors         = new Selector[socketGroups];
         
         
         this.subscriptions     = new MemberHolder[socketGroups];
+        int g = socketGroups;
+        while (--g>=0) {
+            subscriptions[g] = new MemberHolder(SUBSCRIPTION_LISTS);
+        }
         this.port              = port;
         this.upgradePipeLookup        = new int[socketGroups][];
         this.connectionContext = new ConnectionContext[socketGroups][];
-        this.channelBits       = 12; //max of 4096 open connections per stage
+        this.lastReadNS        = new long[socketGroups][];
+        this.requestStartNS    = new long[socketGroups][];
+        this.lastWriteNS       = new long[socketGroups][];
+        this.channelBits       = maxConnectionBits;
         this.channelBitsSize   = 1<<channelBits;
         this.channelBitsMask   = channelBitsSize-1;
-        this.address           = new InetSocketAddress("127.0.0.1",port);
+        this.address           = new InetSocketAddress(bindHost,port);
         
     }
     
@@ -68,20 +120,22 @@ public class ServerCoordinator extends SSLConnectionHolder {
     }
 
     
-    public static ServiceObjectHolder<ServerConnection> newSocketChannelHolder(ServerCoordinator that, int idx) {
+    /**
+     * Called by the reader stage of this group in startup() so the tables are first touched by the thread which uses them.
+     * Contexts are created as connections arrive and the holder grows by pages so nothing is ever copied.
+     */
+    public static PagedServiceObjectHolder<ServerConnection> newSocketChannelHolder(ServerCoordinator that, int idx) {
         that.connectionContext[idx] = new ConnectionContext[that.channelBitsSize];
-        //must also create these long lived instances, this would be a good use case for StructuredArray and ObjectLayout
-        int i = that.channelBitsSize;
-        while (--i >= 0) {
-            that.connectionContext[idx][i] = new ConnectionContext();
-        }
-        
         that.upgradePipeLookup[idx] = new int[that.channelBitsSize];
-        return that.socketHolder[idx] = new ServiceObjectHolder(that.channelBits, ServerConnection.class, new SocketValidator(), false/*Do not grow*/);
+        that.lastReadNS[idx] = new long[that.channelBitsSize];
+        that.requestStartNS[idx] = new long[that.channelBitsSize];
+        that.lastWriteNS[idx] = new long[that.channelBitsSize];
+        return that.socketHolder[idx] = new PagedServiceObjectHolder<ServerConnection>(Math.min(INITIAL_CONNECTION_BITS, that.channelBits), 
+                                                                                      that.channelBits, ServerConnection.class, new ServerConnectionValidator());
         
     }
     
-    public static ServiceObjectHolder<ServerConnection> getSocketChannelHolder(ServerCoordinator that, int idx) {
+    public static PagedServiceObjectHolder<ServerConnection> getSocketChannelHolder(ServerCoordinator that, int idx) {
         while (null==that.socketHolder[idx]) {//TODO: may need to find more elegant way to do this but this will probably do just fine.
             Thread.yield();//we have a race that happens on graph building so is may have to wait here.
         }
@@ -89,7 +143,64 @@ public class ServerCoordinator extends SSLConnectionHolder {
     }
     
     public MemberHolder newMemberHolder(int idx) {
-        return subscriptions[idx] = new MemberHolder(100);
+        return subscriptions[idx] = new MemberHolder(SUBSCRIPTION_LISTS);
+    }
+    
+    public static MemberHolder getMemberHolder(ServerCoordinator that, int idx) {
+        return that.subscriptions[idx];
+    }
+    
+    /**
+     * Add this connection to a subscription list, every MSG_TOSUBSCRIPTION_200 for the list is then written to it.
+     * The lists are changed by the app threads while the writer reads them so every access holds the MemberHolder lock.
+     * 
+     * @return false if the connection is gone or uses TLS, each TLS connection needs its own encrypted copy so it
+     *         can not share the one payload of a broadcast and must be sent to with MSG_TOCHANNEL_100 instead
+     */
+    public static boolean subscribe(ServerCoordinator that, int groupId, int listId, long channelId) {
+        if (listId<0 || listId>=SUBSCRIPTION_LISTS) {
+            throw new UnsupportedOperationException("Subscription list must be less than "+SUBSCRIPTION_LISTS);
+        }
+        ServerConnection connection = that.socketHolder[groupId].getValid(channelId);
+        if (null==connection || null!=connection.getEngine()) {
+            return false;
+        }
+        MemberHolder holder = that.subscriptions[groupId];
+        synchronized(holder) {
+            holder.addMember(listId, channelId);
+        }
+        return true;
+    }
+    
+    public static boolean unsubscribe(ServerCoordinator that, int groupId, int listId, long channelId) {
+        MemberHolder holder = that.subscriptions[groupId];
+        synchronized(holder) {
+            return holder.removeMember(listId, channelId);
+        }
+    }
+    
+    static void visitSubscription(ServerCoordinator that, int groupId, int listId, MemberHolderVisitor visitor) {
+        MemberHolder holder = that.subscriptions[groupId];
+        synchronized(holder) {
+            if (!holder.isEmpty(listId)) {
+                holder.visit(listId, visitor);
+            }
+        }
+    }
+    
+    public static class ServerConnectionValidator implements ServiceObjectValidator<ServerConnection> {
+
+        @Override
+        public boolean isValid(ServerConnection serviceObject) {
+            return serviceObject.isValid && 
+                   (serviceObject.getSocketChannel().isConnectionPending() || serviceObject.getSocketChannel().isConnected());
+        }
+
+        @Override
+        public void dispose(ServerConnection t) {
+            t.close();
+        }
+        
     }
     
     public static class SocketValidator implements ServiceObjectValidator<SocketChannel> {
@@ -125,22 +236,225 @@ public class ServerCoordinator extends SSLConnectionHolder {
         return coordinator.upgradePipeLookup[groupId][(int)(coordinator.channelBitsMask & channelId)];
     }
     
+    /**
+     * Adds a newly accepted connection to the table of this group, other acceptors may be adding to the same group.
+     * @return channel id of the connection or -1 if the group has no room
+     */
+    public static long openConnection(ServerCoordinator that, int groupId, SocketChannel channel, SSLEngine engine, long nowNS) {
+        PagedServiceObjectHolder<ServerConnection> holder = getSocketChannelHolder(that, groupId);
+        synchronized(holder) {
+            long channelId = holder.lookupInsertPosition();
+            if (channelId>=0) {
+                holder.setValue(channelId, new ServerConnection(engine, channel, channelId));
+                //NOTE: for servers that do not require an upgrade we can set this to the needed pipe right now.
+                setTargetUpgradePipeIdx(that, groupId, channelId, 0); //default for all
+                connectionOpened(that, groupId, channelId, nowNS);
+            }
+            return channelId;
+        }
+    }
+    
+    /**
+     * Called when the connection is accepted so nothing left by the previous connection in this slot is seen as activity.
+     */
+    public static void connectionOpened(ServerCoordinator that, int groupId, long channelId, long nowNS) {
+        int slot = (int)(that.channelBitsMask & channelId);
+        that.lastReadNS[groupId][slot] = nowNS;
+        that.requestStartNS[groupId][slot] = nowNS;
+        that.lastWriteNS[groupId][slot] = nowNS;
+    }
+    
+    public static void readActivity(ServerCoordinator that, int groupId, long channelId, long nowNS) {
+        int slot = (int)(that.channelBitsMask & channelId);
+        that.lastReadNS[groupId][slot] = nowNS;
+        if (that.requestStartNS[groupId][slot] - that.lastWriteNS[groupId][slot] <= 0) {
+            that.requestStartNS[groupId][slot] = nowNS; //everything before was answered, this read starts a new request
+        }
+    }
+    
+    /**
+     * Called by the router for each part of a request body so an upload which keeps sending is not taken for a slow-loris.
+     */
+    public static void bodyActivity(ServerCoordinator that, int groupId, long channelId, long nowNS) {
+        that.requestStartNS[groupId][(int)(that.channelBitsMask & channelId)] = nowNS;
+    }
+    
+    public static void writeActivity(ServerCoordinator that, int groupId, long channelId, long nowNS) {
+        that.lastWriteNS[groupId][(int)(that.channelBitsMask & channelId)] = nowNS;
+    }
+    
+    /**
+     * @return time this connection should be closed unless there is more activity, it has been idle for idleNS or
+     *         has been sending a request for requestNS without getting any response (slow-loris)
+     */
+    public static long timeoutNS(ServerCoordinator that, int groupId, long channelId, long idleNS, long requestNS) {
+        int slot = (int)(that.channelBitsMask & channelId);
+        long lastRead = that.lastReadNS[groupId][slot];
+        long lastWrite = that.lastWriteNS[groupId][slot];
+        long requestStart = that.requestStartNS[groupId][slot];
+        long due = (lastRead - lastWrite > 0 ? lastRead : lastWrite) + idleNS;
+        if (requestStart - lastWrite > 0 && (requestStart + requestNS) - due < 0) {
+            due = requestStart + requestNS;
+        }
+        return due;
+    }
+    
+    public static int groups(ServerCoordinator that) {
+        return that.socketHolder.length;
+    }
+    
+    public static SendFileRegistry getSendFileRegistry(ServerCoordinator that) {
+        return that.sendFiles;
+    }
+    
+    /**
+     * Called by each socket writer in startup(), the writers are the last stages to use the shared resources.
+     */
+    public static void writerStarted(ServerCoordinator that) {
+        that.runningWriters.incrementAndGet();
+    }
+    
+    public static void writerStopped(ServerCoordinator that) {
+        if (0==that.runningWriters.decrementAndGet()) {
+            shutdown(that);
+        }
+    }
+    
+    /**
+     * Release what is shared by all the groups, called once the last writer has stopped.
+     */
+    public static void shutdown(ServerCoordinator that) {
+        that.sendFiles.close();
+    }
+    
     public static Selector getSelector(ServerCoordinator that, int idx) {
         return that.selectors[idx];
     }
     
     public static ConnectionContext selectorKeyContext(ServerCoordinator that, int idx, long channelId) {
-        ConnectionContext context = that.connectionContext[idx][(int)(that.channelBitsMask & channelId)];
+        ConnectionContext[] contexts = that.connectionContext[idx];
+        int slot = (int)(that.channelBitsMask & channelId);
+        ConnectionContext context = contexts[slot];
+        if (null==context) {
+            //long lived, created once per slot as the table grows, a good use case for StructuredArray and ObjectLayout
+            context = contexts[slot] = new ConnectionContext();
+        }
         context.setChannelId(channelId);        
         return context;
     }
 
+    /**
+     * Picks the socket group for each accepted connection, shared by all acceptors so it must be thread safe.
+     */
+    public interface GroupAssignment {
+        /**
+         * @return socket group for this connection or -1 if none can take it
+         */
+        int group(ServerCoordinator coordinator, SocketChannel channel);
+    }
+    
+    public static final GroupAssignment LEAST_CONNECTIONS = new GroupAssignment() {
+        @Override
+        public int group(ServerCoordinator coordinator, SocketChannel channel) {
+            return scanForOptimalPipe(coordinator, coordinator.channelBitsSize, -1); //only groups with room
+        }
+    };
+    
+    /**
+     * Same client address always lands in the same group while it has room, keeps a client's connections together.
+     */
+    public static final GroupAssignment REMOTE_ADDRESS_HASH = new GroupAssignment() {
+        @Override
+        public int group(ServerCoordinator coordinator, SocketChannel channel) {
+            Socket socket = channel.socket();
+            if (null!=socket && null!=socket.getInetAddress()) {
+                int idx = (socket.getInetAddress().hashCode() & Integer.MAX_VALUE) % coordinator.socketHolder.length;
+                if (openConnections(coordinator.socketHolder[idx]) < coordinator.channelBitsSize) {
+                    return idx;
+                }
+            }
+            return scanForOptimalPipe(coordinator, coordinator.channelBitsSize, -1); //only groups with room
+        }
+    };
+    
+    /**
+     * Must be called while building the graph, before any connection is accepted.
+     */
+    public static void setTLS(ServerCoordinator that, boolean isTLS) {
+        that.isTLS = isTLS;
+    }
+    
+    public static boolean isTLS(ServerCoordinator that) {
+        return that.isTLS;
+    }
+    
+    public static void setGroupAssignment(ServerCoordinator that, GroupAssignment assignment) {
+        that.groupAssignment = assignment;
+    }
+    
+    static int assignGroup(ServerCoordinator that, SocketChannel channel) {
+        return that.groupAssignment.group(that, channel);
+    }
+    
+    /**
+     * Server channel for one acceptor. With SO_REUSEPORT each acceptor binds its own and the OS spreads the new
+     * connections between them, otherwise every acceptor gets the same channel and whichever accepts first wins.
+     */
+    static ServerSocketChannel openServerChannel(ServerCoordinator that) throws IOException {
+        if (null!=SO_REUSEPORT) {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            if (server.supportedOptions().contains(SO_REUSEPORT)) {
+                server.setOption(SO_REUSEPORT, Boolean.TRUE);
+                server.bind(that.address);
+                return server;
+            }
+            server.close();
+        }
+        synchronized(that) {
+            if (null==that.sharedServer) {
+                ServerSocketChannel server = ServerSocketChannel.open();
+                server.bind(that.address);
+                that.sharedServer = server;
+            }
+            that.sharedServerUsers++;
+            return that.sharedServer;
+        }
+    }
+    
+    /**
+     * Called by each acceptor as it stops, the shared server channel stays open until the last one is done with it.
+     */
+    static void closeServerChannel(ServerCoordinator that, ServerSocketChannel server) throws IOException {
+        synchronized(that) {
+            if (server==that.sharedServer) {
+                if (--that.sharedServerUsers>0) {
+                    return;
+                }
+                that.sharedServer = null;
+            }
+        }
+        server.close();
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePort() {
+        try {
+            return (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+    
+    private static int openConnections(PagedServiceObjectHolder<ServerConnection> holder) {
+        return (int)(PagedServiceObjectHolder.getSequenceCount(holder) - PagedServiceObjectHolder.getRemovalCount(holder));
+    }
+    
     static int scanForOptimalPipe(ServerCoordinator that, int minValue, int minIdx) {
         int i = that.socketHolder.length;
-        ServiceObjectHolder<ServerConnection>[] localSocketHolder=that.socketHolder;
+        PagedServiceObjectHolder<ServerConnection>[] localSocketHolder=that.socketHolder;
         while (--i>=0) {
-             ServiceObjectHolder<ServerConnection> holder = localSocketHolder[i];                         
-             int openConnections = (int)(ServiceObjectHolder.getSequenceCount(holder) - ServiceObjectHolder.getRemovalCount(holder));
+             PagedServiceObjectHolder<ServerConnection> holder = localSocketHolder[i];                         
+             int openConnections = openConnections(holder);
              if (openConnections<minValue /*&& Pipe.hasRoomForWrite(localOutputs[i])*/ ) {
                  minValue = openConnections;
                  minIdx = i;
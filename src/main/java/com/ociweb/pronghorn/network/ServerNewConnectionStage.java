@@ -10,6 +10,8 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 
+import javax.net.ssl.SSLEngine;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,7 +19,7 @@ import com.ociweb.pronghorn.network.schema.ServerConnectionSchema;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
-import com.ociweb.pronghorn.util.ServiceObjectHolder;
+import com.ociweb.pronghorn.stage.scheduling.SelectorIdleStrategy;
 
 /**
  * General base class for server construction.
@@ -25,6 +27,9 @@ import com.ociweb.pronghorn.util.ServiceObjectHolder;
  * 
  * No protocol specifics are found in this class only socket usage logic
  * 
+ * Several instances may share one ServerCoordinator to accept in parallel, each binds its own server channel
+ * when the OS supports SO_REUSEPORT. The group for each connection comes from ServerCoordinator.setGroupAssignment.
+ * 
  * @author Nathan Tippy
  *
  */
@@ -39,6 +44,7 @@ public class ServerNewConnectionStage extends PronghornStage{
     static final int connectMessageSize = ServerConnectionSchema.FROM.fragScriptSize[ServerConnectionSchema.MSG_SERVERCONNECTION_100];
     private ServerCoordinator coordinator;
     private Pipe<ServerConnectionSchema> newClientConnections;
+    private final GraphManager graphManager;
     
     
     
@@ -46,6 +52,7 @@ public class ServerNewConnectionStage extends PronghornStage{
         super(graphManager, NONE, newClientConnections);
         this.coordinator = coordinator;
         this.newClientConnections = newClientConnections;
+        this.graphManager = graphManager;
     }
     
 
@@ -60,16 +67,15 @@ public class ServerNewConnectionStage extends PronghornStage{
             
             //channel is not used until connected
             //once channel is closed it can not be opened and a new one must be created.
-            server = ServerSocketChannel.open();
-            
-           // server.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);            
-            server.socket().bind(endPoint);
+            //each acceptor binds its own when the OS supports port reuse, else all acceptors share one
+            server = ServerCoordinator.openServerChannel(coordinator);
             
             ServerSocketChannel channel = (ServerSocketChannel)server.configureBlocking(false);
 
             //this stage accepts connections as fast as possible
             selector = Selector.open();
             channel.register(selector, SelectionKey.OP_ACCEPT); 
+            SelectorIdleStrategy.register(graphManager, this, selector);
             
             
             System.out.println("ServerNewConnectionStage is now ready on  http:/"+endPoint+"/index.html");
@@ -93,7 +99,9 @@ public class ServerNewConnectionStage extends PronghornStage{
     public void run() {
   
         try {
-           if (selector.selectNow() > selectionKeysAllowedToWait) {
+           //count the selected set, the idle strategy may have already selected these keys while we waited
+           selector.selectNow();
+           if (selector.selectedKeys().size() > selectionKeysAllowedToWait) {
                 //we know that there is an interesting (non zero positive) number of keys waiting.
                                 
                 Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
@@ -109,13 +117,15 @@ public class ServerNewConnectionStage extends PronghornStage{
                           return;
                       }
                       
-                      int targetPipeIdx = ServerCoordinator.scanForOptimalPipe(coordinator,Integer.MAX_VALUE, -1);
                       //if -1 we can not open any new connection on any pipeline.
-                      if (targetPipeIdx<0) {
+                      if (ServerCoordinator.scanForOptimalPipe(coordinator,coordinator.channelBitsSize, -1)<0) {
                           return;//try again later if the client is still waiting.
                       }
                       
                       SocketChannel channel = server.accept();
+                      if (null==channel) {
+                    	  continue;//taken by another acceptor sharing this server channel
+                      }
                       
                       try {                          
                           channel.configureBlocking(false);
@@ -126,31 +136,33 @@ public class ServerNewConnectionStage extends PronghornStage{
                       //    System.out.println(     channel.supportedOptions()  );
                           
                       //    channel.setOption(StandardSocketOptions.SO_LINGER, 3);     
-                                                    
-                          ServiceObjectHolder<ServerConnection> holder = ServerCoordinator.getSocketChannelHolder(coordinator, targetPipeIdx);
                           
-                          final long channelId = holder.lookupInsertPosition();
+                          final int targetPipeIdx = ServerCoordinator.assignGroup(coordinator, channel);
+                          if (targetPipeIdx<0) {
+                        	  logger.info("no room in any group, closing new connection");
+                        	  channel.close();
+                        	  continue;
+                          }
+                                                    
+                          //TODO: not sure these are right at all.
+                          String host="localhost";
+                          int port=443;
                           
-                          //long channelId = ServerCoordinator.getSocketChannelHolder(coordinator, targetPipeIdx).add(channel); //TODO: confirm this returns -1 if nothing is found.
+                          SSLEngine engine = ServerCoordinator.isTLS(coordinator) ? SSLEngineFactory.createSSLEngine(host, port) : null;
+                          final long channelId = ServerCoordinator.openConnection(coordinator, targetPipeIdx, channel, engine, System.nanoTime());
                           if (channelId<0) {
                               //error this should have been detected in the scanForOptimalPipe method
                         	  logger.info("no channel, dropping data");
+                        	  channel.close();
                               return;
                           }
-                          
-                          //TODO: not sure these are right at all.
-                          String host="localhost";
-						  int port=443;
-						  
-						  holder.setValue(channelId, new ServerConnection(SSLEngineFactory.createSSLEngine(host, port), channel, channelId));
-                          
-                          
-                          //NOTE: for servers that do not require an upgrade we can set this to the needed pipe right now.
-                          ServerCoordinator.setTargetUpgradePipeIdx(coordinator, targetPipeIdx, channelId, 0); //default for all
+                          final ConnectionContext context = ServerCoordinator.selectorKeyContext(coordinator, targetPipeIdx, channelId);
                                                                                                   
                          // logger.info("register new data to selector for pipe {}",targetPipeIdx);
                           Selector selector2 = ServerCoordinator.getSelector(coordinator, targetPipeIdx);
-						  channel.register(selector2, SelectionKey.OP_READ, ServerCoordinator.selectorKeyContext(coordinator, targetPipeIdx, channelId));
+                          selector2.wakeup();//register blocks while the reader thread waits in select
+						  channel.register(selector2, SelectionKey.OP_READ, context);
+						  selector2.wakeup();//reader may have gone back into select before this key existed, wake it again to see it
     						 
                           //the pipe selected has already been checked to ensure room for the connect message                      
                           Pipe<ServerConnectionSchema> targetPipe = newClientConnections;
@@ -180,6 +192,24 @@ public class ServerNewConnectionStage extends PronghornStage{
         }
     }
 
+    @Override
+    public void shutdown() {
+        try {
+            if (null!=selector) {
+                SelectorIdleStrategy.unregister(graphManager, this, selector);
+                selector.close();
+            }
+            if (null!=server) {
+                //other acceptors may still be taking connections from a shared server channel
+                ServerCoordinator.closeServerChannel(coordinator, server);
+                server = null;
+            }
+        } catch (IOException e) {
+            logger.trace("Unable to close server channel",e);
+        }
+        Pipe.publishEOF(newClientConnections); //timeout stage stops once every acceptor has ended
+    }
+
 
 
     
@@ -2,7 +2,9 @@ package com.ociweb.pronghorn.network;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,25 +13,38 @@ import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
-import com.ociweb.pronghorn.util.ServiceObjectHolder;
+import com.ociweb.pronghorn.util.MemberHolderVisitor;
+import com.ociweb.pronghorn.util.PagedServiceObjectHolder;
 
 public class ServerSocketWriterStage extends PronghornStage {
     
     private static Logger logger = LoggerFactory.getLogger(ServerSocketWriterStage.class);
-    private ServiceObjectHolder<ServerConnection> socketHolder;    
+    private PagedServiceObjectHolder<ServerConnection> socketHolder;    
     
     private final Pipe<NetPayloadSchema>[] dataToSend;
     
     private final ServerCoordinator coordinator;
     private final int groupIdx;
     
-    private SocketChannel  writeToChannel;
-    private boolean        writeDone = true;
-    private int            activeMessageId;    
-    private int            activePipe = 0;
+    //write state of each pipe, a slow socket holds up only the pipe it is on
+    private boolean[]      isPending;      //fragments have been read and are waiting on the write
+    private int[]          pendingPos;     //start of the held payload in the blob ring
+    private int[]          pendingBytes;   //total payload of the held fragments, released once written
+    private ByteBuffer[][] pendingBuffs;   //views of the blob ring, the second is used when the payload wraps
+    private long[][]       targets;        //channels the held payload goes to, one unless it is a broadcast
+    private int[][]        targetSent;     //bytes already written to each target
+    private int[]          targetCount;
     
-
-    private ByteBuffer[] writeBuffs;
+    //file being sent with transferTo for each pipe, null when none
+    private FileChannel[]  pendingFile;
+    private long[]         fileTarget;
+    private long[]         filePosition;
+    private long[]         fileRemaining;
+    private SendFileRegistry sendFiles;
+    
+    private long           now;            //once per run, for the activity times used by ServerConnectionTimeoutStage
+    
+    private final TargetCollector collector = new TargetCollector();
     
     public final static int UPGRADE_TARGET_PIPE_MASK     = (1<<21)-1;
  
@@ -53,9 +68,12 @@ public class ServerSocketWriterStage extends PronghornStage {
      * + ServerResponseSchema is custom to this stage and supports all the features here
      * + Has support for upgrade redirect pipe change (Module can clear bit to prevent this if needed)
      * + Has support for closing connection after write as needed for HTTP 1.1 and 0.0
+     * + Consecutive payloads for the same channel are sent with a single gathering write
+     * + A partial write only holds up the pipe it came from, other pipes keep writing
      * 
      * 
-     * + Will Have support for writing same pay-load to multiple channels (subscriptions)
+     * + Broadcast payloads are written to every member of a subscription list from the same blob, no copies
+     * + SendFile messages are sent from the file to the socket with transferTo, the bytes never enter a pipe
      * + Will Have support for order enforcement and pipelined requests
      * 
      * 
@@ -76,134 +94,301 @@ public class ServerSocketWriterStage extends PronghornStage {
                 
         socketHolder = ServerCoordinator.getSocketChannelHolder(coordinator, groupIdx);
         
+        sendFiles = ServerCoordinator.getSendFileRegistry(coordinator);
+        ServerCoordinator.writerStarted(coordinator);
+        
+        int i = dataToSend.length;
+        isPending = new boolean[i];
+        pendingPos = new int[i];
+        pendingBytes = new int[i];
+        pendingBuffs = new ByteBuffer[i][];
+        targets = new long[i][];
+        targetSent = new int[i][];
+        targetCount = new int[i];
+        pendingFile = new FileChannel[i];
+        fileTarget = new long[i];
+        filePosition = new long[i];
+        fileRemaining = new long[i];
+        while (--i>=0) {
+        	byte[] blob = Pipe.blob(dataToSend[i]);
+        	pendingBuffs[i] = new ByteBuffer[]{ByteBuffer.wrap(blob), ByteBuffer.wrap(blob)};
+        	targets[i] = new long[1];
+        	targetSent[i] = new int[1];
+        }
+    }
+    
+    @Override
+    public void shutdown() {
+        ServerCoordinator.writerStopped(coordinator);
     }
     
     @Override
     public void run() {
-       
-        //NOTE: TODO: BBB For the websockets,  add subscription support, eg N channels get the same message (should be in config already)
-             //need list of channels off the one Id  requires new schema update
 
-        boolean done = publish(writeToChannel);
-        assert(!done || Pipe.contentRemaining(dataToSend[activePipe])>=0);
-        
-        int c = dataToSend.length;     
-        
-        while (done && --c>= 0) {
-            while (done && Pipe.hasContentToRead(dataToSend[activePipe])) {
-                
-            	activeMessageId = Pipe.takeMsgIdx(dataToSend[activePipe]);
-            	
-         
-            	if ( (NetPayloadSchema.MSG_PLAIN_210 == activeMessageId) ||
-            	     (NetPayloadSchema.MSG_ENCRYPTED_200 == activeMessageId) ) {
-            		
-            		assert(Pipe.contentRemaining(dataToSend[activePipe])>=0);
-            		
-            		loadPayloadForXmit();            		
-            		done = publish(writeToChannel);
-            		
-            		assert(!done || Pipe.contentRemaining(dataToSend[activePipe])>=0);
-            		            		
-            	} else if (NetPayloadSchema.MSG_DISCONNECT_203 == activeMessageId) {
-            	
-            		final long channelId = Pipe.takeLong(dataToSend[activePipe]);
-            		closeChannel(socketHolder.get(channelId).getSocketChannel()); 
-            		
-                    Pipe.confirmLowLevelRead(dataToSend[activePipe], Pipe.sizeOf(dataToSend[activePipe], activeMessageId));
-                    Pipe.releaseReadLock(dataToSend[activePipe]);
-                    assert(Pipe.contentRemaining(dataToSend[activePipe])>=0);
-            		            		
-            	} else if (NetPayloadSchema.MSG_UPGRADE_207 == activeMessageId) {
-            		
-            		final long channelId = Pipe.takeLong(dataToSend[activePipe]);
-            		final int newRoute = Pipe.takeInt(dataToSend[activePipe]);
-            		
-            	    //set the pipe for any further communications
-                    ServerCoordinator.setTargetUpgradePipeIdx(coordinator, groupIdx, channelId, newRoute);
-                    
-                    Pipe.confirmLowLevelRead(dataToSend[activePipe], Pipe.sizeOf(dataToSend[activePipe], activeMessageId));
-                    Pipe.releaseReadLock(dataToSend[activePipe]);
-                    assert(Pipe.contentRemaining(dataToSend[activePipe])>=0);
-                                      
-            	} else if (activeMessageId < 0) {
-                    
-            		Pipe.confirmLowLevelRead(dataToSend[activePipe], Pipe.EOF_SIZE);
-                    Pipe.releaseReadLock(dataToSend[activePipe]);
-                    assert(Pipe.contentRemaining(dataToSend[activePipe])>=0);
-                    
-                    requestShutdown();
-                    return;
-                }
-            }
-
-            if (done) {
-                nextPipe();
-            }
-        }  
+        now = System.nanoTime();
+        int p = dataToSend.length;
+        while (--p >= 0) {
+        	if (isPending[p] && !publish(p)) {
+        		continue; //socket is not ready, other pipes need not wait for it
+        	}
+        	if (null!=pendingFile[p] && !transferFile(p)) {
+        		continue;
+        	}
+        	if (!processPipe(p)) {
+        		return;
+        	}
+        }
     }
 
-    private void nextPipe() {
-        if (--activePipe < 0) {
-            activePipe = dataToSend.length-1;
-        }
+    private boolean processPipe(final int p) {
+    	
+    	Pipe<NetPayloadSchema> pipe = dataToSend[p];
+    	while (!isPending[p] && null==pendingFile[p] && Pipe.hasContentToRead(pipe)) {
+    		
+    		int msgIdx = Pipe.takeMsgIdx(pipe);
+    		
+    		if ( (NetPayloadSchema.MSG_PLAIN_210 == msgIdx) ||
+    			 (NetPayloadSchema.MSG_ENCRYPTED_200 == msgIdx) ) {
+    			
+    			gatherPayloads(p, pipe, msgIdx);
+    			publish(p);
+    			
+    		} else if (NetPayloadSchema.MSG_BROADCAST_220 == msgIdx) {
+    			
+    			loadBroadcast(p, pipe, msgIdx);
+    			publish(p);
+    			
+    		} else if (NetPayloadSchema.MSG_SENDFILE_230 == msgIdx) {
+    			
+    			fileTarget[p] = Pipe.takeLong(pipe);
+    			pendingFile[p] = sendFiles.get(Pipe.takeInt(pipe));
+    			filePosition[p] = Pipe.takeLong(pipe);
+    			fileRemaining[p] = Pipe.takeLong(pipe);
+    			
+    			//nothing is held, the descriptor has been copied
+    			Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+    			Pipe.releaseReadLock(pipe);
+    			transferFile(p);
+    			
+    		} else if (NetPayloadSchema.MSG_DISCONNECT_203 == msgIdx) {
+    			
+    			final long channelId = Pipe.takeLong(pipe);
+    			ServerConnection connection = socketHolder.get(channelId);
+    			if (null!=connection) {//may already be gone when sent by ServerConnectionTimeoutStage
+    				connection.close();
+    			}
+    			
+    			Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+    			Pipe.releaseReadLock(pipe);
+    			assert(Pipe.contentRemaining(pipe)>=0);
+    			
+    		} else if (NetPayloadSchema.MSG_UPGRADE_207 == msgIdx) {
+    			
+    			final long channelId = Pipe.takeLong(pipe);
+    			final int newRoute = Pipe.takeInt(pipe);
+    			
+    			//set the pipe for any further communications
+    			ServerCoordinator.setTargetUpgradePipeIdx(coordinator, groupIdx, channelId, newRoute);
+    			
+    			Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+    			Pipe.releaseReadLock(pipe);
+    			assert(Pipe.contentRemaining(pipe)>=0);
+    			
+    		} else if (msgIdx < 0) {
+    			
+    			Pipe.confirmLowLevelRead(pipe, Pipe.EOF_SIZE);
+    			Pipe.releaseReadLock(pipe);
+    			assert(Pipe.contentRemaining(pipe)>=0);
+    			
+    			requestShutdown();
+    			return false;
+    		}
+    	}
+    	return true;
     }
 
-    
+    private static boolean isPayload(int msgIdx) {
+    	return (NetPayloadSchema.MSG_PLAIN_210 == msgIdx) || (NetPayloadSchema.MSG_ENCRYPTED_200 == msgIdx);
+    }
 
-    private void loadPayloadForXmit() {
+    /**
+     * Read this payload and every following payload already on the pipe for the same channel so they go out in
+     * one gathering write. The fragments are held, not released, until their bytes have been written.
+     */
+    private void gatherPayloads(final int p, Pipe<NetPayloadSchema> pipe, int msgIdx) {
         
-        Pipe<NetPayloadSchema> pipe = dataToSend[activePipe];
         final long channelId = Pipe.takeLong(pipe);
-        writeToChannel = socketHolder.get(channelId).getSocketChannel(); //ChannelId or SubscriptionId
- 
-        //byteVector is payload
-        int meta = Pipe.takeRingByteMetaData(pipe); //for string and byte array
+        int meta = Pipe.takeRingByteMetaData(pipe);
         int len = Pipe.takeRingByteLen(pipe);
+        final int pos = Pipe.bytePosition(meta, pipe, len);
+        Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+        Pipe.readNextWithoutReleasingReadLock(pipe);
+        int total = len;
         
-        writeBuffs= Pipe.wrappedReadingBuffers(pipe, meta, len);
-        writeDone = false;
-                
+        while (Pipe.hasContentToRead(pipe) && isPayload(Pipe.peekInt(pipe)) && channelId == Pipe.peekLong(pipe, 1)) {
+        	msgIdx = Pipe.takeMsgIdx(pipe);
+        	Pipe.takeLong(pipe);
+        	meta = Pipe.takeRingByteMetaData(pipe);
+        	len = Pipe.takeRingByteLen(pipe);
+        	int nextPos = Pipe.bytePosition(meta, pipe, len);
+        	assert(nextPos == (Pipe.blobMask(pipe) & (pos+total))) : "payloads must follow each other in the blob ring";
+        	Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+        	Pipe.readNextWithoutReleasingReadLock(pipe);
+        	total += len;
+        }
+        assert(total <= Pipe.blobMask(pipe)) : "held payloads can never be larger than the ring";
+        
+        targets[p][0] = channelId;
+        targetSent[p][0] = 0;
+        targetCount[p] = 1;
+        hold(p, pipe, pos, total);
     }
 
-    private boolean publish(SocketChannel channel) {
-        if (writeDone) {
-        	///logger.info("A");
-            //do nothing if already done 
-            return true;
-        } else {            
-            if (null!=channel && channel.isOpen()) { 
-            	//logger.info("B");
-            	return writeToChannel(channel);                
-            } else {          
-            	//logger.info("C");
-                //if channel is closed drop the data 
-                markDoneAndRelease();  
-                return true;
-            }
-        }
+    /**
+     * Read a broadcast and capture the members of its subscription list, the one payload is written to each.
+     * Members whose connection has closed are taken off the list.
+     */
+    private void loadBroadcast(final int p, Pipe<NetPayloadSchema> pipe, int msgIdx) {
+    	
+    	final int listId = Pipe.takeInt(pipe);
+    	int meta = Pipe.takeRingByteMetaData(pipe);
+    	int len = Pipe.takeRingByteLen(pipe);
+    	final int pos = Pipe.bytePosition(meta, pipe, len);
+    	Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+    	Pipe.readNextWithoutReleasingReadLock(pipe);
+    	
+    	targetCount[p] = 0;
+    	collector.pipeIdx = p;
+    	collector.closedCount = 0;
+    	ServerCoordinator.visitSubscription(coordinator, groupIdx, listId, collector);
+    	int c = collector.closedCount;
+    	while (--c>=0) {
+    		ServerCoordinator.unsubscribe(coordinator, groupIdx, listId, collector.closed[c]);
+    	}
+    	hold(p, pipe, pos, len);
     }
 
-    private boolean writeToChannel(SocketChannel channel) {
-        
-        try {                
-            
-        	channel.write(writeBuffs);
-                       
-        	if (writeBuffs[0].hasRemaining() || writeBuffs[1].hasRemaining()) {
-        		logger.warn("no room to write to channel");
-        		return false;        		
-        	} else {
-        	    markDoneAndRelease();
-        	    return true;
-        	}
-        } catch (IOException e) {
-            //unable to write to this socket, treat as closed
-            markDoneAndRelease();
-            logger.warn("unable to write to channel",e);
-            closeChannel(channel);
-            return true;
-        }
+    private void hold(final int p, Pipe<NetPayloadSchema> pipe, int pos, int total) {
+        isPending[p] = true;
+        pendingPos[p] = Pipe.blobMask(pipe) & pos;
+        pendingBytes[p] = total;
+    }
+
+    /**
+     * Point the views at the held payload starting from offset.
+     */
+    private static void setViews(ByteBuffer[] buffs, int ringSize, int start, int total, int offset) {
+    	int from = (start+offset) & (ringSize-1);
+    	int remaining = total-offset;
+    	int firstLen = Math.min(remaining, ringSize-from);
+    	buffs[0].clear();
+    	buffs[0].position(from);
+    	buffs[0].limit(from+firstLen);
+    	buffs[1].clear();
+    	buffs[1].limit(remaining-firstLen);
+    }
+
+    private class TargetCollector implements MemberHolderVisitor {
+    	int pipeIdx;
+    	long[] closed = new long[8]; //members found gone, removed once the visit has released the list
+    	int closedCount;
+
+    	@Override
+    	public void visit(long channelId) {
+    		if (null==socketHolder.getValid(channelId)) {
+    			if (closedCount == closed.length) {
+    				closed = Arrays.copyOf(closed, closedCount*2);
+    			}
+    			closed[closedCount++] = channelId;
+    			return;
+    		}
+    		int c = targetCount[pipeIdx];
+    		if (c == targets[pipeIdx].length) {
+    			//only grows when a list is larger than any seen before on this pipe
+    			targets[pipeIdx] = Arrays.copyOf(targets[pipeIdx], c*2);
+    			targetSent[pipeIdx] = Arrays.copyOf(targetSent[pipeIdx], c*2);
+    		}
+    		targets[pipeIdx][c] = channelId;
+    		targetSent[pipeIdx][c] = 0;
+    		targetCount[pipeIdx] = c+1;
+    	}
+
+    	@Override
+    	public void finished() {
+    	}
+    }
+
+    /**
+     * @return true if everything held for this pipe has been written or dropped
+     */
+    private boolean publish(final int p) {
+    	final int total = pendingBytes[p];
+    	final ByteBuffer[] buffs = pendingBuffs[p];
+    	final int ringSize = Pipe.blobMask(dataToSend[p])+1;
+    	final long[] channels = targets[p];
+    	final int[] sent = targetSent[p];
+    	boolean done = true;
+    	
+    	int t = targetCount[p];
+    	while (--t>=0) {
+    		if (sent[t] < total) {
+    			ServerConnection connection = socketHolder.get(channels[t]);
+    			SocketChannel channel = null==connection ? null : connection.getSocketChannel();
+    			if (null!=channel && channel.isOpen()) { 
+    				try {
+    					setViews(buffs, ringSize, pendingPos[p], total, sent[t]);
+    					int written = (int)channel.write(buffs);
+    					if (written>0) {
+    						sent[t] += written;
+    						ServerCoordinator.writeActivity(coordinator, groupIdx, channels[t], now);
+    					}
+    					done &= (sent[t] >= total);
+    					continue;
+    				} catch (IOException e) {
+    					//unable to write to this socket, treat as closed
+    					logger.warn("unable to write to channel",e);
+    					closeChannel(channel);
+    				}
+    			}
+    			//channel is closed so the data is dropped
+    			sent[t] = total;
+    		}
+    	}
+    	if (done) {
+    		markDoneAndRelease(p);
+    	}
+    	return done;
+    }
+
+    /**
+     * @return true if the file has been sent or dropped because the connection is gone
+     */
+    private boolean transferFile(final int p) {
+    	final FileChannel file = pendingFile[p];
+    	final long channelId = fileTarget[p];
+    	ServerConnection connection = socketHolder.get(channelId);
+    	SocketChannel channel = null==connection ? null : connection.getSocketChannel();
+    	if (null!=file && null!=channel && channel.isOpen()) {
+    		try {
+    			long sent = file.transferTo(filePosition[p], fileRemaining[p], channel);
+    			if (sent>0) {
+    				filePosition[p] += sent;
+    				fileRemaining[p] -= sent;
+    				ServerCoordinator.writeActivity(coordinator, groupIdx, channelId, now);
+    			} else if (filePosition[p] >= file.size()) {
+    				//file was truncated, the promised length can never be sent
+    				throw new IOException("file is shorter than the response length");
+    			}
+    			if (fileRemaining[p] > 0) {
+    				return false;
+    			}
+    		} catch (IOException e) {
+    			logger.warn("unable to send file to channel",e);
+    			closeChannel(channel);
+    		}
+    	}
+    	pendingFile[p] = null;
+    	return true;
     }
 
     private void closeChannel(SocketChannel channel) {
@@ -214,11 +399,11 @@ public class ServerSocketWriterStage extends PronghornStage {
         }
     }
 
-    private void markDoneAndRelease() {
+    private void markDoneAndRelease(final int p) {
     	
-        writeDone = true;
-        Pipe.confirmLowLevelRead(dataToSend[activePipe], Pipe.sizeOf(dataToSend[activePipe], activeMessageId));
-        Pipe.releaseReadLock(dataToSend[activePipe]);
+    	isPending[p] = false;
+    	targetCount[p] = 0;
+    	Pipe.releasePendingAsReadLock(dataToSend[p], pendingBytes[p]);
         
         //logger.info("done and release message {}",pipe);
     }
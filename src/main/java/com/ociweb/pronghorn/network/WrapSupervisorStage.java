@@ -12,7 +12,7 @@ import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 
 //consumes the sequence number in order and hold a pool entry for this connection
 //sends the data in order to the right pool entry for encryption to be applied down stream.
-//TODO: should add feature of subscriptions here due to it being before the encryption stage.
+//subscription payloads are not responses, they skip the ordering and go to the writer as one broadcast.
 public class WrapSupervisorStage extends PronghornStage { //AKA re-ordering stage
     
     private static Logger logger = LoggerFactory.getLogger(WrapSupervisorStage.class);
@@ -22,6 +22,23 @@ public class WrapSupervisorStage extends PronghornStage { //AKA re-ordering stag
         
         
     private int[]          expectedSquenceNos;
+    
+    //bounded reorder buffer, responses which arrive ahead of their turn are copied here so the pipe behind them keeps moving.
+    //kept in arrival order so the parts of one response always leave in the order they came. It holds at least everything
+    //the input pipes can hold together, so the response which is due can always be reached by parking what is ahead of it.
+    public final static int DEFAULT_MAX_PARKED = 32;
+    private final int      maxParked;
+    private int            parkedCount;
+    private long[]         parkedChannel;
+    private int[]          parkedSequence;
+    private int[]          parkedMsgId;
+    private int[]          parkedContext;
+    private int[]          parkedFileId;
+    private long[]         parkedPosition;
+    private long[]         parkedLength;
+    private byte[][]       parkedData;
+    private int[]          parkedDataLength;
+    private long           parkedFullCount;
 
     private final ServerCoordinator coordinator;
     
@@ -47,6 +64,9 @@ public class WrapSupervisorStage extends PronghornStage { //AKA re-ordering stag
      * 
      * Data arrives from random input pipes, but each message has a channel id and squence id.
      * Data is ordered by squence number and sent to the pipe from the pool belonging to that specific channel id
+     * Responses which arrive ahead of an earlier one for the same channel are parked, up to maxParked or what all
+     * the input pipes can hold if that is more, so one slow request does not hold up the responses of other
+     * connections queued behind it on the same input pipe.
      * 
      * 
      * @param graphManager
@@ -54,9 +74,18 @@ public class WrapSupervisorStage extends PronghornStage { //AKA re-ordering stag
      * @param coordinator
      */
     public WrapSupervisorStage(GraphManager graphManager, Pipe<ServerResponseSchema>[] inputPipes, Pipe<NetPayloadSchema>[] outgoingPipes, ServerCoordinator coordinator) {
+        this(graphManager, inputPipes, outgoingPipes, coordinator, DEFAULT_MAX_PARKED);
+    }
+    
+    /**
+     * @param maxParked responses which may be held back waiting for an earlier one on the same connection, raised to the
+     *        fragment count of all the input pipes together, when full the pipe waits instead
+     */
+    public WrapSupervisorStage(GraphManager graphManager, Pipe<ServerResponseSchema>[] inputPipes, Pipe<NetPayloadSchema>[] outgoingPipes, ServerCoordinator coordinator, int maxParked) {
         super(graphManager, inputPipes, outgoingPipes);
       
         this.dataToSend = inputPipes;
+        this.maxParked = Math.max(maxParked, inputCapacity(inputPipes));
         this.outgoingPipes = outgoingPipes;
         this.coordinator = coordinator;
         
@@ -66,19 +95,55 @@ public class WrapSupervisorStage extends PronghornStage { //AKA re-ordering stag
         	throw new UnsupportedOperationException("All output pipes must support variable length fields equal to or larger than all input pipes");
         }
         
-        this.maxOuputSize = Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_PLAIN_210) +
+        this.maxOuputSize = Math.max(Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_PLAIN_210),
+        		                     Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_SENDFILE_230)) +
         								Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_UPGRADE_207) +            
         								Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_DISCONNECT_203);
     }
 
 
+    //most fragments the input pipes can hold at once, each is at least the size of the smallest message
+    static int inputCapacity(Pipe<ServerResponseSchema>[] inputPipes) {
+    	int minSize = Math.min(Pipe.sizeOf(ServerResponseSchema.instance, ServerResponseSchema.MSG_TOCHANNEL_100),
+    			      Math.min(Pipe.sizeOf(ServerResponseSchema.instance, ServerResponseSchema.MSG_TOCHANNELFILE_300),
+    			    		   Pipe.sizeOf(ServerResponseSchema.instance, ServerResponseSchema.MSG_TOSUBSCRIPTION_200)));
+    	int total = 0;
+    	int i = inputPipes.length;
+    	while (--i>=0) {
+    		total += inputPipes[i].sizeOfSlabRing/minSize;
+    	}
+    	return total;
+    }
+    
+    public static int maxParked(WrapSupervisorStage that) {
+    	return that.maxParked;
+    }
+
 	@Override
     public void startup() {                
         expectedSquenceNos = new int[coordinator.channelBitsSize];
+        
+        parkedChannel = new long[maxParked];
+        parkedSequence = new int[maxParked];
+        parkedMsgId = new int[maxParked];
+        parkedContext = new int[maxParked];
+        parkedFileId = new int[maxParked];
+        parkedPosition = new long[maxParked];
+        parkedLength = new long[maxParked];
+        parkedDataLength = new int[maxParked];
+        parkedData = new byte[maxParked][];
+        int maxLength = maxVarLength(dataToSend);
+        int i = maxParked;
+        while (--i>=0) {
+        	parkedData[i] = new byte[maxLength];
+        }
     }
 	
 	@Override
 	public void shutdown() {
+		if (parkedFullCount>0) {
+			logger.info("reorder buffer of {} was full {} times", maxParked, parkedFullCount);
+		}
 		int i = outgoingPipes.length;
 		while (--i>=0) {
 			Pipe.spinBlockForRoom(outgoingPipes[i], Pipe.EOF_SIZE);  //TODO: this is a re-occuring pattern perhaps this belongs in the base class since every actor does it.
@@ -89,68 +154,65 @@ public class WrapSupervisorStage extends PronghornStage { //AKA re-ordering stag
     @Override
     public void run() {
 
+        drainParked();
+        
         int c = dataToSend.length;     
         
         while (--c>= 0) {
         	Pipe<ServerResponseSchema> sourcePipe = dataToSend[c];
             while (Pipe.hasContentToRead(sourcePipe)) {
                 
-                //peek to see if the next message should be blocked, eg out of order, if so skip to the next pipe
+                //peek to see if the next message should be held back, eg out of order, if so park it and keep going
                 int peekMsgId = Pipe.peekInt(sourcePipe, 0);
-                Pipe<NetPayloadSchema> myPipe = null;
-                int sequenceNo = 0;
-                if (peekMsgId>=0) {
-                    long channelId = Pipe.peekLong(sourcePipe, 1);
-                    sequenceNo = Pipe.peekInt(sourcePipe,  3);
-                     
-                    
-                    int expected = expectedSquenceNos[(int)(channelId & coordinator.channelBitsMask)];                
-                    
-                    
-                    //read the next non-blocked pipe, sequenceNo is never reset to zero
-                    //every number is used even if there is an exception upon write.
-                    boolean isBlocked = sequenceNo!=expected; 
-                    
-                    if (isBlocked) {
-                    	System.out.println("in use connection "+(int)(channelId & coordinator.channelBitsMask)+" must match expected "+expected+" and sequenceNo "+sequenceNo);
-                    	
-                    	logger.info("unable to send {} {} blocked", sequenceNo, expected);
-                    	
-                    	break;
-                    }
-                    //////////////////////
-                    //not blocked by sequence order so we must check if we are blocked by having write room.
-                    //////////////////////
-                    
-                    myPipe = outgoingPipes[(int)(channelId % poolMod)];
-                    
-                    if (!Pipe.hasRoomForWrite(myPipe, maxOuputSize)) {
-                    //	logger.info("unable to send data, output pipe is full {}",myPipe);
-                    	break;
-                    }
-                } else {
+                if (peekMsgId<0) {
                 	Pipe.takeMsgIdx(sourcePipe);
                 	Pipe.confirmLowLevelRead(sourcePipe, Pipe.EOF_SIZE);
                 	Pipe.releaseReadLock(sourcePipe);
                 	requestShutdown();
                 	return;
                 }
+                long channelId = Pipe.peekLong(sourcePipe, 1);
+                int sequenceNo = Pipe.peekInt(sourcePipe,  3);
+                
+                //sequenceNo is never reset to zero, every number is used even if there is an exception upon write.
+                //an earlier part of this same response may already be parked, if so this part must follow it.
+                //a subscription payload names a list not a connection so it is never held back.
+                boolean isBlocked = ServerResponseSchema.MSG_TOSUBSCRIPTION_200 != peekMsgId
+                		            && (sequenceNo!=expectedSquenceNos[(int)(channelId & coordinator.channelBitsMask)] 
+                		                || isParked(channelId, sequenceNo)); 
+                
+                if (isBlocked) {
+                	if (parkedCount<maxParked) {
+                		park(sourcePipe);
+                		continue;
+                	}
+                	parkedFullCount++;
+                	logger.trace("reorder buffer full, unable to send {} for {}", sequenceNo, channelId);
+                	break; //this pipe waits, the others may still have what we need
+                }
+                
+                //////////////////////
+                //not blocked by sequence order so we must check if we are blocked by having write room.
+                //////////////////////
+                
+                Pipe<NetPayloadSchema> myPipe = outgoingPipes[(int)(channelId % poolMod)];
+                
+                if (!Pipe.hasRoomForWrite(myPipe, maxOuputSize)) {
+                	break;
+                }
                 
                 ////////////////////////////////////////////////////
                 //we now know that this work should be done and that there is room to put it out on the pipe
                 //so do it already
                 ////////////////////////////////////////////////////
-                //the EOF message has already been taken so no need to check 
-                //all remaning messages start with the connection id
                 
                 final int activeMessageId = Pipe.takeMsgIdx(sourcePipe);
                 assert(peekMsgId == activeMessageId);
-                final long channelId = Pipe.takeLong(sourcePipe);
-                
+                Pipe.takeLong(sourcePipe);
                 
                 //most common case by far so we put it first
                 if (ServerResponseSchema.MSG_TOCHANNEL_100 == activeMessageId ) {
-                	                	             	  
+                	
                 	 int expSeq = Pipe.takeInt(sourcePipe); //sequence number
                 	 assert(sequenceNo == expSeq);
                 	 
@@ -159,62 +221,190 @@ public class WrapSupervisorStage extends PronghornStage { //AKA re-ordering stag
                      int len = Pipe.takeRingByteLen(sourcePipe);
                      int requestContext = Pipe.takeInt(sourcePipe); //high 1 upgrade, 1 close low 20 target pipe
                      
-                     
-                     /////////////
-                     //if needed write out the upgrade message
-                     ////////////
-                     
-                     if (0 != (UPGRADE_MASK & requestContext)) {
-                    	 
-                    	 //the next response should be routed to this new location
-                    	 int upgSize = Pipe.addMsgIdx(myPipe, NetPayloadSchema.MSG_UPGRADE_207);
-                    	 Pipe.addLongValue(channelId, myPipe);
-                    	 Pipe.addIntValue(UPGRADE_TARGET_PIPE_MASK & requestContext, myPipe);;
-                    	 Pipe.confirmLowLevelWrite(myPipe, upgSize);
-                    	 Pipe.publishWrites(myPipe);
-                    	 
-                     }
-                	                	
-                     /////////////
-                     //write out the content
-                     /////////////
-                                          
-                     int plainSize = Pipe.addMsgIdx(myPipe, NetPayloadSchema.MSG_PLAIN_210);
-                     Pipe.addLongValue(channelId, myPipe);
-                     Pipe.addByteArrayWithMask(myPipe, Pipe.blobMask(sourcePipe), len, Pipe.blob(sourcePipe), Pipe.bytePosition(meta, sourcePipe, len));
-                     Pipe.confirmLowLevelWrite(myPipe, plainSize);
-                     Pipe.publishWrites(myPipe);
-                     
-                     if (0 != (END_RESPONSE_MASK & requestContext)) { 
-                        //we have finished all the chunks for this request so the sequence number will now go up by one	
-                     	expectedSquenceNos[(int)(channelId & coordinator.channelBitsMask)]++;                     	
-                     }
-                                         
-                     
-                     //////////////
-                     //if needed write out the close connection message
-                     //////////////
-                     
-                     if (0 != (CLOSE_CONNECTION_MASK & requestContext)) { 
-                         
-                    	 int disSize = Pipe.addMsgIdx(myPipe, NetPayloadSchema.MSG_DISCONNECT_203);
-                    	 Pipe.addLongValue(channelId, myPipe);
-                    	 Pipe.confirmLowLevelWrite(myPipe, disSize);
-                    	 Pipe.publishWrites(myPipe);
-                    	 
-                     }                     
+                     publishPlain(myPipe, channelId, Pipe.blob(sourcePipe), Pipe.bytePosition(meta, sourcePipe, len), len, Pipe.blobMask(sourcePipe), requestContext);
                      
                      Pipe.confirmLowLevelRead(sourcePipe, Pipe.sizeOf(sourcePipe, ServerResponseSchema.MSG_TOCHANNEL_100));
                      Pipe.releaseReadLock(sourcePipe);
                 	
+                } else if (ServerResponseSchema.MSG_TOCHANNELFILE_300 == activeMessageId ) {
+                	
+                	int expSeq = Pipe.takeInt(sourcePipe); //sequence number
+                	assert(sequenceNo == expSeq);
+                	int fileId = Pipe.takeInt(sourcePipe);
+                	long position = Pipe.takeLong(sourcePipe);
+                	long length = Pipe.takeLong(sourcePipe);
+                	int requestContext = Pipe.takeInt(sourcePipe);
+                	
+                	publishFile(myPipe, channelId, fileId, position, length, requestContext);
+                	
+                	Pipe.confirmLowLevelRead(sourcePipe, Pipe.sizeOf(sourcePipe, ServerResponseSchema.MSG_TOCHANNELFILE_300));
+                	Pipe.releaseReadLock(sourcePipe);
                 	
                 } else if (ServerResponseSchema.MSG_TOSUBSCRIPTION_200 == activeMessageId ) {
                 	
-                	throw new UnsupportedOperationException();
+                	Pipe.takeInt(sourcePipe); //sequence number, not used for subscriptions
+                	int meta = Pipe.takeRingByteMetaData(sourcePipe);
+                	int len = Pipe.takeRingByteLen(sourcePipe);
+                	Pipe.takeInt(sourcePipe); //request context, a broadcast never upgrades or closes
+                	
+                	//channelId holds the subscription list, the writer sends this one copy to each member
+                	publishBroadcast(myPipe, (int)channelId, Pipe.blob(sourcePipe), Pipe.bytePosition(meta, sourcePipe, len), len, Pipe.blobMask(sourcePipe));
+                	
+                	Pipe.confirmLowLevelRead(sourcePipe, Pipe.sizeOf(sourcePipe, ServerResponseSchema.MSG_TOSUBSCRIPTION_200));
+                	Pipe.releaseReadLock(sourcePipe);
                 	
-                }    
+                }
+                
+                if (parkedCount>0) {
+                	drainParked(); //this response may have been the one they were waiting for
+                }
             }
         }  
     }
+
+    private boolean isParked(long channelId, int sequenceNo) {
+    	int i = parkedCount;
+    	while (--i>=0) {
+    		if (sequenceNo==parkedSequence[i] && channelId==parkedChannel[i]) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    private void park(Pipe<ServerResponseSchema> sourcePipe) {
+    	int p = parkedCount++;
+    	
+    	int msgId = Pipe.takeMsgIdx(sourcePipe);
+    	parkedMsgId[p] = msgId;
+    	parkedChannel[p] = Pipe.takeLong(sourcePipe);
+    	parkedSequence[p] = Pipe.takeInt(sourcePipe);
+    	
+    	if (ServerResponseSchema.MSG_TOCHANNEL_100 == msgId) {
+    		int meta = Pipe.takeRingByteMetaData(sourcePipe);
+    		int len = Pipe.takeRingByteLen(sourcePipe);
+    		Pipe.copyBytesFromToRing(Pipe.blob(sourcePipe), Pipe.bytePosition(meta, sourcePipe, len), Pipe.blobMask(sourcePipe), parkedData[p], 0, Integer.MAX_VALUE, len);
+    		parkedDataLength[p] = len;
+    	} else if (ServerResponseSchema.MSG_TOCHANNELFILE_300 == msgId) {
+    		parkedFileId[p] = Pipe.takeInt(sourcePipe);
+    		parkedPosition[p] = Pipe.takeLong(sourcePipe);
+    		parkedLength[p] = Pipe.takeLong(sourcePipe);
+    	} else {
+    		throw new UnsupportedOperationException();
+    	}
+    	parkedContext[p] = Pipe.takeInt(sourcePipe);
+    	
+    	Pipe.confirmLowLevelRead(sourcePipe, Pipe.sizeOf(sourcePipe, msgId));
+    	Pipe.releaseReadLock(sourcePipe);
+    }
+    
+    //sends every parked response whose turn has come, each send may make the turn of another.
+    private void drainParked() {
+    	int i = 0;
+    	while (i<parkedCount) {
+    		long channelId = parkedChannel[i];
+    		if (parkedSequence[i] != expectedSquenceNos[(int)(channelId & coordinator.channelBitsMask)]) {
+    			i++;
+    			continue;
+    		}
+    		Pipe<NetPayloadSchema> myPipe = outgoingPipes[(int)(channelId % poolMod)];
+    		if (!Pipe.hasRoomForWrite(myPipe, maxOuputSize)) {
+    			return; //later parts of this response are behind it so wait for room
+    		}
+    		
+    		if (ServerResponseSchema.MSG_TOCHANNEL_100 == parkedMsgId[i]) {
+    			publishPlain(myPipe, channelId, parkedData[i], 0, parkedDataLength[i], Integer.MAX_VALUE, parkedContext[i]);
+    		} else {
+    			publishFile(myPipe, channelId, parkedFileId[i], parkedPosition[i], parkedLength[i], parkedContext[i]);
+    		}
+    		removeParked(i);
+    		i = 0; //the expected sequence may have moved so earlier entries can now go
+    	}
+    }
+    
+    private void removeParked(int i) {
+    	int last = --parkedCount;
+    	byte[] data = parkedData[i];
+    	int len = last-i;
+    	System.arraycopy(parkedChannel, i+1, parkedChannel, i, len);
+    	System.arraycopy(parkedSequence, i+1, parkedSequence, i, len);
+    	System.arraycopy(parkedMsgId, i+1, parkedMsgId, i, len);
+    	System.arraycopy(parkedContext, i+1, parkedContext, i, len);
+    	System.arraycopy(parkedFileId, i+1, parkedFileId, i, len);
+    	System.arraycopy(parkedPosition, i+1, parkedPosition, i, len);
+    	System.arraycopy(parkedLength, i+1, parkedLength, i, len);
+    	System.arraycopy(parkedDataLength, i+1, parkedDataLength, i, len);
+    	System.arraycopy(parkedData, i+1, parkedData, i, len);
+    	parkedData[last] = data; //buffers are reused, never allocated again
+    }
+    
+    private void publishPlain(Pipe<NetPayloadSchema> myPipe, long channelId, byte[] backing, int position, int length, int mask, int requestContext) {
+    	publishUpgrade(myPipe, channelId, requestContext);
+    	
+    	int plainSize = Pipe.addMsgIdx(myPipe, NetPayloadSchema.MSG_PLAIN_210);
+    	Pipe.addLongValue(channelId, myPipe);
+    	Pipe.addByteArrayWithMask(myPipe, mask, length, backing, position);
+    	Pipe.confirmLowLevelWrite(myPipe, plainSize);
+    	Pipe.publishWrites(myPipe);
+    	
+    	publishEndOfResponse(myPipe, channelId, requestContext);
+    }
+    
+    private void publishBroadcast(Pipe<NetPayloadSchema> myPipe, int listId, byte[] backing, int position, int length, int mask) {
+    	int size = Pipe.addMsgIdx(myPipe, NetPayloadSchema.MSG_BROADCAST_220);
+    	Pipe.addIntValue(listId, myPipe);
+    	Pipe.addByteArrayWithMask(myPipe, mask, length, backing, position);
+    	Pipe.confirmLowLevelWrite(myPipe, size);
+    	Pipe.publishWrites(myPipe);
+    }
+    
+    private void publishFile(Pipe<NetPayloadSchema> myPipe, long channelId, int fileId, long position, long length, int requestContext) {
+    	publishUpgrade(myPipe, channelId, requestContext);
+    	
+    	//only the file reference is passed, the writer sends the bytes from the file
+    	int fileSize = Pipe.addMsgIdx(myPipe, NetPayloadSchema.MSG_SENDFILE_230);
+    	Pipe.addLongValue(channelId, myPipe);
+    	Pipe.addIntValue(fileId, myPipe);
+    	Pipe.addLongValue(position, myPipe);
+    	Pipe.addLongValue(length, myPipe);
+    	Pipe.confirmLowLevelWrite(myPipe, fileSize);
+    	Pipe.publishWrites(myPipe);
+    	
+    	publishEndOfResponse(myPipe, channelId, requestContext);
+    }
+
+    private static void publishUpgrade(Pipe<NetPayloadSchema> myPipe, final long channelId, int requestContext) {
+        if (0 != (UPGRADE_MASK & requestContext)) {
+        	 
+        	 //the next response should be routed to this new location
+        	 int upgSize = Pipe.addMsgIdx(myPipe, NetPayloadSchema.MSG_UPGRADE_207);
+        	 Pipe.addLongValue(channelId, myPipe);
+        	 Pipe.addIntValue(UPGRADE_TARGET_PIPE_MASK & requestContext, myPipe);;
+        	 Pipe.confirmLowLevelWrite(myPipe, upgSize);
+        	 Pipe.publishWrites(myPipe);
+        	 
+         }
+    }
+
+    private void publishEndOfResponse(Pipe<NetPayloadSchema> myPipe, final long channelId, int requestContext) {
+        if (0 != (END_RESPONSE_MASK & requestContext)) { 
+            //we have finished all the chunks for this request so the sequence number will now go up by one	
+         	expectedSquenceNos[(int)(channelId & coordinator.channelBitsMask)]++;                     	
+         }
+                             
+         
+         //////////////
+         //if needed write out the close connection message
+         //////////////
+         
+         if (0 != (CLOSE_CONNECTION_MASK & requestContext)) { 
+             
+        	 int disSize = Pipe.addMsgIdx(myPipe, NetPayloadSchema.MSG_DISCONNECT_203);
+        	 Pipe.addLongValue(channelId, myPipe);
+        	 Pipe.confirmLowLevelWrite(myPipe, disSize);
+        	 Pipe.publishWrites(myPipe);
+        	 
+         }
+    }
     
 }
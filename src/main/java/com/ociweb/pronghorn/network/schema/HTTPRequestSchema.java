@@ -8,11 +8,11 @@ import com.ociweb.pronghorn.pipe.RawDataSchema;
 public class HTTPRequestSchema extends MessageSchema {
 
     public final static FieldReferenceOffsetManager FROM = new FieldReferenceOffsetManager(
-            new int[]{0xc0400007,0x90800000,0x80000000,0x80000001,0xb8000000,0x80000002,0x80000003,0xc0200007,0xc0400007,0x90800000,0x80000000,0x80000001,0xb8000001,0x80000002,0x80000003,0xc0200007},
+            new int[]{0xc0400007,0x90800000,0x80000000,0x80000001,0xb8000000,0x80000002,0x80000003,0xc0200007,0xc0400007,0x90800000,0x80000000,0x80000001,0xb8000001,0x80000002,0x80000003,0xc0200007,0xc0400005,0x90800000,0x80000000,0xb8000002,0x80000003,0xc0200005},
             (short)0,
-            new String[]{"FileRequest","ChannelId","Sequence","Verb","ByteArray","Revision","RequestContext",null,"RestRequest","ChannelId","Sequence","Verb","Params","Revision","RequestContext",null},
-            new long[]{200, 21, 26, 23, 22, 24, 25, 0, 300, 21, 26, 23, 32, 24, 25, 0},
-            new String[]{"global",null,null,null,null,null,null,null,"global",null,null,null,null,null,null,null},
+            new String[]{"FileRequest","ChannelId","Sequence","Verb","ByteArray","Revision","RequestContext",null,"RestRequest","ChannelId","Sequence","Verb","Params","Revision","RequestContext",null,"RequestBody","ChannelId","Sequence","Payload","RequestContext",null},
+            new long[]{200, 21, 26, 23, 22, 24, 25, 0, 300, 21, 26, 23, 32, 24, 25, 0, 400, 21, 26, 27, 25, 0},
+            new String[]{"global",null,null,null,null,null,null,null,"global",null,null,null,null,null,null,null,"global",null,null,null,null,null},
             "httpRequest.xml",
             new long[]{2, 2, 0},
             new int[]{2, 2, 0});
@@ -36,6 +36,12 @@ public class HTTPRequestSchema extends MessageSchema {
     public static final int MSG_RESTREQUEST_300_FIELD_REVISION_24 = 0x00000007;
     public static final int MSG_RESTREQUEST_300_FIELD_REQUESTCONTEXT_25 = 0x00000008;
     
+    public static final int MSG_REQUESTBODY_400 = 0x00000010;
+    public static final int MSG_REQUESTBODY_400_FIELD_CHANNELID_21 = 0x00800001;
+    public static final int MSG_REQUESTBODY_400_FIELD_SEQUENCE_26 = 0x00000003;
+    public static final int MSG_REQUESTBODY_400_FIELD_PAYLOAD_27 = 0x01C00004;
+    public static final int MSG_REQUESTBODY_400_FIELD_REQUESTCONTEXT_25 = 0x00000006;
+    
     private HTTPRequestSchema() {
         super(FROM);
     }
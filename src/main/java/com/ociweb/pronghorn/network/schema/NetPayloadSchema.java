@@ -6,11 +6,11 @@ import com.ociweb.pronghorn.pipe.MessageSchema;
 public class NetPayloadSchema extends MessageSchema {
 
 	public final static FieldReferenceOffsetManager FROM = new FieldReferenceOffsetManager(
-		    new int[]{0xc0400003,0x90000000,0xb8000000,0xc0200003,0xc0400003,0x90000000,0xb8000001,0xc0200003,0xc0400002,0x90000000,0xc0200002,0xc0400003,0x90000000,0x80000000,0xc0200003},
+		    new int[]{0xc0400003,0x90000000,0xb8000000,0xc0200003,0xc0400003,0x90000000,0xb8000001,0xc0200003,0xc0400002,0x90000000,0xc0200002,0xc0400003,0x90000000,0x80000000,0xc0200003,0xc0400003,0x80000001,0xb8000002,0xc0200003,0xc0400005,0x90000000,0x80000002,0x90000001,0x90000002,0xc0200005},
 		    (short)0,
-		    new String[]{"Encrypted","ConnectionId","Payload",null,"Plain","ConnectionId","Payload",null,"Disconnect","ConnectionId",null,"Upgrade","ConnectionId","NewRoute",null},
-		    new long[]{200, 201, 203, 0, 210, 201, 204, 0, 203, 201, 0, 207, 201, 205, 0},
-		    new String[]{"global",null,null,null,"global",null,null,null,"global",null,null,"global",null,null,null},
+		    new String[]{"Encrypted","ConnectionId","Payload",null,"Plain","ConnectionId","Payload",null,"Disconnect","ConnectionId",null,"Upgrade","ConnectionId","NewRoute",null,"Broadcast","SubscriptionId","Payload",null,"SendFile","ConnectionId","FileId","Position","Length",null},
+		    new long[]{200, 201, 203, 0, 210, 201, 204, 0, 203, 201, 0, 207, 201, 205, 0, 220, 221, 206, 0, 230, 201, 231, 232, 233, 0},
+		    new String[]{"global",null,null,null,"global",null,null,null,"global",null,null,"global",null,null,null,"global",null,null,null,"global",null,null,null,null,null},
 		    "NetPayload.xml",
 		    new long[]{2, 2, 0},
 		    new int[]{2, 2, 0});
@@ -28,6 +28,14 @@ public class NetPayloadSchema extends MessageSchema {
     public static final int MSG_UPGRADE_207 = 0x0000000b;
     public static final int MSG_UPGRADE_207_FIELD_CONNECTIONID_201 = 0x00800001;
     public static final int MSG_UPGRADE_207_FIELD_NEWROUTE_205 = 0x00000003;
+    public static final int MSG_BROADCAST_220 = 0x0000000f;
+    public static final int MSG_BROADCAST_220_FIELD_SUBSCRIPTIONID_221 = 0x00000001;
+    public static final int MSG_BROADCAST_220_FIELD_PAYLOAD_206 = 0x01c00002;
+    public static final int MSG_SENDFILE_230 = 0x00000013;
+    public static final int MSG_SENDFILE_230_FIELD_CONNECTIONID_201 = 0x00800001;
+    public static final int MSG_SENDFILE_230_FIELD_FILEID_231 = 0x00000003;
+    public static final int MSG_SENDFILE_230_FIELD_POSITION_232 = 0x00800004;
+    public static final int MSG_SENDFILE_230_FIELD_LENGTH_233 = 0x00800006;
     
     protected NetPayloadSchema() {
         super(FROM);
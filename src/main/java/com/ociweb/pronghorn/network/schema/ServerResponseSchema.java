@@ -7,11 +7,11 @@ import com.ociweb.pronghorn.pipe.RawDataSchema;
 public class ServerResponseSchema extends MessageSchema {
 
 	public final static FieldReferenceOffsetManager FROM = new FieldReferenceOffsetManager(
-		    new int[]{0xc0400005,0x90800000,0x80000000,0xb8000000,0x80000001,0xc0200005,0xc0400005,0x90800001,0x80000000,0xb8000000,0x80000001,0xc0200005},
+		    new int[]{0xc0400005,0x90800000,0x80000000,0xb8000000,0x80000001,0xc0200005,0xc0400005,0x90800001,0x80000000,0xb8000000,0x80000001,0xc0200005,0xc0400007,0x90800000,0x80000000,0x80000002,0x90000002,0x90000003,0x80000001,0xc0200007},
 		    (short)0,
-		    new String[]{"ToChannel","ChannelId","SequenceNo","Payload","RequestContext",null,"ToSubscription","SubscriptionId","SequenceNo","Payload","RequestContext",null},
-		    new long[]{100, 21, 23, 25, 24, 0, 200, 22, 23, 25, 24, 0},
-		    new String[]{"global",null,null,null,null,null,"global",null,null,null,null,null},
+		    new String[]{"ToChannel","ChannelId","SequenceNo","Payload","RequestContext",null,"ToSubscription","SubscriptionId","SequenceNo","Payload","RequestContext",null,"ToChannelFile","ChannelId","SequenceNo","FileId","Position","Length","RequestContext",null},
+		    new long[]{100, 21, 23, 25, 24, 0, 200, 22, 23, 25, 24, 0, 300, 21, 23, 26, 27, 28, 24, 0},
+		    new String[]{"global",null,null,null,null,null,"global",null,null,null,null,null,"global",null,null,null,null,null,null,null},
 		    "serverResponse.xml",
 		    new long[]{2, 2, 0},
 		    new int[]{2, 2, 0});
@@ -29,6 +29,14 @@ public class ServerResponseSchema extends MessageSchema {
     public static final int MSG_TOSUBSCRIPTION_200_FIELD_SEQUENCENO_23 = 0x00000003;
     public static final int MSG_TOSUBSCRIPTION_200_FIELD_PAYLOAD_25 = 0x01c00004;
     public static final int MSG_TOSUBSCRIPTION_200_FIELD_REQUESTCONTEXT_24 = 0x00000006;
+    
+    public static final int MSG_TOCHANNELFILE_300 = 0x0000000c;
+    public static final int MSG_TOCHANNELFILE_300_FIELD_CHANNELID_21 = 0x00800001;
+    public static final int MSG_TOCHANNELFILE_300_FIELD_SEQUENCENO_23 = 0x00000003;
+    public static final int MSG_TOCHANNELFILE_300_FIELD_FILEID_26 = 0x00000004;
+    public static final int MSG_TOCHANNELFILE_300_FIELD_POSITION_27 = 0x00800005;
+    public static final int MSG_TOCHANNELFILE_300_FIELD_LENGTH_28 = 0x00800007;
+    public static final int MSG_TOCHANNELFILE_300_FIELD_REQUESTCONTEXT_24 = 0x00000009;
 
 
  
@@ -163,13 +163,12 @@ public abstract class PronghornStage {
         return pipes;
     }
     
+	/**
+	 * Called by the scheduler for stages with the SUPERVISE or DEAD_LETTER nota after run() has thrown and the
+	 * input pipes have been rolled back, before the next call to run(). Clear any state held for the fragment
+	 * which was in progress so it can be read again. See StageSupervisor.
+	 */
 	public void reset() {
-	    //TODO: build new error recovery into scheduler
-	    //      after exception position tail to re-read the same block an try again N times.
-	    //      after the N attempts skip over that block and continue
-	    //      after exception is caught and position is modified reset() is called before next run() call.
-	    
-	    
 	}
 	
 	
@@ -34,6 +34,7 @@ public class FileBlobReadStage extends PronghornStage {
         this.inputPathString = inputPathString;
         this.output = output;
         
+        GraphManager.addNota(graphManager, GraphManager.BLOCKING, GraphManager.BLOCKING, this);
     }
 
     @Override
@@ -0,0 +1,32 @@
+package com.ociweb.pronghorn.stage.monitor;
+
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.MessageSchema;
+
+public class StageMonitorSchema extends MessageSchema{
+	
+    public final static FieldReferenceOffsetManager FROM = new FieldReferenceOffsetManager(
+            new int[]{0xc0400007,0x90000000,0x80000000,0x90000001,0x90000002,0x90000003,0x90000004,0xc0200007},
+            (short)0,
+            new String[]{"StageStatSample","MS","StageId","RunCount","RunNS","MaxRunNS","WorkCount",null},
+            new long[]{100, 1, 2, 3, 4, 5, 6, 0},
+            new String[]{"global",null,null,null,null,null,null,null},
+            "stageMonitor.xml",
+            new long[]{2, 2, 0},
+            new int[]{2, 2, 0});
+    
+    public static final int MSG_STAGESTATSAMPLE_100 = 0x00000000;
+    public static final int MSG_STAGESTATSAMPLE_100_FIELD_MS_1 = 0x00800001;
+    public static final int MSG_STAGESTATSAMPLE_100_FIELD_STAGEID_2 = 0x00000003;
+    public static final int MSG_STAGESTATSAMPLE_100_FIELD_RUNCOUNT_3 = 0x00800004;
+    public static final int MSG_STAGESTATSAMPLE_100_FIELD_RUNNS_4 = 0x00800006;
+    public static final int MSG_STAGESTATSAMPLE_100_FIELD_MAXRUNNS_5 = 0x00800008;
+    public static final int MSG_STAGESTATSAMPLE_100_FIELD_WORKCOUNT_6 = 0x0080000A;
+
+    public static final StageMonitorSchema instance = new StageMonitorSchema();
+    
+    private StageMonitorSchema() {
+        super(FROM);
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.ociweb.pronghorn.stage.monitor;
+
+import static com.ociweb.pronghorn.stage.monitor.StageMonitorSchema.*;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Writes the run() statistics recorded by the scheduler for every stage in the graph.
+ * Should be scheduled with a SCHEDULE_RATE nota, each run writes as many samples as the pipe has room for
+ * and picks up where it left off on the next run.
+ */
+public class StageMonitorStage extends PronghornStage {
+
+	private final Pipe<StageMonitorSchema> output;
+	private final GraphManager gm;
+	private int nextStageId = 1;
+	
+	public StageMonitorStage(GraphManager gm, Pipe<StageMonitorSchema> output) {
+		super(gm, NONE, output);
+		this.output = output;
+		this.gm = gm;
+	}
+
+	@Override
+	public void startup() {
+	    PipeWriter.setPublishBatchSize(output, 0);//can not be done earlier 	    
+	}
+	
+	@Override
+	public void run() {
+		
+		int stageCount = GraphManager.countStages(gm);
+		int remaining = stageCount;
+		long now = System.currentTimeMillis();
+		
+		while (--remaining>=0) {
+			
+			if (nextStageId>stageCount) {
+				nextStageId = 1;
+			}
+			
+			if (null == GraphManager.getStage(gm, nextStageId) || 0 == GraphManager.getRunCount(gm, nextStageId)) {
+				nextStageId++;
+				continue;
+			}
+			
+			//if we can't write then do it again on the next cycle
+			if (!PipeWriter.tryWriteFragment(output, MSG_STAGESTATSAMPLE_100)) {
+				return;
+			}
+			
+			PipeWriter.writeLong(output, MSG_STAGESTATSAMPLE_100_FIELD_MS_1, now);
+			PipeWriter.writeInt(output, MSG_STAGESTATSAMPLE_100_FIELD_STAGEID_2, nextStageId);
+			PipeWriter.writeLong(output, MSG_STAGESTATSAMPLE_100_FIELD_RUNCOUNT_3, GraphManager.getRunCount(gm, nextStageId));
+			PipeWriter.writeLong(output, MSG_STAGESTATSAMPLE_100_FIELD_RUNNS_4, GraphManager.getRunTotalNS(gm, nextStageId));
+			PipeWriter.writeLong(output, MSG_STAGESTATSAMPLE_100_FIELD_MAXRUNNS_5, GraphManager.getRunMaxNS(gm, nextStageId));
+			PipeWriter.writeLong(output, MSG_STAGESTATSAMPLE_100_FIELD_WORKCOUNT_6, GraphManager.getRunWorkCount(gm, nextStageId));
+			PipeWriter.publishWrites(output);
+			
+			nextStageId++;
+		}
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+/**
+ * Binds the calling thread to a set of cpus. Implementations must never throw, a failure to pin only costs performance.
+ */
+public interface AffinityBackend {
+
+	/**
+	 * @return false if this backend can not work on the current platform
+	 */
+	boolean isAvailable();
+	
+	/**
+	 * Restrict the calling thread to the given cpu ids.
+	 * 
+	 * @return true if the thread was pinned
+	 */
+	boolean pinCurrentThread(int[] cpus);
+	
+}
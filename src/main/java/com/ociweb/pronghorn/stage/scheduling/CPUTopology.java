@@ -0,0 +1,209 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Which CPUs are online and which memory domain (NUMA node, or socket when nodes are not exposed) each belongs to.
+ *
+ * Discovered from /sys/devices/system on Linux. When that is not available every CPU reported by the runtime
+ * is placed in a single domain so placement still works, it just can not separate sockets.
+ */
+public class CPUTopology {
+
+	private static final Logger logger = LoggerFactory.getLogger(CPUTopology.class);
+
+	private static final String SYS_CPU  = "/sys/devices/system/cpu";
+	private static final String SYS_NODE = "/sys/devices/system/node";
+
+	public final int[] cpus;        //online cpu ids in ascending order
+	public final int[] domainOfCpu; //parallel to cpus
+	public final int domainCount;
+
+	public CPUTopology(int[] cpus, int[] domainOfCpu) {
+		if (cpus.length != domainOfCpu.length) {
+			throw new UnsupportedOperationException("Every cpu must have a domain");
+		}
+		this.cpus = cpus;
+		this.domainOfCpu = domainOfCpu;
+		int max = -1;
+		int i = domainOfCpu.length;
+		while (--i>=0) {
+			max = Math.max(max, domainOfCpu[i]);
+		}
+		this.domainCount = max+1;
+	}
+
+	private static CPUTopology discovered;
+
+	public static synchronized CPUTopology discover() {
+		if (null == discovered) {
+			discovered = readTopology();
+		}
+		return discovered;
+	}
+
+	private static CPUTopology readTopology() {
+		try {
+			String online = readLine(new File(SYS_CPU, "online"));
+			if (null != online) {
+				int[] cpus = parseCPUList(online);
+				int[] domains = new int[cpus.length];
+
+				if (!readNodeDomains(cpus, domains)) {
+					//no NUMA nodes exposed so fall back to the physical package of each cpu
+					int i = cpus.length;
+					while (--i>=0) {
+						String pkg = readLine(new File(SYS_CPU, "cpu"+cpus[i]+"/topology/physical_package_id"));
+						domains[i] = null==pkg ? 0 : Math.max(0, Integer.parseInt(pkg.trim()));
+					}
+				}
+				return new CPUTopology(cpus, domains);
+			}
+		} catch (IOException e) {
+			logger.debug("unable to read cpu topology", e);
+		} catch (NumberFormatException e) {
+			logger.debug("unable to parse cpu topology", e);
+		}
+		return singleDomain(Runtime.getRuntime().availableProcessors());
+	}
+
+	private static boolean readNodeDomains(int[] cpus, int[] domains) throws IOException {
+		File nodeRoot = new File(SYS_NODE);
+		String[] names = nodeRoot.list();
+		if (null == names) {
+			return false;
+		}
+		Arrays.fill(domains, -1);
+		int nodes = 0;
+		for(String name: names) {
+			if (name.startsWith("node") && name.length()>4 && Character.isDigit(name.charAt(4))) {
+				String list = readLine(new File(new File(nodeRoot, name), "cpulist"));
+				if (null!=list && list.trim().length()>0) {
+					int node = Integer.parseInt(name.substring(4));
+					for(int cpu: parseCPUList(list)) {
+						int idx = Arrays.binarySearch(cpus, cpu);
+						if (idx>=0) {
+							domains[idx] = node;
+						}
+					}
+					nodes++;
+				}
+			}
+		}
+		int i = domains.length;
+		while (--i>=0) {
+			if (domains[i]<0) {
+				domains[i] = 0;//offline or unknown node, keep it valid
+			}
+		}
+		return nodes>0;
+	}
+
+	public static CPUTopology singleDomain(int cpuCount) {
+		int[] cpus = new int[cpuCount];
+		int i = cpuCount;
+		while (--i>=0) {
+			cpus[i] = i;
+		}
+		return new CPUTopology(cpus, new int[cpuCount]);
+	}
+
+	/**
+	 * Parse the Linux cpu list format, eg "0-3,8,10-11", into sorted unique ids.
+	 */
+	public static int[] parseCPUList(String list) {
+		int[] result = new int[0];
+		String[] parts = list.trim().split(",");
+		for(String part: parts) {
+			part = part.trim();
+			if (part.length()==0) {
+				continue;
+			}
+			int dash = part.indexOf('-');
+			int first = Integer.parseInt(dash<0 ? part : part.substring(0, dash).trim());
+			int last = dash<0 ? first : Integer.parseInt(part.substring(dash+1).trim());
+			if (last<first) {
+				throw new NumberFormatException("Invalid cpu range "+part);
+			}
+			int base = result.length;
+			result = Arrays.copyOf(result, base+(last-first)+1);
+			for(int c=first; c<=last; c++) {
+				result[base++] = c;
+			}
+		}
+		Arrays.sort(result);
+		//remove duplicates
+		int unique = 0;
+		for(int i=0; i<result.length; i++) {
+			if (0==i || result[i]!=result[i-1]) {
+				result[unique++] = result[i];
+			}
+		}
+		return Arrays.copyOf(result, unique);
+	}
+
+	/**
+	 * Format cpu ids in the Linux cpu list format.
+	 */
+	public static String toCPUList(int[] cpus) {
+		StringBuilder builder = new StringBuilder();
+		int i = 0;
+		while (i<cpus.length) {
+			int first = cpus[i];
+			int last = first;
+			while (i+1<cpus.length && cpus[i+1]==last+1) {
+				last = cpus[++i];
+			}
+			if (builder.length()>0) {
+				builder.append(',');
+			}
+			builder.append(first);
+			if (last!=first) {
+				builder.append('-').append(last);
+			}
+			i++;
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @return the online cpus belonging to this domain
+	 */
+	public int[] cpusInDomain(int domain) {
+		int count = 0;
+		int i = cpus.length;
+		while (--i>=0) {
+			if (domainOfCpu[i]==domain) {
+				count++;
+			}
+		}
+		int[] result = new int[count];
+		i = cpus.length;
+		while (--i>=0) {
+			if (domainOfCpu[i]==domain) {
+				result[--count] = cpus[i];
+			}
+		}
+		return result;
+	}
+
+	private static String readLine(File file) throws IOException {
+		if (!file.canRead()) {
+			return null;
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			return reader.readLine();
+		} finally {
+			reader.close();
+		}
+	}
+
+}
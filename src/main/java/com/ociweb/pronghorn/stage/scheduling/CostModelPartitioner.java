@@ -0,0 +1,262 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.ociweb.pronghorn.pipe.MessageSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+/**
+ * Divides the stages of a graph into balanced groups, one for each thread, using a StageCostProfile.
+ *
+ * First the heaviest pipes are collapsed so their producer and consumer share a cluster, as long as the cluster
+ * stays under the per thread capacity and there are still more clusters than threads. The clusters are then
+ * packed largest first onto the least loaded thread. Finally single stages are moved between threads when that
+ * lowers the traffic crossing threads without exceeding capacity, or evens out the load with no added traffic.
+ */
+public class CostModelPartitioner {
+
+	//a thread may carry this share above the average load, as a shift, 1/8
+	private static final int SLACK_SHIFT = 3;
+	private static final int MAX_REFINE_PASSES = 4;
+
+	/**
+	 * @return stages for each thread, never more than targetThreadCount groups and no empty groups
+	 */
+	public static PronghornStage[][] partition(GraphManager gm, StageCostProfile profile, int targetThreadCount) {
+
+		PronghornStage[] stages = GraphManager.allStages(gm);
+		final int count = stages.length;
+		if (0 == count) {
+			return new PronghornStage[0][];
+		}
+
+		int maxStageId = 0;
+		int i = count;
+		while (--i>=0) {
+			maxStageId = Math.max(maxStageId, stages[i].stageId);
+		}
+		int[] stageIdToIndex = new int[maxStageId+1];
+		Arrays.fill(stageIdToIndex, -1);
+		long[] load = new long[count];
+		i = count;
+		while (--i>=0) {
+			stageIdToIndex[stages[i].stageId] = i;
+			load[i] = Math.max(1, StageCostProfile.stageLoad(profile, stages[i].stageId));
+		}
+
+		Pipe<MessageSchema>[] pipes = GraphManager.allPipes(gm);
+		int[] edgeFrom = new int[pipes.length];
+		int[] edgeTo = new int[pipes.length];
+		long[] edgeWeight = new long[pipes.length];
+		int edges = 0;
+		i = pipes.length;
+		while (--i>=0) {
+			int producerId = GraphManager.getRingProducerId(gm, pipes[i].id);
+			int consumerId = GraphManager.getRingConsumerId(gm, pipes[i].id);
+			if (producerId>=0 && consumerId>=0 && producerId<=maxStageId && consumerId<=maxStageId
+				&& stageIdToIndex[producerId]>=0 && stageIdToIndex[consumerId]>=0) {
+				edgeFrom[edges] = stageIdToIndex[producerId];
+				edgeTo[edges] = stageIdToIndex[consumerId];
+				edgeWeight[edges] = StageCostProfile.pipeBandwidth(profile, pipes[i].id);
+				edges++;
+			}
+		}
+
+		int bins = Math.max(1, Math.min(targetThreadCount, count));
+		int[] binOf = assign(load, Arrays.copyOf(edgeFrom, edges), Arrays.copyOf(edgeTo, edges), Arrays.copyOf(edgeWeight, edges), bins);
+
+		//build the groups, dropping any bin which ended up empty
+		int[] binSize = new int[bins];
+		i = count;
+		while (--i>=0) {
+			binSize[binOf[i]]++;
+		}
+		int nonEmpty = 0;
+		int[] binToGroup = new int[bins];
+		for(int b=0; b<bins; b++) {
+			binToGroup[b] = binSize[b]>0 ? nonEmpty++ : -1;
+		}
+		PronghornStage[][] groups = new PronghornStage[nonEmpty][];
+		for(int b=0; b<bins; b++) {
+			if (binToGroup[b]>=0) {
+				groups[binToGroup[b]] = new PronghornStage[binSize[b]];
+			}
+		}
+		int[] fill = new int[nonEmpty];
+		for(i=0; i<count; i++) {
+			int g = binToGroup[binOf[i]];
+			groups[g][fill[g]++] = stages[i];
+		}
+		return groups;
+	}
+
+	/**
+	 * Core of the partitioner, works only on indexes so it can be used and tested without a graph.
+	 *
+	 * @param load cost of each node
+	 * @param edgeFrom producer node of each edge
+	 * @param edgeTo consumer node of each edge
+	 * @param edgeWeight traffic on each edge
+	 * @param bins number of threads
+	 * @return bin for each node
+	 */
+	static int[] assign(final long[] load, int[] edgeFrom, int[] edgeTo, final long[] edgeWeight, int bins) {
+
+		final int count = load.length;
+		long total = 0;
+		int i = count;
+		while (--i>=0) {
+			total += load[i];
+		}
+		long average = (total+bins-1)/bins;
+		long capacity = average + (average>>SLACK_SHIFT);
+
+		//collapse the heaviest edges first, union find over the nodes
+		int[] parent = new int[count];
+		final long[] clusterLoad = Arrays.copyOf(load, count);
+		i = count;
+		while (--i>=0) {
+			parent[i] = i;
+		}
+		Integer[] edgeOrder = new Integer[edgeFrom.length];
+		i = edgeOrder.length;
+		while (--i>=0) {
+			edgeOrder[i] = i;
+		}
+		Arrays.sort(edgeOrder, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(edgeWeight[b], edgeWeight[a]);
+			}
+		});
+		int clusters = count;
+		for(int e=0; e<edgeOrder.length && clusters>bins; e++) {
+			int a = find(parent, edgeFrom[edgeOrder[e]]);
+			int b = find(parent, edgeTo[edgeOrder[e]]);
+			if (a!=b && clusterLoad[a]+clusterLoad[b]<=capacity) {
+				parent[b] = a;
+				clusterLoad[a] += clusterLoad[b];
+				clusters--;
+			}
+		}
+
+		//longest processing time first, each cluster goes to the least loaded bin
+		Integer[] roots = new Integer[clusters];
+		int r = 0;
+		for(i=0; i<count; i++) {
+			if (parent[i]==i) {
+				roots[r++] = i;
+			}
+		}
+		Arrays.sort(roots, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(clusterLoad[b], clusterLoad[a]);
+			}
+		});
+		long[] binLoad = new long[bins];
+		int[] binOfRoot = new int[count];
+		for(r=0; r<roots.length; r++) {
+			int best = 0;
+			int b = bins;
+			while (--b>=0) {
+				if (binLoad[b]<=binLoad[best]) {
+					best = b;
+				}
+			}
+			binOfRoot[roots[r]] = best;
+			binLoad[best] += clusterLoad[roots[r]];
+		}
+		int[] binOf = new int[count];
+		int[] binCount = new int[bins];
+		i = count;
+		while (--i>=0) {
+			binOf[i] = binOfRoot[find(parent, i)];
+			binCount[binOf[i]]++;
+		}
+
+		refine(load, edgeFrom, edgeTo, edgeWeight, binOf, binLoad, binCount, capacity);
+		return binOf;
+	}
+
+	private static void refine(long[] load, int[] edgeFrom, int[] edgeTo, long[] edgeWeight,
+			                   int[] binOf, long[] binLoad, int[] binCount, long capacity) {
+
+		final int count = load.length;
+		final int bins = binLoad.length;
+
+		//adjacency lists of edge indexes in compressed form
+		int[] adjStart = new int[count+1];
+		for(int e=0; e<edgeFrom.length; e++) {
+			adjStart[edgeFrom[e]+1]++;
+			adjStart[edgeTo[e]+1]++;
+		}
+		for(int i=0; i<count; i++) {
+			adjStart[i+1] += adjStart[i];
+		}
+		int[] adj = new int[adjStart[count]];
+		int[] fill = Arrays.copyOf(adjStart, count);
+		for(int e=0; e<edgeFrom.length; e++) {
+			adj[fill[edgeFrom[e]]++] = e;
+			adj[fill[edgeTo[e]]++] = e;
+		}
+
+		long[] conn = new long[bins];
+		int pass = MAX_REFINE_PASSES;
+		boolean moved = true;
+		while (moved && --pass>=0) {
+			moved = false;
+			for(int v=0; v<count; v++) {
+				int from = binOf[v];
+				if (binCount[from]<=1) {
+					continue;//never empty a thread
+				}
+
+				Arrays.fill(conn, 0);
+				for(int k=adjStart[v]; k<adjStart[v+1]; k++) {
+					int e = adj[k];
+					int other = edgeFrom[e]==v ? edgeTo[e] : edgeFrom[e];
+					if (other!=v) {
+						conn[binOf[other]] += edgeWeight[e];
+					}
+				}
+
+				int best = -1;
+				long bestGain = 0;
+				int b = bins;
+				while (--b>=0) {
+					if (b!=from) {
+						long after = binLoad[b]+load[v];
+						long gain = conn[b]-conn[from];
+						boolean fits = after<=capacity;
+						boolean balances = after<binLoad[from];
+						if ((gain>0 && (fits || balances) && (gain>bestGain || best<0))
+							|| (0==gain && balances && best<0)) {
+							best = b;
+							bestGain = gain;
+						}
+					}
+				}
+				if (best>=0) {
+					binOf[v] = best;
+					binLoad[from] -= load[v];
+					binLoad[best] += load[v];
+					binCount[from]--;
+					binCount[best]++;
+					moved = true;
+				}
+			}
+		}
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i]!=i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+}
@@ -19,7 +19,7 @@ import com.ociweb.pronghorn.stage.PronghornStage;
 
 public class FixedThreadsScheduler extends StageScheduler {
 
-	public class JoinFirstComparator implements Comparator<Pipe> {
+	public static class JoinFirstComparator implements Comparator<Pipe> {
 
 		private final GraphManager graphManager;
 		public JoinFirstComparator(GraphManager graphManager) {
@@ -56,15 +56,37 @@ public class FixedThreadsScheduler extends StageScheduler {
 	}
 
 	private int threadCount;
-	private final IntHashTable rootsTable;
 	private ExecutorService executorService;
 	private volatile Throwable firstException;//will remain null if nothing is wrong
 	private static final Logger logger = LoggerFactory.getLogger(FixedThreadsScheduler.class);
 	private NonThreadScheduler[] ntsArray;
+	private int[][] coreSets;//cpus for each thread, null when not pinned
 	
 	public FixedThreadsScheduler(GraphManager graphManager, int targetThreadCount) {
 		super(graphManager);
 		
+		PronghornStage[][] groups = joinFirstGroups(graphManager, targetThreadCount);
+		threadCount = groups.length;
+	    
+	    createSchedulers(graphManager, groups);
+	    
+	    groups=null;
+	    
+	    
+	    //TODO: build dot file? ///////////////////////////////////////
+	    //GraphManager.writeAsDOT(graphManager, System.out);
+	    
+	    //clean up now before we begin.
+		System.gc();
+		
+	}
+
+	/**
+	 * Join stages along their pipes, shortest pipes first, until only targetThreadCount groups remain.
+	 * Each group is in pipe order and has its THREAD_GROUP nota set. Other schedulers may call this
+	 * to start from the same assignment without building a FixedThreadsScheduler.
+	 */
+	static PronghornStage[][] joinFirstGroups(GraphManager graphManager, int targetThreadCount) {
 		
 	    final Comparator<? super Pipe> joinFirstComparator = new JoinFirstComparator(graphManager);
 	    //created sorted list of pipes by those that should have there stages combined first.
@@ -75,32 +97,62 @@ public class FixedThreadsScheduler extends StageScheduler {
 	    int totalThreads = GraphManager.countStages(graphManager);  
 	  
 	    //must add 1 for the tree of roots also adding 1 more to make hash more efficient.
-	    rootsTable = new IntHashTable(2 + (int)Math.ceil(Math.log(totalThreads)/Math.log(2)));
+	    IntHashTable rootsTable = new IntHashTable(2 + (int)Math.ceil(Math.log(totalThreads)/Math.log(2)));
 	    
 	    int rootCounter = totalThreads+1; //counter for root ids, must not collide with stageIds so we start above that point.
 	   
-	    rootCounter = hierarchicalClassifier(graphManager, targetThreadCount, pipes, totalThreads, rootCounter);    
+	    rootCounter = hierarchicalClassifier(graphManager, targetThreadCount, pipes, totalThreads, rootCounter, rootsTable);    
 	    
 
-	    int[] rootMemberCounter = buildCountOfStagesForEachThread(graphManager, rootCounter);	    
+	    int[] rootMemberCounter = buildCountOfStagesForEachThread(graphManager, rootCounter, rootsTable);	    
 
 	    
-	    PronghornStage[][] stageArrays = buildOrderedArraysOfStages(graphManager, rootCounter, rootMemberCounter);
-	    
-	    createSchedulers(graphManager, stageArrays);
-	    
-	    stageArrays=null;
-	    
+	    PronghornStage[][] stageArrays = buildOrderedArraysOfStages(graphManager, rootCounter, rootMemberCounter, rootsTable);
 	    
-	    //TODO: build dot file? ///////////////////////////////////////
-	    //GraphManager.writeAsDOT(graphManager, System.out);
-	    
-	    //clean up now before we begin.
-		System.gc();
+	    //keep only the roots which have members
+	    int count = 0;
+	    int k = stageArrays.length;
+	    while (--k >= 0) {
+	    	if (null!=stageArrays[k]) {
+	    		count++;
+	    	}
+	    }
+	    PronghornStage[][] groups = new PronghornStage[count][];
+	    k = stageArrays.length;
+	    while (--k >= 0) {
+	    	if (null!=stageArrays[k]) {
+	    		groups[--count] = stageArrays[k];
+	    	}
+	    }
+	    return groups;
+	}
+
+	/**
+	 * Partition using measured or declared costs instead of joining along pipes, see CostModelPartitioner.
+	 * Pass StageCostProfile.capture() of an instrumented run, or a profile loaded from an earlier one, to get
+	 * targetThreadCount evenly loaded threads.
+	 */
+	public FixedThreadsScheduler(GraphManager graphManager, int targetThreadCount, StageCostProfile profile) {
+		super(graphManager);
+		
+		PronghornStage[][] groups = CostModelPartitioner.partition(graphManager, profile, targetThreadCount);
+		threadCount = groups.length;
+		
+		int g = groups.length;
+		while (--g>=0) {
+			int s = groups[g].length;
+			while (--s>=0) {
+				GraphManager.addNota(graphManager, GraphManager.THREAD_GROUP, g, groups[g][s]);
+			}
+		}
+		
+		createSchedulers(graphManager, groups);
+		//groups are no longer built in pipe order so they must be ordered for us
+		setOrdering(this, StageOrdering.PRODUCER_FIRST);
 		
 	}
 
-	private int hierarchicalClassifier(GraphManager graphManager, int targetThreadCount, Pipe[] pipes, int totalThreads, int rootCounter) {
+	private static int hierarchicalClassifier(GraphManager graphManager, int targetThreadCount, Pipe[] pipes, int totalThreads, int rootCounter, IntHashTable rootsTable) {
 		//logger.debug("beginning threads {}",totalThreads);
 		//loop over pipes once and stop early if total threads is smaller than or matches the target thread count goal
 	    int i = pipes.length;
@@ -137,12 +189,11 @@ public class FixedThreadsScheduler extends StageScheduler {
 	    		//else nothing already combined
 	    	}
 	    }
-	    threadCount = totalThreads;
-	    //logger.debug("Threads Requested: {} Threads Used: {}",targetThreadCount,threadCount);
+	    //logger.debug("Threads Requested: {} Threads Used: {}",targetThreadCount,totalThreads);
 		return rootCounter;
 	}
 
-	private int[] buildCountOfStagesForEachThread(GraphManager graphManager, int rootCounter) {
+	private static int[] buildCountOfStagesForEachThread(GraphManager graphManager, int rootCounter, IntHashTable rootsTable) {
 		
 	    int[] rootMemberCounter = new int[rootCounter+1]; //TODO: keep this for later??
 	    int countStages = GraphManager.countStages(graphManager);
@@ -161,7 +212,7 @@ public class FixedThreadsScheduler extends StageScheduler {
 		return rootMemberCounter;
 	}
 
-	private PronghornStage[][] buildOrderedArraysOfStages(GraphManager graphManager, int rootCounter, int[] rootMemberCounter) {
+	private static PronghornStage[][] buildOrderedArraysOfStages(GraphManager graphManager, int rootCounter, int[] rootMemberCounter, IntHashTable rootsTable) {
 		int stages;
 		PronghornStage[][] stageArrays = new PronghornStage[rootCounter+1][];
 	    	    
@@ -237,21 +288,52 @@ public class FixedThreadsScheduler extends StageScheduler {
 
 	private void createSchedulers(GraphManager graphManager, PronghornStage[][] stageArrays) {
 	
-		/////////////
-	    //for each array of stages create a scheduler
-	    ///////////// 
-	    ntsArray = new NonThreadScheduler[threadCount];
+	    PronghornStage[][] groups = new PronghornStage[threadCount][];
 	
 	    int k = stageArrays.length;
 	    int ntsIdx = 0;
 	    while (--k >= 0) {
 	    	if (null!=stageArrays[k]) {
-	    		
-	    		//System.err.println("NonThreadScheduler for "+Arrays.toString(stageArrays[k]) );
-	    		
-	    		ntsArray[ntsIdx++]=new NonThreadScheduler(graphManager, stageArrays[k]);	    		     
+	    		groups[ntsIdx++] = stageArrays[k];
 	    	}
 	    }
+	    ntsArray = schedulers(graphManager, groups);
+	    
+	    coreSets = ThreadPlacement.isPlacementRequested(graphManager) ?
+	    		   ThreadPlacement.plan(graphManager, groups, CPUTopology.discover()) :
+	    	       new int[threadCount][];
+	}
+
+	/**
+	 * One NonThreadScheduler for each group, in the same order.
+	 */
+	static NonThreadScheduler[] schedulers(GraphManager graphManager, PronghornStage[][] groups) {
+		
+		/////////////
+	    //for each array of stages create a scheduler
+	    ///////////// 
+		NonThreadScheduler[] result = new NonThreadScheduler[groups.length];
+		int i = groups.length;
+		while (--i >= 0) {
+			//System.err.println("NonThreadScheduler for "+Arrays.toString(groups[i]) );
+			NonThreadScheduler nts = new NonThreadScheduler(graphManager, groups[i]);
+			if (hasNota(graphManager, groups[i], GraphManager.SELECT_IDLE)) {
+				//a stage here polls a selector, wait in the kernel on it rather than parking
+				NonThreadScheduler.setIdleStrategy(nts, new SelectorIdleStrategy());
+			}
+			result[i] = nts;
+		}
+		return result;
+	}
+
+	private static boolean hasNota(GraphManager graphManager, PronghornStage[] stages, String key) {
+		int i = stages.length;
+		while (--i>=0) {
+			if (null!=stages[i] && null!=GraphManager.getNota(graphManager, stages[i], key, null)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	private static void add(PronghornStage[] pronghornStages, PronghornStage stage, final int root, final GraphManager graphManager, final IntHashTable rootsTable) {
@@ -286,6 +368,16 @@ public class FixedThreadsScheduler extends StageScheduler {
 		return rootId(IntHashTable.getItem(hashTable, id), hashTable);
 	}
 
+	/**
+	 * Select the order each thread visits its stages, see StageOrdering. Must be called before startup.
+	 */
+	public static void setOrdering(FixedThreadsScheduler that, int mode) {
+		int i = that.threadCount;
+		while (--i>=0) {
+			NonThreadScheduler.setOrdering(that.ntsArray[i], mode);
+		}
+	}
+	
 	@Override
 	public void startup() {
 				
@@ -297,7 +389,7 @@ public class FixedThreadsScheduler extends StageScheduler {
 		
 		int i = threadCount;
 		while (--i>=0) {
-			executorService.execute(buildRunnable(allStagesLatch,ntsArray[i]));			
+			executorService.execute(buildRunnable(allStagesLatch,ntsArray[i],coreSets[i]));			
 		}		
 		
 		//force wait for all stages to complete startup before this method returns.
@@ -310,7 +402,7 @@ public class FixedThreadsScheduler extends StageScheduler {
 		
 	}
 
-	private Runnable buildRunnable(final CyclicBarrier allStagesLatch, final NonThreadScheduler nts) {
+	private Runnable buildRunnable(final CyclicBarrier allStagesLatch, final NonThreadScheduler nts, final int[] cpus) {
 		assert(null!=allStagesLatch);
 		assert(null!=nts);
 		
@@ -319,6 +411,8 @@ public class FixedThreadsScheduler extends StageScheduler {
 			@Override
 			public void run() {
 				
+				//pin before startup so stage allocations are made on the memory domain of these cpus
+				ThreadPlacement.pinCurrentThread(cpus);
 				nts.startup();
 				
 				try {
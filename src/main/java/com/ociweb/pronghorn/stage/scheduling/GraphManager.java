@@ -8,6 +8,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,20 +19,71 @@ import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeConfig;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.monitor.RingBufferMonitorStage;
+import com.ociweb.pronghorn.stage.monitor.StageMonitorSchema;
+import com.ociweb.pronghorn.stage.monitor.StageMonitorStage;
 import com.ociweb.pronghorn.util.Appendables;
 
 public class GraphManager {
 	
 	private static final String CHECK_GRAPH_CONSTRUCTION = "Check graph construction";
 
-    private class GraphManagerStageStateData {
-		private Object lock = new Object();	
-		private byte[] stageStateArray = new byte[0];
+    /**
+     * State of every stage, each state may only move forward so transitions are made with CAS and never need a lock.
+     * Storage grows by adding fixed size chunks, existing chunks are never copied so no transition can be lost
+     * while new stages are registered.
+     */
+    private static class GraphManagerStageStateData {
+		private final Object growLock = new Object();//only held while adding chunks
+		private volatile AtomicIntegerArray[] chunks = new AtomicIntegerArray[0];
 		
-		public final static byte STAGE_NEW = 0;
-		public final static byte STAGE_STARTED = 1;
-		public final static byte STAGE_STOPPING = 2;
-		public final static byte STAGE_TERMINATED = 3;
+		private final static int CHUNK_BITS = 8;
+		private final static int CHUNK_MASK = (1<<CHUNK_BITS)-1;
+		
+		public final static int STAGE_NEW = 0;
+		public final static int STAGE_STARTING = 1;
+		public final static int STAGE_STARTED = 2;
+		public final static int STAGE_STOPPING = 3;
+		public final static int STAGE_TERMINATED = 4;
+		
+		private static int get(GraphManagerStageStateData data, int stageId) {
+			AtomicIntegerArray[] local = data.chunks;
+			int c = stageId>>CHUNK_BITS;
+			return c<local.length ? local[c].get(stageId&CHUNK_MASK) : STAGE_NEW;
+		}
+		
+		private static AtomicIntegerArray chunk(GraphManagerStageStateData data, int stageId) {
+			int c = stageId>>CHUNK_BITS;
+			AtomicIntegerArray[] local = data.chunks;
+			if (c>=local.length) {
+				synchronized(data.growLock) {
+					local = data.chunks;
+					if (c>=local.length) {
+						AtomicIntegerArray[] grown = Arrays.copyOf(local, c+1);
+						for(int i=local.length; i<grown.length; i++) {
+							grown[i] = new AtomicIntegerArray(1<<CHUNK_BITS);
+						}
+						data.chunks = local = grown;
+					}
+				}
+			}
+			return local[c];
+		}
+		
+		/**
+		 * @return true if this call moved the stage to the new state, false if it was already there or beyond
+		 */
+		private static boolean advance(GraphManagerStageStateData data, int stageId, int newState) {
+			AtomicIntegerArray states = chunk(data, stageId);
+			int idx = stageId&CHUNK_MASK;
+			int current;
+			do {
+				current = states.get(idx);
+				if (current>=newState) {
+					return false;
+				}
+			} while (!states.compareAndSet(idx, current, newState));
+			return true;
+		}
 		
 	}
 	
@@ -44,6 +96,13 @@ public class GraphManager {
 
 	public final static String UNSCHEDULED   = "UNSCHEDULED";//new nota for stages that should never get a thread (experimental)
 	public final static String THREAD_GROUP  = "THREAD_GROUP";   //new nota for stages that do not give threads back (experimental)
+	public final static String CORE_SET      = "CORE_SET";   //cpu list such as "0-3" for the thread running this stage, or AUTO_CORE_SET
+	public final static String AUTO_CORE_SET = "AUTO";       //value for CORE_SET, scheduler picks cpus keeping connected threads on the same memory domain
+	public final static String BLOCKING      = "BLOCKING";   //run() may block its thread on I/O or a wait, schedulers should not share the thread with other stages
+	public final static String STAGE_COST    = "STAGE_COST"; //relative load of this stage when scheduled continuously, used by CostModelPartitioner
+	public final static String SUPERVISE     = "SUPERVISE";  //retries after run() throws before the failing input fragment is skipped, see StageSupervisor
+	public final static String SELECT_IDLE   = "SELECT_IDLE";//stage polls a Selector, FixedThreadsScheduler idles its thread inside select(), see SelectorIdleStrategy
+	public final static String DEAD_LETTER   = "DEAD_LETTER";//RawDataSchema pipe which receives fragments skipped by StageSupervisor, implies SUPERVISE
 	
 	
 	private final static int INIT_RINGS = 32;
@@ -94,6 +153,16 @@ public class GraphManager {
 	
 	private boolean enableMutation = true;
 	
+	//per stage run() statistics indexed by stageId, only allocated when instrumentation is enabled.
+	//Each stage is run by one thread at a time so these are written without locks, readers may see slightly stale values.
+	private long[] stageRunCount;
+	private long[] stageRunNS;
+	private long[] stageRunMaxNS;
+	private long[] stageWorkCount;
+	
+	//idle strategy of the thread running each stage, indexed by stageId, used by producers to wake a parked consumer
+	private volatile IdleStrategy[] stageIdToIdle = new IdleStrategy[0];
+	
 	public GraphManager() {
 		Arrays.fill(ringIdToStages, -1);
 		Arrays.fill(stageIdToInputsBeginIdx, -1);
@@ -409,19 +478,6 @@ public class GraphManager {
 		return result;
 	}	
 	
-	private static byte[] setValue(byte[] target, int idx, final byte value) {		
-		
-		byte[] result = target;
-		if (idx>=target.length) {
-			int limit = (1+idx)*2;
-			result = Arrays.copyOf(target, limit); //double the array
-			Arrays.fill(result, target.length, limit, (byte)-1);
-		}
-		
-		result[idx] = value;
-		return result;
-	}
-	
 
 	public static void register(GraphManager gm, PronghornStage stage, Pipe[] inputs, Pipe[] outputs) {
 		
@@ -631,28 +687,39 @@ public class GraphManager {
 	}
 	
 	private static void setStateToNew(GraphManager gm, int stageId) {
-		synchronized(gm.stageStateData.lock) {
-			gm.stageStateData.stageStateArray = setValue(gm.stageStateData.stageStateArray, stageId, GraphManagerStageStateData.STAGE_NEW);
-		}
+		GraphManagerStageStateData.chunk(gm.stageStateData, stageId).set(stageId&GraphManagerStageStateData.CHUNK_MASK, GraphManagerStageStateData.STAGE_NEW);
+	}
+	
+	/**
+	 * Claim a new stage for startup, only one caller will ever get true for each stage.
+	 */
+	public static boolean setStateToStarting(GraphManager gm, int stageId) {
+		return GraphManagerStageStateData.chunk(gm.stageStateData, stageId).compareAndSet(stageId&GraphManagerStageStateData.CHUNK_MASK, 
+				                                                                    GraphManagerStageStateData.STAGE_NEW, GraphManagerStageStateData.STAGE_STARTING);
+	}
+	
+	/**
+	 * Return a terminated stage to new so it can be started again, only one caller will ever get true for each termination.
+	 */
+	public static boolean resetTerminatedState(GraphManager gm, int stageId) {
+		return GraphManagerStageStateData.chunk(gm.stageStateData, stageId).compareAndSet(stageId&GraphManagerStageStateData.CHUNK_MASK, 
+				                                                                    GraphManagerStageStateData.STAGE_TERMINATED, GraphManagerStageStateData.STAGE_NEW);
 	}
 	
 	public static void setStateToStopping(GraphManager gm, int stageId) {
-		synchronized(gm.stageStateData.lock) {
-			gm.stageStateData.stageStateArray = setValue(gm.stageStateData.stageStateArray, stageId, GraphManagerStageStateData.STAGE_STOPPING);
-		}
+		GraphManagerStageStateData.advance(gm.stageStateData, stageId, GraphManagerStageStateData.STAGE_STOPPING);
 	}
 
+	/**
+	 * Has no effect if shutdown was requested while the stage was starting up, that request is kept.
+	 */
 	public static void setStateToStarted(GraphManager gm, int stageId) {
-		synchronized(gm.stageStateData.lock) {
-			gm.stageStateData.stageStateArray = setValue(gm.stageStateData.stageStateArray, stageId, GraphManagerStageStateData.STAGE_STARTED);
-		}
+		GraphManagerStageStateData.advance(gm.stageStateData, stageId, GraphManagerStageStateData.STAGE_STARTED);
 	}
 	
 	public static void setStateToShutdown(GraphManager gm, int stageId) {
-		synchronized(gm.stageStateData.lock) {
-			gm.stageStateData.stageStateArray = setValue(gm.stageStateData.stageStateArray, stageId, GraphManagerStageStateData.STAGE_TERMINATED);
-			//	assert(recordInputsAndOutputValuesForValidation(gm, stage.stageId));
-		}
+		GraphManagerStageStateData.advance(gm.stageStateData, stageId, GraphManagerStageStateData.STAGE_TERMINATED);
+		//	assert(recordInputsAndOutputValuesForValidation(gm, stage.stageId));
 	}
 	
 	private static boolean recordInputsAndOutputValuesForValidation(GraphManager gm, int stageId) {
@@ -994,21 +1061,19 @@ public class GraphManager {
 	
 	public static boolean isProducerTerminated(GraphManager m, int ringId) {
 		int producerStageId = getRingProducerId(m, ringId);
-        return producerStageId<0 || m.stageStateData.stageStateArray[producerStageId] == GraphManagerStageStateData.STAGE_TERMINATED;
+        return producerStageId<0 || GraphManagerStageStateData.get(m.stageStateData, producerStageId) == GraphManagerStageStateData.STAGE_TERMINATED;
 	}
 
     public static boolean isStageTerminated(GraphManager m, int stageId) {
-    	synchronized(m.stageStateData.lock) {
-    		return GraphManagerStageStateData.STAGE_TERMINATED <= m.stageStateData.stageStateArray[stageId];
-    	}
+    	return GraphManagerStageStateData.STAGE_TERMINATED <= GraphManagerStageStateData.get(m.stageStateData, stageId);
     }
 
     public static boolean isStageShuttingDown(GraphManager m, int stageId) {
-    	return m.stageStateData.stageStateArray[stageId]>=GraphManagerStageStateData.STAGE_STOPPING; //or terminated
+    	return GraphManagerStageStateData.get(m.stageStateData, stageId)>=GraphManagerStageStateData.STAGE_STOPPING; //or terminated
     }
     
     public static boolean isStageStarted(GraphManager m, int stageId) {
-        return m.stageStateData.stageStateArray[stageId]>=GraphManagerStageStateData.STAGE_STARTED; //or running or shuttingdown or terminated
+        return GraphManagerStageStateData.get(m.stageStateData, stageId)>=GraphManagerStageStateData.STAGE_STARTED; //or running or shuttingdown or terminated
     }
     
     public static PronghornStage[] allStagesByState(GraphManager graphManager, int state) {
@@ -1017,7 +1082,7 @@ public class GraphManager {
         int s = graphManager.stageIdToStage.length;
         while (--s>=0) {
             PronghornStage stage = graphManager.stageIdToStage[s];             
-            if (null!=stage && graphManager.stageStateData.stageStateArray[stage.stageId]==state) {
+            if (null!=stage && GraphManagerStageStateData.get(graphManager.stageStateData, stage.stageId)==state) {
                 count++;
             }
         }
@@ -1026,7 +1091,7 @@ public class GraphManager {
         s = graphManager.stageIdToStage.length;
         while (--s>=0) {
             PronghornStage stage = graphManager.stageIdToStage[s];             
-            if (null != stage && graphManager.stageStateData.stageStateArray[stage.stageId]==state) {
+            if (null != stage && GraphManagerStageStateData.get(graphManager.stageStateData, stage.stageId)==state) {
                 stages[--count] = stage;
             }
         }
@@ -1430,6 +1495,149 @@ public class GraphManager {
           }
       }  
 	
+	/**
+	 * Record the idle strategy of the thread which runs this stage so producers on other threads can wake it.
+	 * Schedulers call this on startup, pass null to remove the registration.
+	 */
+	public static void registerIdleStrategy(GraphManager gm, int stageId, IdleStrategy idle) {
+		synchronized(gm.lock) {
+			IdleStrategy[] local = gm.stageIdToIdle;
+			if (stageId >= local.length) {
+				local = Arrays.copyOf(local, Math.max(stageId+1, gm.stageCounter.get()+1));
+			}
+			local[stageId] = idle;
+			gm.stageIdToIdle = local;
+		}
+	}
+	
+	public static IdleStrategy getIdleStrategy(GraphManager gm, int stageId) {
+		IdleStrategy[] local = gm.stageIdToIdle;
+		return stageId>=0 && stageId<local.length ? local[stageId] : null;
+	}
+	
+	/**
+	 * Called by a producer after publishing to this pipe, unparks the thread of the consumer if it is idle.
+	 */
+	public static void wakeConsumer(GraphManager gm, int pipeId) {
+		IdleStrategy idle = getIdleStrategy(gm, getRingConsumerId(gm, pipeId));
+		if (null!=idle) {
+			IdleStrategy.wake(idle);
+		}
+	}
+	
+	/**
+	 * Turn on the collection of per stage run() timing. Schedulers check this once at startup so it must be 
+	 * called after the graph is constructed and before the scheduler is started.  No allocation is done 
+	 * after this call, every sample is recorded into primitive arrays.
+	 * 
+	 * @param gm
+	 */
+	public static void enableInstrumentation(GraphManager gm) {
+		int size = gm.stageCounter.get()+1;
+		gm.stageRunCount = new long[size];
+		gm.stageRunNS = new long[size];
+		gm.stageRunMaxNS = new long[size];
+		gm.stageWorkCount = new long[size];
+	}
+	
+	public static boolean isInstrumented(GraphManager gm) {
+		return null != gm.stageRunCount;
+	}
+	
+	/**
+	 * Record one call to run() for this stage.
+	 * 
+	 * @param gm
+	 * @param stageId
+	 * @param durationNS time spent inside run()
+	 * @param didWork true if any of the pipes for this stage moved during the call
+	 */
+	public static void recordRun(GraphManager gm, int stageId, long durationNS, boolean didWork) {
+		if (stageId < gm.stageRunCount.length) {
+			gm.stageRunCount[stageId]++;
+			gm.stageRunNS[stageId] += durationNS;
+			if (durationNS > gm.stageRunMaxNS[stageId]) {
+				gm.stageRunMaxNS[stageId] = durationNS;
+			}
+			if (didWork) {
+				gm.stageWorkCount[stageId]++;
+			}
+		}
+	}
+	
+	/**
+	 * Sum of the published head and tail positions for every pipe of this stage. If this value is different
+	 * after a call to run() then the stage consumed or produced something.
+	 */
+	public static long stageProgress(GraphManager m, int stageId) {
+		long sum = 0;
+		int pipeId;
+		int idx = m.stageIdToInputsBeginIdx[stageId];
+		while (-1 != (pipeId=m.multInputIds[idx++])) {
+			sum += Pipe.tailPosition(m.pipeIdToPipe[pipeId]);
+		}
+		idx = m.stageIdToOutputsBeginIdx[stageId];
+		while (-1 != (pipeId=m.multOutputIds[idx++])) {
+			sum += Pipe.headPosition(m.pipeIdToPipe[pipeId]);
+		}
+		return sum;
+	}
+	
+	public static long getRunCount(GraphManager gm, int stageId) {
+		return isInstrumented(gm) && stageId<gm.stageRunCount.length ? gm.stageRunCount[stageId] : 0;
+	}
+	
+	public static long getRunTotalNS(GraphManager gm, int stageId) {
+		return isInstrumented(gm) && stageId<gm.stageRunNS.length ? gm.stageRunNS[stageId] : 0;
+	}
+	
+	public static long getRunMaxNS(GraphManager gm, int stageId) {
+		return isInstrumented(gm) && stageId<gm.stageRunMaxNS.length ? gm.stageRunMaxNS[stageId] : 0;
+	}
+	
+	public static long getRunWorkCount(GraphManager gm, int stageId) {
+		return isInstrumented(gm) && stageId<gm.stageWorkCount.length ? gm.stageWorkCount[stageId] : 0;
+	}
+	
+	/**
+	 * Percent of the calls to run() which moved data, a stage with a low value and a high total time is burning the loop.
+	 */
+	public static int getRunWorkPercent(GraphManager gm, int stageId) {
+		long runs = getRunCount(gm, stageId);
+		return runs<=0 ? 0 : (int)((100L*getRunWorkCount(gm, stageId))/runs);
+	}
+	
+	/**
+	 * @return the stageId which has spent the most total time in run(), -1 if nothing has been recorded.
+	 */
+	public static int findHeaviestStage(GraphManager gm) {
+		int result = -1;
+		long max = 0;
+		if (isInstrumented(gm)) {
+			int i = gm.stageRunNS.length;
+			while (--i>=0) {
+				if (gm.stageRunNS[i]>max) {
+					max = gm.stageRunNS[i];
+					result = i;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Add a producer stage which writes the run() statistics of every stage to the returned pipe at the given rate.
+	 * Instrumentation is enabled as part of this call.
+	 */
+	public static Pipe<StageMonitorSchema> attachStageMonitor(GraphManager gm, Long monitorRate, PipeConfig<StageMonitorSchema> stageMonitorConfig) {
+		Pipe<StageMonitorSchema> output = new Pipe<StageMonitorSchema>(stageMonitorConfig);
+		StageMonitorStage stage = new StageMonitorStage(gm, output);
+		GraphManager.addNota(gm, GraphManager.MONITOR, "dummy", stage);
+		GraphManager.addNota(gm, GraphManager.SCHEDULE_RATE, monitorRate, stage);
+		enableInstrumentation(gm);
+		return output;
+	}
+	
 	public static Pipe[] attachMonitorsToGraph(GraphManager gm, Long monitorRate, PipeConfig ringBufferMonitorConfig) {
 
 		int j = gm.pipeIdToPipe.length;
@@ -0,0 +1,127 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Back-off used by a scheduler thread when a full pass over its stages moved no data.
+ *
+ * The thread first keeps spinning (the pass itself is the spin), then yields, then parks with an
+ * exponentially growing timeout up to the max.  Any pass which does work resets the back-off.
+ *
+ * A producer on another thread may call wake() after publishing to a pipe consumed by a parked thread,
+ * this unparks it at once so bursts are picked up with very low latency while quiet graphs burn almost no CPU.
+ * The max park time bounds the latency for inputs which can not signal, such as sockets or external threads.
+ */
+public class IdleStrategy {
+
+	public static final int  DEFAULT_SPINS       = 64;
+	public static final int  DEFAULT_YIELDS      = 64;
+	public static final long DEFAULT_MIN_PARK_NS = 1_000;
+	public static final long DEFAULT_MAX_PARK_NS = 1_000_000;
+
+	private final int maxSpins;
+	private final int maxYields;
+	private final long minParkNS;
+	private final long maxParkNS;
+
+	private int spins;
+	private int yields;
+	private long parkNS;
+
+	//written by the idle thread only
+	private volatile Thread waiter;
+	//written by any thread which has new work for the idle thread
+	private volatile boolean wakeRequested;
+
+	public IdleStrategy() {
+		this(DEFAULT_SPINS, DEFAULT_YIELDS, DEFAULT_MIN_PARK_NS, DEFAULT_MAX_PARK_NS);
+	}
+
+	public IdleStrategy(int maxSpins, int maxYields, long minParkNS, long maxParkNS) {
+		if (minParkNS<=0 || maxParkNS<minParkNS) {
+			throw new UnsupportedOperationException("Park times must be positive and max must not be smaller than min");
+		}
+		this.maxSpins = maxSpins;
+		this.maxYields = maxYields;
+		this.minParkNS = minParkNS;
+		this.maxParkNS = maxParkNS;
+		this.parkNS = minParkNS;
+	}
+
+	/**
+	 * Called after a pass which did some work.
+	 */
+	public void reset() {
+		spins = 0;
+		yields = 0;
+		parkNS = minParkNS;
+	}
+
+	/**
+	 * Called after a pass which did no work.
+	 *
+	 * @param deadlineNS System.nanoTime() value by which the caller must be running again, zero if there is none.
+	 */
+	public void idle(long deadlineNS) {
+
+		if (spins<maxSpins) {
+			spins++;
+			return;
+		}
+
+		if (yields<maxYields) {
+			yields++;
+			Thread.yield();
+			return;
+		}
+
+		long park = parkNS;
+		if (deadlineNS>0) {
+			park = Math.min(park, deadlineNS-System.nanoTime());
+		}
+		if (park>0) {
+			//waiter must be visible before we check the flag, wake() writes in the opposite order
+			waiter = Thread.currentThread();
+			if (!wakeRequested) {
+				park(park);
+			}
+			waiter = null;
+		}
+
+		if (wakeRequested) {
+			wakeRequested = false;
+			reset();//new work has been published so begin again with the fast path
+		} else {
+			parkNS = Math.min(parkNS<<1, maxParkNS);
+		}
+	}
+
+	/**
+	 * Signal that new work is available. Safe to call from any thread, cheap when the target is not parked.
+	 */
+	public static void wake(IdleStrategy idle) {
+		if (!idle.wakeRequested) {
+			idle.wakeRequested = true;
+		}
+		Thread t = idle.waiter;
+		if (null!=t) {
+			idle.unpark(t);
+		}
+	}
+
+	/**
+	 * Wait up to this many ns, may return early. Overridden to wait on something other than a plain park.
+	 */
+	protected void park(long ns) {
+		LockSupport.parkNanos(this, ns);
+	}
+
+	protected void unpark(Thread t) {
+		LockSupport.unpark(t);
+	}
+
+	public static boolean isParked(IdleStrategy idle) {
+		return null != idle.waiter;
+	}
+
+}
@@ -3,7 +3,6 @@ package com.ociweb.pronghorn.stage.scheduling;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
 
 import com.ociweb.pronghorn.pipe.MessageSchema;
 import com.ociweb.pronghorn.pipe.Pipe;
@@ -13,7 +12,6 @@ public class NonThreadScheduler extends StageScheduler implements Runnable {
 
     private AtomicBoolean shutdownRequested;
     private long[] rates;
-    private long[] lastRun;
     private long maxRate;
     private final PronghornStage[] stages;
 
@@ -27,17 +25,35 @@ public class NonThreadScheduler extends StageScheduler implements Runnable {
     public static final int granularityMultiplier = 4;
     private static final long MS_TO_NS = 1_000_000;
     
-    private int[] producersIdx;
+    private Pipe[] inputPipes;
+    private Pipe[] internalPipes;
     
-    private Pipe[] producerInputPipes;
-    private long[] producerInputPipeHeads;
+    private Pipe[] outputPipes;     //pipes written here and consumed by stages run on some other thread
+    private long[] outputPipeHeads;
     
-    private Pipe[] inputPipes;
-    private long[] inputPipeHeads;
+    private IdleStrategy idleStrategy = new IdleStrategy();
+    private long lastProgress = -1;
+    private boolean didWork = true;
+    
+    private int orderMode = StageOrdering.REVERSE_ARRAY;
+    private int[] runOrder;
+    
+    //input pipes of this group with the index of the stage which consumes each and of the stage which produces
+    //each, -1 when it is on another thread, checked every pass for back pressure and for pipes running dry
+    private Pipe[] pressurePipes;
+    private int[] pressureConsumers;
+    private int[] pressureProducers;
+    private long[] pressureContent; //content of each pipe at the start of the last pass
     
-    private Pipe[] internalPipes;
-    private boolean isInternalEmpty = false; //always starts as no empty to be safe.
     private boolean someAreRateLimited = false;
+    private boolean[] isRateLimited;  //by stage index, pipe rate limits which must be checked before each run
+    
+    //next due time of SCHEDULE_RATE stages and of stages waiting on a pipe rate limit, only due stages are touched
+    private TimerWheel timerWheel;
+    private int[] dueIds;
+    private boolean[] isDue;
+    private boolean isInstrumented = false;
+    private StageSupervisor[] supervisors; //by stage index, null when no stage is supervised
     private AtomicInteger isRunning = new AtomicInteger(0);
 
     public NonThreadScheduler(GraphManager graphManager) {
@@ -53,89 +69,194 @@ public class NonThreadScheduler extends StageScheduler implements Runnable {
     @Override
     public void startup() {
         shutdownRequested = new AtomicBoolean(false);
+        isInstrumented = GraphManager.isInstrumented(graphManager);
         
         final int stageCount = stages.length;
 
+        //producers on other threads use this to wake us when we are parked, stages may also look it up in startup
+        if (null!=idleStrategy) {
+        	registerIdleStrategy(this, idleStrategy);
+        }
+
         //System.err.println("beging stage startup "+this.hashCode());
         startupAllStages(stageCount);
         //System.err.println("done stage startup "+this.hashCode());
         
-        int i;
-        producersIdx = buildProducersList(0, 0, graphManager, stages);        
-        producerInputPipes = buildProducersPipes(0, 0, 1, producersIdx, stages, graphManager);
-        producerInputPipeHeads = new long[producerInputPipes.length];
+        runOrder = StageOrdering.order(graphManager, stages, orderMode);
+        if (StageOrdering.REVERSE_ARRAY != orderMode) {
+        	buildPressurePipes(this);
+        }
         
         inputPipes = buildInputPipes(0, 0, 1, stages, graphManager);
-        inputPipeHeads = new long[inputPipes.length];
-
-        syncInputHeadValues(producerInputPipes, producerInputPipeHeads);
-        syncInputHeadValues(inputPipes, inputPipeHeads);
-        
         internalPipes = buildInternalPipes(0, 0, 1, stages, graphManager);
+        outputPipes = buildOutputPipes(0, 0, 1, stages, graphManager);
+        outputPipeHeads = new long[outputPipes.length];
+        
+        int i = outputPipes.length;
+        while (--i>=0) {
+        	outputPipeHeads[i] = Pipe.headPosition(outputPipes[i]);
+        }
+    }
+
+    /**
+     * Register the idle strategy of the thread which will run these stages so producers can wake it.
+     */
+    static void registerIdleStrategy(NonThreadScheduler nts, IdleStrategy idle) {
+    	int i = nts.stages.length;
+    	while (--i>=0) {
+    		GraphManager.registerIdleStrategy(nts.graphManager, nts.stages[i].stageId, idle);
+    	}
+    }
+    
+    /**
+     * True if the last pass moved data on any pipe of this group.
+     */
+    static boolean didWork(NonThreadScheduler nts) {
+    	return nts.didWork;
+    }
+
+    /**
+     * Select the order stages are visited on each pass, see StageOrdering. Must be called before startup.
+     * Any mode other than the legacy reverse array order will also run a consumer early in the pass when
+     * one of its input pipes is nearly full, and a producer early when its output pipe is draining.
+     */
+    public static void setOrdering(NonThreadScheduler nts, int mode) {
+    	nts.orderMode = mode;
+    }
+    
+    private static void buildPressurePipes(NonThreadScheduler that) {
+    	int count = 0;
+    	int s = that.stages.length;
+    	while (--s>=0) {
+    		count += GraphManager.getInputPipeCount(that.graphManager, that.stages[s]);
+    	}
+    	that.pressurePipes = new Pipe[count];
+    	that.pressureConsumers = new int[count];
+    	that.pressureProducers = new int[count];
+    	that.pressureContent = new long[count];
+    	int p = 0;
+    	s = that.stages.length;
+    	while (--s>=0) {
+    		int c = GraphManager.getInputPipeCount(that.graphManager, that.stages[s]);
+    		for(int i=1; i<=c; i++) {
+    			Pipe<MessageSchema> pipe = GraphManager.getInputPipe(that.graphManager, that.stages[s], i);
+    			that.pressurePipes[p] = pipe;
+    			that.pressureConsumers[p] = s;
+    			that.pressureProducers[p++] = producerIndex(that.stages, GraphManager.getRingProducerId(that.graphManager, pipe.id));
+    		}
+    	}
+    }
+    
+    private static int producerIndex(PronghornStage[] stages, int producerId) {
+    	int k = stages.length;
+    	while (--k>=0) {
+    		if (stages[k].stageId==producerId) {
+    			return k;
+    		}
+    	}
+    	return -1;
+    }
+    
+    /**
+     * Run early the consumers of any pipe which is 3/4 full so the producers upstream are not blocked for the rest of the pass,
+     * and the producers of any pipe which is down to 1/4 and still falling so their consumers do not run dry.
+     */
+    private static long relievePressure(NonThreadScheduler that, long now, long nearestNextRun) {
+    	Pipe[] pipes = that.pressurePipes;
+    	int i = pipes.length;
+    	while (--i>=0) {
+    		long content = Pipe.contentRemaining(pipes[i]);
+    		int s = pressureStage(content, that.pressureContent[i], pipes[i].sizeOfSlabRing, that.pressureConsumers[i], that.pressureProducers[i]);
+    		that.pressureContent[i] = content;
+    		if (s>=0) {
+    			nearestNextRun = runStage(now, nearestNextRun, s, that.rates[s], that.stages[s], that);
+    		}
+    	}
+    	return nearestNextRun;
+    }
+    
+    /**
+     * @return the consumer of a nearly full pipe, the producer of a draining one or -1 when neither needs to run early
+     */
+    static int pressureStage(long content, long lastContent, int size, int consumer, int producer) {
+    	if ((content<<2) >= (3L*size)) {
+    		return consumer;
+    	}
+    	if (producer>=0 && content<lastContent && (content<<2) <= size) {
+    		return producer;
+    	}
+    	return -1;
+    }
+    
+    /**
+     * Replace the back-off used when a pass does no work. When null, run() never waits and the caller 
+     * is responsible for idling, this is used when one thread runs many of these schedulers.
+     * Must be called before startup.
+     */
+    public static void setIdleStrategy(NonThreadScheduler nts, IdleStrategy idle) {
+    	nts.idleStrategy = idle;
+    }
+    
+    /**
+     * Sum of the head and tail positions of every pipe this group touches, if it has not changed since the 
+     * last pass then nothing was consumed, produced or received.
+     */
+    private static long progress(NonThreadScheduler that) {
+    	return sumPositions(that.inputPipes) + sumPositions(that.internalPipes) + sumPositions(that.outputPipes);
     }
 
-	private static void syncInputHeadValues(Pipe[] pipes, long[] heads) {
+	private static long sumPositions(Pipe[] pipes) {
+		long sum = 0;
 		int i = pipes.length;
-        while (--i>=0) {//keep these so we know that it has changed and there is new content
-        	heads[i]=Pipe.headPosition(pipes[i]);        	
-        }
+		while (--i>=0) {
+			sum += Pipe.headPosition(pipes[i]) + Pipe.tailPosition(pipes[i]);
+		}
+		return sum;
 	}
 	
-	private static boolean isSyncInputHeadValues(Pipe[] pipes, long[] heads) {
-		int i = pipes.length;
-        while (--i>=0) {//keep these so we know that it has changed and there is new content
-        	if (heads[i]!=Pipe.headPosition(pipes[i])) {
-        		return false;
-        	}    	
-        }
-        return true;
+	/**
+	 * Wake any parked consumer thread for the outgoing pipes which have had new content published.
+	 */
+	private static void wakeConsumers(NonThreadScheduler that) {
+		int i = that.outputPipes.length;
+		while (--i>=0) {
+			long head = Pipe.headPosition(that.outputPipes[i]);
+			if (head != that.outputPipeHeads[i]) {
+				that.outputPipeHeads[i] = head;
+				GraphManager.wakeConsumer(that.graphManager, that.outputPipes[i].id);
+			}
+		}
 	}
     
-    private static int[] buildProducersList(int count, int idx, final GraphManager graphManager, PronghornStage[] stages) {
-    	
-    		//skip over the non producers
-    		while (idx<stages.length) {
-    			
-    			if (null!=GraphManager.getNota(graphManager, stages[idx].stageId, GraphManager.PRODUCER, null) || 
-    				(0==GraphManager.getInputPipeCount(graphManager, stages[idx])) ) {
-    				int[] result = buildProducersList(count+1, idx+1, graphManager, stages);    		
-    				result[count] = idx;    		
-    				return result;
-    			}
-    			
-    			idx++;
-    		}
-    		
-    		return new int[count];
-    		
-    }
-    
-    private static Pipe[] buildProducersPipes(int count, int indexesIdx, int outputIdx, final int[] indexes, final PronghornStage[] stages, final GraphManager graphManager) {
+    private static Pipe[] buildOutputPipes(int count, int stageIdx, int outputIdx, final PronghornStage[] stages, final GraphManager graphManager) {
     	
-    	while(indexesIdx<indexes.length) {
+    	while(stageIdx<stages.length) {
     		
-    		int outputCount = GraphManager.getOutputPipeCount(graphManager, stages[indexes[indexesIdx]].stageId);
+    		int outputCount = GraphManager.getOutputPipeCount(graphManager, stages[stageIdx].stageId);
     		while(outputIdx<=outputCount) {
     		
-    			Pipe<MessageSchema> pipe = GraphManager.getOutputPipe(graphManager, stages[indexes[indexesIdx]], outputIdx);  
+    			Pipe<MessageSchema> pipe = GraphManager.getOutputPipe(graphManager, stages[stageIdx], outputIdx);  
     			
-        		//is the consumer of this pipe inside the graph?
         		int consumerId = GraphManager.getRingConsumerId(graphManager, pipe.id);
         		
+        		boolean isToOutside = true;
         		int k = stages.length;
         		while (--k>=0) {
         			if (stages[k].stageId==consumerId) {
-        				
-        				Pipe[] result = buildProducersPipes(count+1, indexesIdx, outputIdx+1, indexes, stages, graphManager);
-        				result[count] = pipe;
-        				return result;
-
+        				isToOutside = false;
+        				break;
         			}
         		}    			
+        		if (isToOutside) {
+        			Pipe[] result = buildOutputPipes(count+1, stageIdx, outputIdx+1, stages, graphManager);
+        			result[count] = pipe;
+        			return result;
+        		}
+        		
     			outputIdx++;
     		}
     		outputIdx=1;
-    		indexesIdx++;
+    		stageIdx++;
     	}    	
     	return new Pipe[count]; 
     	
@@ -264,7 +385,9 @@ public class NonThreadScheduler extends StageScheduler implements Runnable {
 
         
         rates = new long[stageCount+1];
-        lastRun = new long[stageCount+1];
+        isRateLimited = new boolean[stageCount+1];
+        supervisors = null;
+        boolean useWheel = someAreRateLimited;
         
         int idx = stageCount;
         while (--idx >= 0) {               
@@ -281,64 +404,52 @@ public class NonThreadScheduler extends StageScheduler implements Runnable {
                  if (0==rate) {
                      //DEFAULT, RUN IN TIGHT LOOP
                      rates[idx] = 0;
-                     lastRun[idx] = 0;
                  } else {
                      //SCHEDULE_rate, RUN EVERY rate ns
                      rates[idx] = rate;
                      if (rate>maxRate) {
                          maxRate = rate;
                      }
-                     lastRun[idx] = 0;                     
+                     useWheel = true;
+                 }
+                 isRateLimited[idx] = someAreRateLimited && GraphManager.isRateLimited(graphManager, stage.stageId);
+                 StageSupervisor supervisor = StageSupervisor.supervise(graphManager, stage);
+                 if (null!=supervisor) {
+                	 if (null==supervisors) {
+                		 supervisors = new StageSupervisor[stageCount];
+                	 }
+                	 supervisors[idx] = supervisor;
                  }
              } else {
                  //UNSCHEDULED, NEVER RUN
                  rates[idx] = -1;
-                 lastRun[idx] = 0;
              }
         }
         
+        if (useWheel) {
+        	timerWheel = new TimerWheel(stageCount);
+        	dueIds = new int[stageCount];
+        	isDue = new boolean[stageCount];
+        	//every scheduled stage runs on the first pass
+        	long now = System.nanoTime();
+        	idx = stageCount;
+        	while (--idx >= 0) {
+        		if (rates[idx]>0) {
+        			TimerWheel.schedule(timerWheel, idx, now);
+        		}
+        	}
+        }
+        
     }
 
     @Override
     public void run() {   
     	
-    	   //TODO: we want to monitor pipe content and flip execution order if they are full.
-    	
-    	
     	if (nextRun>0) {
     		
-    		//TODO: this new feature is causing a hang in some cases, Must debug.
-    		if (false && !isInternalEmpty) {
-    			
-    			//before we set or scan for empty record the head positions, if they still match later then we will know its empty.
-    	        syncInputHeadValues(producerInputPipes, producerInputPipeHeads);
-    	        syncInputHeadValues(inputPipes, inputPipeHeads);
-    			
-    			// check that all pipes have no content, we have time if not set here it is never set true.
-    			boolean tmp = true;
-    			int i = internalPipes.length;
-    			while (--i>=0) {
-    				if (Pipe.contentRemaining(internalPipes[i])>0) {  
-    					tmp = false;
-    					break;//exit quick we found something.
-    				}
-    			}
-    			//must also scan input pipes
-    			i = inputPipes.length;
-    			while (--i>=0) {
-    				if (Pipe.contentRemaining(inputPipes[i])>0) {  
-    					tmp = false;
-    					break;//exit quick we found something.
-    				}
-    			}
-    			isInternalEmpty = tmp;   
-    			    			
-    		}
-    		
     		//we have called run but we know that it can do anything until this time so we must wait
     		long nanoDelay = nextRun-System.nanoTime();
     		if (nanoDelay>0) {
-		    	//System.out.println("delay "+nanoDelay);
 		    		try {
 						Thread.sleep(nanoDelay/1_000_000,(int) (nanoDelay%1_000_000));
 					} catch (InterruptedException e) {
@@ -346,49 +457,34 @@ public class NonThreadScheduler extends StageScheduler implements Runnable {
 						return;
 				    }
     		}
-    		    		
-    		
     		nextRun = 0;
     	} 
 
-
 	    	if (!isRunning.compareAndSet(0, 1)){
 	    		return;
 	    	}
-       	        	
-    	
-        	//confirm that we have work to do before
-        	
         	
-        	if (isInternalEmpty && inputPipes.length>0 ) { // if all pipes were emptied on previous run.
-        	
-        		long spinDelay = 1000;		
-        		//sleep thread until something appears on one of these inputs
-    	        while (isSyncInputHeadValues(producerInputPipes, producerInputPipeHeads) && isSyncInputHeadValues(inputPipes, inputPipeHeads) && !isShutdownRequested(this)) {
-    
-    	        	try {
-						Thread.sleep(spinDelay/1000000,(int)spinDelay%1000000); //TODO: review all the stages to pick an appropriate large value.
-					} catch (InterruptedException e) {
-						Thread.currentThread().interrupt();
-						break;
-					}
-    	        	
-    	        	int p = producersIdx.length;
-    	        	while (--p>=0) {
-    	        		int idx = producersIdx[p];
-    	        		spinDelay = runStage(someAreRateLimited, spinDelay, idx, rates[idx], stages[idx], this);
-    	        	}
-    	        }
-    	        isInternalEmpty = false;
+        	//one clock read for the whole pass
+        	final long now = System.nanoTime();
+        	if (null!=timerWheel) {
+        		int d = TimerWheel.expire(timerWheel, now, dueIds);
+        		while (--d>=0) {
+        			isDue[dueIds[d]] = true;
+        		}
         	}
         	
-        	
         	long nearestNextRun = Long.MAX_VALUE;
-   	        int s = stages.length;
+        	if (null!=pressurePipes && rates!=null) {
+        		nearestNextRun = relievePressure(this, now, nearestNextRun);
+        	}
+        	
+   	        final int[] order = runOrder;
+   	        int i = 0;
    	        boolean continueRun = false;
-            while (--s>=0 && !shutdownRequested.get() && rates!=null) {
+            while (i<order.length && !shutdownRequested.get() && rates!=null) {
+            		int s = order[i++];
             	
-                    nearestNextRun = runStage(someAreRateLimited, nearestNextRun, s, rates[s], stages[s], this);    
+                    nearestNextRun = runStage(now, nearestNextRun, s, rates[s], stages[s], this);    
                     
                     //if one is not shutting down then keep going
                     continueRun |= !GraphManager.isStageShuttingDown(graphManager, stages[s].stageId);
@@ -397,63 +493,96 @@ public class NonThreadScheduler extends StageScheduler implements Runnable {
              if (!continueRun || shutdownRequested.get()) {
             	shutdown();
              }
+             if (null!=timerWheel) {
+            	 nearestNextRun = Math.min(nearestNextRun, TimerWheel.nextDueNS(timerWheel));
+             }
              nextRun = Long.MAX_VALUE==nearestNextRun ? 0 : nearestNextRun;
-                
-             if (! isRunning.compareAndSet(1, 0) ) {
+             
+             if (null!=outputPipes) {
+            	 wakeConsumers(this);
+            	 
+            	 //a pass which moved nothing on any pipe is idle, back off until a producer wakes us or the next scheduled run
+            	 long progress = progress(this);
+            	 didWork = progress != lastProgress;
+            	 lastProgress = progress;
+            	 if (null!=idleStrategy) {
+            		 if (didWork || shutdownRequested.get()) {
+            			 idleStrategy.reset();
+            		 } else {
+            			 idleStrategy.idle(nextRun);
+            		 }
+            	 }
              }
+             
+             //released last, the bookkeeping above belongs to this pass and another thread may run the next one
+             isRunning.set(0);
     }
 
-	private static long runStage(boolean someAreRateLimited, long nearestNextRun, int s, long rate, PronghornStage stage, NonThreadScheduler that) {
+	private static long runStage(final long now, long nearestNextRun, int s, long rate, PronghornStage stage, NonThreadScheduler that) {
 
-        
-        //TODO: if one is taking all the time must record and log to more easily find this bad player.                    
-        //TODO: time each run and keep a total of which stages take the most time to return, this is a nice debug feature.
+		//NOTE: when GraphManager.enableInstrumentation has been called each run is timed, see GraphManager.findHeaviestStage
 		
-		if (rate>=0) {
-			
-			if (someAreRateLimited && GraphManager.isRateLimited(that.graphManager,  stage.stageId)) {  //NOTE: we may not need second part of this expression..  test this.                  	
-				long nsDelay =  GraphManager.delayRequiredNS(that.graphManager,stage.stageId);
-				if (nsDelay>0) {   
-					nearestNextRun = Math.min(nearestNextRun, nsDelay+System.nanoTime());
-					rate = -1;//must try again later
+		if (rate>0) {
+			//SCHEDULE_RATE stages are only touched when the wheel has found them due
+			if (that.isDue[s]) {
+				that.isDue[s] = false;
+				long nsDelay = that.isRateLimited[s] ? GraphManager.delayRequiredNS(that.graphManager,stage.stageId) : 0;
+				if (nsDelay>0) {
+					TimerWheel.schedule(that.timerWheel, s, now+nsDelay);
+				} else {
+					run(that.graphManager, s, stage, that);
+					//leading edge of each run is rate apart
+					TimerWheel.schedule(that.timerWheel, s, now+rate);
 				}
 			}
-			
-			if (rate>0) {
-				//check time and only run if valid
-				long now = System.nanoTime();
-				                    		
-				long nsDelay = (that.lastRun[s]+rate) - now;
-				if (nsDelay<=0) {
-					run(that.graphManager, stage, that);
-					that.lastRun[s] = System.nanoTime();
-				} else {                    			
-					nearestNextRun = Math.min(nearestNextRun, nsDelay+System.nanoTime());
+		} else if (0==rate) {
+			if (that.isRateLimited[s]) {
+				if (TimerWheel.isScheduled(that.timerWheel, s)) {
+					return nearestNextRun;//still held back by a pipe rate limit
 				}
-			} else {
-				if (0==rate) {
-					nearestNextRun = 0;
-					run(that.graphManager, stage, that);   
+				that.isDue[s] = false;
+				long nsDelay = GraphManager.delayRequiredNS(that.graphManager,stage.stageId);
+				if (nsDelay>0) {
+					TimerWheel.schedule(that.timerWheel, s, now+nsDelay);
+					return nearestNextRun;
 				}
 			}
-		} else {
-			//never run -1
+			nearestNextRun = 0;
+			run(that.graphManager, s, stage, that);
 		}
+		//never run -1
 		return nearestNextRun;
 	}
 
-	private static void run(GraphManager graphManager, PronghornStage stage, NonThreadScheduler that) {
+	private static void run(GraphManager graphManager, int s, PronghornStage stage, NonThreadScheduler that) {
+		StageSupervisor supervisor = null;//only failures of run() are recovered, never of shutdown()
 		try {
 			if (!GraphManager.isStageShuttingDown(graphManager, stage.stageId)) {
-				stage.run();
+				if (null!=that.supervisors && null!=(supervisor = that.supervisors[s])) {
+					StageSupervisor.beforeRun(supervisor);
+				}
+				if (!that.isInstrumented) {
+					stage.run();
+				} else {
+					long progress = GraphManager.stageProgress(graphManager, stage.stageId);
+					long start = System.nanoTime();
+					stage.run();
+					long duration = System.nanoTime()-start;
+					GraphManager.recordRun(graphManager, stage.stageId, duration, progress!=GraphManager.stageProgress(graphManager, stage.stageId));
+				}
+				if (null!=supervisor) {
+					StageSupervisor.afterRun(supervisor);
+				}
 			} else {
 				if (!GraphManager.isStageTerminated(graphManager, stage.stageId)) {
 					 stage.shutdown();
                      GraphManager.setStateToShutdown(graphManager, stage.stageId);  
 				}
 			}
-		} catch (Throwable t) {				    
-            recordTheException(stage, t, that);
+		} catch (Throwable t) {
+			if (null==supervisor || !StageSupervisor.recover(supervisor, t)) {
+				recordTheException(stage, t, that);
+			}
 		} 
 		
 	}
@@ -461,6 +590,9 @@ public class NonThreadScheduler extends StageScheduler implements Runnable {
     @Override
     public void shutdown() {
     	shutdownRequested.set(true);
+    	if (null!=idleStrategy) {
+    		IdleStrategy.wake(idleStrategy);
+    	}
     	GraphManager.terminateInputStages(graphManager);	
     	
 	    int s = stages.length;
@@ -477,6 +609,28 @@ public class NonThreadScheduler extends StageScheduler implements Runnable {
     	return nts.shutdownRequested.get();
     }
     
+    /**
+     * Time in ns before which a call to run() would only sleep, zero if it can run now.
+     */
+    static long nextRunNS(NonThreadScheduler nts) {
+    	return nts.nextRun;
+    }
+    
+    /**
+     * Total content waiting on the pipes which feed this group from outside, used as a measure of pending work.
+     */
+    static long inputBacklog(NonThreadScheduler nts) {
+    	long sum = 0;
+    	Pipe[] pipes = nts.inputPipes;
+    	if (null!=pipes) {
+    		int i = pipes.length;
+    		while (--i>=0) {
+    			sum += Pipe.contentRemaining(pipes[i]);
+    		}
+    	}
+    	return sum;
+    }
+    
     @Override
     public boolean awaitTermination(long timeout, TimeUnit unit) { 
 
@@ -0,0 +1,107 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+/**
+ * Idle strategy for a thread running a stage which polls a Selector, such as the server accept and read stages.
+ *
+ * Instead of parking, the thread waits inside Selector.select(timeout) so it sleeps in the kernel and is woken
+ * directly by socket activity. Producers and shutdown call wake() as usual which also does Selector.wakeup().
+ * Selected keys are left in the selected set for the stage to process on the next pass, stages must not rely
+ * on the count returned by selectNow() alone.
+ *
+ * Stages register their selector in startup() with register() and remove it with unregister() before they close it,
+ * only a thread with exactly one registered selector waits in select(), with more than one it parks as the plain
+ * IdleStrategy does. A selector closed while still registered is found in park() and the thread parks instead.
+ */
+public class SelectorIdleStrategy extends IdleStrategy {
+
+	public static final long DEFAULT_MIN_SELECT_NS = 1_000_000;
+	public static final long DEFAULT_MAX_SELECT_NS = 50_000_000; //bounds the delay for inputs which can not signal
+	public static final int  DEFAULT_YIELDS        = 8;
+
+	private static final long MS_TO_NS = 1_000_000;
+
+	private volatile Selector selector; //the one registered selector, null when there are none or more than one
+	private Selector[] registered = new Selector[0];
+
+	public SelectorIdleStrategy() {
+		this(DEFAULT_SPINS, DEFAULT_YIELDS, DEFAULT_MIN_SELECT_NS, DEFAULT_MAX_SELECT_NS);
+	}
+
+	public SelectorIdleStrategy(int maxSpins, int maxYields, long minParkNS, long maxParkNS) {
+		super(maxSpins, maxYields, minParkNS, maxParkNS);
+	}
+
+	/**
+	 * Called by a stage in startup() once its selector is open. Does nothing unless the thread running the stage
+	 * uses a SelectorIdleStrategy.
+	 */
+	public static void register(GraphManager gm, PronghornStage stage, Selector selector) {
+		IdleStrategy idle = GraphManager.getIdleStrategy(gm, stage.stageId);
+		if (idle instanceof SelectorIdleStrategy) {
+			SelectorIdleStrategy that = (SelectorIdleStrategy)idle;
+			synchronized(that) {
+				that.registered = Arrays.copyOf(that.registered, that.registered.length+1);
+				that.registered[that.registered.length-1] = selector;
+				that.selector = 1==that.registered.length ? selector : null;
+			}
+		}
+	}
+
+	/**
+	 * Called by a stage in shutdown() before it closes its selector.
+	 */
+	public static void unregister(GraphManager gm, PronghornStage stage, Selector selector) {
+		IdleStrategy idle = GraphManager.getIdleStrategy(gm, stage.stageId);
+		if (idle instanceof SelectorIdleStrategy) {
+			SelectorIdleStrategy that = (SelectorIdleStrategy)idle;
+			synchronized(that) {
+				int i = that.registered.length;
+				while (--i>=0) {
+					if (selector == that.registered[i]) {
+						Selector[] remaining = new Selector[that.registered.length-1];
+						System.arraycopy(that.registered, 0, remaining, 0, i);
+						System.arraycopy(that.registered, i+1, remaining, i, remaining.length-i);
+						that.registered = remaining;
+						break;
+					}
+				}
+				that.selector = 1==that.registered.length ? that.registered[0] : null;
+			}
+		}
+	}
+
+	@Override
+	protected void park(long ns) {
+		Selector local = selector;
+		if (null==local || !local.isOpen() || ns<MS_TO_NS) {
+			super.park(ns);
+			return;
+		}
+		try {
+			local.select(ns/MS_TO_NS);
+		} catch (ClosedSelectorException e) {
+			//closed by its stage since the check above, other stages on this thread may still be running
+			super.park(ns);
+		} catch (IOException e) {
+			//the stage will find the broken selector on its next pass
+			super.park(ns);
+		}
+	}
+
+	@Override
+	protected void unpark(Thread t) {
+		Selector local = selector;
+		if (null!=local) {
+			local.wakeup();
+		}
+		super.unpark(t);
+	}
+
+}
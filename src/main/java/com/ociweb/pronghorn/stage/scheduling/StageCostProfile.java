@@ -0,0 +1,219 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import com.ociweb.pronghorn.pipe.MessageSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+/**
+ * Load of each stage and traffic of each pipe, used by CostModelPartitioner to divide a graph between threads.
+ *
+ * Stage load comes from, in order of preference, the STAGE_COST nota, the run() time measured while the graph
+ * was instrumented, or a default of one unit. Declared and default costs describe a stage which is scheduled
+ * continuously, so a SCHEDULE_RATE longer than RATE_REFERENCE_NS scales them down in proportion. Measured
+ * times already include the effect of the rate.
+ *
+ * When any stage was measured every load is in nanoseconds, units are converted at the mean measured nanoseconds
+ * per unit so declared and measured stages can be compared. See toNanoseconds.
+ *
+ * Pipe traffic is the number of slab slots written so far when the graph has run, else the pipe size.
+ *
+ * Stage and pipe ids are stable for a given graph construction so a captured profile can be saved and used to
+ * partition the same graph on a later run.
+ */
+public class StageCostProfile {
+
+	public static final long DEFAULT_COST = 1;
+	//stages scheduled at this rate or faster are treated as continuously running
+	public static final long RATE_REFERENCE_NS = 1_000_000;
+
+	private static final String STAGE = "stage";
+	private static final String PIPE  = "pipe";
+
+	final long[] stageLoad;     //indexed by stage id
+	final long[] pipeBandwidth; //indexed by pipe id
+
+	public StageCostProfile(long[] stageLoad, long[] pipeBandwidth) {
+		this.stageLoad = stageLoad;
+		this.pipeBandwidth = pipeBandwidth;
+	}
+
+	public static StageCostProfile capture(GraphManager gm) {
+
+		PronghornStage[] stages = GraphManager.allStages(gm);
+		int maxStageId = 0;
+		int i = stages.length;
+		while (--i>=0) {
+			maxStageId = Math.max(maxStageId, stages[i].stageId);
+		}
+
+		boolean useMeasured = GraphManager.isInstrumented(gm);
+		long[] units = new long[maxStageId+1];
+		long[] measured = new long[maxStageId+1];
+		boolean[] declared = new boolean[maxStageId+1];
+		i = stages.length;
+		while (--i>=0) {
+			int id = stages[i].stageId;
+			units[id] = stageUnits(gm, stages[i]);
+			measured[id] = useMeasured ? GraphManager.getRunTotalNS(gm, id) : 0;
+			declared[id] = null != GraphManager.getNota(gm, stages[i], GraphManager.STAGE_COST, null);
+		}
+		long[] stageLoad = toNanoseconds(units, measured, declared);
+
+		Pipe<MessageSchema>[] pipes = GraphManager.allPipes(gm);
+		int maxPipeId = 0;
+		i = pipes.length;
+		while (--i>=0) {
+			maxPipeId = Math.max(maxPipeId, pipes[i].id);
+		}
+		long[] written = new long[maxPipeId+1];
+		boolean hasTraffic = false;
+		i = pipes.length;
+		while (--i>=0) {
+			if (Pipe.isInit(pipes[i])) {
+				written[pipes[i].id] = Math.max(0, Pipe.headPosition(pipes[i]));
+				hasTraffic |= written[pipes[i].id]>0;
+			}
+		}
+		if (!hasTraffic) {
+			//nothing has flowed yet, larger pipes were configured for more traffic
+			i = pipes.length;
+			while (--i>=0) {
+				written[pipes[i].id] = 1L<<pipes[i].config().slabBits();
+			}
+		}
+
+		return new StageCostProfile(stageLoad, written);
+	}
+
+	private static long stageUnits(GraphManager gm, PronghornStage stage) {
+		Object declared = GraphManager.getNota(gm, stage, GraphManager.STAGE_COST, null);
+		long cost = null==declared ? DEFAULT_COST : declared instanceof Number ? ((Number)declared).longValue() : Long.parseLong(declared.toString());
+		return scaleByRate(gm, stage, Math.max(1, cost));
+	}
+
+	/**
+	 * Put every stage on one scale, units is the declared or default cost of each stage and measured its run() time
+	 * or zero. Stages with a STAGE_COST nota keep it, converted at the nanoseconds per unit of the stages which were
+	 * both declared and measured, or of every measured stage if none were. With nothing measured the units are returned.
+	 *
+	 * @param declared true for the stages whose units came from the STAGE_COST nota
+	 */
+	static long[] toNanoseconds(long[] units, long[] measured, boolean[] declared) {
+		long declaredNS = 0;
+		long declaredUnits = 0;
+		long measuredNS = 0;
+		long measuredUnits = 0;
+		int i = units.length;
+		while (--i>=0) {
+			if (measured[i]>0) {
+				measuredNS += measured[i];
+				measuredUnits += units[i];
+				if (declared[i]) {
+					declaredNS += measured[i];
+					declaredUnits += units[i];
+				}
+			}
+		}
+		if (0==measuredUnits) {
+			return units;
+		}
+		double nsPerUnit = declaredUnits>0 ? declaredNS/(double)declaredUnits : measuredNS/(double)measuredUnits;
+
+		long[] load = new long[units.length];
+		i = units.length;
+		while (--i>=0) {
+			if (measured[i]>0 && !declared[i]) {
+				load[i] = measured[i];
+			} else if (units[i]>0) {
+				load[i] = Math.max(1, (long)(units[i]*nsPerUnit));
+			}
+		}
+		return load;
+	}
+
+	private static long scaleByRate(GraphManager gm, PronghornStage stage, long cost) {
+		Object value = GraphManager.getNota(gm, stage, GraphManager.SCHEDULE_RATE, null);
+		long rate = value instanceof Number ? ((Number)value).longValue() : null==value ? 0 : Long.parseLong(value.toString());
+		if (rate>RATE_REFERENCE_NS) {
+			return Math.max(1, (cost*RATE_REFERENCE_NS)/rate);
+		}
+		return cost;
+	}
+
+	public static long stageLoad(StageCostProfile profile, int stageId) {
+		return stageId<profile.stageLoad.length ? profile.stageLoad[stageId] : DEFAULT_COST;
+	}
+
+	public static long pipeBandwidth(StageCostProfile profile, int pipeId) {
+		return pipeId<profile.pipeBandwidth.length ? profile.pipeBandwidth[pipeId] : 0;
+	}
+
+	/**
+	 * Write as lines of "stage id load" and "pipe id bandwidth", zero entries are skipped.
+	 */
+	public static void save(StageCostProfile profile, OutputStream out) {
+		PrintWriter writer = new PrintWriter(out);
+		for(int i=0; i<profile.stageLoad.length; i++) {
+			if (0 != profile.stageLoad[i]) {
+				writer.print(STAGE);
+				writer.print(' ');
+				writer.print(i);
+				writer.print(' ');
+				writer.println(profile.stageLoad[i]);
+			}
+		}
+		for(int i=0; i<profile.pipeBandwidth.length; i++) {
+			if (0 != profile.pipeBandwidth[i]) {
+				writer.print(PIPE);
+				writer.print(' ');
+				writer.print(i);
+				writer.print(' ');
+				writer.println(profile.pipeBandwidth[i]);
+			}
+		}
+		writer.flush();
+	}
+
+	public static StageCostProfile load(InputStream in) throws IOException {
+		long[] stageLoad = new long[0];
+		long[] pipeBandwidth = new long[0];
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line;
+		while (null != (line = reader.readLine())) {
+			line = line.trim();
+			if (line.length()==0 || line.charAt(0)=='#') {
+				continue;
+			}
+			String[] parts = line.split("\\s+");
+			if (parts.length!=3) {
+				throw new IOException("Expected three fields but found: "+line);
+			}
+			int id = Integer.parseInt(parts[1]);
+			long value = Long.parseLong(parts[2]);
+			if (STAGE.equals(parts[0])) {
+				if (id>=stageLoad.length) {
+					stageLoad = Arrays.copyOf(stageLoad, id+1);
+				}
+				stageLoad[id] = value;
+			} else if (PIPE.equals(parts[0])) {
+				if (id>=pipeBandwidth.length) {
+					pipeBandwidth = Arrays.copyOf(pipeBandwidth, id+1);
+				}
+				pipeBandwidth[id] = value;
+			} else {
+				throw new IOException("Unknown entry: "+line);
+			}
+		}
+		return new StageCostProfile(stageLoad, pipeBandwidth);
+	}
+
+}
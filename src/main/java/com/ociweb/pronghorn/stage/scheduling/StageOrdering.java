@@ -0,0 +1,125 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import com.ociweb.pronghorn.pipe.MessageSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+/**
+ * Computes the order in which a single thread should visit a group of stages based on the pipes between them.
+ *
+ * Only pipes where both the producer and consumer are in the group are considered. Cycles are broken by
+ * first choosing stages marked with the PRODUCER nota and then the stage with the fewest unvisited producers,
+ * so every stage appears exactly once in the result.
+ */
+public class StageOrdering {
+
+	/** Legacy order, last stage in the array runs first. */
+	public static final int REVERSE_ARRAY  = 0;
+	/** Producers run before their consumers so fresh data is still in cache when it is consumed. */
+	public static final int PRODUCER_FIRST = 1;
+	/** Consumers run before their producers so pipes are drained before more is written. */
+	public static final int CONSUMER_FIRST = 2;
+
+	/**
+	 * @return indexes into stages in the order they should be run
+	 */
+	public static int[] order(GraphManager gm, PronghornStage[] stages, int mode) {
+
+		final int count = stages.length;
+		int[] result = new int[count];
+
+		if (REVERSE_ARRAY == mode) {
+			int i = count;
+			while (--i>=0) {
+				result[count-1-i] = i;
+			}
+			return result;
+		}
+
+		//count the producers of each stage which are also in this group
+		int[] inDegree = new int[count];
+		int i = count;
+		while (--i>=0) {
+			int c = GraphManager.getOutputPipeCount(gm, stages[i].stageId);
+			for(int r=1; r<=c; r++) {
+				int consumerIdx = consumerIndex(gm, stages, GraphManager.getOutputPipe(gm, stages[i], r));
+				if (consumerIdx>=0 && consumerIdx!=i) {
+					inDegree[consumerIdx]++;
+				}
+			}
+		}
+
+		boolean[] done = new boolean[count];
+		int resultCount = 0;
+		while (resultCount<count) {
+
+			//take the first ready stage in array order, this keeps the result stable between runs
+			int next = -1;
+			for(i=0; i<count; i++) {
+				if (!done[i] && 0==inDegree[i]) {
+					next = i;
+					break;
+				}
+			}
+
+			if (next<0) {
+				next = breakCycle(gm, stages, done, inDegree);
+			}
+
+			done[next] = true;
+			result[resultCount++] = next;
+
+			int c = GraphManager.getOutputPipeCount(gm, stages[next].stageId);
+			for(int r=1; r<=c; r++) {
+				int consumerIdx = consumerIndex(gm, stages, GraphManager.getOutputPipe(gm, stages[next], r));
+				if (consumerIdx>=0 && !done[consumerIdx]) {
+					inDegree[consumerIdx]--;
+				}
+			}
+		}
+
+		if (CONSUMER_FIRST == mode) {
+			int j = count>>1;
+			while (--j>=0) {
+				int temp = result[j];
+				result[j] = result[count-1-j];
+				result[count-1-j] = temp;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Every remaining stage is waiting on another, pick the explicit producer if there is one else the least blocked.
+	 */
+	private static int breakCycle(GraphManager gm, PronghornStage[] stages, boolean[] done, int[] inDegree) {
+		int best = -1;
+		int i = stages.length;
+		while (--i>=0) {
+			if (!done[i]) {
+				if (null != GraphManager.getNota(gm, stages[i].stageId, GraphManager.PRODUCER, null)) {
+					return i;
+				}
+				if (best<0 || inDegree[i]<=inDegree[best]) {
+					best = i;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return index of the consumer of this pipe in stages or -1 if it is run by some other thread
+	 */
+	static int consumerIndex(GraphManager gm, PronghornStage[] stages, Pipe<MessageSchema> pipe) {
+		int consumerId = GraphManager.getRingConsumerId(gm, pipe.id);
+		int k = stages.length;
+		while (--k>=0) {
+			if (stages[k].stageId == consumerId) {
+				return k;
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,214 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+/**
+ * Fault isolation for a single stage, used by the schedulers around each call to run().
+ *
+ * Before each run() the working tail of every input pipe is captured. When run() throws the inputs are put back
+ * where they were, or at the published tail if the stage released fragments before failing, then reset() is
+ * called and the stage is run again as normal. After maxRetries consecutive failures the fragment the stage was
+ * working on is skipped, copied first to the dead letter pipe if one was given, so the rest of the stream can
+ * continue. Only the working positions move, so rollback is exact for stages using the low level Pipe API,
+ * stages using PipeReader must clear their read state in reset().
+ *
+ * Outputs are rolled back to their published heads, so a fragment half written by the failed run is dropped and
+ * never seen downstream. Fragments already published stay, stages which batch their publishes with
+ * Pipe.setPublishBatchSize must not be supervised since their confirmed but unpublished fragments would be lost.
+ *
+ * Enabled per stage with the SUPERVISE nota (value is the retry count) or the DEAD_LETTER nota. The dead letter
+ * pipe is written from the thread running the stage so it must not be shared by stages on different threads.
+ * Nothing is allocated until a failure happens.
+ */
+public class StageSupervisor {
+
+	private static final Logger log = LoggerFactory.getLogger(StageSupervisor.class);
+
+	public static final int DEFAULT_MAX_RETRIES = 3;
+
+	private final GraphManager graphManager;
+	private final PronghornStage stage;
+	private final Pipe[] inputs;
+	private final Pipe[] outputs;
+	private final long[] slabTail;  //by input, working tail before the current run
+	private final int[] blobTail;   //by input, working blob tail before the current run
+	private final Pipe<RawDataSchema> deadLetter; //may be null
+	private final int maxRetries;
+	private int failures;
+	private long skipped;
+
+	public StageSupervisor(GraphManager graphManager, PronghornStage stage, int maxRetries, Pipe<RawDataSchema> deadLetter) {
+		this.graphManager = graphManager;
+		this.stage = stage;
+		this.maxRetries = maxRetries;
+		this.deadLetter = deadLetter;
+
+		int count = GraphManager.getInputPipeCount(graphManager, stage);
+		this.inputs = new Pipe[count];
+		int i = count;
+		while (--i>=0) {
+			inputs[i] = GraphManager.getInputPipe(graphManager, stage, i+1);
+		}
+		int outCount = GraphManager.getOutputPipeCount(graphManager, stage.stageId);
+		this.outputs = new Pipe[outCount];
+		i = outCount;
+		while (--i>=0) {
+			outputs[i] = GraphManager.getOutputPipe(graphManager, stage, i+1);
+		}
+		this.slabTail = new long[count];
+		this.blobTail = new int[count];
+	}
+
+	/**
+	 * @return supervisor for this stage or null if the stage has neither the SUPERVISE nor the DEAD_LETTER nota
+	 */
+	@SuppressWarnings("unchecked")
+	public static StageSupervisor supervise(GraphManager graphManager, PronghornStage stage) {
+		Object retries = GraphManager.getNota(graphManager, stage, GraphManager.SUPERVISE, null);
+		Object deadLetter = GraphManager.getNota(graphManager, stage, GraphManager.DEAD_LETTER, null);
+		if (null==retries && null==deadLetter) {
+			return null;
+		}
+		int maxRetries = retries instanceof Number ? ((Number)retries).intValue()
+				       : retries instanceof String ? Integer.parseInt((String)retries) : DEFAULT_MAX_RETRIES;
+		return new StageSupervisor(graphManager, stage, Math.max(0, maxRetries), (Pipe<RawDataSchema>)deadLetter);
+	}
+
+	/**
+	 * Capture the input positions, must be called on the thread running the stage just before run().
+	 */
+	public static void beforeRun(StageSupervisor that) {
+		int i = that.inputs.length;
+		while (--i>=0) {
+			that.slabTail[i] = Pipe.getWorkingTailPosition(that.inputs[i]);
+			that.blobTail[i] = Pipe.getWorkingBlobRingTailPosition(that.inputs[i]);
+		}
+	}
+
+	public static void afterRun(StageSupervisor that) {
+		that.failures = 0;
+	}
+
+	/**
+	 * Run the stage once, recovering from any failure. Unsupervised stages, when that is null, are just run.
+	 */
+	public static void run(StageSupervisor that, PronghornStage stage) {
+		if (null==that) {
+			stage.run();
+		} else {
+			beforeRun(that);
+			try {
+				stage.run();
+			} catch (Throwable t) {
+				if (!recover(that, t)) {
+					throw t;
+				}
+				return;
+			}
+			that.failures = 0;
+		}
+	}
+
+	/**
+	 * Roll the inputs back after run() has thrown and get the stage ready to run again.
+	 *
+	 * @return false if the failure could not be isolated, the caller must then treat it as it would without supervision
+	 */
+	public static boolean recover(StageSupervisor that, Throwable t) {
+
+		//put each input back, the pipe which moved is the one holding the fragment that failed
+		int advanced = -1;
+		int i = that.inputs.length;
+		while (--i>=0) {
+			Pipe pipe = that.inputs[i];
+			long published = Pipe.tailPosition(pipe);
+			long target = that.slabTail[i];
+			int blobTarget = that.blobTail[i];
+			if (published>target) {
+				//fragments released during the failed run were consumed, never read them twice
+				target = published;
+				blobTarget = Pipe.getBlobRingTailPosition(pipe);
+			}
+			if (Pipe.getWorkingTailPosition(pipe)>target) {
+				advanced = i;
+			}
+			Pipe.setWorkingTailPosition(pipe, target);
+			Pipe.setBytesWorkingTail(pipe, blobTarget);
+		}
+
+		//anything written but not published by the failed run is dropped
+		i = that.outputs.length;
+		while (--i>=0) {
+			Pipe pipe = that.outputs[i];
+			Pipe.setWorkingHead(pipe, Pipe.headPosition(pipe));
+			Pipe.setBytesWorkingHead(pipe, Pipe.getBlobRingHeadPosition(pipe));
+		}
+
+		try {
+			that.stage.reset();
+		} catch (Throwable rt) {
+			log.error("Unable to reset stage "+that.stage+" after failure", rt);
+			return false;
+		}
+
+		if (++that.failures <= that.maxRetries) {
+			log.warn("Stage "+that.stage+" failed, retry "+that.failures+" of "+that.maxRetries, t);
+			return true;
+		}
+
+		if (advanced<0) {
+			i = that.inputs.length;
+			while (--i>=0) {
+				if (Pipe.contentRemaining(that.inputs[i])>0) {
+					advanced = i;
+				}
+			}
+		}
+		if (advanced<0 || Pipe.peekInt(that.inputs[advanced])<0) {
+			//not caused by any input or the next fragment is the end of stream, nothing to skip
+			return false;
+		}
+
+		skipFragment(that, that.inputs[advanced]);
+		that.failures = 0;
+		log.error("Stage "+that.stage+" failed "+(that.maxRetries+1)+" times, skipped fragment on "+that.inputs[advanced], t);
+		return true;
+	}
+
+	private static void skipFragment(StageSupervisor that, Pipe pipe) {
+
+		int blobStart = Pipe.getWorkingBlobRingTailPosition(pipe);
+		long fragmentStart = Pipe.getWorkingTailPosition(pipe);
+		int msgIdx = Pipe.takeMsgIdx(pipe);
+		int size = Pipe.sizeOf(pipe, msgIdx);
+		Pipe.confirmLowLevelRead(pipe, size);
+		//step over the fields without reading them, the last int of every fragment is the count of bytes it consumed
+		Pipe.setWorkingTailPosition(pipe, fragmentStart+size-1);
+		int blobLength = Pipe.peekInt(pipe);
+
+		if (null!=that.deadLetter) {
+			//bytes must be copied before the release lets the producer write over them
+			if (Pipe.hasRoomForWrite(that.deadLetter)) {
+				Pipe.addMsgIdx(that.deadLetter, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+				Pipe.addByteArrayWithMask(that.deadLetter, Pipe.blobMask(pipe), blobLength, Pipe.blob(pipe), blobStart);
+				Pipe.confirmLowLevelWrite(that.deadLetter, Pipe.sizeOf(that.deadLetter, RawDataSchema.MSG_CHUNKEDSTREAM_1));
+				Pipe.publishWrites(that.deadLetter);
+			} else {
+				log.warn("Dead letter pipe is full, dropped fragment "+msgIdx+" from "+pipe);
+			}
+		}
+
+		Pipe.releaseReadLock(pipe);
+		that.skipped++;
+	}
+
+	public static long skippedCount(StageSupervisor that) {
+		return that.skipped;
+	}
+
+}
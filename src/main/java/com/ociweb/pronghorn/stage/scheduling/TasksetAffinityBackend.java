@@ -0,0 +1,64 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Linux backend which needs no native code. The kernel thread id is read from /proc/thread-self and
+ * the affinity mask is applied by running taskset against that id.  This is only done once per thread
+ * as it starts so the cost of the extra process does not matter.
+ */
+public class TasksetAffinityBackend implements AffinityBackend {
+
+	private static final Logger logger = LoggerFactory.getLogger(TasksetAffinityBackend.class);
+	
+	private static final String THREAD_SELF = "/proc/thread-self";
+	private static final String[] SEARCH_PATH = new String[] {"/usr/bin/taskset", "/bin/taskset", "/usr/local/bin/taskset"};
+	
+	private final String taskset;
+	
+	public TasksetAffinityBackend() {
+		String found = null;
+		if (System.getProperty("os.name", "").toLowerCase().contains("linux") && new File(THREAD_SELF).exists()) {
+			for(String path: SEARCH_PATH) {
+				if (new File(path).canExecute()) {
+					found = path;
+					break;
+				}
+			}
+		}
+		taskset = found;
+	}
+	
+	@Override
+	public boolean isAvailable() {
+		return null != taskset;
+	}
+
+	@Override
+	public boolean pinCurrentThread(int[] cpus) {
+		if (null==taskset || 0==cpus.length) {
+			return false;
+		}
+		try {
+			//resolves to /proc/<pid>/task/<tid> for the calling thread
+			String tid = new File(THREAD_SELF).getCanonicalFile().getName();
+			
+			Process process = new ProcessBuilder(taskset, "-p", "-c", CPUTopology.toCPUList(cpus), tid).redirectErrorStream(true).start();
+			//drain so the process can not block on a full pipe
+			while (process.getInputStream().read()>=0) {
+			}
+			return 0 == process.waitFor();
+		} catch (IOException e) {
+			logger.debug("unable to pin thread", e);
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+}
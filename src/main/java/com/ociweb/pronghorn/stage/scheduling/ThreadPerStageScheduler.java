@@ -1,19 +1,26 @@
 package com.ociweb.pronghorn.stage.scheduling;
 
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.LockSupport;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ociweb.pronghorn.stage.PronghornStage;
 
+/**
+ * Runs every stage on its own thread.
+ *
+ * Startup is coordinated without locks. Each stage is claimed with a CAS on its GraphManager state so it can only
+ * be launched once, and each launch batch counts down an AtomicInteger as its stages finish startup. No stage of
+ * a batch enters its run loop until the whole batch has started. Subgraphs may be started, stopped and restarted
+ * while the rest of the graph keeps running.
+ */
 public class ThreadPerStageScheduler extends StageScheduler {
 	private static final Logger log = LoggerFactory.getLogger(ThreadPerStageScheduler.class);
 	
@@ -22,8 +29,12 @@ public class ThreadPerStageScheduler extends StageScheduler {
     private volatile Throwable firstException;//will remain null if nothing is wrong
 	public boolean playNice = true;
 	
-	private ReentrantLock unscheduledLock = new ReentrantLock();
-	private CyclicBarrier allStagesLatch;
+	//upper bound on each park while waiting, the last stage to start unparks everyone so this is rarely reached
+	private static final long MAX_WAIT_PARK_NS = 1_000_000;
+	
+	//threads of the UNSCHEDULED stages, parked until shutdown
+	private final ConcurrentLinkedQueue<Thread> unscheduledThreads = new ConcurrentLinkedQueue<Thread>();
+	private int[][] coreSets;//cpus for each stage id, null entries are not pinned
 	
 	//TODO: add low priority to the periodic threads? 
 	//TODO: check for Thread.yedld() want to phase that out and use parkNano
@@ -33,20 +44,84 @@ public class ThreadPerStageScheduler extends StageScheduler {
 		super(graphManager);		
 	}
 	
+	/**
+	 * Stages started together, none of them may begin running until all have completed startup.
+	 */
+	protected static final class StartupBatch {
+		private final AtomicInteger pending;
+		private final AtomicReferenceArray<Thread> waiters;
+		private final Thread launcher;
+
+		StartupBatch(int count, Thread launcher) {
+			this.pending = new AtomicInteger(count);
+			this.waiters = new AtomicReferenceArray<Thread>(count);
+			this.launcher = launcher;
+		}
+
+		static void register(StartupBatch batch, int slot) {
+			batch.waiters.lazySet(slot, Thread.currentThread());
+		}
+
+		static void arrive(StartupBatch batch) {
+			if (0 == batch.pending.decrementAndGet()) {
+				int i = batch.waiters.length();
+				while (--i>=0) {
+					Thread t = batch.waiters.get(i);
+					if (null!=t) {
+						LockSupport.unpark(t);
+					}
+				}
+				LockSupport.unpark(batch.launcher);
+			}
+		}
+
+		static void await(StartupBatch batch) {
+			while (batch.pending.get()>0) {
+				LockSupport.parkNanos(batch, MAX_WAIT_PARK_NS);
+			}
+		}
+	}
+	
 	public void startup() {
 	    
-	    unscheduledLock.lock();//stop any non-runnable stages from running until shutdown is started.
-				
+	    isShuttingDown = false;//may be started again after awaitTermination
+	    
 		int realStageCount = GraphManager.countStages(graphManager);
+		this.coreSets = planCoreSets(graphManager, realStageCount);
 		
-		this.executorService = Executors.newFixedThreadPool(realStageCount);
-
-		allStagesLatch = new CyclicBarrier(realStageCount+1);
+		startup(GraphManager.allStages(graphManager));
+	}
+	
+	/**
+	 * Start these stages and block until all of them have completed startup. Stages which are already running
+	 * are skipped and terminated stages are restarted, so this can be called for any subgraph at any time.
+	 */
+	public void startup(PronghornStage[] stages) {
 		
+		if (null==executorService || executorService.isShutdown()) {
+			//new for each start, a pool shut down by awaitTermination rejects every stage given to it
+			this.executorService = Executors.newCachedThreadPool();
+		}
 		
-		for(int i=1;i<=realStageCount;i++) {
-			PronghornStage stage = GraphManager.getStage(graphManager, i);
+		//claim each stage, only one caller can ever move a stage from new to starting
+		PronghornStage[] claimed = new PronghornStage[stages.length];
+		int count = 0;
+		for(int i=0; i<stages.length; i++) {
+			PronghornStage stage = stages[i];
 			if (null != stage) {
+				GraphManager.resetTerminatedState(graphManager, stage.stageId);
+				if (GraphManager.setStateToStarting(graphManager, stage.stageId)) {
+					claimed[count++] = stage;
+				}
+			}
+		}
+		if (0 == count) {
+			return;
+		}
+		
+		StartupBatch batch = new StartupBatch(count, Thread.currentThread());
+		for(int i=0;i<count;i++) {
+			PronghornStage stage = claimed[i];
 			    
 			    if (null == GraphManager.getNota(graphManager, stage, GraphManager.UNSCHEDULED, null)) {			        
     			    Object value = GraphManager.getNota(graphManager, stage, GraphManager.SCHEDULE_RATE, Long.valueOf(0));			    
@@ -55,39 +130,117 @@ public class ThreadPerStageScheduler extends StageScheduler {
     				//log.info("thread per stage rates "+stage+" rate "+rate);
     				
     				if (0==rate) {
-    					executorService.execute(buildRunnable(allStagesLatch, stage)); 	
+    					executorService.execute(buildRunnable(batch, i, stage)); 	
     				} else {
-    					executorService.execute(buildRunnable(allStagesLatch, rate, stage));
+    					executorService.execute(buildRunnable(batch, i, rate, stage));
     				}
 			    } else {
 			        
-			        executorService.execute(buildNonRunnable(allStagesLatch,stage));
+			        executorService.execute(buildNonRunnable(batch, i, stage));
 			        
 			    }
-			}
 		}		
 		
 		//force wait for all stages to complete startup before this method returns.
-		try {
-		    allStagesLatch.await();
-        } catch (InterruptedException e) {
-        } catch (BrokenBarrierException e) {
-        }
-		
+		StartupBatch.await(batch);
 		
 	}
-	
-	public void shutdown(){	
-		try {
-		    unscheduledLock.unlock();
-		} catch (Throwable t) {
+
+	/**
+	 * Every stage has its own thread so each is placed as its own group.
+	 */
+	private static int[][] planCoreSets(GraphManager graphManager, int realStageCount) {
+		if (!ThreadPlacement.isPlacementRequested(graphManager)) {
+			return null;
 		}
+		PronghornStage[][] groups = new PronghornStage[realStageCount+1][];
+		int i = realStageCount+1;
+		while (--i>=0) {
+			PronghornStage stage = GraphManager.getStage(graphManager, i);
+			groups[i] = null==stage ? new PronghornStage[0] : new PronghornStage[] {stage};
+		}
+		return ThreadPlacement.plan(graphManager, groups, CPUTopology.discover());
+	}
+
+	private void startupStage(PronghornStage stage) {
+		int[][] localCoreSets = coreSets;
+		if (null!=localCoreSets && stage.stageId<localCoreSets.length) {
+			ThreadPlacement.pinCurrentThread(localCoreSets[stage.stageId]);
+		}
+
+		//TODO: need to record state so we know the failure point
+		log.trace("block on initRings:{}",stage.getClass().getSimpleName());
+		GraphManager.initAllPipes(graphManager, stage.stageId);
+		log.trace("finished on initRings:{}",stage.getClass().getSimpleName());
 
+		Thread.currentThread().setName(stage.getClass().getSimpleName()+" id:"+stage.stageId);
+		stage.startup();
+		GraphManager.setStateToStarted(graphManager, stage.stageId);
+	}
+	
+	public void shutdown(){	
 		GraphManager.terminateInputStages(graphManager);
 		isShuttingDown = true;
+		wakeUnscheduled();
 				
 	}
 	
+	/**
+	 * Request shutdown of these stages only, the rest of the graph keeps running.
+	 * Use awaitTermination(PronghornStage[], long, TimeUnit) to wait for them to finish.
+	 */
+	public void shutdown(PronghornStage[] stages) {
+		int i = stages.length;
+		while (--i>=0) {
+			if (null != stages[i]) {
+				stages[i].requestShutdown();
+			}
+		}
+		wakeUnscheduled();
+	}
+	
+	/**
+	 * @return true if all these stages terminated within the timeout
+	 */
+	public boolean awaitTermination(PronghornStage[] stages, long timeout, TimeUnit unit) {
+		long limit = System.nanoTime()+unit.toNanos(timeout);
+		int i = stages.length;
+		while (--i>=0) {
+			if (null != stages[i]) {
+				while (!GraphManager.isStageTerminated(graphManager, stages[i].stageId)) {
+					long remaining = limit-System.nanoTime();
+					if (remaining<=0) {
+						return false;
+					}
+					LockSupport.parkNanos(this, Math.min(remaining, MAX_WAIT_PARK_NS));
+				}
+			}
+		}
+		return true;
+	}
+	
+	//UNSCHEDULED stages hold their thread but never run, they are parked here until shutdown
+	private void parkUntilShutdown(PronghornStage stage) {
+		Thread thread = Thread.currentThread();
+		unscheduledThreads.add(thread);
+		try {
+			while (!isShuttingDown && !GraphManager.isStageShuttingDown(graphManager, stage.stageId)) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					return;
+				}
+			}
+		} finally {
+			unscheduledThreads.remove(thread);
+		}
+	}
+	
+	private void wakeUnscheduled() {
+		for(Thread thread : unscheduledThreads) {
+			LockSupport.unpark(thread);
+		}
+	}
+	
 	/**
 	 * Normal shutdown request, blocks until all the stages have finished by seeing the poison pill.
 	 * 
@@ -96,11 +249,8 @@ public class ThreadPerStageScheduler extends StageScheduler {
 	 */
 	public boolean awaitTermination(long timeout, TimeUnit unit) {
 		
-	    try {
-	        unscheduledLock.unlock();
-	    } catch (Throwable t) {
-	    }
 		isShuttingDown = true;
+		wakeUnscheduled();
 		executorService.shutdown();
 		
 		//
@@ -148,7 +298,7 @@ public class ThreadPerStageScheduler extends StageScheduler {
 	}	
 
 	
-    protected Runnable buildNonRunnable(final CyclicBarrier allstages, final PronghornStage stage) {
+    protected Runnable buildNonRunnable(final StartupBatch batch, final int slot, final PronghornStage stage) {
 
         return new Runnable() {
             //once we get a thread we never give it back
@@ -163,25 +313,16 @@ public class ThreadPerStageScheduler extends StageScheduler {
             @Override
             public void run() {
                 try {
-                    
-                    //TODO: need to record state so we know the failure point
-                    log.trace("block on initRings:"+stage.getClass().getSimpleName());                  
-                    GraphManager.initAllPipes(graphManager, stage.stageId);                   
-                    log.trace("finished on initRings:"+stage.getClass().getSimpleName());
-                    
-                    Thread.currentThread().setName(stage.getClass().getSimpleName()+" id:"+stage.stageId);
-                    stage.startup();
-                    GraphManager.setStateToStarted(graphManager, stage.stageId);
-                    
+                    StartupBatch.register(batch, slot);
                     try {
-                        allStagesLatch.await();
-                    } catch (InterruptedException e) {
-                    } catch (BrokenBarrierException e) {
+                        startupStage(stage);
+                    } finally {
+                        StartupBatch.arrive(batch);
                     }
+                    StartupBatch.await(batch);
                     
                     //block here until shutdown is started
-                    unscheduledLock.lock();
-                    unscheduledLock.unlock();
+                    parkUntilShutdown(stage);
                     
                     
                 } catch (Throwable t) {                 
@@ -216,7 +357,7 @@ public class ThreadPerStageScheduler extends StageScheduler {
     }
 	
 	
-	protected Runnable buildRunnable(final CyclicBarrier allstages, final PronghornStage stage) {
+	protected Runnable buildRunnable(final StartupBatch batch, final int slot, final PronghornStage stage) {
 
 		return new Runnable() {
 			//once we get a thread we never give it back
@@ -231,22 +372,14 @@ public class ThreadPerStageScheduler extends StageScheduler {
 			@Override
 			public void run() {
 				try {
-					
-					//TODO: need to record state so we know the failure point
-					log.trace("block on initRings:"+stage.getClass().getSimpleName());					
-					GraphManager.initAllPipes(graphManager, stage.stageId);					
-					log.trace("finished on initRings:"+stage.getClass().getSimpleName());
-					
-					Thread.currentThread().setName(stage.getClass().getSimpleName()+" id:"+stage.stageId);
-					stage.startup();
-					GraphManager.setStateToStarted(graphManager, stage.stageId);
-					
-				       try {
-				            allStagesLatch.await();
-				        } catch (InterruptedException e) {
-				        } catch (BrokenBarrierException e) {
-				        }
-					runLoop(stage);	
+					StartupBatch.register(batch, slot);
+					try {
+						startupStage(stage);
+					} finally {
+						StartupBatch.arrive(batch);
+					}
+					StartupBatch.await(batch);
+					runLoop(stage, StageSupervisor.supervise(graphManager, stage));	
 			
 				} catch (Throwable t) {				    
 	                recordTheException(stage, t);
@@ -294,7 +427,7 @@ public class ThreadPerStageScheduler extends StageScheduler {
 		};
 	}
 	
-	protected Runnable buildRunnable(final CyclicBarrier allstages, final long nsScheduleRate, final PronghornStage stage) {
+	protected Runnable buildRunnable(final StartupBatch batch, final int slot, final long nsScheduleRate, final PronghornStage stage) {
 
 		return new Runnable() {
 			//once we get a thread we never give it back
@@ -315,23 +448,15 @@ public class ThreadPerStageScheduler extends StageScheduler {
 			@Override
 			public void run() {
 				try {	
-					
-					log.trace("block on initRings:{}",stage.getClass().getSimpleName());
-					GraphManager.initAllPipes(graphManager, stage.stageId);
-					log.trace("finished on initRings:{}",stage.getClass().getSimpleName());
-					
-					Thread.currentThread().setName(stage.getClass().getSimpleName()+" id:"+stage.stageId);				
-					stage.startup();
-					
-					GraphManager.setStateToStarted(graphManager, stage.stageId);					
-				       
+					StartupBatch.register(batch, slot);
 					try {
-				            allStagesLatch.await();
-				        } catch (InterruptedException e) {
-				        } catch (BrokenBarrierException e) {
-				        }
+						startupStage(stage);
+					} finally {
+						StartupBatch.arrive(batch);
+					}
+					StartupBatch.await(batch);
 					
-					runPeriodicLoop(nsScheduleRate/1_000_000l, (int)(nsScheduleRate%1_000_000l), stage);	
+					runPeriodicLoop(nsScheduleRate/1_000_000l, (int)(nsScheduleRate%1_000_000l), stage, StageSupervisor.supervise(graphManager, stage));	
 			
 					stage.shutdown();
 					GraphManager.setStateToShutdown(graphManager, stage.stageId); //Must ensure marked as terminated
@@ -354,18 +479,18 @@ public class ThreadPerStageScheduler extends StageScheduler {
 		};
 	}
 
-	private final void runLoopNotNice(final PronghornStage stage) {
+	private final void runLoopNotNice(final PronghornStage stage, final StageSupervisor supervisor) {
 	    assert(!playNice);
 	    assert(!GraphManager.isRateLimited(graphManager,  stage.stageId));
         do {
-            stage.run();
+            StageSupervisor.run(supervisor, stage);
         } while (continueRunning(this, stage));
 	    
 	}
 	
-	private final void runLoop(final PronghornStage stage) {
+	private final void runLoop(final PronghornStage stage, final StageSupervisor supervisor) {
 	    if (!playNice && !GraphManager.isRateLimited(graphManager,  stage.stageId) ) {
-	        runLoopNotNice(stage);
+	        runLoopNotNice(stage, supervisor);
 	    } else {
 	    	if (!GraphManager.isRateLimited(graphManager,  stage.stageId)) {
 	    		int i = 0;
@@ -375,17 +500,17 @@ public class ThreadPerStageScheduler extends StageScheduler {
 				            //before doing yield must push any batched up writes & reads
 				            Thread.yield(); 
 				    }
-					stage.run();					
+					StageSupervisor.run(supervisor, stage);					
 					
 				} while (continueRunning(this, stage));
 	    		
 	    	} else {
-	    		runLoopRateLimited(stage);	
+	    		runLoopRateLimited(stage, supervisor);	
 	    	}
 	    }
 	}
 
-	private void runLoopRateLimited(final PronghornStage stage) {
+	private void runLoopRateLimited(final PronghornStage stage, final StageSupervisor supervisor) {
 		int i = 0;
 		do {
 		    long nsDelay =  GraphManager.delayRequiredNS(graphManager,stage.stageId);
@@ -401,7 +526,7 @@ public class ThreadPerStageScheduler extends StageScheduler {
 		            //before doing yield must push any batched up writes & reads
 		            Thread.yield();
 		    }
-			stage.run();			
+			StageSupervisor.run(supervisor, stage);			
 			
 			
 		} while (continueRunning(this, stage));
@@ -413,7 +538,7 @@ public class ThreadPerStageScheduler extends StageScheduler {
 				(!tpss.isShuttingDown || GraphManager.mayHaveUpstreamData(tpss.graphManager, stage.stageId) );
 	}
 
-	private void runPeriodicLoop(final long msSleep, final int nsSleep, final PronghornStage stage) {
+	private void runPeriodicLoop(final long msSleep, final int nsSleep, final PronghornStage stage, final StageSupervisor supervisor) {
 		assert(nsSleep<=1_000_000);
 		int stageId = stage.stageId;
 		GraphManager localGM = graphManager;
@@ -452,7 +577,7 @@ public class ThreadPerStageScheduler extends StageScheduler {
 				}
 			}
 			
-			stage.run();
+			StageSupervisor.run(supervisor, stage);
 		} while (!isShuttingDown && !GraphManager.isStageShuttingDown(localGM, stageId));		
 	}
 
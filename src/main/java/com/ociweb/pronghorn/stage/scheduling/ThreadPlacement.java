@@ -0,0 +1,319 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.pipe.MessageSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+/**
+ * Chooses the cpus for each scheduler thread based on the CORE_SET nota and pins the thread as it starts.
+ *
+ * A group of stages which share a thread is pinned when any of its stages has the nota. A cpu list value
+ * such as "0-3" is used as is. The AUTO_CORE_SET value lets this class choose, groups are assigned to memory
+ * domains (NUMA nodes or sockets) so that groups joined by pipes share a domain whenever capacity allows.
+ * Inside a domain each group gets its own cpu if there are enough, otherwise they share the domain. Cpus named
+ * in a cpu list are left out of both unless nothing else is left in the domain.
+ *
+ * Placement is only an optimization, when no backend is available the threads simply run unpinned.
+ */
+public class ThreadPlacement {
+
+	private static final Logger logger = LoggerFactory.getLogger(ThreadPlacement.class);
+
+	private static AffinityBackend backend;
+	private static boolean reportedUnavailable;
+
+	public static synchronized void setAffinityBackend(AffinityBackend affinityBackend) {
+		backend = affinityBackend;
+		reportedUnavailable = false;
+	}
+
+	private static synchronized AffinityBackend backend() {
+		if (null == backend) {
+			backend = new TasksetAffinityBackend();
+		}
+		return backend;
+	}
+
+	/**
+	 * @return true if any stage in the graph has the CORE_SET nota
+	 */
+	public static boolean isPlacementRequested(GraphManager gm) {
+		return GraphManager.countStagesWithNotaKey(gm, GraphManager.CORE_SET)>0;
+	}
+
+	/**
+	 * Pin the calling thread, does nothing when cpus is null or no backend can be used on this platform.
+	 */
+	public static void pinCurrentThread(int[] cpus) {
+		if (null == cpus) {
+			return;
+		}
+		AffinityBackend local = backend();
+		if (!local.isAvailable()) {
+			synchronized(ThreadPlacement.class) {
+				if (!reportedUnavailable) {
+					reportedUnavailable = true;
+					logger.info("CORE_SET requested but thread affinity is not available on this platform, threads will not be pinned");
+				}
+			}
+			return;
+		}
+		if (!local.pinCurrentThread(cpus)) {
+			logger.warn("unable to pin {} to cpus {}", Thread.currentThread().getName(), CPUTopology.toCPUList(cpus));
+		}
+	}
+
+	/**
+	 * @param groups the stages run by each thread
+	 * @return cpus for each group, null entries are not pinned
+	 */
+	public static int[][] plan(GraphManager gm, PronghornStage[][] groups, CPUTopology topology) {
+
+		final int groupCount = groups.length;
+		int[][] explicit = new int[groupCount][];
+		boolean[] isAuto = new boolean[groupCount];
+
+		//explicit cpu lists are taken as given
+		int autoCount = 0;
+		int g = groupCount;
+		while (--g>=0) {
+			Object value = coreSetNota(gm, groups[g]);
+			if (null != value) {
+				if (isAutoValue(value)) {
+					isAuto[g] = true;
+					autoCount++;
+				} else {
+					explicit[g] = value instanceof int[] ? (int[])value : CPUTopology.parseCPUList(value.toString());
+				}
+			}
+		}
+		if (0 == autoCount) {
+			return explicit;
+		}
+		return place(explicit, isAuto, buildGroupWeights(gm, groups), topology);
+	}
+
+	/**
+	 * @param explicit cpus given to each group by its nota, null for the others
+	 * @param isAuto groups placed by this call
+	 * @param weights count of pipes between each pair of groups
+	 * @return cpus for each group, null entries are not pinned
+	 */
+	static int[][] place(int[][] explicit, boolean[] isAuto, int[][] weights, CPUTopology topology) {
+
+		final int groupCount = explicit.length;
+		int[][] result = Arrays.copyOf(explicit, groupCount);
+		int[] groupDomain = new int[groupCount];
+		Arrays.fill(groupDomain, -1);
+
+		int autoCount = 0;
+		int g = groupCount;
+		while (--g>=0) {
+			if (isAuto[g]) {
+				autoCount++;
+			} else if (null!=explicit[g] && explicit[g].length>0) {
+				groupDomain[g] = domainOf(topology, explicit[g][0]);
+			}
+		}
+
+		//cpus not already given to an explicit group, automatic groups only get their own cpu from these
+		int[][] free = new int[topology.domainCount][];
+		int totalFree = 0;
+		int d = topology.domainCount;
+		while (--d>=0) {
+			free[d] = unclaimed(topology.cpusInDomain(d), explicit);
+			totalFree += free[d].length;
+		}
+
+		//each domain takes a share of the automatic groups in proportion to its free cpus, or all its cpus if none are free
+		int[] capacity = new int[topology.domainCount];
+		int[] assigned = new int[topology.domainCount];
+		d = topology.domainCount;
+		while (--d>=0) {
+			int cpus = totalFree>0 ? free[d].length : topology.cpusInDomain(d).length;
+			int total = totalFree>0 ? totalFree : topology.cpus.length;
+			capacity[d] = cpus>0 ? (int)Math.ceil((autoCount*(double)cpus)/total) : 0;
+		}
+
+		//place the most connected groups first so they anchor their neighbors
+		Integer[] order = new Integer[groupCount];
+		final long[] totals = new long[groupCount];
+		g = groupCount;
+		while (--g>=0) {
+			order[g] = g;
+			int h = groupCount;
+			while (--h>=0) {
+				totals[g] += weights[g][h];
+			}
+		}
+		Arrays.sort(order, new java.util.Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(totals[b], totals[a]);
+			}
+		});
+
+		for(int i=0; i<groupCount; i++) {
+			int group = order[i];
+			if (!isAuto[group]) {
+				continue;
+			}
+			int bestDomain = -1;
+			long bestAffinity = -1;
+			d = topology.domainCount;
+			while (--d>=0) {
+				if (assigned[d]<capacity[d]) {
+					long affinity = 0;
+					int h = groupCount;
+					while (--h>=0) {
+						if (groupDomain[h]==d) {
+							affinity += weights[group][h];
+						}
+					}
+					//prefer the strongest pull, then the emptiest domain
+					if (affinity>bestAffinity || (affinity==bestAffinity && assigned[d]<assigned[bestDomain])) {
+						bestAffinity = affinity;
+						bestDomain = d;
+					}
+				}
+			}
+			if (bestDomain<0) {
+				//every domain is at capacity, share the least loaded one
+				bestDomain = leastAssigned(topology, assigned);
+				if (bestDomain<0) {
+					continue; //no cpus known at all, left unpinned
+				}
+			}
+			groupDomain[group] = bestDomain;
+			assigned[bestDomain]++;
+		}
+
+		//dedicated free cpu for each group when the domain has enough, else share the free cpus of the domain
+		d = topology.domainCount;
+		while (--d>=0) {
+			if (0==assigned[d]) {
+				continue;
+			}
+			int[] cpus = free[d].length>0 ? free[d] : topology.cpusInDomain(d);
+			int next = 0;
+			for(int i=0; i<groupCount; i++) {
+				if (isAuto[i] && groupDomain[i]==d) {
+					result[i] = assigned[d]<=free[d].length ? new int[] {cpus[next++]} : cpus;
+				}
+			}
+		}
+		return result;
+	}
+
+	private static int leastAssigned(CPUTopology topology, int[] assigned) {
+		int result = -1;
+		int d = topology.domainCount;
+		while (--d>=0) {
+			if (topology.cpusInDomain(d).length>0 && (result<0 || assigned[d]<assigned[result])) {
+				result = d;
+			}
+		}
+		return result;
+	}
+
+	private static int[] unclaimed(int[] cpus, int[][] explicit) {
+		int[] result = new int[cpus.length];
+		int count = 0;
+		for(int i=0; i<cpus.length; i++) {
+			if (!isClaimed(cpus[i], explicit)) {
+				result[count++] = cpus[i];
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	private static boolean isClaimed(int cpu, int[][] explicit) {
+		int g = explicit.length;
+		while (--g>=0) {
+			if (null!=explicit[g]) {
+				int c = explicit[g].length;
+				while (--c>=0) {
+					if (explicit[g][c]==cpu) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private static Object coreSetNota(GraphManager gm, PronghornStage[] group) {
+		Object auto = null;
+		int s = group.length;
+		while (--s>=0) {
+			if (null != group[s]) {
+				Object value = GraphManager.getNota(gm, group[s], GraphManager.CORE_SET, null);
+				if (null != value) {
+					if (!isAutoValue(value)) {
+						return value;//explicit always wins
+					}
+					auto = value;
+				}
+			}
+		}
+		return auto;
+	}
+
+	private static boolean isAutoValue(Object value) {
+		return GraphManager.AUTO_CORE_SET.equals(value) || Boolean.TRUE.equals(value);
+	}
+
+	private static int domainOf(CPUTopology topology, int cpu) {
+		int idx = Arrays.binarySearch(topology.cpus, cpu);
+		return idx<0 ? -1 : topology.domainOfCpu[idx];
+	}
+
+	/**
+	 * Count of pipes between each pair of groups.
+	 */
+	private static int[][] buildGroupWeights(GraphManager gm, PronghornStage[][] groups) {
+		int groupCount = groups.length;
+		int[] stageToGroup = new int[GraphManager.countStages(gm)+1];
+		Arrays.fill(stageToGroup, -1);
+		int g = groupCount;
+		while (--g>=0) {
+			int s = groups[g].length;
+			while (--s>=0) {
+				if (null != groups[g][s]) {
+					stageToGroup[groups[g][s].stageId] = g;
+				}
+			}
+		}
+
+		int[][] weights = new int[groupCount][groupCount];
+		g = groupCount;
+		while (--g>=0) {
+			int s = groups[g].length;
+			while (--s>=0) {
+				PronghornStage stage = groups[g][s];
+				if (null == stage) {
+					continue;
+				}
+				int c = GraphManager.getOutputPipeCount(gm, stage.stageId);
+				for(int r=1; r<=c; r++) {
+					Pipe<MessageSchema> pipe = GraphManager.getOutputPipe(gm, stage, r);
+					int consumerId = GraphManager.getRingConsumerId(gm, pipe.id);
+					if (consumerId>=0 && consumerId<stageToGroup.length) {
+						int h = stageToGroup[consumerId];
+						if (h>=0 && h!=g) {
+							weights[g][h]++;
+							weights[h][g]++;
+						}
+					}
+				}
+			}
+		}
+		return weights;
+	}
+
+}
@@ -0,0 +1,248 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.util.Arrays;
+
+/**
+ * Two level hierarchical timer wheel over a fixed set of integer timer ids, such as the index of each stage
+ * in a NonThreadScheduler. Used so a scheduler only touches the stages which are due instead of checking the
+ * clock for every rate limited stage on every pass.
+ *
+ * The first level has one slot per tick, the second one slot per turn of the first level, anything further out
+ * waits on an overflow list. Lists are intrusive, linked through int arrays indexed by timer id, so scheduling
+ * and expiring never allocate. Not thread safe, each wheel belongs to the thread which runs its stages.
+ */
+public class TimerWheel {
+
+	public static final int  DEFAULT_SLOT_BITS = 8;
+	public static final long DEFAULT_TICK_NS   = 1L<<16; //about 65us, first level covers about 16ms, second about 4s
+
+	private static final int NONE = -1;
+
+	private final long tickNS;
+	private final long originNS;  //nanoTime may be negative so ticks are counted from construction
+	private final int bits;
+	private final int mask;
+	private final int level1Base;
+	private final int overflowList;
+
+	private final int[] head;     //first id in each list, all slots of both levels then the overflow list
+	private final int[] next;     //by id
+	private final int[] prev;     //by id
+	private final int[] listOf;   //by id, NONE when not scheduled
+	private final long[] dueNS;   //by id
+
+	private long baseTick;        //tick of the current first level slot, nothing scheduled is due before it
+	private int scheduled;
+
+	public TimerWheel(int capacity) {
+		this(capacity, DEFAULT_TICK_NS, DEFAULT_SLOT_BITS, System.nanoTime());
+	}
+
+	public TimerWheel(int capacity, long tickNS, int slotBits, long nowNS) {
+		if (tickNS<=0 || slotBits<1 || slotBits>16) {
+			throw new UnsupportedOperationException("Tick must be positive and slot bits must be from 1 to 16");
+		}
+		this.tickNS = tickNS;
+		this.bits = slotBits;
+		this.mask = (1<<slotBits)-1;
+		this.level1Base = 1<<slotBits;
+		this.overflowList = 2<<slotBits;
+
+		this.head = new int[overflowList+1];
+		Arrays.fill(head, NONE);
+		this.next = new int[capacity];
+		this.prev = new int[capacity];
+		this.listOf = new int[capacity];
+		Arrays.fill(listOf, NONE);
+		this.dueNS = new long[capacity];
+
+		this.originNS = nowNS;
+		this.baseTick = 0;
+	}
+
+	/**
+	 * Schedule or reschedule this id, an id which is already due will be returned by the next expire.
+	 */
+	public static void schedule(TimerWheel wheel, int id, long dueNS) {
+		if (NONE != wheel.listOf[id]) {
+			unlink(wheel, id);
+		}
+		wheel.dueNS[id] = dueNS;
+		insert(wheel, id);
+		wheel.scheduled++;
+	}
+
+	public static void cancel(TimerWheel wheel, int id) {
+		if (NONE != wheel.listOf[id]) {
+			unlink(wheel, id);
+			wheel.scheduled--;
+		}
+	}
+
+	public static boolean isScheduled(TimerWheel wheel, int id) {
+		return NONE != wheel.listOf[id];
+	}
+
+	public static int scheduledCount(TimerWheel wheel) {
+		return wheel.scheduled;
+	}
+
+	/**
+	 * Remove every id due at or before now.
+	 *
+	 * @param out receives the due ids, must be as long as the capacity of the wheel
+	 * @return count of ids written to out
+	 */
+	public static int expire(TimerWheel wheel, long nowNS, int[] out) {
+		int count = 0;
+		if (0 == wheel.scheduled) {
+			wheel.baseTick = Math.max(wheel.baseTick, tick(wheel, nowNS));
+			return count;
+		}
+		long target = tick(wheel, nowNS);
+
+		if (target-wheel.baseTick > wheel.mask) {
+			//we have been away for more than a full turn, cheaper to rebuild than step every tick
+			return rebase(wheel, nowNS, target, out);
+		}
+
+		while (true) {
+			count = expireList(wheel, (int)(wheel.baseTick&wheel.mask), nowNS, out, count);
+			if (wheel.baseTick >= target) {
+				return count;
+			}
+			wheel.baseTick++;
+			if (0 == (wheel.baseTick&wheel.mask)) {
+				long block = wheel.baseTick>>wheel.bits;
+				if (0 == (block&wheel.mask)) {
+					cascade(wheel, wheel.overflowList);
+				}
+				cascade(wheel, wheel.level1Base+(int)(block&wheel.mask));
+			}
+		}
+	}
+
+	/**
+	 * @return earliest time anything may be due, early is possible but never late, Long.MAX_VALUE if nothing is scheduled
+	 */
+	public static long nextDueNS(TimerWheel wheel) {
+		if (0 == wheel.scheduled) {
+			return Long.MAX_VALUE;
+		}
+		//first level slots each hold a single tick so the first non empty one holds the earliest
+		long tick = wheel.baseTick;
+		long blockEnd = (tick|wheel.mask)+1;
+		while (tick<blockEnd) {
+			int list = (int)(tick&wheel.mask);
+			if (NONE != wheel.head[list]) {
+				return minDue(wheel, list);
+			}
+			tick++;
+		}
+		//second level, the start of the first non empty block is a safe bound
+		long block = wheel.baseTick>>wheel.bits;
+		for(int i=1; i<=wheel.mask; i++) {
+			int list = wheel.level1Base+(int)((block+i)&wheel.mask);
+			if (NONE != wheel.head[list]) {
+				return wheel.originNS+((block+i)<<wheel.bits)*wheel.tickNS;
+			}
+		}
+		return minDue(wheel, wheel.overflowList);
+	}
+
+	private static long minDue(TimerWheel wheel, int list) {
+		long min = Long.MAX_VALUE;
+		int id = wheel.head[list];
+		while (NONE != id) {
+			min = Math.min(min, wheel.dueNS[id]);
+			id = wheel.next[id];
+		}
+		return min;
+	}
+
+	private static int expireList(TimerWheel wheel, int list, long nowNS, int[] out, int count) {
+		int id = wheel.head[list];
+		while (NONE != id) {
+			int following = wheel.next[id];
+			if (wheel.dueNS[id]<=nowNS) {
+				unlink(wheel, id);
+				wheel.scheduled--;
+				out[count++] = id;
+			}
+			id = following;
+		}
+		return count;
+	}
+
+	private static void cascade(TimerWheel wheel, int list) {
+		int id = wheel.head[list];
+		while (NONE != id) {
+			int following = wheel.next[id];
+			unlink(wheel, id);
+			insert(wheel, id);
+			id = following;
+		}
+	}
+
+	private static int rebase(TimerWheel wheel, long nowNS, long target, int[] out) {
+		int count = 0;
+		wheel.baseTick = target;
+		int id = wheel.listOf.length;
+		while (--id>=0) {
+			if (NONE != wheel.listOf[id]) {
+				unlink(wheel, id);
+				if (wheel.dueNS[id]<=nowNS) {
+					wheel.scheduled--;
+					out[count++] = id;
+				} else {
+					insert(wheel, id);
+				}
+			}
+		}
+		return count;
+	}
+
+	private static long tick(TimerWheel wheel, long ns) {
+		return (ns-wheel.originNS)/wheel.tickNS; //anything before the origin lands on tick zero which is never in the future
+	}
+
+	private static void insert(TimerWheel wheel, int id) {
+		long dueTick = tick(wheel, wheel.dueNS[id]);
+		int list;
+		if (dueTick<=wheel.baseTick) {
+			list = (int)(wheel.baseTick&wheel.mask); //already due, picked up by the next expire
+		} else {
+			long blocks = (dueTick>>wheel.bits)-(wheel.baseTick>>wheel.bits);
+			if (0 == blocks) {
+				list = (int)(dueTick&wheel.mask);
+			} else if (blocks<=wheel.mask) {
+				list = wheel.level1Base+(int)((dueTick>>wheel.bits)&wheel.mask);
+			} else {
+				list = wheel.overflowList;
+			}
+		}
+		int first = wheel.head[list];
+		wheel.next[id] = first;
+		wheel.prev[id] = NONE;
+		if (NONE != first) {
+			wheel.prev[first] = id;
+		}
+		wheel.head[list] = id;
+		wheel.listOf[id] = list;
+	}
+
+	private static void unlink(TimerWheel wheel, int id) {
+		int p = wheel.prev[id];
+		int n = wheel.next[id];
+		if (NONE != p) {
+			wheel.next[p] = n;
+		} else {
+			wheel.head[wheel.listOf[id]] = n;
+		}
+		if (NONE != n) {
+			wheel.prev[n] = p;
+		}
+		wheel.listOf[id] = NONE;
+	}
+
+}
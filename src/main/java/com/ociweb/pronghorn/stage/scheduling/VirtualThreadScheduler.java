@@ -0,0 +1,409 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+/**
+ * Runs each stage marked with the BLOCKING nota on its own virtual thread while all other stages share a small
+ * number of platform threads, each driving a NonThreadScheduler group.
+ *
+ * Blocking a virtual thread only parks it and releases the carrier, so thousands of I/O bound stages can be run
+ * without thousands of OS threads. When the runtime has no virtual threads the blocking stages fall back to a
+ * cached pool of platform threads, which behaves like ThreadPerStageScheduler for those stages.
+ *
+ * Blocking stages honor the SCHEDULE_RATE and UNSCHEDULED notas as ThreadPerStageScheduler does, a rated stage runs
+ * with the leading edge of each run rate apart and an unscheduled stage is started and shut down but never run.
+ *
+ * CPU bound groups are built from consecutive stage ids, which follow construction order and so tend to keep
+ * connected stages together. They honor the CORE_SET nota for pinning just as FixedThreadsScheduler does.
+ */
+public class VirtualThreadScheduler extends StageScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(VirtualThreadScheduler.class);
+
+	//blocking stages are expected to wait inside run(), so only a short back-off before parking
+	private static final int BLOCKING_SPINS  = 0;
+	private static final int BLOCKING_YIELDS = 4;
+	private static final long NEVER_RUN = -1;
+
+	private final PronghornStage[] blockingStages;
+	private final IdleStrategy[] blockingIdle;
+	private final long[] blockingRates;    //SCHEDULE_RATE in ns, 0 to run continuously or NEVER_RUN for UNSCHEDULED
+	private final Thread[] blockingThreads; //set before startup returns so shutdown can unpark them
+	private final NonThreadScheduler[] cpuGroups;
+	private final int[][] coreSets;
+	private final boolean isVirtual;
+
+	private ExecutorService blockingService;
+	private ExecutorService cpuService;
+	private volatile boolean isShuttingDown;
+	private volatile Throwable firstException;//will remain null if nothing is wrong
+
+	public VirtualThreadScheduler(GraphManager graphManager, int cpuThreadCount) {
+		super(graphManager);
+
+		PronghornStage[] all = GraphManager.allStages(graphManager);
+		int blockingCount = 0;
+		int i = all.length;
+		while (--i>=0) {
+			if (isBlocking(graphManager, all[i])) {
+				blockingCount++;
+			}
+		}
+
+		blockingStages = new PronghornStage[blockingCount];
+		PronghornStage[] cpuStages = new PronghornStage[all.length-blockingCount];
+		int b = 0;
+		int c = 0;
+		for(i=0; i<all.length; i++) {
+			if (isBlocking(graphManager, all[i])) {
+				blockingStages[b++] = all[i];
+			} else {
+				cpuStages[c++] = all[i];
+			}
+		}
+
+		blockingIdle = new IdleStrategy[blockingCount];
+		blockingRates = new long[blockingCount];
+		blockingThreads = new Thread[blockingCount];
+		i = blockingCount;
+		while (--i>=0) {
+			blockingIdle[i] = new IdleStrategy(BLOCKING_SPINS, BLOCKING_YIELDS, IdleStrategy.DEFAULT_MIN_PARK_NS, IdleStrategy.DEFAULT_MAX_PARK_NS);
+			blockingRates[i] = scheduleRate(graphManager, blockingStages[i]);
+		}
+
+		//split the cpu stages into contiguous runs of stage ids, one for each platform thread
+		int groupCount = Math.max(0, Math.min(cpuThreadCount, cpuStages.length));
+		PronghornStage[][] groups = new PronghornStage[groupCount][];
+		cpuGroups = new NonThreadScheduler[groupCount];
+		int start = 0;
+		for(int g=0; g<groupCount; g++) {
+			int end = (int)(((long)cpuStages.length*(g+1))/groupCount);
+			groups[g] = new PronghornStage[end-start];
+			System.arraycopy(cpuStages, start, groups[g], 0, end-start);
+			cpuGroups[g] = new NonThreadScheduler(graphManager, groups[g]);
+			NonThreadScheduler.setOrdering(cpuGroups[g], StageOrdering.PRODUCER_FIRST);
+			start = end;
+		}
+		if (cpuStages.length>0 && 0==groupCount) {
+			throw new UnsupportedOperationException("At least one platform thread is required for the stages which are not BLOCKING");
+		}
+
+		coreSets = ThreadPlacement.isPlacementRequested(graphManager) ?
+				   ThreadPlacement.plan(graphManager, groups, CPUTopology.discover()) :
+				   new int[groupCount][];
+
+		isVirtual = hasVirtualThreads();
+		logger.debug("{} blocking stages on {} threads, {} cpu stages on {} platform threads",
+				     blockingCount, isVirtual ? "virtual" : "platform", cpuStages.length, groupCount);
+	}
+
+	private static boolean isBlocking(GraphManager gm, PronghornStage stage) {
+		return null != GraphManager.getNota(gm, stage, GraphManager.BLOCKING, null);
+	}
+
+	private static long scheduleRate(GraphManager gm, PronghornStage stage) {
+		if (null != GraphManager.getNota(gm, stage, GraphManager.UNSCHEDULED, null)) {
+			return NEVER_RUN;
+		}
+		Object value = GraphManager.getNota(gm, stage, GraphManager.SCHEDULE_RATE, Long.valueOf(0));
+		return value instanceof Number ? ((Number)value).longValue() : null==value ? 0 : Long.parseLong(value.toString());
+	}
+
+	private static boolean hasVirtualThreads() {
+		try {
+			return null != Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Virtual threads are looked up by reflection so this still builds and runs on older runtimes.
+	 *
+	 * @return a new virtual thread per task executor or null if not supported
+	 */
+	private static ExecutorService virtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)factory.invoke(null);
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the BLOCKING stages are run on virtual threads
+	 */
+	public static boolean isVirtual(VirtualThreadScheduler that) {
+		return that.isVirtual;
+	}
+
+	@Override
+	public void startup() {
+
+		ExecutorService virtual = virtualThreadExecutor();
+		blockingService = null!=virtual ? virtual : Executors.newCachedThreadPool();
+		cpuService = Executors.newFixedThreadPool(Math.max(1, cpuGroups.length));
+
+		CountDownLatch allStarted = new CountDownLatch(blockingStages.length+cpuGroups.length);
+
+		int i = cpuGroups.length;
+		while (--i>=0) {
+			cpuService.execute(buildGroupRunnable(allStarted, cpuGroups[i], coreSets[i]));
+		}
+		i = blockingStages.length;
+		while (--i>=0) {
+			blockingService.execute(buildBlockingRunnable(allStarted, i));
+		}
+
+		//force wait for all stages to complete startup before this method returns.
+		try {
+			allStarted.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Runnable buildGroupRunnable(final CountDownLatch allStarted, final NonThreadScheduler nts, final int[] cpus) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				ThreadPlacement.pinCurrentThread(cpus);
+				try {
+					nts.startup();
+				} finally {
+					allStarted.countDown();
+				}
+				awaitStarted(allStarted);
+
+				while (!NonThreadScheduler.isShutdownRequested(nts)) {
+					nts.run();//nts.run has its own internal idle, nothing needed here.
+				}
+			}
+
+		};
+	}
+
+	private Runnable buildBlockingRunnable(final CountDownLatch allStarted, final int idx) {
+		final PronghornStage stage = blockingStages[idx];
+		final IdleStrategy idle = blockingIdle[idx];
+		return new Runnable() {
+
+			@Override
+			public String toString() {
+				return stage.toString();
+			}
+
+			@Override
+			public void run() {
+				try {
+					try {
+						blockingThreads[idx] = Thread.currentThread();
+						GraphManager.initAllPipes(graphManager, stage.stageId);
+						stage.startup();
+						GraphManager.setStateToStarted(graphManager, stage.stageId);
+						//producers publishing to this stage unpark it
+						GraphManager.registerIdleStrategy(graphManager, stage.stageId, idle);
+					} finally {
+						allStarted.countDown();
+					}
+					awaitStarted(allStarted);
+
+					if (NEVER_RUN == blockingRates[idx]) {
+						parkUntilShutdown(VirtualThreadScheduler.this, stage);
+					} else {
+						runBlockingLoop(VirtualThreadScheduler.this, stage, idle, blockingRates[idx]);
+					}
+
+				} catch (Throwable t) {
+					recordTheException(stage, t);
+					GraphManager.shutdownNeighborRings(graphManager, stage);
+				} finally {
+					//shutdown will always be called no matter how the stage was exited.
+					try {
+						stage.shutdown();
+					} catch (Throwable t) {
+						recordTheException(stage, t);
+					} finally {
+						GraphManager.setStateToShutdown(graphManager, stage.stageId); //Must ensure marked as terminated
+					}
+				}
+			}
+
+		};
+	}
+
+	private static void awaitStarted(CountDownLatch allStarted) {
+		try {
+			allStarted.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//UNSCHEDULED stages hold their thread until shutdown so their startup and shutdown still happen on it
+	private static void parkUntilShutdown(VirtualThreadScheduler that, PronghornStage stage) {
+		while (!that.isShuttingDown && !GraphManager.isStageShuttingDown(that.graphManager, stage.stageId)) {
+			LockSupport.park(stage);
+			if (Thread.interrupted()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Run the stage until it or the scheduler is shut down. Stages with a SCHEDULE_RATE or a rate limited pipe park
+	 * until their next run, other stages back off and park when a run moved no data. Either way only the virtual
+	 * thread is parked. Like ThreadPerStageScheduler a stage with a SCHEDULE_RATE stops as soon as shutdown begins.
+	 */
+	private static void runBlockingLoop(VirtualThreadScheduler that, PronghornStage stage, IdleStrategy idle, long rate) {
+		final GraphManager gm = that.graphManager;
+		final int stageId = stage.stageId;
+		final boolean isRateLimited = GraphManager.isRateLimited(gm, stageId);
+		final boolean isInstrumented = GraphManager.isInstrumented(gm);
+		long nextRunNS = System.nanoTime();
+
+		do {
+			if (rate>0) {
+				long nsDelay;
+				while ((nsDelay = nextRunNS-System.nanoTime())>0) {
+					LockSupport.parkNanos(stage, nsDelay);
+					if (Thread.interrupted() || that.isShuttingDown || GraphManager.isStageShuttingDown(gm, stageId)) {
+						return;
+					}
+				}
+				//if a run takes longer than the rate the next one follows with no delay
+				long now = System.nanoTime();
+				nextRunNS = (nextRunNS+rate)-now > 0 ? nextRunNS+rate : now;
+			}
+			if (isRateLimited) {
+				long nsDelay;
+				while ((nsDelay = GraphManager.delayRequiredNS(gm, stageId))>0) {
+					LockSupport.parkNanos(stage, nsDelay);
+					if (Thread.interrupted() || that.isShuttingDown || GraphManager.isStageShuttingDown(gm, stageId)) {
+						return;
+					}
+				}
+			}
+
+			long progress = GraphManager.stageProgress(gm, stageId);
+			if (!isInstrumented) {
+				stage.run();
+			} else {
+				long start = System.nanoTime();
+				stage.run();
+				GraphManager.recordRun(gm, stageId, System.nanoTime()-start, progress!=GraphManager.stageProgress(gm, stageId));
+			}
+
+			if (progress != GraphManager.stageProgress(gm, stageId)) {
+				idle.reset();
+				wakeConsumers(gm, stage);
+			} else if (!isRateLimited && 0==rate) {
+				idle.idle(0);
+			}
+
+		} while (continueRunning(that, stageId));
+	}
+
+	private static void wakeConsumers(GraphManager gm, PronghornStage stage) {
+		int c = GraphManager.getOutputPipeCount(gm, stage.stageId);
+		for(int r=1; r<=c; r++) {
+			Pipe<?> pipe = GraphManager.getOutputPipe(gm, stage, r);
+			GraphManager.wakeConsumer(gm, pipe.id);
+		}
+	}
+
+	private static boolean continueRunning(VirtualThreadScheduler that, int stageId) {
+		return (!GraphManager.isStageShuttingDown(that.graphManager, stageId))
+				&&
+			   (!that.isShuttingDown || GraphManager.mayHaveUpstreamData(that.graphManager, stageId));
+	}
+
+	private void recordTheException(final PronghornStage stage, Throwable t) {
+		synchronized(this) {
+			if (null==firstException) {
+				firstException = t;
+			}
+		}
+		GraphManager.reportError(graphManager, stage, t, logger);
+	}
+
+	@Override
+	public void shutdown() {
+		isShuttingDown = true;
+		GraphManager.terminateInputStages(graphManager);
+
+		int i = cpuGroups.length;
+		while (--i>=0) {
+			cpuGroups[i].shutdown();
+		}
+		//parked stages must look at their state again
+		i = blockingIdle.length;
+		while (--i>=0) {
+			IdleStrategy.wake(blockingIdle[i]);
+			Thread thread = blockingThreads[i];
+			if (null!=thread) {
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) {
+
+		long limit = System.nanoTime()+unit.toNanos(timeout);
+		isShuttingDown = true;
+		blockingService.shutdown();
+
+		boolean cleanExit = true;
+		try {
+			cleanExit = blockingService.awaitTermination(timeout, unit);
+		} catch (InterruptedException e) {
+			blockingService.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		int i = cpuGroups.length;
+		while (--i>=0) {
+			cleanExit &= cpuGroups[i].awaitTermination(Math.max(0, limit-System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+		if (!cleanExit) {
+			validShutdownState();
+			return false;
+		}
+		//each child scheduler has already completed await termination so no need to wait for this
+		cpuService.shutdownNow();
+
+		if (null!=firstException) {
+			throw new RuntimeException(firstException);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean TerminateNow() {
+		shutdown();
+		blockingService.shutdownNow();
+		try {
+			//give the stages 1 full second to shut down cleanly
+			return cpuService.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			cpuService.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		return true;
+	}
+
+}
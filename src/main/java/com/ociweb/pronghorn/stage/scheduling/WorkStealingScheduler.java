@@ -0,0 +1,334 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scheduler which begins with the same pipe connected groups built by the FixedThreadsScheduler but
+ * partitions the graph into more groups than threads. Each group (unit) is owned by one worker thread.
+ * When a worker finds nothing to do on its own units it steals a unit from the busiest worker, choosing
+ * the unit with the most content waiting on its input pipes.
+ *
+ * Ownership is held in an AtomicIntegerArray and only changed by CAS from the current owner to the thief.
+ * The NonThreadScheduler of each unit also guards its own run() so no stage is ever run by two threads at once,
+ * even in the short window while ownership is being handed off.
+ */
+public class WorkStealingScheduler extends StageScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(WorkStealingScheduler.class);
+
+	//number of groups built for each worker, more gives finer stealing but less locality
+	public static final int DEFAULT_UNITS_PER_WORKER = 4;
+
+	//passes in which none of its units made progress before a worker considers itself idle and goes looking for work
+	private static final int IDLE_PASSES_BEFORE_STEAL = 64;
+	//a unit which was just moved will not move again until this much time has passed, prevents ping-pong
+	private static final long MIN_RESIDENCY_NS = 10_000_000L;
+	//victim must be this much busier (as a shift of its own load) before we take anything from it
+	private static final int IMBALANCE_SHIFT = 2;
+	//weight of new samples in the moving averages as a shift, 1/8
+	private static final int EWMA_SHIFT = 3;
+
+	private final NonThreadScheduler[] units;
+	private final int workerCount;
+
+	private final AtomicIntegerArray unitOwner;    //unit index -> worker index
+	private final AtomicLongArray unitRunNS;       //moving average of ns spent in run() for each unit
+	private final AtomicLongArray unitMovedNS;     //time each unit was last handed off
+	private final AtomicLongArray workerLoadNS;    //moving average of ns spent per pass for each worker
+	private final AtomicLongArray stealCount;      //number of units each worker has taken
+
+	private final IdleStrategy[] workerIdle;
+
+	private ExecutorService executorService;
+
+	public WorkStealingScheduler(GraphManager graphManager, int workerCount) {
+		this(graphManager, workerCount, DEFAULT_UNITS_PER_WORKER);
+	}
+
+	public WorkStealingScheduler(GraphManager graphManager, int workerCount, int unitsPerWorker) {
+		super(graphManager);
+
+		//reuse the join first partitioning but ask for more groups than we have threads so there is something to steal
+		NonThreadScheduler[] groups = FixedThreadsScheduler.schedulers(graphManager,
+				                         FixedThreadsScheduler.joinFirstGroups(graphManager, workerCount*Math.max(1, unitsPerWorker)));
+
+		this.units = groups;
+		this.workerCount = Math.max(1, Math.min(workerCount, groups.length));
+
+		this.unitOwner = new AtomicIntegerArray(groups.length);
+		this.unitRunNS = new AtomicLongArray(groups.length);
+		this.unitMovedNS = new AtomicLongArray(groups.length);
+		this.workerLoadNS = new AtomicLongArray(this.workerCount);
+		this.stealCount = new AtomicLongArray(this.workerCount);
+
+		//initial assignment is round robin across the workers
+		int u = groups.length;
+		while (--u>=0) {
+			unitOwner.set(u, u%this.workerCount);
+			//units must never park, the worker idles once all of its units are quiet
+			NonThreadScheduler.setIdleStrategy(groups[u], null);
+		}
+		
+		this.workerIdle = new IdleStrategy[this.workerCount];
+		int w = this.workerCount;
+		while (--w>=0) {
+			workerIdle[w] = new IdleStrategy();
+		}
+
+		logger.debug("work stealing over {} units with {} workers", groups.length, this.workerCount);
+	}
+
+	@Override
+	public void startup() {
+
+		executorService = Executors.newFixedThreadPool(workerCount);
+
+		CyclicBarrier allStagesLatch = new CyclicBarrier(workerCount+1);
+
+		int w = workerCount;
+		while (--w>=0) {
+			executorService.execute(buildRunnable(allStagesLatch, w));
+		}
+
+		//force wait for all stages to complete startup before this method returns.
+		try {
+			allStagesLatch.await();
+		} catch (InterruptedException e) {
+		} catch (BrokenBarrierException e) {
+		}
+
+	}
+
+	private Runnable buildRunnable(final CyclicBarrier allStagesLatch, final int worker) {
+
+		return new Runnable() {
+
+			@Override
+			public void run() {
+
+				//stages are started on the thread which first owns them so their allocations begin local to that core
+				int u = units.length;
+				while (--u>=0) {
+					if (worker == unitOwner.get(u)) {
+						units[u].startup();
+						NonThreadScheduler.registerIdleStrategy(units[u], workerIdle[worker]);
+					}
+				}
+
+				try {
+					allStagesLatch.await();
+				} catch (InterruptedException e) {
+				} catch (BrokenBarrierException e) {
+				}
+
+				runLoop(WorkStealingScheduler.this, worker);
+			}
+
+		};
+	}
+
+	private static void runLoop(WorkStealingScheduler that, final int worker) {
+
+		final IdleStrategy idle = that.workerIdle[worker];
+		int idlePasses = 0;
+		while (!isComplete(that)) {
+
+			long passNS = 0;
+			boolean didWork = false;
+
+			int u = that.units.length;
+			while (--u>=0) {
+				if (worker == that.unitOwner.get(u)) {
+					NonThreadScheduler nts = that.units[u];
+
+					if (NonThreadScheduler.isShutdownRequested(nts)) {
+						continue;
+					}
+					//never sleep inside a unit, other units owned here may have work now
+					long next = NonThreadScheduler.nextRunNS(nts);
+					if (next>0 && next>System.nanoTime()) {
+						continue;
+					}
+
+					long start = System.nanoTime();
+					nts.run();
+					long duration = System.nanoTime()-start;
+
+					passNS += duration;
+					that.unitRunNS.lazySet(u, ewma(that.unitRunNS.get(u), duration));
+					//progress, not waiting input, so a worker whose units are all sources is still seen as busy
+					didWork |= NonThreadScheduler.didWork(nts);
+				}
+			}
+			that.workerLoadNS.lazySet(worker, ewma(that.workerLoadNS.get(worker), passNS));
+
+			if (didWork) {
+				idlePasses = 0;
+			} else if (++idlePasses>=IDLE_PASSES_BEFORE_STEAL) {
+				idlePasses = 0;
+				didWork = steal(that, worker);
+			}
+			
+			if (didWork) {
+				idle.reset();
+			} else {
+				idle.idle(0);
+			}
+		}
+	}
+
+	/**
+	 * Take one unit from the busiest worker. Only the unit ownership moves, the stages inside keep all their state.
+	 * A unit is only taken when the move leaves the two workers closer to even, so equal units never bounce back and forth.
+	 *
+	 * @return true if a unit was taken
+	 */
+	private static boolean steal(WorkStealingScheduler that, final int thief) {
+
+		//find the busiest worker which owns more than one live unit
+		int victim = -1;
+		long victimLoad = that.workerLoadNS.get(thief) + (that.workerLoadNS.get(thief)>>IMBALANCE_SHIFT);
+		int w = that.workerCount;
+		while (--w>=0) {
+			if (w!=thief) {
+				long load = that.workerLoadNS.get(w);
+				if (load>victimLoad && liveUnitCount(that, w)>1) {
+					victimLoad = load;
+					victim = w;
+				}
+			}
+		}
+		if (victim<0) {
+			return false;
+		}
+
+		//pick the unit with the most waiting input, break ties with the longest running one
+		final long thiefLoad = that.workerLoadNS.get(thief);
+		long now = System.nanoTime();
+		int target = -1;
+		long bestBacklog = -1;
+		long bestRun = -1;
+		int u = that.units.length;
+		while (--u>=0) {
+			if (victim == that.unitOwner.get(u)
+				&& !NonThreadScheduler.isShutdownRequested(that.units[u])
+				&& now-that.unitMovedNS.get(u)>MIN_RESIDENCY_NS) {
+
+				long backlog = NonThreadScheduler.inputBacklog(that.units[u]);
+				long run = that.unitRunNS.get(u);
+				if (thiefLoad+run < victimLoad-run
+					&& (backlog>bestBacklog || (backlog==bestBacklog && run>bestRun))) {
+					bestBacklog = backlog;
+					bestRun = run;
+					target = u;
+				}
+			}
+		}
+
+		//only succeeds if the victim still owns it, the unit's own run guard covers any pass already in flight
+		if (target>=0 && that.unitOwner.compareAndSet(target, victim, thief)) {
+			that.unitMovedNS.set(target, now);
+			//producers must now wake the thief when they publish to this unit
+			NonThreadScheduler.registerIdleStrategy(that.units[target], that.workerIdle[thief]);
+			that.stealCount.incrementAndGet(thief);
+			//move the measured load with the unit so the next decision is not made on stale numbers
+			long moved = that.unitRunNS.get(target);
+			that.workerLoadNS.lazySet(victim, Math.max(0, that.workerLoadNS.get(victim)-moved));
+			that.workerLoadNS.lazySet(thief, that.workerLoadNS.get(thief)+moved);
+			return true;
+		}
+		return false;
+	}
+
+	private static int liveUnitCount(WorkStealingScheduler that, int worker) {
+		int count = 0;
+		int u = that.units.length;
+		while (--u>=0) {
+			if (worker == that.unitOwner.get(u) && !NonThreadScheduler.isShutdownRequested(that.units[u])) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static boolean isComplete(WorkStealingScheduler that) {
+		int u = that.units.length;
+		while (--u>=0) {
+			if (!NonThreadScheduler.isShutdownRequested(that.units[u])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long ewma(long avg, long sample) {
+		return avg + ((sample-avg)>>EWMA_SHIFT);
+	}
+
+	/**
+	 * Worker index which currently owns the given stage group, exposed for monitoring.
+	 */
+	public static int ownerOfUnit(WorkStealingScheduler that, int unit) {
+		return that.unitOwner.get(unit);
+	}
+
+	public static int unitCount(WorkStealingScheduler that) {
+		return that.units.length;
+	}
+
+	public static long stealCount(WorkStealingScheduler that, int worker) {
+		return that.stealCount.get(worker);
+	}
+
+	@Override
+	public void shutdown() {
+		int u = units.length;
+		while (--u>=0) {
+			units[u].shutdown();
+		}
+		int w = workerIdle.length;
+		while (--w>=0) {
+			IdleStrategy.wake(workerIdle[w]);
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) {
+
+		boolean cleanExit = true;
+		int u = units.length;
+		while (--u>=0) {
+			cleanExit &= units[u].awaitTermination(timeout, unit);
+		}
+		if (!cleanExit) {
+			validShutdownState();
+			return false;
+		}
+		//each child scheduler has already completed await termination so no need to wait for this
+		executorService.shutdownNow();
+		return true;
+	}
+
+	@Override
+	public boolean TerminateNow() {
+		shutdown();
+		try {
+			//give the stages 1 full second to shut down cleanly
+			return executorService.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			executorService.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		return true;
+	}
+
+}
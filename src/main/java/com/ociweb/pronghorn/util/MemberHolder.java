@@ -79,6 +79,7 @@ public class MemberHolder {
                 return true;
             }            
         }
+        buff.limit(buff.capacity());
         return false;
     }
     
@@ -0,0 +1,153 @@
+package com.ociweb.pronghorn.util;
+
+import java.lang.reflect.Array;
+
+/**
+ * Holder of service objects, like ServiceObjectHolder, for very large counts such as idle keep-alive connections.
+ *
+ * The holder assigns the index of each object so every index can carry its own slot in the low maxBits, the
+ * upper bits count how many times the slots have been cycled so stale indexes never find a newer object.
+ * Lookups are a direct array access with no hashing or probing.
+ *
+ * Slots live in fixed size pages which are only allocated once used. New objects first fill the slots of the
+ * active range, when every slot there holds a valid object the range doubles, up to maxBits. Growth only adds
+ * pages so existing entries are never copied or moved and readers are never blocked. The first pages are
+ * allocated by the constructor so building the holder on the thread which will use it places that memory near it.
+ *
+ * Adding is not thread safe and must be done by one thread at a time, lookups may happen on any thread once the
+ * index has been handed over through a pipe or other memory barrier.
+ */
+public class PagedServiceObjectHolder<T> {
+
+	private static final int PAGE_BITS = 10;
+	private static final int PAGE_SIZE = 1<<PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE-1;
+
+	private final Class<T> clazz;
+	private final ServiceObjectValidator<T> validator;
+	private final int maxBits;
+	private final int maxSize;
+	private final long slotMask;
+
+	private final long[][] keys; //by page
+	private final T[][] values;  //by page
+
+	private int activeSize;      //slots in use start at zero and never reach past this
+	private int cursor;          //next slot to try
+	private long cycle = 1;      //upper part of each index, zero is never a valid index
+
+	private long sequenceCounter;//goes up on every add
+	private long removalCounter; //goes up when an expired object is replaced
+
+	@SuppressWarnings("unchecked")
+	public PagedServiceObjectHolder(int initialBits, int maxBits, Class<T> clazz, ServiceObjectValidator<T> validator) {
+		if (initialBits<0 || initialBits>maxBits || maxBits>30) {
+			throw new UnsupportedOperationException("Initial bits must not be larger than max bits which must be 30 or less");
+		}
+		this.clazz = clazz;
+		this.validator = validator;
+		this.maxBits = maxBits;
+		this.maxSize = 1<<maxBits;
+		this.slotMask = maxSize-1;
+
+		int pageCount = Math.max(1, maxSize>>PAGE_BITS);
+		this.keys = new long[pageCount][];
+		this.values = (T[][])Array.newInstance(Array.newInstance(clazz, 0).getClass(), pageCount);
+		this.activeSize = 1<<initialBits;
+
+		int p = (activeSize+PAGE_SIZE-1)>>PAGE_BITS;
+		while (--p>=0) {
+			allocatePage(p);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void allocatePage(int page) {
+		int size = Math.min(PAGE_SIZE, maxSize);
+		values[page] = (T[])Array.newInstance(clazz, size);
+		keys[page] = new long[size]; //last, get() checks keys so it never finds a page without values
+	}
+
+	/**
+	 * Reserve a slot, the object is given later with setValue.
+	 *
+	 * @return index for the new object or -1 if every slot up to the max holds a valid object
+	 */
+	public long lookupInsertPosition() {
+		//Not thread safe, must be called by one thread or sequentially
+		while (true) {
+			int tries = activeSize;
+			while (--tries>=0) {
+				if (cursor>=activeSize) {
+					cursor = 0;
+					cycle++;
+				}
+				int slot = cursor++;
+				int page = slot>>PAGE_BITS;
+				if (null==keys[page]) {
+					allocatePage(page);
+				}
+				int i = slot&PAGE_MASK;
+				T value = values[page][i];
+				if (null==value || !validator.isValid(value)) {
+					if (null!=value) {
+						removalCounter++;
+						values[page][i] = null;
+					}
+					long index = (cycle<<maxBits) | slot;
+					keys[page][i] = index;
+					sequenceCounter++;
+					return index;
+				}
+			}
+			if (activeSize>=maxSize) {
+				return -1;
+			}
+			//every active slot is taken, open the next range without touching the existing entries
+			cursor = activeSize;
+			activeSize <<= 1;
+		}
+	}
+
+	/**
+	 * Only used with lookupInsertPosition for setting the object.
+	 */
+	public void setValue(long index, T object) {
+		int slot = (int)(slotMask & index);
+		assert(keys[slot>>PAGE_BITS][slot&PAGE_MASK] == index) : "this method should only be called after using lookupInsertPosition";
+		values[slot>>PAGE_BITS][slot&PAGE_MASK] = object;
+	}
+
+	/**
+	 * Given the index value return the value object or null.
+	 */
+	public T get(final long index) {
+		int slot = (int)(slotMask & index);
+		long[] pageKeys = keys[slot>>PAGE_BITS];
+		if (null==pageKeys || index!=pageKeys[slot&PAGE_MASK]) {
+			return null;
+		}
+		return values[slot>>PAGE_BITS][slot&PAGE_MASK];
+	}
+
+	/**
+	 * Given the index value return the valid value object or null.
+	 */
+	public T getValid(final long index) {
+		T value = get(index);
+		return null!=value && validator.isValid(value) ? value : null;
+	}
+
+	public static int activeSize(PagedServiceObjectHolder<?> that) {
+		return that.activeSize;
+	}
+
+	public static long getSequenceCount(PagedServiceObjectHolder<?> that) {
+		return that.sequenceCounter;
+	}
+
+	public static long getRemovalCount(PagedServiceObjectHolder<?> that) {
+		return that.removalCounter;
+	}
+
+}
@@ -0,0 +1,21 @@
+package com.ociweb.pronghorn.stage.monitor;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.util.build.FROMValidation;
+
+public class StageMonitorSchemaTest {
+	
+	@Test
+	public void testFROMMatchesXML() {
+		assertTrue(FROMValidation.testForMatchingFROMs("/stageMonitor.xml", "FROM", StageMonitorSchema.FROM));
+	}
+	
+	@Test
+	public void testConstantFields() {
+	    assertTrue(FROMValidation.testForMatchingLocators(StageMonitorSchema.instance));
+	}
+
+}
@@ -0,0 +1,158 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.ServerSocketWriterStage;
+import com.ociweb.pronghorn.network.WrapSupervisorStage;
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class BroadcastTest {
+
+    private static final int LIST = 3;
+
+    private ServerSocketChannel server;
+    private SocketChannel[] clients = new SocketChannel[3];
+    private SocketChannel[] accepted = new SocketChannel[3];
+    private ServerCoordinator coordinator;
+
+    @Before
+    public void openConnections() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        int i = clients.length;
+        while (--i>=0) {
+            clients[i] = SocketChannel.open(server.getLocalAddress());
+            accepted[i] = server.accept();
+        }
+        coordinator = new ServerCoordinator(1, "127.0.0.1", 0, 4);
+        ServerCoordinator.newSocketChannelHolder(coordinator, 0);
+    }
+
+    @After
+    public void closeSockets() throws IOException {
+        int i = clients.length;
+        while (--i>=0) {
+            clients[i].close();
+            accepted[i].close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void tlsAndClosedConnectionsCanNotSubscribe() throws Exception {
+        long plain = ServerCoordinator.openConnection(coordinator, 0, accepted[0], null, System.nanoTime());
+        long tls = ServerCoordinator.openConnection(coordinator, 0, accepted[1], SSLContext.getDefault().createSSLEngine(), System.nanoTime());
+
+        assertTrue(ServerCoordinator.subscribe(coordinator, 0, LIST, plain));
+        assertFalse(ServerCoordinator.subscribe(coordinator, 0, LIST, tls)); //would be sent the plain text
+        assertFalse(ServerCoordinator.subscribe(coordinator, 0, LIST, plain+(1L<<coordinator.channelBits))); //old id of this slot
+
+        assertTrue(ServerCoordinator.unsubscribe(coordinator, 0, LIST, plain));
+        assertFalse(ServerCoordinator.unsubscribe(coordinator, 0, LIST, plain));
+        assertTrue(ServerCoordinator.getMemberHolder(coordinator, 0).isEmpty(LIST));
+    }
+
+    @Test
+    public void writerSendsOnePayloadToEveryMember() throws IOException {
+        long[] ids = new long[accepted.length];
+        int i = accepted.length;
+        while (--i>=0) {
+            ids[i] = ServerCoordinator.openConnection(coordinator, 0, accepted[i], null, System.nanoTime());
+            assertTrue(ServerCoordinator.subscribe(coordinator, 0, LIST, ids[i]));
+        }
+
+        Pipe<NetPayloadSchema> pipe = new Pipe<NetPayloadSchema>(new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 4, 256));
+        pipe.initBuffers();
+        ServerSocketWriterStage writer = new ServerSocketWriterStage(new GraphManager(), new Pipe[]{pipe}, coordinator, 0);
+        writer.startup();
+
+        writeBroadcast(pipe, "hello");
+        writer.run();
+        i = clients.length;
+        while (--i>=0) {
+            assertEquals("hello", read(clients[i], 5));
+        }
+
+        accepted[1].close(); //gone members are dropped from the list on the next broadcast
+        writeBroadcast(pipe, "again");
+        writer.run();
+        assertEquals("again", read(clients[0], 5));
+        assertEquals("again", read(clients[2], 5));
+        assertEquals(0, ServerCoordinator.getMemberHolder(coordinator, 0).containsCount(LIST, ids[1]));
+        assertEquals(1, ServerCoordinator.getMemberHolder(coordinator, 0).containsCount(LIST, ids[0]));
+        assertEquals(0, Pipe.contentRemaining(pipe));
+    }
+
+    @Test
+    public void subscriptionPayloadIsNotHeldForResponseOrder() {
+        PipeConfig<ServerResponseSchema> inConfig = new PipeConfig<ServerResponseSchema>(ServerResponseSchema.instance, 4, 256);
+        Pipe<ServerResponseSchema> input = new Pipe<ServerResponseSchema>(inConfig);
+        Pipe<NetPayloadSchema> output = new Pipe<NetPayloadSchema>(new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 8, 256));
+        input.initBuffers();
+        output.initBuffers();
+        WrapSupervisorStage supervisor = new WrapSupervisorStage(new GraphManager(), new Pipe[]{input}, new Pipe[]{output}, coordinator);
+        supervisor.startup();
+
+        writeResponse(input, ServerResponseSchema.MSG_TOCHANNEL_100, 1, 5, "late"); //waits for sequence 0
+        writeResponse(input, ServerResponseSchema.MSG_TOSUBSCRIPTION_200, LIST, 0, "news");
+        supervisor.run();
+
+        assertTrue(Pipe.hasContentToRead(output));
+        int msgIdx = Pipe.takeMsgIdx(output);
+        assertEquals(NetPayloadSchema.MSG_BROADCAST_220, msgIdx);
+        assertEquals(LIST, Pipe.takeInt(output));
+        int meta = Pipe.takeRingByteMetaData(output);
+        int len = Pipe.takeRingByteLen(output);
+        byte[] bytes = new byte[len];
+        Pipe.copyBytesFromToRing(Pipe.blob(output), Pipe.bytePosition(meta, output, len), Pipe.blobMask(output), bytes, 0, Integer.MAX_VALUE, len);
+        assertEquals("news", new String(bytes));
+        Pipe.confirmLowLevelRead(output, Pipe.sizeOf(output, msgIdx));
+        Pipe.releaseReadLock(output);
+        assertFalse(Pipe.hasContentToRead(output)); //the response is still parked
+    }
+
+    private static void writeBroadcast(Pipe<NetPayloadSchema> pipe, String text) {
+        byte[] bytes = text.getBytes();
+        int size = Pipe.addMsgIdx(pipe, NetPayloadSchema.MSG_BROADCAST_220);
+        Pipe.addIntValue(LIST, pipe);
+        Pipe.addByteArray(bytes, 0, bytes.length, pipe);
+        Pipe.confirmLowLevelWrite(pipe, size);
+        Pipe.publishWrites(pipe);
+    }
+
+    private static void writeResponse(Pipe<ServerResponseSchema> pipe, int msgIdx, long id, int sequenceNo, String text) {
+        byte[] bytes = text.getBytes();
+        int size = Pipe.addMsgIdx(pipe, msgIdx);
+        Pipe.addLongValue(id, pipe);
+        Pipe.addIntValue(sequenceNo, pipe);
+        Pipe.addByteArray(bytes, 0, bytes.length, pipe);
+        Pipe.addIntValue(ServerCoordinator.END_RESPONSE_MASK, pipe);
+        Pipe.confirmLowLevelWrite(pipe, size);
+        Pipe.publishWrites(pipe);
+    }
+
+    private static String read(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer)>=0) {
+        }
+        return new String(buffer.array(), 0, buffer.position());
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.HTTPDateClock;
+
+public class HTTPDateClockTest {
+
+    @Test
+    public void matchesRFC1123() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        long[] times = new long[]{0, 951782400000L, 1117233514000L, 4107542399000L}; //leap day 2000 and end of 2099
+        for(long time : times) {
+            assertEquals("Date: "+format.format(new Date(time))+"\r\n", new String(HTTPDateClock.dateLine(time)));
+        }
+
+        Random r = new Random(42);
+        int i = 1000;
+        while (--i>=0) {
+            long time = (r.nextLong()>>>1) % 4102444800000L;
+            byte[] line = HTTPDateClock.dateLine(time);
+            assertEquals(HTTPDateClock.DATE_LINE_LENGTH, line.length);
+            assertEquals("Date: "+format.format(new Date(time))+"\r\n", new String(line));
+        }
+    }
+
+    @Test
+    public void sameArrayWithinTheSecond() {
+        long now = 1117233514000L;
+        byte[] line = HTTPDateClock.dateLine(now);
+        assertSame(line, HTTPDateClock.dateLine(now+999));
+        assertNotSame(line, HTTPDateClock.dateLine(now+1000));
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.HTTPResponseCompressionStage;
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class HTTPResponseCompressionStageTest {
+
+    private static final int GZIP = ServerCoordinator.ACCEPT_GZIP_MASK;
+    private static final int DEFLATE = ServerCoordinator.ACCEPT_DEFLATE_MASK;
+
+    @Test
+    public void acceptEncodingValues() {
+        assertEquals(GZIP|DEFLATE, HTTPResponseCompressionStage.acceptEncodingContext("gzip, deflate, br"));
+        assertEquals(GZIP, HTTPResponseCompressionStage.acceptEncodingContext("GZIP;q=0.8"));
+        assertEquals(DEFLATE, HTTPResponseCompressionStage.acceptEncodingContext("gzip;q=0, deflate;q=0.5"));
+        assertEquals(DEFLATE, HTTPResponseCompressionStage.acceptEncodingContext("*, gzip;q=0.000"));
+        assertEquals(0, HTTPResponseCompressionStage.acceptEncodingContext("identity"));
+        assertEquals(0, HTTPResponseCompressionStage.acceptEncodingContext("*;q=0"));
+        assertEquals(0, HTTPResponseCompressionStage.acceptEncodingContext(""));
+
+        assertEquals(HTTPResponseCompressionStage.GZIP, HTTPResponseCompressionStage.codingFor(GZIP|DEFLATE));
+        assertEquals(HTTPResponseCompressionStage.NONE, HTTPResponseCompressionStage.codingFor(ServerCoordinator.END_RESPONSE_MASK));
+    }
+
+    @Test
+    public void headerIsRewrittenForChunks() {
+        byte[] response = ("HTTP/1.1 200 OK\nServer: Pronghorn\nContent-Type: text/html\r\nContent-Length: 1000\r\n"
+                          +"Connection: open\n\r\n<html>").getBytes();
+        int headerLength = HTTPResponseCompressionStage.headerLength(response, response.length);
+        assertEquals(response.length-"<html>".length(), headerLength);
+
+        byte[] target = new byte[4000];
+        int len = HTTPResponseCompressionStage.compressedHeader(response, headerLength, HTTPResponseCompressionStage.GZIP, target);
+        assertEquals("HTTP/1.1 200 OK\nServer: Pronghorn\nContent-Type: text/html\r\nConnection: open\n"
+                    +"Content-Encoding: gzip\r\nTransfer-Encoding: chunked\r\nVary: Accept-Encoding\r\n\r\n", new String(target, 0, len));
+    }
+
+    @Test
+    public void responsesLeftAsTheyAre() {
+        byte[] target = new byte[4000];
+        String[] headers = new String[] {
+            "HTTP/1.0 200 OK\nContent-Type: text/html\r\nContent-Length: 1000\r\n\r\n",                  //no chunks
+            "HTTP/1.1 200 OK\nContent-Type: image/png\r\nContent-Length: 1000\r\n\r\n",                  //already small
+            "HTTP/1.1 200 OK\nContent-Type: text/html\r\nContent-Length: 100\r\n\r\n",                   //not worth it
+            "HTTP/1.1 200 OK\nContent-Type: text/html\r\nContent-Length: 100000\r\n\r\n",                //may be sent as a file
+            "HTTP/1.1 200 OK\nContent-Type: text/css\r\nContent-Encoding: gzip\r\nContent-Length: 1000\r\n\r\n" //precompressed
+        };
+        for(String header : headers) {
+            byte[] bytes = header.getBytes();
+            assertEquals(header, -1, HTTPResponseCompressionStage.compressedHeader(bytes, bytes.length, HTTPResponseCompressionStage.GZIP, target));
+        }
+        assertEquals(-1, HTTPResponseCompressionStage.headerLength("HTTP/1.1 200 OK\nContent-Type: text/html\r\n".getBytes(), 41));
+    }
+
+    @Test
+    public void headResponseIsPassedThrough() {
+        //would be compressed if a body followed, HEAD ends with the header
+        String header = "HTTP/1.1 200 OK\nContent-Type: text/html\r\nContent-Length: 1000\r\n\r\n";
+        Pipe<ServerResponseSchema> input = newPipe();
+        Pipe<ServerResponseSchema> output = newPipe();
+        HTTPResponseCompressionStage stage = new HTTPResponseCompressionStage(new GraphManager(), new Pipe[]{input}, new Pipe[]{output});
+        stage.startup();
+
+        byte[] bytes = header.getBytes();
+        int size = Pipe.addMsgIdx(input, ServerResponseSchema.MSG_TOCHANNEL_100);
+        Pipe.addLongValue(7, input);
+        Pipe.addIntValue(0, input);
+        Pipe.addByteArray(bytes, 0, bytes.length, input);
+        Pipe.addIntValue(GZIP | ServerCoordinator.END_RESPONSE_MASK, input);
+        Pipe.confirmLowLevelWrite(input, size);
+        Pipe.publishWrites(input);
+        stage.run();
+
+        assertTrue(Pipe.hasContentToRead(output));
+        int msgIdx = Pipe.takeMsgIdx(output);
+        assertEquals(ServerResponseSchema.MSG_TOCHANNEL_100, msgIdx);
+        assertEquals(7, Pipe.takeLong(output));
+        assertEquals(0, Pipe.takeInt(output));
+        int meta = Pipe.takeRingByteMetaData(output);
+        int len = Pipe.takeRingByteLen(output);
+        byte[] sent = new byte[len];
+        Pipe.copyBytesFromToRing(Pipe.blob(output), Pipe.bytePosition(meta, output, len), Pipe.blobMask(output), sent, 0, Integer.MAX_VALUE, len);
+        assertEquals(header, new String(sent));
+        assertEquals(ServerCoordinator.END_RESPONSE_MASK, Pipe.takeInt(output));
+        Pipe.confirmLowLevelRead(output, Pipe.sizeOf(output, msgIdx));
+        Pipe.releaseReadLock(output);
+        assertFalse(Pipe.hasContentToRead(output)); //no gzip header, trailer or last chunk after it
+    }
+
+    private static Pipe<ServerResponseSchema> newPipe() {
+        Pipe<ServerResponseSchema> pipe = new Pipe<ServerResponseSchema>(new PipeConfig<ServerResponseSchema>(ServerResponseSchema.instance, 8, 4000));
+        pipe.initBuffers();
+        return pipe;
+    }
+
+}
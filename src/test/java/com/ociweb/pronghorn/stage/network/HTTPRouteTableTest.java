@@ -0,0 +1,52 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.HTTPRouteTable;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+
+public class HTTPRouteTableTest {
+
+    private static final int VERBS = HTTPVerbDefaults.values().length;
+    private static final int GET = HTTPVerbDefaults.GET.ordinal();
+    private static final int POST = HTTPVerbDefaults.POST.ordinal();
+
+    @Test
+    public void verbSpecificRoutesWinInAnyOrder() {
+        HTTPRouteTable table = new HTTPRouteTable(VERBS);
+        int postPath = HTTPRouteTable.addRoute(table, POST, "/users/%u", 2);
+        int anyPath = HTTPRouteTable.addRoute(table, HTTPRouteTable.ANY_VERB, "/users/%u", 1);
+        int getOnly = HTTPRouteTable.addRoute(table, GET, "/status", 3);
+
+        assertEquals(postPath, anyPath); //one template one path id
+        assertEquals(2, HTTPRouteTable.pathCount(table));
+
+        assertEquals(2, HTTPRouteTable.route(table, POST, postPath));
+        assertEquals(1, HTTPRouteTable.route(table, GET, postPath));
+        assertEquals(3, HTTPRouteTable.route(table, GET, getOnly));
+        assertEquals(HTTPRouteTable.UNMATCHED, HTTPRouteTable.route(table, POST, getOnly));
+        assertEquals(HTTPRouteTable.UNMATCHED, HTTPRouteTable.route(table, GET, -1));
+    }
+
+    @Test
+    public void growsForManyRoutes() {
+        HTTPRouteTable table = new HTTPRouteTable(VERBS);
+        int i = 500;
+        while (--i>=0) {
+            HTTPRouteTable.addRoute(table, GET, "/api/v1/resource"+i+"/%i/%b", i);
+        }
+        assertEquals(500, HTTPRouteTable.pathCount(table));
+        assertEquals(123, HTTPRouteTable.route(table, GET, 499-123));
+        assertArrayEquals(new byte[]{'i','b'}, HTTPRouteTable.captureTypes(table, 7));
+        assertTrue(HTTPRouteTable.trieSize(table) > 500*"/api/v1/resource".length());
+        assertEquals("/api/v1/resource100/%i/%b ".length(), HTTPRouteTable.maxDepth(table));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void rejectsUnknownCaptures() {
+        HTTPRouteTable.addRoute(new HTTPRouteTable(VERBS), GET, "/files/%x", 0);
+    }
+
+}
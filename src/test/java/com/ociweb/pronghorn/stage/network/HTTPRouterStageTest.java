@@ -1,12 +1,19 @@
 package com.ociweb.pronghorn.stage.network;
 
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
 import com.ociweb.pronghorn.network.HTTP1xRouterStage;
+import com.ociweb.pronghorn.network.HTTPRouteTable;
+import com.ociweb.pronghorn.network.ServerCoordinator;
 import com.ociweb.pronghorn.network.config.HTTPHeaderKeyDefaults;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
 import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
 import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
 import com.ociweb.pronghorn.pipe.Pipe;
@@ -121,4 +128,181 @@ public class HTTPRouterStageTest {
         return stage;
     }
  
+    private static final int CHANNEL_BITS = 4;
+    private static final int END = ServerCoordinator.END_RESPONSE_MASK;
+    private static final int END_CLOSE = ServerCoordinator.END_RESPONSE_MASK | ServerCoordinator.CLOSE_CONNECTION_MASK;
+
+    @Test
+    public void contentLengthBodyIsStreamed() {
+        Pipe<NetPayloadSchema> input = newInput();
+        Pipe<HTTPRequestSchema> app = newApp();
+        HTTP1xRouterStage router = newBodyRouter(input, app);
+
+        send(input, 5, "POST /upload HTTP/1.1\r\nContent-Length: 10\r\n\r\nhello");
+        router.run();
+        send(input, 5, "world");
+        router.run();
+        send(input, 5, "GET /upload HTTP/1.1\r\n\r\n");
+        router.run();
+
+        assertEquals("[request 5 0, body 5 0 hello 0, body 5 0 world "+END+", request 5 1]", drain(app).toString());
+        assertEquals(0, Pipe.contentRemaining(input));
+    }
+
+    @Test
+    public void chunkedBodyIsStreamed() {
+        Pipe<NetPayloadSchema> input = newInput();
+        Pipe<HTTPRequestSchema> app = newApp();
+        HTTP1xRouterStage router = newBodyRouter(input, app);
+
+        send(input, 5, "POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n");
+        router.run();
+        send(input, 5, "3;x=y\r\nabc\r\n0\r\n\r\n");
+        router.run();
+
+        assertEquals("[request 5 0, body 5 0 hello 0, body 5 0 abc 0, body 5 0  "+END+"]", drain(app).toString());
+        assertEquals(0, Pipe.contentRemaining(input));
+    }
+
+    @Test
+    public void reusedSlotDoesNotContinueOldBody() {
+        Pipe<NetPayloadSchema> input = newInput();
+        Pipe<HTTPRequestSchema> app = newApp();
+        HTTP1xRouterStage router = newBodyRouter(input, app);
+
+        long first = 5;
+        long second = (1<<CHANNEL_BITS) | 5; //same slot, next connection
+        send(input, first, "POST /upload HTTP/1.1\r\nContent-Length: 10\r\n\r\nhello");
+        router.run();
+        send(input, second, "GET /upload HTTP/1.1\r\n\r\n");
+        router.run();
+
+        assertEquals("[request 5 0, body 5 0 hello 0, body 5 0  "+END_CLOSE+", request "+second+" 1]", drain(app).toString());
+    }
+
+    @Test
+    public void disconnectDropsHeldRequestAndBody() {
+        Pipe<NetPayloadSchema> input = newInput();
+        Pipe<HTTPRequestSchema> app = newApp();
+        HTTP1xRouterStage router = newBodyRouter(input, app);
+
+        send(input, 5, "POST /upload HTTP/1.1\r\nContent-Length: 10\r\n\r\nhello");
+        router.run();
+        disconnect(input, 5);
+        router.run();
+        send(input, 6, "GET /upl"); //held until the rest arrives which it never does
+        router.run();
+        disconnect(input, 6);
+        router.run();
+        send(input, 6, "GET /upload HTTP/1.1\r\n\r\n");
+        router.run();
+
+        assertEquals("[request 5 0, body 5 0 hello 0, body 5 0  "+END_CLOSE+", request 6 0]", drain(app).toString());
+        assertEquals(0, Pipe.contentRemaining(input));
+    }
+
+    @Test
+    public void unroutedVerbDoesNotHoldTheInput() {
+        Pipe<NetPayloadSchema> input = newInput();
+        Pipe<HTTPRequestSchema> app = newApp();
+        HTTPRouteTable table = new HTTPRouteTable(HTTPVerbDefaults.values().length);
+        HTTPRouteTable.addRoute(table, HTTPVerbDefaults.GET.ordinal(), "/upload", 0);
+        GraphManager gm = new GraphManager();
+        HTTP1xRouterStage router = HTTP1xRouterStage.newInstance(gm, new Pool<Pipe<NetPayloadSchema>>(new Pipe[]{input}), new Pipe[][]{{app}}, table,
+                                                                 new long[]{0}, new int[]{HTTPRequestSchema.MSG_FILEREQUEST_200}, CHANNEL_BITS);
+        router.startup();
+
+        send(input, 5, "DELETE /upload HTTP/1.1\r\n\r\n");
+        send(input, 6, "GET /upload HTTP/1.1\r\n\r\n");
+        router.run();
+        router.run();
+
+        assertEquals("[request 6 0]", drain(app).toString()); //the other connection is not stuck behind it
+        assertEquals(0, Pipe.contentRemaining(input));
+    }
+
+    @Test
+    public void unknownPathDoesNotHoldTheInput() {
+        Pipe<NetPayloadSchema> input = newInput();
+        Pipe<HTTPRequestSchema> app = newApp();
+        HTTP1xRouterStage router = newBodyRouter(input, app);
+
+        send(input, 5, "GET /elsewhere/that/is/not/known HTTP/1.1\r\n\r\n");
+        send(input, 6, "GET /upload HTTP/1.1\r\n\r\n");
+        router.run();
+        router.run();
+
+        assertEquals("[request 6 0]", drain(app).toString());
+        assertEquals(0, Pipe.contentRemaining(input));
+    }
+
+    private HTTP1xRouterStage newBodyRouter(Pipe<NetPayloadSchema> input, Pipe<HTTPRequestSchema> app) {
+        GraphManager gm = new GraphManager();
+        Pool<Pipe<NetPayloadSchema>> pool = new Pool<Pipe<NetPayloadSchema>>(new Pipe[]{input});
+        HTTP1xRouterStage router = HTTP1xRouterStage.newInstance(gm, pool, new Pipe[][]{{app}}, new CharSequence[]{"/upload"},
+                                                                 new long[]{0}, new int[]{HTTPRequestSchema.MSG_FILEREQUEST_200}, CHANNEL_BITS);
+        router.startup();
+        return router;
+    }
+
+    private static Pipe<NetPayloadSchema> newInput() {
+        Pipe<NetPayloadSchema> pipe = new Pipe<NetPayloadSchema>(new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 16, 256));
+        pipe.initBuffers();
+        return pipe;
+    }
+
+    private static Pipe<HTTPRequestSchema> newApp() {
+        Pipe<HTTPRequestSchema> pipe = new Pipe<HTTPRequestSchema>(new PipeConfig<HTTPRequestSchema>(HTTPRequestSchema.instance, 16, 256));
+        pipe.initBuffers();
+        return pipe;
+    }
+
+    private static void send(Pipe<NetPayloadSchema> pipe, long channel, String text) {
+        byte[] bytes = text.getBytes();
+        int size = Pipe.addMsgIdx(pipe, NetPayloadSchema.MSG_PLAIN_210);
+        Pipe.addLongValue(channel, pipe);
+        Pipe.addByteArray(bytes, 0, bytes.length, pipe);
+        Pipe.confirmLowLevelWrite(pipe, size);
+        Pipe.publishWrites(pipe);
+    }
+
+    private static void disconnect(Pipe<NetPayloadSchema> pipe, long channel) {
+        int size = Pipe.addMsgIdx(pipe, NetPayloadSchema.MSG_DISCONNECT_203);
+        Pipe.addLongValue(channel, pipe);
+        Pipe.confirmLowLevelWrite(pipe, size);
+        Pipe.publishWrites(pipe);
+    }
+
+    //each request as "request channel sequence" and each body part as "body channel sequence payload context"
+    private static List<String> drain(Pipe<HTTPRequestSchema> pipe) {
+        List<String> found = new ArrayList<String>();
+        while (Pipe.hasContentToRead(pipe)) {
+            int msgIdx = Pipe.takeMsgIdx(pipe);
+            long channel = Pipe.takeLong(pipe);
+            int sequence = Pipe.takeInt(pipe);
+            if (HTTPRequestSchema.MSG_REQUESTBODY_400 == msgIdx) {
+                String payload = takeText(pipe);
+                found.add("body "+channel+" "+sequence+" "+payload+" "+Pipe.takeInt(pipe));
+            } else {
+                assertEquals(HTTPRequestSchema.MSG_FILEREQUEST_200, msgIdx);
+                Pipe.takeInt(pipe); //verb
+                takeText(pipe);     //params
+                Pipe.takeInt(pipe); //revision
+                Pipe.takeInt(pipe); //context
+                found.add("request "+channel+" "+sequence);
+            }
+            Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+            Pipe.releaseReadLock(pipe);
+        }
+        return found;
+    }
+
+    private static String takeText(Pipe<HTTPRequestSchema> pipe) {
+        int meta = Pipe.takeRingByteMetaData(pipe);
+        int len = Pipe.takeRingByteLen(pipe);
+        byte[] bytes = new byte[Math.max(0, len)];
+        Pipe.copyBytesFromToRing(Pipe.byteBackingArray(meta, pipe), Pipe.bytePosition(meta, pipe, len), Pipe.blobMask(pipe), bytes, 0, Integer.MAX_VALUE, bytes.length);
+        return new String(bytes);
+    }
+
 }
@@ -0,0 +1,96 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.HTTPDateClock;
+import com.ociweb.pronghorn.network.ResponseCache;
+
+public class ResponseCacheTest {
+
+    private static void fill(ResponseCache cache, int key, long version, byte[] ring, int pos, int len) {
+        assertTrue(ResponseCache.begin(cache, key, version, len));
+        ResponseCache.append(cache, ring, pos, len, ring.length-1);
+        ResponseCache.finish(cache);
+    }
+
+    @Test
+    public void storesAcrossRingWrapAndReadsInParts() {
+        ResponseCache cache = new ResponseCache(4, 1024, 256);
+        byte[] ring = new byte[16];
+        for(int i=0; i<ring.length; i++) {
+            ring[i] = (byte)i;
+        }
+        fill(cache, 1, 7, ring, 12, 8); //bytes 12..15 then 0..3
+
+        assertFalse(ResponseCache.lookup(cache, 1, 8));
+        assertTrue(ResponseCache.lookup(cache, 1, 7));
+        assertEquals(8, ResponseCache.length(cache, 1));
+
+        ByteBuffer a = ByteBuffer.allocate(3);
+        ByteBuffer b = ByteBuffer.allocate(2);
+        assertEquals(5, ResponseCache.read(cache, 1, 0, 100, new ByteBuffer[]{a, b}));
+        assertArrayEquals(new byte[]{12,13,14}, a.array());
+        assertArrayEquals(new byte[]{15,0}, b.array());
+
+        ByteBuffer rest = ByteBuffer.allocate(10);
+        assertEquals(2, ResponseCache.read(cache, 1, 5, 2, new ByteBuffer[]{rest}));
+        assertEquals(1, rest.get(0));
+        assertEquals(2, rest.get(1));
+
+        assertEquals(1, ResponseCache.hits(cache));
+        assertEquals(1, ResponseCache.misses(cache));
+    }
+
+    @Test
+    public void incompleteResponseIsNeverServed() {
+        ResponseCache cache = new ResponseCache(2, 1024, 256);
+        byte[] ring = new byte[64];
+        assertTrue(ResponseCache.begin(cache, 0, 1, 10));
+        ResponseCache.append(cache, ring, 0, 6, 63);
+        ResponseCache.finish(cache);
+        assertFalse(ResponseCache.lookup(cache, 0, 1));
+
+        assertFalse(ResponseCache.begin(cache, 1, 1, 300)); //larger than any entry may be
+    }
+
+    @Test
+    public void evictsUnreferencedFirst() {
+        ResponseCache cache = new ResponseCache(3, 200, 100);
+        byte[] ring = new byte[128];
+        fill(cache, 0, 1, ring, 0, 100);
+        fill(cache, 1, 1, ring, 0, 100);
+        assertTrue(ResponseCache.lookup(cache, 0, 1)); //0 is hot
+
+        fill(cache, 2, 1, ring, 0, 100);
+
+        assertTrue(ResponseCache.lookup(cache, 0, 1));
+        assertFalse(ResponseCache.lookup(cache, 1, 1));
+        assertTrue(ResponseCache.lookup(cache, 2, 1));
+        assertEquals(1, ResponseCache.evictions(cache));
+        assertEquals(200, ResponseCache.usedBytes(cache));
+    }
+
+    @Test
+    public void dateIsPatchedWithoutChangingTheVersion() {
+        ResponseCache cache = new ResponseCache(1, 1024, 256);
+        String status = "HTTP/1.1 200 OK\r\n";
+        String rest = "Content-Length: 2\r\n\r\nhi";
+        byte[] first = (status+new String(HTTPDateClock.dateLine(1_000))+rest).getBytes();
+        byte[] ring = new byte[128];
+        System.arraycopy(first, 0, ring, 0, first.length);
+        fill(cache, 0, 3, ring, 0, first.length);
+
+        byte[] later = HTTPDateClock.dateLine(61_000);
+        ResponseCache.patch(cache, 0, status.length(), later);
+
+        assertTrue(ResponseCache.lookup(cache, 0, 3)); //still the same file
+        ByteBuffer target = ByteBuffer.allocate(first.length);
+        assertEquals(first.length, ResponseCache.read(cache, 0, 0, 1000, new ByteBuffer[]{target}));
+        assertEquals(status+new String(later)+rest, new String(target.array()));
+    }
+
+}
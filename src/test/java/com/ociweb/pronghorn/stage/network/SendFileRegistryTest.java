@@ -0,0 +1,94 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.SendFileRegistry;
+import com.ociweb.pronghorn.network.ServerCoordinator;
+
+public class SendFileRegistryTest {
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("sendfile", ".txt");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void fullRegistryRejectsNewFiles() throws IOException {
+        SendFileRegistry registry = new SendFileRegistry(2);
+        assertEquals(0, registry.register(open()));
+        assertEquals(1, registry.register(open()));
+        assertEquals(-1, registry.register(open()));
+        registry.close();
+    }
+
+    @Test
+    public void replacedFileKeepsItsId() throws IOException {
+        SendFileRegistry registry = new SendFileRegistry(1);
+        FileChannel first = open();
+        FileChannel second = open();
+        int id = registry.register(first);
+
+        int i = 100;
+        while (--i>=0) { //file changed on disk many times, still only one slot used
+            assertSame(first, registry.replace(id, second));
+            assertSame(second, registry.replace(id, first));
+        }
+        assertSame(first, registry.get(id));
+        assertEquals(-1, registry.register(second));
+        registry.close();
+        second.close();
+    }
+
+    @Test
+    public void closeReleasesEveryChannel() throws IOException {
+        SendFileRegistry registry = new SendFileRegistry(4);
+        FileChannel a = open();
+        FileChannel b = open();
+        registry.register(a);
+        registry.register(b);
+
+        registry.close();
+        assertFalse(a.isOpen());
+        assertFalse(b.isOpen());
+        assertNull(registry.get(0));
+
+        FileChannel late = open();
+        assertEquals(-1, registry.register(late)); //nothing may be added once closed
+        late.close();
+    }
+
+    @Test
+    public void lastWriterToStopClosesTheFiles() throws IOException {
+        ServerCoordinator coordinator = new ServerCoordinator(2, "127.0.0.1", 0, 4);
+        FileChannel channel = open();
+        ServerCoordinator.getSendFileRegistry(coordinator).register(channel);
+
+        ServerCoordinator.writerStarted(coordinator);
+        ServerCoordinator.writerStarted(coordinator);
+        ServerCoordinator.writerStopped(coordinator);
+        assertTrue(channel.isOpen()); //other writer may still be sending from it
+        ServerCoordinator.writerStopped(coordinator);
+        assertFalse(channel.isOpen());
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+}
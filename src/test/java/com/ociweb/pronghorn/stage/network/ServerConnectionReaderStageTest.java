@@ -1,6 +1,14 @@
 package com.ociweb.pronghorn.stage.network;
 
+import static org.junit.Assert.*;
+
 import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.*;
@@ -161,6 +169,108 @@ public class ServerConnectionReaderStageTest {
     }
 
 
+    @Test
+    public void fullPipeIsSkipped() throws IOException, InterruptedException {
+        PipeConfig<NetPayloadSchema> config = new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 4, 256);
+        Pipe<NetPayloadSchema>[] output = new Pipe[]{new Pipe<NetPayloadSchema>(config), new Pipe<NetPayloadSchema>(config)};
+        output[0].initBuffers();
+        output[1].initBuffers();
+
+        ServerCoordinator coordinator = new ServerCoordinator(1, "127.0.0.1", 0, 4);
+        ServerConnectionReaderStage reader = new ServerConnectionReaderStage(new GraphManager(), output, coordinator, 0, output.length);
+        reader.startup();
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel clientA = SocketChannel.open(server.getLocalAddress());
+        SocketChannel clientB = SocketChannel.open(server.getLocalAddress());
+        long a = accept(coordinator, server);
+        long b = accept(coordinator, server);
+        try {
+            send(clientA, "a1");
+            int pipeA = readUntilData(reader, output);
+            assertEquals("a1", take(output[pipeA], a));
+
+            //A still has unconsumed data on its pipe so it must stay there, fill it up
+            while (Pipe.hasRoomForWrite(output[pipeA])) {
+                publish(output[pipeA], -1, "filler");
+            }
+            send(clientA, "a2");
+            send(clientB, "b1");
+            int pipeB = readUntilData(reader, output);
+            assertNotEquals(pipeA, pipeB);
+            assertEquals("b1", take(output[pipeB], b)); //B was read even though A is waiting for room
+
+            //once its pipe is consumed A is read again
+            while (Pipe.hasContentToRead(output[pipeA])) {
+                assertEquals("filler", take(output[pipeA], -1));
+            }
+            int next = readUntilData(reader, output);
+            assertEquals("a2", take(output[next], a));
+        } finally {
+            clientA.close();
+            clientB.close();
+            server.close();
+        }
+    }
+
+    private static long accept(ServerCoordinator coordinator, ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        channel.configureBlocking(false);
+        long channelId = ServerCoordinator.openConnection(coordinator, 0, channel, null, System.nanoTime());
+        channel.register(ServerCoordinator.getSelector(coordinator, 0), SelectionKey.OP_READ, ServerCoordinator.selectorKeyContext(coordinator, 0, channelId));
+        return channelId;
+    }
+
+    private static void send(SocketChannel channel, String text) throws IOException {
+        channel.write(ByteBuffer.wrap(text.getBytes()));
+    }
+
+    //runs the reader until one of the pipes has something new, returns that pipe
+    private static int readUntilData(ServerConnectionReaderStage reader, Pipe<NetPayloadSchema>[] output) throws InterruptedException {
+        long[] before = new long[output.length];
+        int i = output.length;
+        while (--i>=0) {
+            before[i] = Pipe.headPosition(output[i]);
+        }
+        int tries = 1000;
+        while (--tries>=0) {
+            reader.run();
+            i = output.length;
+            while (--i>=0) {
+                if (Pipe.headPosition(output[i])!=before[i]) {
+                    return i;
+                }
+            }
+            Thread.sleep(2);
+        }
+        fail("nothing was read");
+        return -1;
+    }
+
+    private static void publish(Pipe<NetPayloadSchema> pipe, long channelId, String text) {
+        byte[] bytes = text.getBytes();
+        int size = Pipe.addMsgIdx(pipe, NetPayloadSchema.MSG_PLAIN_210);
+        Pipe.addLongValue(channelId, pipe);
+        Pipe.addByteArray(bytes, 0, bytes.length, pipe);
+        Pipe.confirmLowLevelWrite(pipe, size);
+        Pipe.publishWrites(pipe);
+    }
+
+    private static String take(Pipe<NetPayloadSchema> pipe, long channelId) {
+        assertTrue(Pipe.hasContentToRead(pipe));
+        int msgIdx = Pipe.takeMsgIdx(pipe);
+        assertEquals(NetPayloadSchema.MSG_PLAIN_210, msgIdx);
+        assertEquals(channelId, Pipe.takeLong(pipe));
+        int meta = Pipe.takeRingByteMetaData(pipe);
+        int len = Pipe.takeRingByteLen(pipe);
+        byte[] bytes = new byte[len];
+        Pipe.copyBytesFromToRing(Pipe.blob(pipe), Pipe.bytePosition(meta, pipe, len), Pipe.blobMask(pipe), bytes, 0, Integer.MAX_VALUE, len);
+        Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+        Pipe.releaseReadLock(pipe);
+        return new String(bytes);
+    }
+
     protected ClientHTTPSocketRequestGeneratorStage addGeneratorStage(int fileCount, int fileSize, int iterations,
             GraphManager gm, int port, String baseFolder) {
         TestDataFiles testDataFiles = new TestDataFiles(new File(System.getProperty("java.io.tmpdir"),baseFolder), fileCount, fileSize);
@@ -0,0 +1,145 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerConnectionTimeoutStage;
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.network.schema.ServerConnectionSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class ServerConnectionTimeoutStageTest {
+
+    private static final long SECOND = 1_000_000_000L;
+    private static final long IDLE = 10*SECOND;
+    private static final long REQUEST = 3*SECOND;
+
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private SocketChannel accepted;
+
+    private ServerCoordinator coordinator;
+    private Pipe<ServerConnectionSchema> newConnections;
+    private Pipe<NetPayloadSchema> writerDisconnects;
+    private Pipe<NetPayloadSchema> routerDisconnects;
+    private ServerConnectionTimeoutStage stage;
+    private long base;
+    private long channelId;
+
+    @Before
+    public void openConnection() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        client = SocketChannel.open(server.getLocalAddress());
+        accepted = server.accept();
+
+        coordinator = new ServerCoordinator(1, "127.0.0.1", 0, 4);
+        ServerCoordinator.newSocketChannelHolder(coordinator, 0);
+
+        newConnections = new Pipe<ServerConnectionSchema>(new PipeConfig<ServerConnectionSchema>(ServerConnectionSchema.instance, 4));
+        writerDisconnects = new Pipe<NetPayloadSchema>(new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 4));
+        routerDisconnects = new Pipe<NetPayloadSchema>(new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 4));
+        newConnections.initBuffers();
+        writerDisconnects.initBuffers();
+        routerDisconnects.initBuffers();
+
+        stage = new ServerConnectionTimeoutStage(new GraphManager(), newConnections, new Pipe[]{writerDisconnects}, new Pipe[]{routerDisconnects},
+                                                 coordinator, IDLE, REQUEST);
+        stage.startup();
+
+        base = System.nanoTime();
+        channelId = ServerCoordinator.openConnection(coordinator, 0, accepted, null, base);
+        assertTrue(channelId>=0);
+
+        int size = Pipe.addMsgIdx(newConnections, ServerConnectionSchema.MSG_SERVERCONNECTION_100);
+        Pipe.addLongValue(0, newConnections);
+        Pipe.addLongValue(channelId, newConnections);
+        Pipe.confirmLowLevelWrite(newConnections, size);
+        Pipe.publishWrites(newConnections);
+        ServerConnectionTimeoutStage.run(stage, base);
+    }
+
+    @After
+    public void closeSockets() throws IOException {
+        client.close();
+        accepted.close();
+        server.close();
+    }
+
+    @Test
+    public void idleConnectionIsClosed() {
+        ServerCoordinator.readActivity(coordinator, 0, channelId, base+1*SECOND);
+        ServerCoordinator.writeActivity(coordinator, 0, channelId, base+2*SECOND); //request was answered
+
+        assertFalse(runAt(4*SECOND));
+        assertFalse(runAt(8*SECOND));
+        assertFalse(runAt(11*SECOND+SECOND/2)); //idle since the write at 2s
+        assertTrue(runAt(12*SECOND+SECOND/2));
+    }
+
+    @Test
+    public void activityKeepsConnectionOpen() {
+        assertFalse(runAt(4*SECOND));
+        ServerCoordinator.readActivity(coordinator, 0, channelId, base+5*SECOND);
+        ServerCoordinator.writeActivity(coordinator, 0, channelId, base+5*SECOND);
+        assertFalse(runAt(10*SECOND+SECOND/2));
+        assertFalse(runAt(14*SECOND));
+        assertTrue(runAt(15*SECOND+SECOND/2));
+    }
+
+    @Test
+    public void unansweredRequestIsClosed() {
+        ServerCoordinator.readActivity(coordinator, 0, channelId, base+1*SECOND);
+        ServerCoordinator.readActivity(coordinator, 0, channelId, base+3*SECOND); //slow-loris, still sending the same request
+
+        assertFalse(runAt(3*SECOND+SECOND/2));
+        assertTrue(runAt(4*SECOND+SECOND/2)); //long before the idle deadline
+    }
+
+    @Test
+    public void arrivingBodyMovesRequestDeadline() {
+        ServerCoordinator.readActivity(coordinator, 0, channelId, base+1*SECOND);
+        ServerCoordinator.readActivity(coordinator, 0, channelId, base+3*SECOND);
+        ServerCoordinator.bodyActivity(coordinator, 0, channelId, base+3*SECOND);
+
+        assertFalse(runAt(4*SECOND+SECOND/2));
+        ServerCoordinator.readActivity(coordinator, 0, channelId, base+5*SECOND);
+        ServerCoordinator.bodyActivity(coordinator, 0, channelId, base+5*SECOND);
+        assertFalse(runAt(7*SECOND+SECOND/2));
+        assertTrue(runAt(8*SECOND+SECOND/2)); //body stopped arriving
+    }
+
+    //true once the disconnect has been sent to both the writer and the router
+    private boolean runAt(long offsetNS) {
+        ServerConnectionTimeoutStage.run(stage, base+offsetNS);
+        boolean closed = takeDisconnect(writerDisconnects);
+        assertEquals(closed, takeDisconnect(routerDisconnects));
+        assertEquals(closed ? 1 : 0, ServerConnectionTimeoutStage.closedCount(stage));
+        return closed;
+    }
+
+    private boolean takeDisconnect(Pipe<NetPayloadSchema> pipe) {
+        if (!Pipe.hasContentToRead(pipe)) {
+            return false;
+        }
+        int msgIdx = Pipe.takeMsgIdx(pipe);
+        assertEquals(NetPayloadSchema.MSG_DISCONNECT_203, msgIdx);
+        assertEquals(channelId, Pipe.takeLong(pipe));
+        Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+        Pipe.releaseReadLock(pipe);
+        assertFalse(Pipe.hasContentToRead(pipe));
+        return true;
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.ServerNewConnectionStage;
+import com.ociweb.pronghorn.network.schema.ServerConnectionSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class ServerNewConnectionStageTest {
+
+    private static final int GROUPS = 3;
+
+    private ServerSocketChannel server;
+    private SocketChannel[] clients = new SocketChannel[6];
+    private SocketChannel[] accepted = new SocketChannel[6];
+    private ServerCoordinator coordinator;
+
+    @Before
+    public void openConnections() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        int i = clients.length;
+        while (--i>=0) {
+            clients[i] = SocketChannel.open(server.getLocalAddress());
+            accepted[i] = server.accept();
+        }
+        coordinator = new ServerCoordinator(GROUPS, "127.0.0.1", 0, 1); //two connections per group
+        int g = GROUPS;
+        while (--g>=0) {
+            ServerCoordinator.newSocketChannelHolder(coordinator, g);
+        }
+    }
+
+    @After
+    public void closeSockets() throws IOException {
+        int i = clients.length;
+        while (--i>=0) {
+            clients[i].close();
+            accepted[i].close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void leastConnectionsPicksTheEmptiestGroup() {
+        open(0, accepted[0]);
+        open(2, accepted[1]);
+        open(2, accepted[2]);
+        assertEquals(1, ServerCoordinator.LEAST_CONNECTIONS.group(coordinator, accepted[3]));
+
+        open(1, accepted[3]);
+        open(1, accepted[4]);
+        assertEquals(0, ServerCoordinator.LEAST_CONNECTIONS.group(coordinator, accepted[5]));
+
+        open(0, accepted[5]);
+        assertEquals(-1, ServerCoordinator.LEAST_CONNECTIONS.group(coordinator, accepted[5])); //every group is full
+    }
+
+    @Test
+    public void remoteAddressHashKeepsAClientInOneGroup() throws IOException {
+        int home = (InetAddress.getByName("127.0.0.1").hashCode() & Integer.MAX_VALUE) % GROUPS;
+        assertEquals(home, ServerCoordinator.REMOTE_ADDRESS_HASH.group(coordinator, accepted[0]));
+
+        open(home, accepted[0]); //busier than the others but still has room
+        assertEquals(home, ServerCoordinator.REMOTE_ADDRESS_HASH.group(coordinator, accepted[1]));
+
+        open(home, accepted[1]);
+        int other = ServerCoordinator.REMOTE_ADDRESS_HASH.group(coordinator, accepted[2]);
+        assertTrue(other>=0);
+        assertNotEquals(home, other); //full, falls back to the least used group
+    }
+
+    @Test(timeout=10_000)
+    public void acceptorKeepsWorkingAfterAnotherShutsDown() throws IOException {
+        int port = freePort();
+        ServerCoordinator shared = new ServerCoordinator(1, "127.0.0.1", port, 4);
+        ServerCoordinator.newSocketChannelHolder(shared, 0);
+        Selector readerSelector = Selector.open();
+        shared.registerSelector(0, readerSelector);
+
+        GraphManager gm = new GraphManager();
+        PipeConfig<ServerConnectionSchema> config = new PipeConfig<ServerConnectionSchema>(ServerConnectionSchema.instance, 4);
+        Pipe<ServerConnectionSchema> firstPipe = new Pipe<ServerConnectionSchema>(config);
+        Pipe<ServerConnectionSchema> secondPipe = new Pipe<ServerConnectionSchema>(config);
+        firstPipe.initBuffers();
+        secondPipe.initBuffers();
+        ServerNewConnectionStage first = new ServerNewConnectionStage(gm, shared, firstPipe);
+        ServerNewConnectionStage second = new ServerNewConnectionStage(gm, shared, secondPipe);
+        first.startup();
+        second.startup();
+
+        first.shutdown(); //must not close a server channel the second is still accepting on
+        SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+        try {
+            long limit = System.nanoTime()+TimeUnit.SECONDS.toNanos(5);
+            while (!Pipe.hasContentToRead(secondPipe) && System.nanoTime()<limit) {
+                second.run();
+            }
+            assertEquals(ServerConnectionSchema.MSG_SERVERCONNECTION_100, Pipe.takeMsgIdx(secondPipe));
+            assertEquals(0, Pipe.takeLong(secondPipe));
+        } finally {
+            client.close();
+            second.shutdown();
+            readerSelector.close();
+        }
+    }
+
+    private void open(int group, SocketChannel channel) {
+        assertTrue(ServerCoordinator.openConnection(coordinator, group, channel, null, System.nanoTime())>=0);
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocketChannel probe = ServerSocketChannel.open();
+        try {
+            probe.bind(new InetSocketAddress("127.0.0.1", 0));
+            return ((InetSocketAddress)probe.getLocalAddress()).getPort();
+        } finally {
+            probe.close();
+        }
+    }
+
+}
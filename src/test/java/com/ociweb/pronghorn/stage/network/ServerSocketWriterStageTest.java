@@ -0,0 +1,146 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.ServerSocketWriterStage;
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class ServerSocketWriterStageTest {
+
+    private static final String[] PARTS = new String[]{"abcde", "fghijkl", "mno"};
+    private static final int ROUNDS = 50; //enough to go around the small blob ring many times
+
+    private ServerSocketChannel server;
+    private SocketChannel[] clients = new SocketChannel[2];
+    private SocketChannel[] accepted = new SocketChannel[2];
+    private ServerCoordinator coordinator;
+    private long[] ids = new long[2];
+
+    @Before
+    public void openConnections() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        coordinator = new ServerCoordinator(1, "127.0.0.1", 0, 4);
+        ServerCoordinator.newSocketChannelHolder(coordinator, 0);
+        int i = clients.length;
+        while (--i>=0) {
+            clients[i] = SocketChannel.open(server.getLocalAddress());
+            accepted[i] = server.accept();
+            ids[i] = ServerCoordinator.openConnection(coordinator, 0, accepted[i], null, System.nanoTime());
+        }
+    }
+
+    @After
+    public void closeSockets() throws IOException {
+        int i = clients.length;
+        while (--i>=0) {
+            clients[i].close();
+            accepted[i].close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void payloadsFollowEachOtherInTheBlobRing() {
+        //the gathering write sends a run of payloads as one range of the ring, this is what makes that safe
+        Pipe<NetPayloadSchema> pipe = newPipe();
+        int round = ROUNDS;
+        while (--round>=0) {
+            int i = PARTS.length;
+            while (--i>=0) {
+                writePlain(pipe, ids[0], PARTS[i]);
+            }
+            int expected = -1;
+            i = PARTS.length;
+            while (--i>=0) {
+                int msgIdx = Pipe.takeMsgIdx(pipe);
+                Pipe.takeLong(pipe);
+                int meta = Pipe.takeRingByteMetaData(pipe);
+                int len = Pipe.takeRingByteLen(pipe);
+                int pos = Pipe.blobMask(pipe) & Pipe.bytePosition(meta, pipe, len);
+                if (expected>=0) {
+                    assertEquals(expected, pos);
+                }
+                expected = Pipe.blobMask(pipe) & (pos+len);
+                Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+                Pipe.releaseReadLock(pipe);
+            }
+        }
+    }
+
+    @Test
+    public void runsForOneChannelArriveWholeAcrossTheWrap() throws IOException {
+        Pipe<NetPayloadSchema> pipe = newPipe();
+        ServerSocketWriterStage writer = newWriter(pipe);
+
+        int round = ROUNDS;
+        while (--round>=0) {
+            int i = PARTS.length;
+            while (--i>=0) {
+                writePlain(pipe, ids[0], PARTS[i]);
+            }
+            writer.run();
+            assertEquals("mnofghijklabcde", read(clients[0], 15));
+            assertEquals(0, Pipe.contentRemaining(pipe)); //every held fragment was released
+        }
+    }
+
+    @Test
+    public void runEndsAtTheNextChannel() throws IOException {
+        Pipe<NetPayloadSchema> pipe = newPipe();
+        ServerSocketWriterStage writer = newWriter(pipe);
+
+        writePlain(pipe, ids[0], "one");
+        writePlain(pipe, ids[0], "two");
+        writePlain(pipe, ids[1], "three");
+        writePlain(pipe, ids[0], "four");
+        writer.run();
+
+        assertEquals("onetwofour", read(clients[0], 10));
+        assertEquals("three", read(clients[1], 5));
+        assertEquals(0, Pipe.contentRemaining(pipe));
+    }
+
+    private ServerSocketWriterStage newWriter(Pipe<NetPayloadSchema> pipe) {
+        ServerSocketWriterStage writer = new ServerSocketWriterStage(new GraphManager(), new Pipe[]{pipe}, coordinator, 0);
+        writer.startup();
+        return writer;
+    }
+
+    private static Pipe<NetPayloadSchema> newPipe() {
+        Pipe<NetPayloadSchema> pipe = new Pipe<NetPayloadSchema>(new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 4, 16));
+        pipe.initBuffers();
+        return pipe;
+    }
+
+    private static void writePlain(Pipe<NetPayloadSchema> pipe, long id, String text) {
+        byte[] bytes = text.getBytes();
+        int size = Pipe.addMsgIdx(pipe, NetPayloadSchema.MSG_PLAIN_210);
+        Pipe.addLongValue(id, pipe);
+        Pipe.addByteArray(bytes, 0, bytes.length, pipe);
+        Pipe.confirmLowLevelWrite(pipe, size);
+        Pipe.publishWrites(pipe);
+    }
+
+    private static String read(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer)>=0) {
+        }
+        return new String(buffer.array(), 0, buffer.position());
+    }
+
+}
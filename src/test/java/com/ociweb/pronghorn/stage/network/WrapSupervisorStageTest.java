@@ -0,0 +1,134 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.WrapSupervisorStage;
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class WrapSupervisorStageTest {
+
+    private static final long CHANNEL = 5;
+
+    private ServerCoordinator coordinator;
+    private Pipe<NetPayloadSchema> output;
+
+    @Before
+    public void newCoordinator() {
+        coordinator = new ServerCoordinator(1, "127.0.0.1", 0, 4);
+        output = new Pipe<NetPayloadSchema>(new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 256, 256));
+        output.initBuffers();
+    }
+
+    @Test
+    public void responsesLeaveInSequenceAcrossInputs() {
+        Pipe<ServerResponseSchema> a = newInput(4);
+        Pipe<ServerResponseSchema> b = newInput(4);
+        WrapSupervisorStage supervisor = newSupervisor(a, b);
+
+        writeResponse(a, 2, "c", true);
+        writeResponse(b, 1, "b", true);
+        writeResponse(a, 0, "a", true);
+        supervisor.run();
+
+        assertEquals("a", readPlain(output));
+        assertEquals("b", readPlain(output));
+        assertEquals("c", readPlain(output));
+        assertFalse(Pipe.hasContentToRead(output));
+    }
+
+    @Test
+    public void partsOfOneResponseStayTogether() {
+        Pipe<ServerResponseSchema> a = newInput(8);
+        Pipe<ServerResponseSchema> b = newInput(8);
+        WrapSupervisorStage supervisor = newSupervisor(a, b);
+
+        writeResponse(a, 1, "b1", false);
+        writeResponse(a, 1, "b2", true);
+        supervisor.run();
+        assertFalse(Pipe.hasContentToRead(output)); //both parts wait for the first response
+
+        writeResponse(b, 0, "a", true);
+        supervisor.run();
+        assertEquals("a", readPlain(output));
+        assertEquals("b1", readPlain(output));
+        assertEquals("b2", readPlain(output));
+    }
+
+    @Test
+    public void fullInputsAreParkedUntilTheDueResponseArrives() {
+        //more early responses than the default buffer would take, all stuck ahead of the one which is due
+        Pipe<ServerResponseSchema> a = newInput(64);
+        Pipe<ServerResponseSchema> b = newInput(64);
+        WrapSupervisorStage supervisor = newSupervisor(a, b);
+        assertTrue(WrapSupervisorStage.maxParked(supervisor) > WrapSupervisorStage.DEFAULT_MAX_PARKED);
+
+        int seq = 1;
+        while (Pipe.hasRoomForWrite(a)) {
+            writeResponse(a, seq++, Integer.toString(seq-1), true);
+        }
+        while (Pipe.hasRoomForWrite(b)) {
+            writeResponse(b, seq++, Integer.toString(seq-1), true);
+        }
+        supervisor.run();
+        assertFalse(Pipe.hasContentToRead(output));
+        assertFalse(Pipe.hasContentToRead(a)); //every input was parked so the producers can go on
+        assertFalse(Pipe.hasContentToRead(b));
+
+        writeResponse(a, 0, "0", true);
+        int expected = 0;
+        int passes = 100;
+        while (expected<seq && --passes>=0) {
+            supervisor.run();
+            while (Pipe.hasContentToRead(output)) {
+                assertEquals(Integer.toString(expected++), readPlain(output));
+            }
+        }
+        assertEquals(seq, expected);
+    }
+
+    private WrapSupervisorStage newSupervisor(Pipe<ServerResponseSchema> a, Pipe<ServerResponseSchema> b) {
+        WrapSupervisorStage supervisor = new WrapSupervisorStage(new GraphManager(), new Pipe[]{a, b}, new Pipe[]{output}, coordinator);
+        supervisor.startup();
+        return supervisor;
+    }
+
+    private static Pipe<ServerResponseSchema> newInput(int fragments) {
+        Pipe<ServerResponseSchema> pipe = new Pipe<ServerResponseSchema>(new PipeConfig<ServerResponseSchema>(ServerResponseSchema.instance, fragments, 256));
+        pipe.initBuffers();
+        return pipe;
+    }
+
+    private static void writeResponse(Pipe<ServerResponseSchema> pipe, int sequenceNo, String text, boolean isEnd) {
+        byte[] bytes = text.getBytes();
+        int size = Pipe.addMsgIdx(pipe, ServerResponseSchema.MSG_TOCHANNEL_100);
+        Pipe.addLongValue(CHANNEL, pipe);
+        Pipe.addIntValue(sequenceNo, pipe);
+        Pipe.addByteArray(bytes, 0, bytes.length, pipe);
+        Pipe.addIntValue(isEnd ? ServerCoordinator.END_RESPONSE_MASK : 0, pipe);
+        Pipe.confirmLowLevelWrite(pipe, size);
+        Pipe.publishWrites(pipe);
+    }
+
+    private static String readPlain(Pipe<NetPayloadSchema> pipe) {
+        assertTrue(Pipe.hasContentToRead(pipe));
+        int msgIdx = Pipe.takeMsgIdx(pipe);
+        assertEquals(NetPayloadSchema.MSG_PLAIN_210, msgIdx);
+        assertEquals(CHANNEL, Pipe.takeLong(pipe));
+        int meta = Pipe.takeRingByteMetaData(pipe);
+        int len = Pipe.takeRingByteLen(pipe);
+        byte[] bytes = new byte[len];
+        Pipe.copyBytesFromToRing(Pipe.blob(pipe), Pipe.bytePosition(meta, pipe, len), Pipe.blobMask(pipe), bytes, 0, Integer.MAX_VALUE, len);
+        Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+        Pipe.releaseReadLock(pipe);
+        return new String(bytes);
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CPUTopologyTest {
+
+	@Test
+	public void parseRangesAndSingles() {
+		assertArrayEquals(new int[]{0,1,2,3,8,10,11}, CPUTopology.parseCPUList("0-3,8,10-11\n"));
+		assertArrayEquals(new int[]{5}, CPUTopology.parseCPUList("5"));
+		assertArrayEquals(new int[]{1,2,3}, CPUTopology.parseCPUList("3,1-2,2"));
+	}
+
+	@Test
+	public void formatRoundTrip() {
+		String list = "0-3,8,10-11";
+		assertEquals(list, CPUTopology.toCPUList(CPUTopology.parseCPUList(list)));
+		assertEquals("", CPUTopology.toCPUList(new int[0]));
+	}
+
+	@Test
+	public void cpusGroupedByDomain() {
+		CPUTopology topology = new CPUTopology(new int[]{0,1,2,3}, new int[]{0,1,0,1});
+		assertEquals(2, topology.domainCount);
+		assertArrayEquals(new int[]{0,2}, topology.cpusInDomain(0));
+		assertArrayEquals(new int[]{1,3}, topology.cpusInDomain(1));
+	}
+
+}
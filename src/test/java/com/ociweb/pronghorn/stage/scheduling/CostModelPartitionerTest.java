@@ -0,0 +1,56 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CostModelPartitionerTest {
+
+	@Test
+	public void balancesIndependentStages() {
+		long[] load = new long[]{8,1,1,1,1,8,1,1,1,1};
+		int[] bin = CostModelPartitioner.assign(load, new int[0], new int[0], new long[0], 2);
+
+		long[] binLoad = new long[2];
+		for(int i=0; i<load.length; i++) {
+			binLoad[bin[i]] += load[i];
+		}
+		assertEquals(12, binLoad[0]);
+		assertEquals(12, binLoad[1]);
+	}
+
+	@Test
+	public void keepsHeavyPipeOnOneThread() {
+		//two chains 0->1->2 and 3->4->5 with heavy pipes inside each chain and a light pipe between them
+		long[] load = new long[]{1,1,1,1,1,1};
+		int[] from  = new int[]{0,1,3,4,2};
+		int[] to    = new int[]{1,2,4,5,3};
+		long[] bw   = new long[]{1000,1000,1000,1000,1};
+
+		int[] bin = CostModelPartitioner.assign(load, from, to, bw, 2);
+
+		assertEquals(bin[0], bin[1]);
+		assertEquals(bin[1], bin[2]);
+		assertEquals(bin[3], bin[4]);
+		assertEquals(bin[4], bin[5]);
+		assertNotEquals(bin[0], bin[3]);
+	}
+
+	@Test
+	public void everyThreadGetsWork() {
+		long[] load = new long[]{100,1,1,1};
+		//one long chain, collapsing it fully would leave threads idle
+		int[] from = new int[]{0,1,2};
+		int[] to   = new int[]{1,2,3};
+		long[] bw  = new long[]{10,10,10};
+
+		int[] bin = CostModelPartitioner.assign(load, from, to, bw, 3);
+
+		boolean[] used = new boolean[3];
+		for(int b: bin) {
+			used[b] = true;
+		}
+		assertTrue(used[0] && used[1] && used[2]);
+	}
+
+}
@@ -0,0 +1,60 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class IdleStrategyTest {
+
+	@Test
+	public void parkIsBoundedByDeadline() {
+		
+		IdleStrategy idle = new IdleStrategy(0, 0, TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(10));
+		
+		long start = System.nanoTime();
+		idle.idle(start+TimeUnit.MILLISECONDS.toNanos(5));
+		long duration = System.nanoTime()-start;
+		
+		assertTrue("parked for "+duration, duration < TimeUnit.SECONDS.toNanos(5));
+	}
+	
+	@Test
+	public void wakeUnparksIdleThread() throws InterruptedException {
+		
+		final IdleStrategy idle = new IdleStrategy(0, 0, TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(10));
+		
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				idle.idle(0);
+			}
+		};
+		long start = System.nanoTime();
+		t.start();
+		
+		//wait for the thread to park before waking it
+		long limit = start+TimeUnit.SECONDS.toNanos(5);
+		while (!IdleStrategy.isParked(idle) && t.isAlive() && System.nanoTime()<limit) {
+			Thread.yield();
+		}
+		IdleStrategy.wake(idle);
+		t.join(TimeUnit.SECONDS.toMillis(5));
+		
+		assertFalse(t.isAlive());
+		assertTrue(System.nanoTime()-start < TimeUnit.SECONDS.toNanos(5));
+	}
+	
+	@Test
+	public void wakeBeforeParkIsNotLost() {
+		
+		IdleStrategy idle = new IdleStrategy(0, 0, TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(10));
+		IdleStrategy.wake(idle);
+		
+		long start = System.nanoTime();
+		idle.idle(0);
+		assertTrue(System.nanoTime()-start < TimeUnit.SECONDS.toNanos(5));
+	}
+	
+}
@@ -0,0 +1,140 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+public class NonThreadSchedulerTest {
+
+	private static final int SIZE = 64;
+
+	@Test
+	public void pressureRunsConsumerOfFullAndProducerOfDrainingPipes() {
+		assertEquals(1, NonThreadScheduler.pressureStage(48, 0, SIZE, 1, 2));  //3/4 full
+		assertEquals(2, NonThreadScheduler.pressureStage(16, 40, SIZE, 1, 2)); //1/4 and falling
+		assertEquals(-1, NonThreadScheduler.pressureStage(16, 16, SIZE, 1, 2)); //low but steady
+		assertEquals(-1, NonThreadScheduler.pressureStage(16, 40, SIZE, 1, -1)); //producer is on another thread
+		assertEquals(-1, NonThreadScheduler.pressureStage(30, 40, SIZE, 1, 2));
+	}
+
+	@Test
+	public void orderFollowsThePipes() {
+		GraphManager gm = new GraphManager();
+		Pipe<RawDataSchema> ab = newPipe();
+		Pipe<RawDataSchema> bc = newPipe();
+		List<PronghornStage> log = new ArrayList<PronghornStage>();
+		//added consumer first so the array order is the reverse of the data flow
+		LoggingStage c = new LoggingStage(gm, log, new Pipe[]{bc}, PronghornStage.NONE);
+		LoggingStage b = new LoggingStage(gm, log, new Pipe[]{ab}, new Pipe[]{bc});
+		LoggingStage a = new LoggingStage(gm, log, PronghornStage.NONE, new Pipe[]{ab});
+		PronghornStage[] stages = new PronghornStage[]{c, b, a};
+
+		assertArrayEquals(new int[]{2,1,0}, StageOrdering.order(gm, stages, StageOrdering.PRODUCER_FIRST));
+		assertArrayEquals(new int[]{0,1,2}, StageOrdering.order(gm, stages, StageOrdering.CONSUMER_FIRST));
+	}
+
+	@Test
+	public void cycleStartsAtTheProducer() {
+		GraphManager gm = new GraphManager();
+		Pipe<RawDataSchema> ab = newPipe();
+		Pipe<RawDataSchema> ba = newPipe();
+		List<PronghornStage> log = new ArrayList<PronghornStage>();
+		LoggingStage b = new LoggingStage(gm, log, new Pipe[]{ab}, new Pipe[]{ba});
+		LoggingStage a = new LoggingStage(gm, log, new Pipe[]{ba}, new Pipe[]{ab});
+		GraphManager.addNota(gm, GraphManager.PRODUCER, GraphManager.PRODUCER, a);
+
+		assertArrayEquals(new int[]{1,0}, StageOrdering.order(gm, new PronghornStage[]{b, a}, StageOrdering.PRODUCER_FIRST));
+	}
+
+	@Test
+	public void fullPipeIsDrainedBeforeItsProducerRuns() {
+		GraphManager gm = new GraphManager();
+		Pipe<RawDataSchema> pipe = newPipe();
+		List<PronghornStage> log = new ArrayList<PronghornStage>();
+		LoggingStage consumer = new LoggingStage(gm, log, new Pipe[]{pipe}, PronghornStage.NONE);
+		LoggingStage producer = new LoggingStage(gm, log, PronghornStage.NONE, new Pipe[]{pipe});
+
+		NonThreadScheduler scheduler = newScheduler(gm, consumer, producer, StageOrdering.PRODUCER_FIRST);
+		while (Pipe.hasRoomForWrite(pipe)) {
+			write(pipe);
+		}
+		scheduler.run();
+
+		assertSame(consumer, log.get(0)); //out of order, the pipe was full
+		assertSame(producer, log.get(1));
+		assertSame(consumer, log.get(2));
+	}
+
+	@Test
+	public void drainingPipeIsRefilledBeforeItsConsumerRuns() {
+		GraphManager gm = new GraphManager();
+		Pipe<RawDataSchema> pipe = newPipe();
+		List<PronghornStage> log = new ArrayList<PronghornStage>();
+		LoggingStage consumer = new LoggingStage(gm, log, new Pipe[]{pipe}, PronghornStage.NONE);
+		LoggingStage producer = new LoggingStage(gm, log, PronghornStage.NONE, new Pipe[]{pipe});
+
+		NonThreadScheduler scheduler = newScheduler(gm, consumer, producer, StageOrdering.CONSUMER_FIRST);
+		write(pipe);
+		write(pipe);
+		scheduler.run();
+		assertSame(consumer, log.get(0));
+
+		take(pipe);
+		log.clear();
+		scheduler.run();
+		assertSame(producer, log.get(0)); //running dry, producer goes first
+		assertSame(consumer, log.get(1));
+	}
+
+	private static NonThreadScheduler newScheduler(GraphManager gm, PronghornStage consumer, PronghornStage producer, int mode) {
+		NonThreadScheduler scheduler = new NonThreadScheduler(gm, new PronghornStage[]{consumer, producer});
+		NonThreadScheduler.setOrdering(scheduler, mode);
+		NonThreadScheduler.setIdleStrategy(scheduler, null);
+		scheduler.startup();
+		return scheduler;
+	}
+
+	private static Pipe<RawDataSchema> newPipe() {
+		return new Pipe<RawDataSchema>(new PipeConfig<RawDataSchema>(RawDataSchema.instance, 8, 64));
+	}
+
+	private static void write(Pipe<RawDataSchema> pipe) {
+		int size = Pipe.addMsgIdx(pipe, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+		Pipe.addByteArray(new byte[]{1}, 0, 1, pipe);
+		Pipe.confirmLowLevelWrite(pipe, size);
+		Pipe.publishWrites(pipe);
+	}
+
+	private static void take(Pipe<RawDataSchema> pipe) {
+		int msgIdx = Pipe.takeMsgIdx(pipe);
+		Pipe.takeRingByteMetaData(pipe);
+		Pipe.takeRingByteLen(pipe);
+		Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+		Pipe.releaseReadLock(pipe);
+	}
+
+	//records each run and leaves the pipes to the test
+	private static class LoggingStage extends PronghornStage {
+
+		private final List<PronghornStage> log;
+
+		LoggingStage(GraphManager gm, List<PronghornStage> log, Pipe[] inputs, Pipe[] outputs) {
+			super(gm, inputs, outputs);
+			this.log = log;
+		}
+
+		@Override
+		public void run() {
+			log.add(this);
+		}
+	}
+
+}
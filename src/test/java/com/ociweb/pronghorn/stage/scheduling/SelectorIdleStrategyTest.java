@@ -0,0 +1,123 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+public class SelectorIdleStrategyTest {
+
+	private static final long LONG_WAIT = TimeUnit.SECONDS.toNanos(10);
+
+	private Selector selector;
+	private Pipe socket; //stands in for a socket, readable once the sink is written
+	private SelectorIdleStrategy idle;
+	private GraphManager gm;
+	private PronghornStage stage;
+	private volatile Throwable failure;
+
+	@Before
+	public void openSelector() throws IOException {
+		selector = Selector.open();
+		socket = Pipe.open();
+		socket.source().configureBlocking(false);
+		socket.source().register(selector, SelectionKey.OP_READ);
+
+		gm = new GraphManager();
+		stage = new PronghornStage(gm, PronghornStage.NONE, PronghornStage.NONE) {
+			@Override
+			public void run() {
+			}
+		};
+		idle = new SelectorIdleStrategy(0, 0, LONG_WAIT, LONG_WAIT);
+		GraphManager.registerIdleStrategy(gm, stage.stageId, idle);
+		SelectorIdleStrategy.register(gm, stage, selector);
+	}
+
+	@After
+	public void closeSelector() throws IOException {
+		socket.sink().close();
+		socket.source().close();
+		selector.close();
+	}
+
+	@Test
+	public void socketDataEndsTheWait() throws Exception {
+		Thread t = idleInThread();
+		socket.sink().write(ByteBuffer.wrap(new byte[]{1}));
+		assertEnds(t);
+	}
+
+	@Test
+	public void wakeEndsTheWait() throws Exception {
+		Thread t = idleInThread();
+		IdleStrategy.wake(idle);
+		assertEnds(t);
+	}
+
+	@Test
+	public void dataBeforeTheWaitIsNotLost() throws Exception {
+		socket.sink().write(ByteBuffer.wrap(new byte[]{1}));
+		long start = System.nanoTime();
+		idle.idle(0);
+		assertTrue(System.nanoTime()-start < LONG_WAIT/2);
+	}
+
+	@Test
+	public void closedSelectorFallsBackToParking() throws Exception {
+		selector.close(); //as an acceptor does in shutdown while other stages on the thread keep running
+		Thread t = idleInThread();
+		IdleStrategy.wake(idle);
+		assertEnds(t);
+		assertNull(failure);
+	}
+
+	@Test
+	public void unregisterLeavesTheOtherSelector() throws Exception {
+		Selector other = Selector.open();
+		try {
+			SelectorIdleStrategy.register(gm, stage, other); //two selectors, neither can be waited on alone
+			SelectorIdleStrategy.unregister(gm, stage, other);
+		} finally {
+			other.close();
+		}
+		Thread t = idleInThread();
+		socket.sink().write(ByteBuffer.wrap(new byte[]{1}));
+		assertEnds(t);
+	}
+
+	private Thread idleInThread() {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					idle.idle(0);
+				} catch (Throwable e) {
+					failure = e;
+				}
+			}
+		};
+		t.start();
+		long limit = System.nanoTime()+TimeUnit.SECONDS.toNanos(5);
+		while (!IdleStrategy.isParked(idle) && t.isAlive() && System.nanoTime()<limit) {
+			Thread.yield();
+		}
+		return t;
+	}
+
+	private static void assertEnds(Thread t) throws InterruptedException {
+		t.join(TimeUnit.NANOSECONDS.toMillis(LONG_WAIT/2));
+		assertFalse("still waiting in select", t.isAlive());
+	}
+
+}
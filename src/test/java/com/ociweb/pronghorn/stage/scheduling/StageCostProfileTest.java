@@ -0,0 +1,41 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class StageCostProfileTest {
+
+	@Test
+	public void declaredCostIsConvertedByMeasuredStagesWithACost() {
+		long[] units       = new long[]{10, 1, 1, 5};
+		long[] measured    = new long[]{1000, 500, 0, 0};
+		boolean[] declared = new boolean[]{true, false, false, true};
+
+		long[] load = StageCostProfile.toNanoseconds(units, measured, declared);
+		assertEquals(1000, load[0]);
+		assertEquals(500, load[1]); //measured is used as is
+		assertEquals(100, load[2]); //default unit at 100ns per unit
+		assertEquals(500, load[3]); //declared only, same scale as the measured stages
+	}
+
+	@Test
+	public void meanOfMeasuredStagesIsUsedWithoutAMeasuredCost() {
+		long[] units       = new long[]{4, 1, 1};
+		long[] measured    = new long[]{0, 300, 100};
+		boolean[] declared = new boolean[]{true, false, false};
+
+		long[] load = StageCostProfile.toNanoseconds(units, measured, declared);
+		assertEquals(800, load[0]);
+		assertEquals(300, load[1]);
+		assertEquals(100, load[2]);
+	}
+
+	@Test
+	public void unitsAreKeptWhenNothingWasMeasured() {
+		long[] units = new long[]{0, 3, 1};
+		long[] load = StageCostProfile.toNanoseconds(units, new long[3], new boolean[]{false, true, false});
+		assertArrayEquals(units, load);
+	}
+
+}
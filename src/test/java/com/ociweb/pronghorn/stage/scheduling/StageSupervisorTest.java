@@ -0,0 +1,104 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+public class StageSupervisorTest {
+
+	@Test
+	public void poisonFragmentIsSkippedAndNextIsIntact() {
+		GraphManager gm = new GraphManager();
+		Pipe<RawDataSchema> input = newPipe();
+		Pipe<RawDataSchema> output = newPipe();
+		Pipe<RawDataSchema> deadLetter = newPipe();
+
+		write(input, "poison");
+		write(input, "good data");
+
+		PoisonedStage stage = new PoisonedStage(gm, input, output);
+		StageSupervisor supervisor = new StageSupervisor(gm, stage, 2, deadLetter);
+
+		int i = 10;
+		while (--i>=0 && Pipe.contentRemaining(input)>0) {
+			StageSupervisor.run(supervisor, stage);
+		}
+
+		assertEquals(1, StageSupervisor.skippedCount(supervisor));
+		assertEquals(3, stage.failures); //first try and two retries
+		assertEquals("good data", read(output));
+		assertEquals("poison", read(deadLetter));
+		assertEquals(0, Pipe.contentRemaining(input));
+		assertEquals(0, Pipe.contentRemaining(output)); //the half written fragments were never published
+	}
+
+	private static Pipe<RawDataSchema> newPipe() {
+		Pipe<RawDataSchema> pipe = new Pipe<RawDataSchema>(new PipeConfig<RawDataSchema>(RawDataSchema.instance, 8, 64));
+		pipe.initBuffers();
+		return pipe;
+	}
+
+	private static void write(Pipe<RawDataSchema> pipe, String text) {
+		byte[] bytes = text.getBytes();
+		int size = Pipe.addMsgIdx(pipe, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+		Pipe.addByteArray(bytes, 0, bytes.length, pipe);
+		Pipe.confirmLowLevelWrite(pipe, size);
+		Pipe.publishWrites(pipe);
+	}
+
+	private static String read(Pipe<RawDataSchema> pipe) {
+		assertTrue(Pipe.hasContentToRead(pipe));
+		int msgIdx = Pipe.takeMsgIdx(pipe);
+		String text = takeText(pipe);
+		Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+		Pipe.releaseReadLock(pipe);
+		return text;
+	}
+
+	private static String takeText(Pipe<RawDataSchema> pipe) {
+		int meta = Pipe.takeRingByteMetaData(pipe);
+		int len = Pipe.takeRingByteLen(pipe);
+		byte[] bytes = new byte[len];
+		Pipe.copyBytesFromToRing(Pipe.byteBackingArray(meta, pipe), Pipe.bytePosition(meta, pipe, len), Pipe.blobMask(pipe), bytes, 0, Integer.MAX_VALUE, len);
+		return new String(bytes);
+	}
+
+	//copies each fragment to the output but starts writing before it has read the poison
+	private static class PoisonedStage extends PronghornStage {
+
+		private final Pipe<RawDataSchema> input;
+		private final Pipe<RawDataSchema> output;
+		int failures;
+
+		PoisonedStage(GraphManager gm, Pipe<RawDataSchema> input, Pipe<RawDataSchema> output) {
+			super(gm, input, output);
+			this.input = input;
+			this.output = output;
+		}
+
+		@Override
+		public void run() {
+			while (Pipe.hasContentToRead(input) && Pipe.hasRoomForWrite(output)) {
+				Pipe.addMsgIdx(output, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+				int msgIdx = Pipe.takeMsgIdx(input);
+				String text = takeText(input);
+				if ("poison".equals(text)) {
+					failures++;
+					throw new RuntimeException("bad fragment");
+				}
+				byte[] bytes = text.getBytes();
+				Pipe.addByteArray(bytes, 0, bytes.length, output);
+				Pipe.confirmLowLevelWrite(output, Pipe.sizeOf(output, RawDataSchema.MSG_CHUNKEDSTREAM_1));
+				Pipe.publishWrites(output);
+				Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+				Pipe.releaseReadLock(input);
+			}
+		}
+	}
+
+}
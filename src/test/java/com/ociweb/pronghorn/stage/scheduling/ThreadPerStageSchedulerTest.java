@@ -0,0 +1,169 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+public class ThreadPerStageSchedulerTest {
+
+	@Test(timeout=10_000)
+	public void startupReturnsOnceEveryStageHasStarted() {
+		GraphManager gm = new GraphManager();
+		CountingStage[] stages = new CountingStage[8];
+		int i = stages.length;
+		while (--i>=0) {
+			stages[i] = new CountingStage(gm, 20);
+		}
+
+		ThreadPerStageScheduler scheduler = new ThreadPerStageScheduler(gm);
+		scheduler.startup();
+		i = stages.length;
+		while (--i>=0) {
+			assertEquals(1, stages[i].startups.get());
+		}
+
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+		i = stages.length;
+		while (--i>=0) {
+			assertEquals(1, stages[i].shutdowns.get());
+		}
+	}
+
+	@Test(timeout=10_000)
+	public void failedStartupDoesNotHangTheOthers() {
+		GraphManager gm = new GraphManager();
+		CountingStage good = new CountingStage(gm, 0);
+		CountingStage bad = new CountingStage(gm, 0);
+		bad.failStartup = true;
+
+		ThreadPerStageScheduler scheduler = new ThreadPerStageScheduler(gm);
+		scheduler.startup();
+		assertEquals(1, good.startups.get());
+		assertTrue(scheduler.awaitTermination(new PronghornStage[] {bad}, 5, TimeUnit.SECONDS));
+		assertEquals(1, bad.shutdowns.get());
+
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(5, TimeUnit.SECONDS);
+			fail("startup failure must be reported");
+		} catch (RuntimeException e) {
+			//expected
+		}
+	}
+
+	@Test(timeout=10_000)
+	public void unscheduledStageIsShutDownOnItsOwnThread() {
+		GraphManager gm = new GraphManager();
+		CountingStage stage = new CountingStage(gm, 0);
+		GraphManager.addNota(gm, GraphManager.UNSCHEDULED, GraphManager.UNSCHEDULED, stage);
+
+		ThreadPerStageScheduler scheduler = new ThreadPerStageScheduler(gm);
+		scheduler.startup();
+		assertEquals(1, stage.startups.get());
+		assertEquals(0, stage.shutdowns.get());
+
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(0, stage.runs.get());
+		assertEquals(1, stage.shutdowns.get());
+		assertSame(stage.startupThread, stage.shutdownThread);
+	}
+
+	@Test(timeout=10_000)
+	public void subgraphIsStoppedAndRestarted() throws InterruptedException {
+		GraphManager gm = new GraphManager();
+		CountingStage keep = new CountingStage(gm, 0);
+		CountingStage restart = new CountingStage(gm, 0);
+		PronghornStage[] subgraph = new PronghornStage[] {restart};
+
+		ThreadPerStageScheduler scheduler = new ThreadPerStageScheduler(gm);
+		scheduler.startup();
+
+		scheduler.shutdown(subgraph);
+		assertTrue(scheduler.awaitTermination(subgraph, 5, TimeUnit.SECONDS));
+		assertEquals(1, restart.shutdowns.get());
+		assertEquals(0, keep.shutdowns.get());
+
+		int keepRuns = keep.runs.get();
+		int restartRuns = restart.runs.get();
+		Thread.sleep(50);
+		assertTrue(keep.runs.get()>keepRuns); //rest of the graph is still running
+		assertEquals(restartRuns, restart.runs.get());
+
+		scheduler.startup(subgraph);
+		assertEquals(2, restart.startups.get());
+		assertEquals(1, keep.startups.get()); //running stages are not started again
+		Thread.sleep(50);
+		assertTrue(restart.runs.get()>restartRuns);
+
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(1, keep.shutdowns.get());
+		assertEquals(2, restart.shutdowns.get());
+	}
+
+	@Test(timeout=10_000)
+	public void startupAgainAfterAwaitTermination() {
+		GraphManager gm = new GraphManager();
+		CountingStage stage = new CountingStage(gm, 0);
+
+		ThreadPerStageScheduler scheduler = new ThreadPerStageScheduler(gm);
+		scheduler.startup();
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+
+		scheduler.startup();
+		assertEquals(2, stage.startups.get());
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(2, stage.shutdowns.get());
+	}
+
+	private static class CountingStage extends PronghornStage {
+
+		final AtomicInteger startups = new AtomicInteger();
+		final AtomicInteger runs = new AtomicInteger();
+		final AtomicInteger shutdowns = new AtomicInteger();
+		final long startupMS;
+		boolean failStartup;
+		volatile Thread startupThread;
+		volatile Thread shutdownThread;
+
+		CountingStage(GraphManager gm, long startupMS) {
+			super(gm, NONE, NONE);
+			this.startupMS = startupMS;
+		}
+
+		@Override
+		public void startup() {
+			startupThread = Thread.currentThread();
+			if (failStartup) {
+				throw new RuntimeException("startup failed");
+			}
+			try {
+				Thread.sleep(startupMS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			startups.incrementAndGet();
+		}
+
+		@Override
+		public void run() {
+			runs.incrementAndGet();
+		}
+
+		@Override
+		public void shutdown() {
+			shutdownThread = Thread.currentThread();
+			shutdowns.incrementAndGet();
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ThreadPlacementTest {
+
+	@Test
+	public void explicitCpusAreNotGivenToAutomaticGroups() {
+		int[][] explicit = new int[][]{{0,1}, null, null};
+		boolean[] isAuto = new boolean[]{false, true, true};
+
+		int[][] cpus = ThreadPlacement.place(explicit, isAuto, new int[3][3], CPUTopology.singleDomain(4));
+
+		assertArrayEquals(new int[]{0,1}, cpus[0]);
+		assertEquals(1, cpus[1].length);
+		assertEquals(1, cpus[2].length);
+		assertTrue(cpus[1][0]>=2 && cpus[2][0]>=2);
+		assertNotEquals(cpus[1][0], cpus[2][0]);
+	}
+
+	@Test
+	public void automaticGroupsShareWhatIsLeft() {
+		int[][] explicit = new int[][]{{0}, null, null, null, null};
+		boolean[] isAuto = new boolean[]{false, true, true, true, true};
+
+		int[][] cpus = ThreadPlacement.place(explicit, isAuto, new int[5][5], CPUTopology.singleDomain(4));
+
+		int g = 5;
+		while (--g>=1) {
+			assertArrayEquals(new int[]{1,2,3}, cpus[g]);
+		}
+	}
+
+	@Test
+	public void everyCpuClaimedSharesTheDomain() {
+		int[][] explicit = new int[][]{{0,1}, null};
+		boolean[] isAuto = new boolean[]{false, true};
+
+		int[][] cpus = ThreadPlacement.place(explicit, isAuto, new int[2][2], CPUTopology.singleDomain(2));
+
+		assertArrayEquals(new int[]{0,1}, cpus[1]);
+	}
+
+	@Test
+	public void noKnownCpusLeavesGroupsUnpinned() {
+		int[][] explicit = new int[2][];
+		boolean[] isAuto = new boolean[]{true, true};
+
+		int[][] cpus = ThreadPlacement.place(explicit, isAuto, new int[2][2], new CPUTopology(new int[0], new int[0]));
+
+		assertNull(cpus[0]);
+		assertNull(cpus[1]);
+	}
+
+	@Test
+	public void connectedGroupsShareADomain() {
+		CPUTopology topology = new CPUTopology(new int[]{0,1,2,3}, new int[]{0,0,1,1});
+		int[][] weights = new int[3][3];
+		weights[0][1] = weights[1][0] = 5;
+		int[][] explicit = new int[][]{{2}, null, null};
+		boolean[] isAuto = new boolean[]{false, true, true};
+
+		int[][] cpus = ThreadPlacement.place(explicit, isAuto, weights, topology);
+
+		assertArrayEquals(new int[]{3}, cpus[1]); //joined to the explicit group on cpu 2, which it does not take
+	}
+
+}
@@ -0,0 +1,105 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+	private static final long TICK = 100;
+	private static final int BITS = 4;
+
+	@Test
+	public void onlyDueTimersExpire() {
+		TimerWheel wheel = new TimerWheel(4, TICK, BITS, 0);
+		int[] out = new int[4];
+
+		TimerWheel.schedule(wheel, 0, 250);
+		TimerWheel.schedule(wheel, 1, 1_000);
+		TimerWheel.schedule(wheel, 2, 100_000);//beyond the second level
+
+		assertEquals(0, TimerWheel.expire(wheel, 200, out));
+		assertEquals(1, TimerWheel.expire(wheel, 250, out));
+		assertEquals(0, out[0]);
+		assertFalse(TimerWheel.isScheduled(wheel, 0));
+
+		assertEquals(1, TimerWheel.expire(wheel, 1_050, out));
+		assertEquals(1, out[0]);
+
+		assertEquals(0, TimerWheel.expire(wheel, 99_999, out));
+		assertEquals(1, TimerWheel.expire(wheel, 100_000, out));
+		assertEquals(2, out[0]);
+		assertEquals(0, TimerWheel.scheduledCount(wheel));
+	}
+
+	@Test
+	public void rescheduleAndCancel() {
+		TimerWheel wheel = new TimerWheel(2, TICK, BITS, 0);
+		int[] out = new int[2];
+
+		TimerWheel.schedule(wheel, 0, 500);
+		TimerWheel.schedule(wheel, 0, 5_000);
+		TimerWheel.schedule(wheel, 1, 600);
+		TimerWheel.cancel(wheel, 1);
+
+		assertEquals(0, TimerWheel.expire(wheel, 1_000, out));
+		long next = TimerWheel.nextDueNS(wheel);
+		assertTrue("next due "+next, next>1_000 && next<=5_000);//may be early but never late
+		assertEquals(1, TimerWheel.expire(wheel, 5_000, out));
+		assertEquals(Long.MAX_VALUE, TimerWheel.nextDueNS(wheel));
+	}
+
+	@Test
+	public void pastDueExpiresOnNextCall() {
+		TimerWheel wheel = new TimerWheel(1, TICK, BITS, 1_000);
+		int[] out = new int[1];
+		TimerWheel.schedule(wheel, 0, 0);
+		assertEquals(1, TimerWheel.expire(wheel, 1_000, out));
+	}
+
+	@Test
+	public void matchesLinearScan() {
+		final int count = 50;
+		Random random = new Random(42);
+		TimerWheel wheel = new TimerWheel(count, TICK, BITS, 0);
+		long[] due = new long[count];
+		Arrays.fill(due, -1);
+		int[] out = new int[count];
+
+		long now = 0;
+		for(int step=0; step<20_000; step++) {
+			int id = random.nextInt(count);
+			if (due[id]<0) {
+				//mix of first level, second level, overflow and long gaps
+				due[id] = now + (random.nextInt(8)==0 ? random.nextInt(500_000) : random.nextInt(3_000));
+				TimerWheel.schedule(wheel, id, due[id]);
+			}
+
+			now += random.nextInt(16)==0 ? random.nextInt(200_000) : random.nextInt(300);
+
+			long next = TimerWheel.nextDueNS(wheel);
+			long expectedNext = Long.MAX_VALUE;
+			for(int i=0; i<count; i++) {
+				if (due[i]>=0) {
+					expectedNext = Math.min(expectedNext, due[i]);
+				}
+			}
+			assertTrue(next<=expectedNext);
+
+			int expired = TimerWheel.expire(wheel, now, out);
+			boolean[] seen = new boolean[count];
+			for(int i=0; i<expired; i++) {
+				assertTrue("early "+out[i], due[out[i]]<=now);
+				seen[out[i]] = true;
+				due[out[i]] = -1;
+			}
+			for(int i=0; i<count; i++) {
+				assertFalse("late "+i, due[i]>=0 && due[i]<=now && !seen[i]);
+			}
+		}
+	}
+
+}
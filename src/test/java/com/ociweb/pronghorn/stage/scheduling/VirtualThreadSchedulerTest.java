@@ -0,0 +1,96 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+public class VirtualThreadSchedulerTest {
+
+	private static final long MS = 1_000_000L;
+
+	@Test
+	public void blockingStageRunsAtScheduleRate() throws InterruptedException {
+		GraphManager gm = new GraphManager();
+		CountingStage stage = new CountingStage(gm);
+		GraphManager.addNota(gm, GraphManager.BLOCKING, GraphManager.BLOCKING, stage);
+		GraphManager.addNota(gm, GraphManager.SCHEDULE_RATE, 20*MS, stage);
+
+		VirtualThreadScheduler scheduler = new VirtualThreadScheduler(gm, 1);
+		scheduler.startup();
+		Thread.sleep(400);
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+
+		int runs = stage.runs.get();
+		assertTrue("runs "+runs, runs>=10 && runs<=25); //about 20, without the rate it would spin many thousands of times
+		assertEquals(1, stage.shutdowns.get());
+	}
+
+	@Test
+	public void unscheduledStageIsStartedButNeverRun() {
+		GraphManager gm = new GraphManager();
+		CountingStage stage = new CountingStage(gm);
+		GraphManager.addNota(gm, GraphManager.BLOCKING, GraphManager.BLOCKING, stage);
+		GraphManager.addNota(gm, GraphManager.UNSCHEDULED, GraphManager.UNSCHEDULED, stage);
+
+		VirtualThreadScheduler scheduler = new VirtualThreadScheduler(gm, 1);
+		scheduler.startup();
+		assertEquals(1, stage.startups.get());
+		assertEquals(0, stage.shutdowns.get());
+
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(0, stage.runs.get());
+		assertEquals(1, stage.shutdowns.get());
+	}
+
+	@Test
+	public void shutdownDoesNotWaitForLongRate() {
+		GraphManager gm = new GraphManager();
+		CountingStage stage = new CountingStage(gm);
+		GraphManager.addNota(gm, GraphManager.BLOCKING, GraphManager.BLOCKING, stage);
+		GraphManager.addNota(gm, GraphManager.SCHEDULE_RATE, 60_000*MS, stage);
+
+		VirtualThreadScheduler scheduler = new VirtualThreadScheduler(gm, 1);
+		scheduler.startup();
+
+		long start = System.nanoTime();
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime()-start < 2_000*MS); //parked stage was woken instead of sleeping out its minute
+		assertTrue(stage.runs.get()<=1);
+		assertEquals(1, stage.shutdowns.get());
+	}
+
+	private static class CountingStage extends PronghornStage {
+
+		final AtomicInteger startups = new AtomicInteger();
+		final AtomicInteger runs = new AtomicInteger();
+		final AtomicInteger shutdowns = new AtomicInteger();
+
+		CountingStage(GraphManager gm) {
+			super(gm, NONE, NONE);
+		}
+
+		@Override
+		public void startup() {
+			startups.incrementAndGet();
+		}
+
+		@Override
+		public void run() {
+			runs.incrementAndGet();
+		}
+
+		@Override
+		public void shutdown() {
+			shutdowns.incrementAndGet();
+		}
+	}
+
+}
@@ -0,0 +1,163 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+public class WorkStealingSchedulerTest {
+
+	@Test
+	public void groupsAreJoinedAlongPipes() {
+		GraphManager gm = new GraphManager();
+		Pipe<RawDataSchema> ab = newPipe();
+		Pipe<RawDataSchema> bc = newPipe();
+		Pipe<RawDataSchema> cd = newPipe();
+		new BusyStage(gm, PronghornStage.NONE, new Pipe[]{ab});
+		new BusyStage(gm, new Pipe[]{ab}, new Pipe[]{bc});
+		new BusyStage(gm, new Pipe[]{bc}, new Pipe[]{cd});
+		new BusyStage(gm, new Pipe[]{cd}, PronghornStage.NONE);
+
+		PronghornStage[][] groups = FixedThreadsScheduler.joinFirstGroups(gm, 2);
+		assertEquals(2, groups.length);
+		assertEquals(4, groups[0].length+groups[1].length);
+	}
+
+	@Test(timeout=20_000)
+	public void idleWorkerTakesAUnitFromTheBusyOne() throws InterruptedException {
+		GraphManager gm = new GraphManager();
+		//nothing is joined so units follow the order stages are made, round robin gives the first worker all the busy ones
+		BusyStage[] busy = new BusyStage[3];
+		busy[0] = new BusyStage(gm, newPipe());
+		new IdleStage(gm);
+		busy[1] = new BusyStage(gm, newPipe());
+		new IdleStage(gm);
+		busy[2] = new BusyStage(gm, newPipe());
+
+		WorkStealingScheduler scheduler = new WorkStealingScheduler(gm, 2, 4);
+		assertEquals(5, WorkStealingScheduler.unitCount(scheduler));
+		scheduler.startup();
+		long limit = System.nanoTime()+TimeUnit.SECONDS.toNanos(10);
+		while (steals(scheduler)==0 && System.nanoTime()<limit) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(200); //many residency periods, the unit must stay where it went
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertEquals(1, WorkStealingScheduler.stealCount(scheduler, 1));
+		assertEquals(0, WorkStealingScheduler.stealCount(scheduler, 0)); //always making progress so never idle
+		int i = busy.length;
+		while (--i>=0) {
+			assertEquals(0, busy[i].overlaps.get()); //never run by two workers at once
+		}
+	}
+
+	@Test
+	public void equalUnitsDoNotBounceBetweenWorkers() throws InterruptedException {
+		GraphManager gm = new GraphManager();
+		//three on two workers, moving one only swaps which worker has two
+		new BusyStage(gm);
+		new BusyStage(gm);
+		new BusyStage(gm);
+
+		WorkStealingScheduler scheduler = new WorkStealingScheduler(gm, 2, 2);
+		scheduler.startup();
+		Thread.sleep(300);
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertEquals(0, steals(scheduler));
+	}
+
+	@Test
+	public void balancedWorkersDoNotSteal() throws InterruptedException {
+		GraphManager gm = new GraphManager();
+		new BusyStage(gm);
+		new BusyStage(gm);
+
+		WorkStealingScheduler scheduler = new WorkStealingScheduler(gm, 2, 2);
+		scheduler.startup();
+		Thread.sleep(200);
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertEquals(0, steals(scheduler)); //each worker owns a single unit, nothing may be taken
+	}
+
+	private static long steals(WorkStealingScheduler scheduler) {
+		return WorkStealingScheduler.stealCount(scheduler, 0)+WorkStealingScheduler.stealCount(scheduler, 1);
+	}
+
+	private static Pipe<RawDataSchema> newPipe() {
+		Pipe<RawDataSchema> pipe = new Pipe<RawDataSchema>(new PipeConfig<RawDataSchema>(RawDataSchema.instance, 8, 64));
+		pipe.initBuffers();
+		return pipe;
+	}
+
+	//spins for a while on each run and counts any run which began while another was still in progress,
+	//when given a pipe it also writes and drains one fragment so each pass shows progress like a busy source
+	private static class BusyStage extends PronghornStage {
+
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		private final Pipe<RawDataSchema> pipe;
+
+		BusyStage(GraphManager gm) {
+			super(gm, NONE, NONE);
+			this.pipe = null;
+		}
+
+		BusyStage(GraphManager gm, Pipe<RawDataSchema> pipe) {
+			super(gm, NONE, pipe);
+			this.pipe = pipe;
+		}
+
+		BusyStage(GraphManager gm, Pipe[] inputs, Pipe[] outputs) {
+			super(gm, inputs, outputs);
+			this.pipe = null;
+		}
+
+		@Override
+		public void run() {
+			if (running.incrementAndGet()>1) {
+				overlaps.incrementAndGet();
+			}
+			long end = System.nanoTime()+100_000;
+			while (System.nanoTime()<end) {
+			}
+			if (null!=pipe) {
+				int size = Pipe.addMsgIdx(pipe, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+				Pipe.addByteArray(new byte[]{1}, 0, 1, pipe);
+				Pipe.confirmLowLevelWrite(pipe, size);
+				Pipe.publishWrites(pipe);
+
+				int msgIdx = Pipe.takeMsgIdx(pipe);
+				Pipe.takeRingByteMetaData(pipe);
+				Pipe.takeRingByteLen(pipe);
+				Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+				Pipe.releaseReadLock(pipe);
+			}
+			running.decrementAndGet();
+		}
+	}
+
+	private static class IdleStage extends PronghornStage {
+
+		IdleStage(GraphManager gm) {
+			super(gm, NONE, NONE);
+		}
+
+		@Override
+		public void run() {
+		}
+	}
+
+}
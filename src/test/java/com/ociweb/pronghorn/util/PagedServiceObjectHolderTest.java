@@ -0,0 +1,64 @@
+package com.ociweb.pronghorn.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PagedServiceObjectHolderTest {
+
+    private final ServiceObjectValidator<StringBuilder> validator = new ServiceObjectValidator<StringBuilder>() {
+
+        @Override
+        public boolean isValid(StringBuilder serviceObject) {
+            return serviceObject.length()>0; //emptied builders are expired
+        }
+
+        @Override
+        public void dispose(StringBuilder t) {
+        }
+    };
+
+    @Test
+    public void growsWithoutMovingEntries() {
+        PagedServiceObjectHolder<StringBuilder> holder = new PagedServiceObjectHolder<StringBuilder>(4, 14, StringBuilder.class, validator);
+
+        int count = 5000;
+        long[] ids = new long[count];
+        StringBuilder[] values = new StringBuilder[count];
+        for(int i=0; i<count; i++) {
+            ids[i] = holder.lookupInsertPosition();
+            assertTrue(ids[i]>0);
+            values[i] = new StringBuilder().append(i);
+            holder.setValue(ids[i], values[i]);
+        }
+        assertEquals(8192, PagedServiceObjectHolder.activeSize(holder));
+        for(int i=0; i<count; i++) {
+            assertSame(values[i], holder.get(ids[i]));
+        }
+    }
+
+    @Test
+    public void reusesExpiredSlotsAndRejectsStaleIds() {
+        PagedServiceObjectHolder<StringBuilder> holder = new PagedServiceObjectHolder<StringBuilder>(2, 2, StringBuilder.class, validator);
+
+        long[] ids = new long[4];
+        StringBuilder[] values = new StringBuilder[4];
+        for(int i=0; i<4; i++) {
+            ids[i] = holder.lookupInsertPosition();
+            values[i] = new StringBuilder("x");
+            holder.setValue(ids[i], values[i]);
+        }
+        assertEquals(-1, holder.lookupInsertPosition());
+
+        values[1].setLength(0);//expire one
+        long id = holder.lookupInsertPosition();
+        assertTrue(id>0);
+        assertEquals(ids[1]&3, id&3);
+        holder.setValue(id, new StringBuilder("y"));
+
+        assertNull(holder.get(ids[1]));
+        assertEquals("y", holder.get(id).toString());
+        assertEquals(1, PagedServiceObjectHolder.getRemovalCount(holder));
+    }
+
+}